@@ -0,0 +1,69 @@
+package com.jiangdg.ausbc.encode.audio
+
+import android.os.Bundle
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.math.PI
+import kotlin.math.sin
+
+/**
+ * [PolyphaseResampler] throughput on a device, results are reported as
+ *  instrumentation status and logcat, nothing is asserted on timing.
+ */
+@RunWith(AndroidJUnit4::class)
+class PolyphaseResamplerBenchmark {
+
+    @Test
+    fun resample48kTo44kStereo() {
+        report("48000_44100_stereo", measureFramesPerSecond(48000, 44100, 2), 48000)
+    }
+
+    @Test
+    fun resample44kTo16kMono() {
+        report("44100_16000_mono", measureFramesPerSecond(44100, 16000, 1), 44100)
+    }
+
+    private fun report(name: String, framesPerSecond: Double, inSampleRate: Int) {
+        val realtimeFactor = framesPerSecond / inSampleRate
+        Log.i(TAG, "$name, ${"%.1f".format(realtimeFactor)}x realtime")
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, Bundle().apply {
+            putDouble("${name}_realtime_factor", realtimeFactor)
+        })
+    }
+
+    /**
+     * Measure resampler throughput on the calling thread
+     *
+     * @return processed input frames per second
+     */
+    private fun measureFramesPerSecond(inSampleRate: Int, outSampleRate: Int, channelCount: Int): Double {
+        val resampler = PolyphaseResampler(inSampleRate, outSampleRate, channelCount)
+        val chunkFrames = inSampleRate / 100
+        val input = ShortArray(chunkFrames * channelCount) { i ->
+            (sin((i / channelCount) * 2.0 * PI * TONE_HZ / inSampleRate) * TONE_AMPLITUDE).toInt().toShort()
+        }
+        val output = ShortArray(resampler.getMaxOutputFrames(chunkFrames) * channelCount)
+        // warm up jit
+        repeat(WARM_UP_CHUNKS) {
+            resampler.process(input, 0, chunkFrames, output, 0)
+        }
+        val beginNanos = System.nanoTime()
+        repeat(MEASURE_CHUNKS) {
+            resampler.process(input, 0, chunkFrames, output, 0)
+        }
+        val costNanos = maxOf(1L, System.nanoTime() - beginNanos)
+        return MEASURE_CHUNKS.toDouble() * chunkFrames * 1e9 / costNanos
+    }
+
+    companion object {
+        private const val TAG = "ResamplerBenchmark"
+        private const val TONE_HZ = 1000.0
+        private const val TONE_AMPLITUDE = 16000.0
+        private const val WARM_UP_CHUNKS = 500
+        // ten seconds of audio
+        private const val MEASURE_CHUNKS = 1000
+    }
+}
@@ -0,0 +1,106 @@
+package com.jiangdg.ausbc.render.internal
+
+import android.opengl.GLES20
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack.DataFormat
+import com.jiangdg.ausbc.render.env.EGLEvn
+import com.jiangdg.ausbc.render.readback.YuvPacker
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Random
+
+/**
+ * yuv_convert_fragment.glsl on the device gpu, read back and compared with [YuvPacker.convert]
+ */
+@RunWith(AndroidJUnit4::class)
+class YuvConvertRenderTest {
+    private val mEgl = EGLEvn()
+    private var mRender: YuvConvertRender? = null
+    private val mTextures = IntArray(1)
+
+    @Before
+    fun setUp() {
+        assertTrue(mEgl.initEgl())
+        mEgl.setupSurface(null, 1, 1)
+        mEgl.eglMakeCurrent()
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        mRender = YuvConvertRender(context).apply {
+            initGLES()
+        }
+    }
+
+    @After
+    fun tearDown() {
+        mRender?.releaseGLES()
+        GLES20.glDeleteTextures(1, mTextures, 0)
+        mEgl.releaseElg()
+    }
+
+    @Test
+    fun nv12MatchesReference() {
+        assertShaderMatchesReference(DataFormat.NV12)
+    }
+
+    @Test
+    fun i420MatchesReference() {
+        assertShaderMatchesReference(DataFormat.I420)
+    }
+
+    private fun assertShaderMatchesReference(format: DataFormat) {
+        val render = mRender!!
+        assumeTrue("highp float unsupported", render.isReady())
+        val rgba = ByteArray(WIDTH * HEIGHT * 4).also {
+            Random(SEED).nextBytes(it)
+        }
+        val packer = render.setImageSize(WIDTH, HEIGHT, format)
+        assertNotNull(packer)
+        render.drawFrame(uploadTexture(rgba))
+        val buffer = ByteBuffer.allocateDirect(packer!!.frameSize).order(ByteOrder.nativeOrder())
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, render.getFrameBufferId())
+        GLES20.glReadPixels(0, 0, packer.packedWidth, packer.packedHeight,
+            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+        assertEquals(GLES20.GL_NO_ERROR, GLES20.glGetError())
+        val actual = ByteArray(packer.frameSize)
+        buffer.get(actual)
+        val expected = ByteArray(packer.frameSize)
+        packer.convert(rgba, expected)
+        for (i in expected.indices) {
+            val diff = (actual[i].toInt() and 0xFF) - (expected[i].toInt() and 0xFF)
+            // gpu rounding and filter weights
+            assertTrue("$format byte $i differs by $diff", diff in -MAX_DIFF..MAX_DIFF)
+        }
+    }
+
+    /**
+     * Same filters as the capture fbo texture, row 0 is the top
+     */
+    private fun uploadTexture(rgba: ByteArray): Int {
+        GLES20.glGenTextures(1, mTextures, 0)
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0])
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE)
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, WIDTH, HEIGHT, 0,
+            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(rgba))
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0)
+        return mTextures[0]
+    }
+
+    companion object {
+        private const val WIDTH = 64
+        private const val HEIGHT = 32
+        private const val SEED = 20231L
+        private const val MAX_DIFF = 2
+    }
+}
@@ -7,17 +7,27 @@ import android.hardware.usb.UsbDevice
 import android.os.*
 import android.view.Surface
 import com.jiangdg.ausbc.callback.*
+import com.jiangdg.ausbc.camera.FrameMetadataRing
 import com.jiangdg.ausbc.camera.bean.CameraRequest
+import com.jiangdg.ausbc.camera.bean.FrameMetadata
 import com.jiangdg.ausbc.camera.bean.PreviewSize
 import com.jiangdg.ausbc.encode.AACEncodeProcessor
 import com.jiangdg.ausbc.encode.AbstractProcessor
 import com.jiangdg.ausbc.encode.H264EncodeProcessor
+import com.jiangdg.ausbc.encode.audio.AudioLevelMeter
+import com.jiangdg.ausbc.encode.audio.AudioMonitor
+import com.jiangdg.ausbc.encode.audio.AudioStrategyMix
+import com.jiangdg.ausbc.encode.audio.AudioStrategyResample
 import com.jiangdg.ausbc.encode.audio.AudioStrategySystem
 import com.jiangdg.ausbc.encode.audio.AudioStrategyUAC
 import com.jiangdg.ausbc.encode.audio.IAudioStrategy
 import com.jiangdg.ausbc.encode.bean.RawData
+import com.jiangdg.ausbc.encode.muxer.ElementaryStreamRecorder
 import com.jiangdg.ausbc.encode.muxer.Mp4Muxer
+import com.jiangdg.ausbc.encode.muxer.RecordStorageManager
+import com.jiangdg.ausbc.render.RenderEngine
 import com.jiangdg.ausbc.render.RenderManager
+import com.jiangdg.ausbc.render.bean.RenderTarget
 import com.jiangdg.ausbc.render.effect.AbstractEffect
 import com.jiangdg.ausbc.render.env.RotateType
 import com.jiangdg.ausbc.utils.CameraUtils
@@ -272,11 +282,14 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
         H264EncodeProcessor.OnEncodeReadyListener {
         private var isCaptureStream: Boolean = false
         private var mMediaMuxer: Mp4Muxer? = null
+        private var mStreamRecorder: ElementaryStreamRecorder? = null
+        private var mStorageManager: RecordStorageManager? = null
         private var mEncodeDataCallBack: IEncodeDataCallBack? = null
         private var mCameraThread: HandlerThread? = null
         private var mAudioProcess: AbstractProcessor? = null
         private var mVideoProcess: AbstractProcessor? = null
         private var mRenderManager: RenderManager?  = null
+        private var mRenderEngine: RenderEngine? = null
         private var mCameraView: Any? = null
         private var mCameraStateCallback: ICameraStateCallBack? = null
         private var mSizeChangedFuture: SettableFuture<Pair<Int, Int>>? = null
@@ -305,6 +318,9 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
         protected val mCameraDir by lazy {
             "${Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM)}/Camera"
         }
+        protected val mFrameMetadataRing by lazy {
+            FrameMetadataRing(device.deviceName)
+        }
 
         override fun handleMessage(msg: Message): Boolean {
             when (msg.what) {
@@ -325,21 +341,25 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                         }
                     }.also { view->
                         isNeedGLESRender = isGLESRender(renderMode == CameraRequest.RenderMode.OPENGL)
+                        mCameraHandler?.removeMessages(MSG_UPDATE_FRAME_SNAPSHOT)
+                        mCameraHandler?.sendEmptyMessageDelayed(MSG_UPDATE_FRAME_SNAPSHOT, FRAME_SNAPSHOT_INTERVAL_MS)
                         if (! isNeedGLESRender && view != null) {
                             openCameraInternal(view)
                             return true
                         }
                         // use opengl render
-                        // if surface is null, force off screen render whatever mode
+                        // if surface is null, render headless whatever mode
                         // and use init preview size（measure size） for render size
-                        val measureSize = try {
-                            mSizeChangedFuture = SettableFuture()
-                            mSizeChangedFuture?.get(100, TimeUnit.MILLISECONDS)
-                        } catch (e: Exception) {
-                            e.printStackTrace()
-                            null
+                        if (view != null) {
+                            val measureSize = try {
+                                mSizeChangedFuture = SettableFuture()
+                                mSizeChangedFuture?.get(100, TimeUnit.MILLISECONDS)
+                            } catch (e: Exception) {
+                                e.printStackTrace()
+                                null
+                            }
+                            Logger.i(TAG, "surface measure size $measureSize")
                         }
-                        Logger.i(TAG, "surface measure size $measureSize")
                         mCameraRequest!!.renderMode = CameraRequest.RenderMode.OPENGL
                         val screenWidth = view?.getSurfaceWidth() ?: previewWidth
                         val screenHeight = view?.getSurfaceHeight() ?: previewHeight
@@ -349,7 +369,19 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                         } else {
                             mPreviewDataCbList
                         }
-                        mRenderManager = RenderManager(ctx, previewWidth, previewHeight, previewCb)
+                        mRenderEngine = if (mCameraRequest!!.isRenderEngineShared) {
+                            RenderEngine.acquire()
+                        } else {
+                            null
+                        }
+                        mRenderManager = RenderManager(ctx, previewWidth, previewHeight, previewCb, mRenderEngine)
+                        mRenderManager?.setRenderBudget(mCameraRequest!!.renderBudgetMs, device.deviceName)
+                        mRenderManager?.setFrameMetadataRing(mFrameMetadataRing)
+                        mRenderManager?.setPreviewDataFormat(mCameraRequest!!.previewDataFormat)
+                        mRenderManager?.setRenderPacing(mCameraRequest!!.renderFrameRate, mCameraRequest!!.isRenderVsync)
+                        mCameraRequest!!.renderTargets.forEach { (type, target) ->
+                            mRenderManager?.setRenderTarget(type, target)
+                        }
                         mRenderManager?.startRenderScreen(screenWidth, screenHeight, surface, object : RenderManager.CameraSurfaceTextureListener {
                             override fun onSurfaceTextureAvailable(surfaceTexture: SurfaceTexture?) {
                                 if (surfaceTexture == null) {
@@ -373,6 +405,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                     }
                 }
                 MSG_STOP_PREVIEW -> {
+                    mCameraHandler?.removeMessages(MSG_UPDATE_FRAME_SNAPSHOT)
                     try {
                         mSizeChangedFuture?.cancel(true)
                         mSizeChangedFuture = null
@@ -386,16 +419,21 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                     }
                     mRenderManager?.stopRenderScreen()
                     mRenderManager = null
+                    mRenderEngine?.let {
+                        RenderEngine.release(it)
+                    }
+                    mRenderEngine = null
+                    mFrameMetadataRing.clear()
                 }
                 MSG_CAPTURE_IMAGE -> {
                     (msg.obj as Pair<*, *>).apply {
                         val path = first as? String
-                        val cb = second as ICaptureCallBack
+                        val cb = registerOnComplete(second as ICaptureCallBack)
                         if (isNeedGLESRender && !mCameraRequest!!.isCaptureRawImage) {
                             mRenderManager?.saveImage(cb, path)
                             return@apply
                         }
-                        captureImageInternal(path, second as ICaptureCallBack)
+                        captureImageInternal(path, cb)
                     }
                 }
                 MSG_CAPTURE_VIDEO_START -> {
@@ -413,32 +451,57 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                 MSG_CAPTURE_STREAM_STOP -> {
                     isCaptureStream = false
                     // if recording, cancel it
-                    if (isRecording()) {
+                    if (isRecording() || isRawStreamRecording()) {
                         return true
                     }
                     captureStreamStopInternal()
                 }
+                MSG_CAPTURE_RAW_STREAM_START -> {
+                    (msg.obj as Pair<*, *>).apply {
+                        captureRawStreamStartInternal(first as? String, second as ICaptureCallBack)
+                    }
+                }
+                MSG_CAPTURE_RAW_STREAM_STOP -> {
+                    captureRawStreamStopInternal()
+                }
+                MSG_UPDATE_FRAME_SNAPSHOT -> {
+                    // exposure and gain are usb control transfers, not read them per frame
+                    if (isPreviewed) {
+                        updateFrameSnapshot()
+                    }
+                    mCameraHandler?.sendEmptyMessageDelayed(MSG_UPDATE_FRAME_SNAPSHOT, FRAME_SNAPSHOT_INTERVAL_MS)
+                }
             }
             return true
         }
 
+        /**
+         * Update exposure and gain of the frame metadata,
+         *  called on the camera thread about once per second when previewing
+         *
+         * see [FrameMetadataRing.setSnapshot]
+         */
+        protected open fun updateFrameSnapshot() {}
+
         protected abstract fun <T> openCameraInternal(cameraView: T)
         protected abstract fun closeCameraInternal()
         protected abstract fun captureImageInternal(savePath: String?, callback: ICaptureCallBack)
 
         protected open fun getAudioStrategy(): IAudioStrategy? {
+            val sampleRate = mCameraRequest?.audioSampleRate ?: DEFAULT_AUDIO_SAMPLE_RATE
+            val channelCount = mCameraRequest?.audioChannelCount ?: 1
             return when(mCameraRequest?.audioSource) {
                 CameraRequest.AudioSource.SOURCE_AUTO -> {
                     if (isMicSupported(device) && mCtrlBlock!=null) {
                         if (Utils.debugCamera) {
                             Logger.i(TAG, "Audio record by using device internal mic")
                         }
-                        AudioStrategyUAC(mCtrlBlock!!)
+                        AudioStrategyResample(AudioStrategyUAC(mCtrlBlock!!), sampleRate, channelCount)
                     } else {
                         if (Utils.debugCamera) {
                             Logger.i(TAG, "Audio record by using system mic")
                         }
-                        AudioStrategySystem()
+                        AudioStrategyResample(AudioStrategySystem(sampleRate, channelCount), sampleRate, channelCount)
                     }
                 }
                 CameraRequest.AudioSource.SOURCE_DEV_MIC -> {
@@ -446,7 +509,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                         if (Utils.debugCamera) {
                             Logger.i(TAG, "Audio record by using device internal mic")
                         }
-                        return AudioStrategyUAC(mCtrlBlock!!)
+                        return AudioStrategyResample(AudioStrategyUAC(mCtrlBlock!!), sampleRate, channelCount)
                     }
                     return null
                 }
@@ -454,7 +517,23 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                     if (Utils.debugCamera) {
                         Logger.i(TAG, "Audio record by using system mic")
                     }
-                    AudioStrategySystem()
+                    AudioStrategyResample(AudioStrategySystem(sampleRate, channelCount), sampleRate, channelCount)
+                }
+                CameraRequest.AudioSource.SOURCE_MIX_MIC -> {
+                    val request = mCameraRequest!!
+                    val sysMic = AudioStrategySystem(sampleRate, channelCount)
+                    if (! isMicSupported(device) || mCtrlBlock == null) {
+                        Logger.w(TAG, "Device mic unsupported, audio record by using system mic")
+                        return AudioStrategyResample(sysMic, sampleRate, channelCount)
+                    }
+                    if (Utils.debugCamera) {
+                        Logger.i(TAG, "Audio record by mixing system mic and device internal mic")
+                    }
+                    // system mic is the master clock
+                    AudioStrategyMix(listOf(sysMic, AudioStrategyUAC(mCtrlBlock!!)), sampleRate, channelCount).apply {
+                        setGain(0, request.audioSysMicGain)
+                        setGain(1, request.audioDevMicGain)
+                    }
                 }
                 else -> {
                     null
@@ -487,7 +566,15 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             mContext.resources.configuration.orientation.let { orientation ->
                 orientation == Configuration.ORIENTATION_PORTRAIT
             }.also { isPortrait ->
-                mVideoProcess = H264EncodeProcessor(previewWidth, previewHeight, isNeedGLESRender, isPortrait)
+                // encoder input surface can have its own size in OpenGL mode
+                val encodeTarget = mCameraRequest?.renderTargets?.get(RenderTarget.Type.ENCODE)?.takeIf {
+                    isNeedGLESRender && it.hasSize()
+                }
+                val encodeWidth = encodeTarget?.width ?: previewWidth
+                val encodeHeight = encodeTarget?.height ?: previewHeight
+                mVideoProcess = H264EncodeProcessor(encodeWidth, encodeHeight, isNeedGLESRender, isPortrait).apply {
+                    setFrameMetadataRing(mFrameMetadataRing)
+                }
             }
         }
 
@@ -501,6 +588,8 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                 e.printStackTrace()
                 Logger.e(TAG, "release muxer failed, err is ${e.localizedMessage}")
             }
+            mStreamRecorder?.release()
+            mStreamRecorder = null
             mVideoProcess?.stopEncode()
             mAudioProcess?.stopEncode()
             mVideoProcess = null
@@ -513,9 +602,37 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
          * Put video data
          *
          * @param data NV21 raw data
+         * @param ptsUs capture time in us, 0 means stamped by the encoder
          */
-        protected fun putVideoData(data: ByteArray) {
-            mVideoProcess?.putRawData(RawData(data, data.size))
+        protected fun putVideoData(data: ByteArray, ptsUs: Long = 0L) {
+            mVideoProcess?.putRawData(RawData(data, data.size).apply {
+                this.ptsUs = ptsUs
+            })
+        }
+
+        /**
+         * Put video data without copying
+         *
+         * @param rawData NV21 raw data, such as a pooled one, owned by the encoder after called
+         */
+        protected fun putVideoData(rawData: RawData) {
+            val processor = mVideoProcess
+            if (processor == null) {
+                rawData.release()
+                return
+            }
+            processor.putRawData(rawData)
+        }
+
+        /**
+         * Get metadata of a frame
+         *
+         * @param timestampNs frame timestamp, see [FrameMetadata.timestampNs]
+         * @param out result, reused by the caller
+         * @return true if found
+         */
+        fun getFrameMetadata(timestampNs: Long, out: FrameMetadata): Boolean {
+            return mFrameMetadataRing.find(timestampNs, 0L, out)
         }
 
         /**
@@ -538,7 +655,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             } else {
                 mp3Path
             }
-            (mAudioProcess as? AACEncodeProcessor)?.recordMp3Start(path, callBack)
+            (mAudioProcess as? AACEncodeProcessor)?.recordMp3Start(path, registerOnComplete(callBack))
         }
 
         /**
@@ -568,6 +685,43 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             (mAudioProcess as? AACEncodeProcessor)?.playAudioStop()
         }
 
+        /**
+         * Get play mic monitor
+         *
+         * @return null means not playing, see [AudioMonitor]
+         */
+        fun getPlayMicMonitor(): AudioMonitor? = (mAudioProcess as? AACEncodeProcessor)?.getAudioMonitor()
+
+        /**
+         * Get mixer cpu time, only for [CameraRequest.AudioSource.SOURCE_MIX_MIC]
+         *
+         * @return average mixing time of a 20ms block in us, 0 means not mixing
+         */
+        fun getAudioMixCostUs(): Float {
+            val strategy = (mAudioProcess as? AACEncodeProcessor)?.getAudioStrategy()
+            return (strategy as? AudioStrategyMix)?.getMixCostUs() ?: 0f
+        }
+
+        /**
+         * Start audio level meter, rms, peak and voice activity
+         *
+         * @param listener called on a work thread, see [AudioLevelMeter.OnAudioLevelListener]
+         */
+        fun startAudioLevel(listener: AudioLevelMeter.OnAudioLevelListener) {
+            if (! CameraUtils.hasAudioPermission(mContext)) {
+                Logger.e(TAG, "Has no audio permission")
+                return
+            }
+            (mAudioProcess as? AACEncodeProcessor)?.startAudioLevel(listener)
+        }
+
+        /**
+         * Stop audio level meter
+         */
+        fun stopAudioLevel() {
+            (mAudioProcess as? AACEncodeProcessor)?.stopAudioLevel()
+        }
+
         /**
          * Rotate camera render angle
          *
@@ -588,11 +742,41 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             mSizeChangedFuture?.set(Pair(width, height))
         }
 
+        /**
+         * Set render pacing, only OPENGL mode useful
+         *
+         * @param fps max render frame rate, 0 means no limit
+         * @param isVsync draw on display vsync
+         */
+        fun setRenderPacing(fps: Int, isVsync: Boolean) {
+            mCameraRequest?.renderFrameRate = fps
+            mCameraRequest?.isRenderVsync = isVsync
+            mRenderManager?.setRenderPacing(fps, isVsync)
+        }
+
+        /**
+         * Set output of a render target, only OPENGL mode useful
+         *
+         * The encode size is applied when the encoder is created next time.
+         *
+         * @param type target type, see [RenderTarget.Type]
+         * @param target size, scale type and frame rate, null means following the render size
+         */
+        fun setRenderTarget(type: RenderTarget.Type, target: RenderTarget?) {
+            if (target == null) {
+                mCameraRequest?.renderTargets?.remove(type)
+            } else {
+                mCameraRequest?.renderTargets?.put(type, target)
+            }
+            mRenderManager?.setRenderTarget(type, target)
+        }
+
         /**
          * Add render effect.There is only one setting in the same category
          * <p>
          * The default effects:
          * @see [com.jiangdg.ausbc.render.effect.EffectBlackWhite]
+         * @see [com.jiangdg.ausbc.render.effect.EffectColorAdjust]
          * @see [com.jiangdg.ausbc.render.effect.EffectZoom]
          * @see [com.jiangdg.ausbc.render.effect.EffectSoul]
          * <p>
@@ -761,6 +945,27 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             mCameraHandler?.obtainMessage(MSG_CAPTURE_VIDEO_STOP)?.sendToTarget()
         }
 
+        /**
+         * Capture raw stream start
+         *  Saving Annex-B H.264 and ADTS AAC files without muxing,
+         *  see [ElementaryStreamRecorder]
+         *
+         * @param callBack capture result callback, see [ICaptureCallBack]
+         * @param path saving path without extension, default is DICM/Camera
+         */
+        fun captureRawStreamStart(callBack: ICaptureCallBack, path: String? = null) {
+            Pair(path, callBack).apply {
+                mCameraHandler?.obtainMessage(MSG_CAPTURE_RAW_STREAM_START, this)?.sendToTarget()
+            }
+        }
+
+        /**
+         * Capture raw stream stop
+         */
+        fun captureRawStreamStop() {
+            mCameraHandler?.obtainMessage(MSG_CAPTURE_RAW_STREAM_STOP)?.sendToTarget()
+        }
+
         /**
          * Capture stream start
          *  Getting H.264 and AAC stream
@@ -788,7 +993,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                 Logger.w(TAG, "updateResolution failed, please open camera first.")
                 return
             }
-            if (isStreaming() || isRecording()) {
+            if (isStreaming() || isRecording() || isRawStreamRecording()) {
                 Logger.e(TAG, "updateResolution failed, video recording...")
                 return
             }
@@ -824,6 +1029,30 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             this.mEncodeDataCallBack = callBack
         }
 
+        /**
+         * Set record storage manager
+         *
+         * @param manager check free space, preallocate and evict old medias when recording,
+         *              see [RecordStorageManager]
+         */
+        fun setRecordStorageManager(manager: RecordStorageManager?) {
+            this.mStorageManager = manager
+        }
+
+        /**
+         * Register captured images and mp3s to the storage manager,
+         *  so they are counted and evicted like the recorded videos
+         */
+        private fun registerOnComplete(callBack: ICaptureCallBack): ICaptureCallBack {
+            val manager = mStorageManager ?: return callBack
+            return object : ICaptureCallBack by callBack {
+                override fun onComplete(path: String?) {
+                    manager.register(path)
+                    callBack.onComplete(path)
+                }
+            }
+        }
+
         /**
          * Add preview data call back
          * @param callBack preview data call back
@@ -907,6 +1136,11 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
          */
         fun isStreaming(): Boolean = isEncoding() && isCaptureStream
 
+        /**
+         * check raw stream record status
+         */
+        fun isRawStreamRecording(): Boolean = mStreamRecorder != null
+
         private fun isEncoding(): Boolean = mVideoProcess?.isEncoding() == true
 
         private fun captureVideoStartInternal(path: String?, durationInSec: Long, callBack: ICaptureCallBack) {
@@ -919,7 +1153,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                 return
             }
             captureStreamStartInternal()
-            Mp4Muxer(mContext, callBack, path, durationInSec, mAudioProcess==null).apply {
+            Mp4Muxer(mContext, callBack, path, durationInSec, mAudioProcess==null, mStorageManager).apply {
                 mVideoProcess?.setMp4Muxer(this)
                 mAudioProcess?.setMp4Muxer(this)
             }.also { muxer ->
@@ -930,7 +1164,7 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
 
         private fun captureVideoStopInternal() {
             // if streaming, cancel it
-            if (! isStreaming()) {
+            if (! isStreaming() && ! isRawStreamRecording()) {
                 captureStreamStopInternal()
             }
             try {
@@ -944,6 +1178,37 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
             Logger.i(TAG, "capturing video stop")
         }
 
+        private fun captureRawStreamStartInternal(path: String?, callBack: ICaptureCallBack) {
+            if (! isCameraOpened()) {
+                Logger.e(TAG ,"capture raw stream failed, camera not opened")
+                return
+            }
+            if (isRawStreamRecording()) {
+                Logger.w(TAG, "capturing raw stream already running")
+                return
+            }
+            captureStreamStartInternal()
+            ElementaryStreamRecorder(callBack, path, mAudioProcess==null).apply {
+                mVideoProcess?.setStreamRecorder(this)
+                mAudioProcess?.setStreamRecorder(this)
+            }.also { recorder ->
+                mStreamRecorder = recorder
+            }
+            Logger.i(TAG, "capturing raw stream start")
+        }
+
+        private fun captureRawStreamStopInternal() {
+            mVideoProcess?.setStreamRecorder(null)
+            mAudioProcess?.setStreamRecorder(null)
+            mStreamRecorder?.release()
+            mStreamRecorder = null
+            // if streaming or recording, cancel it
+            if (! isStreaming() && ! isRecording()) {
+                captureStreamStopInternal()
+            }
+            Logger.i(TAG, "capturing raw stream stop")
+        }
+
         private fun captureStreamStartInternal() {
             if (! isCameraOpened()) {
                 Logger.e(TAG ,"capture stream failed, camera not opened")
@@ -996,7 +1261,8 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
                 return
             }
             mCameraRequest?.apply {
-                mRenderManager?.startRenderCodec(surface, previewWidth, previewHeight)
+                val processor = mVideoProcess as? H264EncodeProcessor
+                mRenderManager?.startRenderCodec(surface, processor?.width ?: previewWidth, processor?.height ?: previewHeight)
             }
         }
 
@@ -1017,8 +1283,13 @@ class MultiCameraClient(ctx: Context, callback: IDeviceConnectCallBack?) {
         private const val MSG_CAPTURE_VIDEO_STOP = 0x05
         private const val MSG_CAPTURE_STREAM_START = 0x06
         private const val MSG_CAPTURE_STREAM_STOP = 0x07
+        private const val MSG_CAPTURE_RAW_STREAM_START = 0x08
+        private const val MSG_CAPTURE_RAW_STREAM_STOP = 0x09
+        private const val MSG_UPDATE_FRAME_SNAPSHOT = 0x0A
+        private const val FRAME_SNAPSHOT_INTERVAL_MS = 1000L
         private const val DEFAULT_PREVIEW_WIDTH = 640
         private const val DEFAULT_PREVIEW_HEIGHT = 480
+        private const val DEFAULT_AUDIO_SAMPLE_RATE = 44100
         const val MAX_NV21_DATA = 5
         const val CAPTURE_TIMES_OUT_SEC = 3L
     }
@@ -23,4 +23,12 @@ interface ICaptureCallBack {
     fun onBegin()
     fun onError(error: String?)
     fun onComplete(path: String?)
+
+    /**
+     * Storage space is running low, called before recording failing
+     *
+     * @param path current saving path
+     * @param freeBytes available bytes of the storage
+     */
+    fun onStorageLow(path: String?, freeBytes: Long) {}
 }
\ No newline at end of file
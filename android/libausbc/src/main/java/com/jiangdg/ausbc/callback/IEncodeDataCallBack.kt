@@ -15,6 +15,7 @@
  */
 package com.jiangdg.ausbc.callback
 
+import com.jiangdg.ausbc.encode.bean.EncodedPacket
 import java.nio.ByteBuffer
 
 /** Encode data callback
@@ -23,6 +24,15 @@ import java.nio.ByteBuffer
  */
 interface IEncodeDataCallBack {
     fun onEncodeData(type: DataType, buffer:ByteBuffer, offset: Int, size: Int, timestamp: Long)
+
+    /**
+     * On encode packet, called after [onEncodeData]
+     *
+     * @param packet nal units, sps, pts and dts of the data, see [EncodedPacket]
+     *              only valid during the callback
+     */
+    fun onEncodePacket(packet: EncodedPacket) {}
+
     enum class DataType {
         AAC,       // aac without ADTS header,
                    // if want adding adts, should call MediaUtils.addADTStoPacket() method
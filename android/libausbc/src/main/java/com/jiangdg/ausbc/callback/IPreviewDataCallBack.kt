@@ -15,14 +15,42 @@
  */
 package com.jiangdg.ausbc.callback
 
+import com.jiangdg.ausbc.camera.bean.FrameMetadata
+
 /** Camera preview data callback
  *
  * @author Created by jiangdg on 2022/1/29
  */
 interface IPreviewDataCallBack {
+    /**
+     * On preview data
+     *
+     * @param data frame data, reused after return, copy it if needed
+     * @param width image width
+     * @param height image height
+     * @param format see [DataFormat]
+     */
     fun onPreviewData(data: ByteArray?, width: Int, height: Int, format: DataFormat)
 
+    /**
+     * On preview metadata, called before [onPreviewData] of the same frame
+     *
+     * @param metadata capture time, sequence, exposure...etc, see [FrameMetadata]
+     *              only valid during the callback
+     *              not called for [DataFormat.NV21] frames in OpenGL mode, they can not
+     *              be matched to the frames recorded by the render
+     */
+    fun onPreviewMetadata(metadata: FrameMetadata) {}
+
+    /**
+     * Preview data format
+     *
+     * NV21: raw camera data
+     * RGBA: OpenGL ES render data, default of OpenGL mode
+     * NV12: OpenGL ES render data converted on gpu, Y plane then interleaved UV
+     * I420: OpenGL ES render data converted on gpu, Y plane, U plane then V plane
+     */
     enum class DataFormat {
-        NV21, RGBA
+        NV21, RGBA, NV12, I420
     }
 }
\ No newline at end of file
@@ -30,7 +30,10 @@ import com.jiangdg.ausbc.callback.ICameraStateCallBack
 import com.jiangdg.ausbc.callback.ICaptureCallBack
 import com.jiangdg.ausbc.callback.IPreviewDataCallBack
 import com.jiangdg.ausbc.camera.bean.CameraRequest
+import com.jiangdg.ausbc.camera.bean.FrameMetadata
 import com.jiangdg.ausbc.camera.bean.PreviewSize
+import com.jiangdg.ausbc.encode.audio.PcmBufferPool
+import com.jiangdg.ausbc.encode.bean.RawData
 import com.jiangdg.ausbc.utils.CameraUtils
 import com.jiangdg.ausbc.utils.Logger
 import com.jiangdg.ausbc.utils.MediaUtils
@@ -39,6 +42,7 @@ import com.jiangdg.uvc.IFrameCallback
 import com.jiangdg.uvc.UVCCamera
 import java.io.File
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 /** UVC Camera
  *
@@ -49,32 +53,73 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
     private val mCameraPreviewSize by lazy {
         arrayListOf<PreviewSize>()
     }
+    private val mFrameMetadata by lazy {
+        FrameMetadata()
+    }
+    private val mFramePool by lazy {
+        PcmBufferPool(MAX_POOLED_FRAMES)
+    }
+    // captures waiting for a frame
+    private val mCaptureRequests = AtomicInteger(0)
 
     private val frameCallBack = IFrameCallback { frame ->
         frame?.apply {
-            frame.position(0)
-            val data = ByteArray(capacity())
-            get(data)
+            val nowNs = System.nanoTime()
             mCameraRequest?.apply {
-                if (data.size != previewWidth * previewHeight * 3 / 2) {
+                val frameSize = previewWidth * previewHeight * 3 / 2
+                if (frame.capacity() != frameSize) {
+                    mFrameMetadataRing.addPendingFlags(FrameMetadata.FLAG_DROP_CALLBACK)
                     return@IFrameCallback
                 }
+                // pooled, owned by the encoder after handed over
+                val rawData = obtainFrame(frameSize)
+                val data = rawData.data
+                frame.position(0)
+                frame.get(data)
+                rawData.size = frameSize
+                // for metadata
+                // in OpenGL mode frames are recorded by the render with their texture
+                //  timestamp, a raw frame carries no key of that record, so none here
+                var hasMetadata = false
+                if (! isNeedGLESRender) {
+                    mFrameMetadataRing.record(nowNs)
+                    hasMetadata = mFrameMetadataRing.find(nowNs, 0L, mFrameMetadata)
+                }
                 // for preview callback
-                mPreviewDataCbList.forEach { cb ->
-                    cb?.onPreviewData(data, previewWidth, previewHeight, IPreviewDataCallBack.DataFormat.NV21)
+                // index loop, no iterator per frame
+                val callbacks = mPreviewDataCbList
+                for (i in 0 until callbacks.size) {
+                    val cb = Utils.getOrNull(callbacks, i) ?: break
+                    if (hasMetadata) {
+                        cb.onPreviewMetadata(mFrameMetadata)
+                    }
+                    cb.onPreviewData(data, previewWidth, previewHeight, IPreviewDataCallBack.DataFormat.NV21)
                 }
                 // for image
-                if (mNV21DataQueue.size >= MAX_NV21_DATA) {
-                    mNV21DataQueue.removeLast()
+                // copied only when a capture is waiting, the encoder converts data in place
+                if (mCaptureRequests.get() > 0 && mNV21DataQueue.size < MAX_NV21_DATA) {
+                    mNV21DataQueue.offerFirst(data.copyOf())
                 }
-                mNV21DataQueue.offerFirst(data)
                 // for video
                 // avoid preview size changed
-                putVideoData(data)
+                rawData.ptsUs = nowNs / 1000L
+                putVideoData(rawData)
             }
         }
     }
 
+    /**
+     * Obtain a frame buffer of exactly [frameSize], buffers of the last preview size are dropped
+     */
+    private fun obtainFrame(frameSize: Int): RawData {
+        var rawData = mFramePool.obtain(frameSize)
+        while (rawData.data.size != frameSize) {
+            mFramePool.clear()
+            rawData = mFramePool.obtain(frameSize)
+        }
+        return rawData
+    }
+
     override fun getAllPreviewSizes(aspectRatio: Double?): MutableList<PreviewSize> {
         val previewSizeList = arrayListOf<PreviewSize>()
         val isMjpegFormat = mCameraRequest?.previewFormat == CameraRequest.PreviewFormat.FORMAT_MJPEG
@@ -252,7 +297,15 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
                 Logger.i(TAG, "captureImageInternal failed, camera not previewing")
                 return@submit
             }
-            val data = mNV21DataQueue.pollFirst(CAPTURE_TIMES_OUT_SEC, TimeUnit.SECONDS)
+            if (mCaptureRequests.incrementAndGet() == 1) {
+                // left by a capture timed out
+                mNV21DataQueue.clear()
+            }
+            val data = try {
+                mNV21DataQueue.pollFirst(CAPTURE_TIMES_OUT_SEC, TimeUnit.SECONDS)
+            } finally {
+                mCaptureRequests.decrementAndGet()
+            }
             if (data == null) {
                 mMainHandler.post {
                     callback.onError("Times out")
@@ -384,6 +437,12 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
         mUvcCamera?.gain = gain
     }
 
+    override fun updateFrameSnapshot() {
+        mUvcCamera?.let { camera ->
+            mFrameMetadataRing.setSnapshot(camera.exposure, camera.gain)
+        }
+    }
+
     /**
      * Get gain
      */
@@ -530,5 +589,7 @@ class CameraUVC(ctx: Context, device: UsbDevice) : MultiCameraClient.ICamera(ctx
         private const val TAG = "CameraUVC"
         private const val MIN_FS = 1
         private const val MAX_FPS = 61
+        // frames queued by the encoder, plus the one in hand
+        private const val MAX_POOLED_FRAMES = 8
     }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.camera
+
+import com.jiangdg.ausbc.camera.bean.FrameMetadata
+
+/** Ring of the latest frame metadata of a camera, looked up by timestamp
+ *
+ * A frame is recorded when it arrives, the texture path binds it to the
+ *  SurfaceTexture timestamp when drawn, which is also the encoder pts,
+ *  so sinks find the record by the timestamp they get. Slots are preallocated,
+ *  nothing is allocated per frame.
+ *
+ * @property cameraId camera id of the records
+ * @param capacity records kept, about one second of frames
+ */
+class FrameMetadataRing(private val cameraId: String, capacity: Int = DEFAULT_CAPACITY) {
+    private val mSlots = Array(capacity) {
+        FrameMetadata()
+    }
+    private var mSequence = 0L
+    private var mPendingFlags = 0
+    @Volatile
+    private var mExposure = FrameMetadata.UNKNOWN
+    @Volatile
+    private var mGain = FrameMetadata.UNKNOWN
+
+    /**
+     * Set exposure and gain of the coming frames
+     *
+     * @param exposure absolute exposure time in 100us, -1 means unknown
+     * @param gain gain in %, -1 means unknown
+     */
+    fun setSnapshot(exposure: Int, gain: Int) {
+        mExposure = exposure
+        mGain = gain
+    }
+
+    /**
+     * Record a frame arrived
+     *
+     * @param captureTimeNs arrival time, see [System.nanoTime]
+     * @return sequence of the frame
+     */
+    @Synchronized
+    fun record(captureTimeNs: Long): Long {
+        val sequence = ++mSequence
+        mSlots[(sequence % mSlots.size).toInt()].apply {
+            this.captureTimeNs = captureTimeNs
+            this.timestampNs = captureTimeNs
+            this.sequence = sequence
+            this.cameraId = this@FrameMetadataRing.cameraId
+            this.exposure = mExposure
+            this.gain = mGain
+            this.dropFlags = mPendingFlags
+        }
+        mPendingFlags = 0
+        return sequence
+    }
+
+    /**
+     * Mark frames dropped before the next recorded one
+     *
+     * @param flags see [FrameMetadata.FLAG_DROP_CALLBACK]
+     */
+    @Synchronized
+    fun addPendingFlags(flags: Int) {
+        mPendingFlags = mPendingFlags or flags
+    }
+
+    /**
+     * Bind the frame captured nearest to a timestamp, such as SurfaceTexture timestamp
+     *
+     * @param timestampNs new key of the frame
+     * @param toleranceNs max distance to the capture time
+     * @param flags drop flags added, see [FrameMetadata]
+     * @return false when no frame near
+     */
+    @Synchronized
+    fun bind(timestampNs: Long, toleranceNs: Long, flags: Int): Boolean {
+        val index = findIndex(timestampNs, toleranceNs, true)
+        if (index < 0) {
+            return false
+        }
+        mSlots[index].apply {
+            this.timestampNs = timestampNs
+            this.dropFlags = dropFlags or flags
+        }
+        return true
+    }
+
+    /**
+     * Add drop flags to a bound frame
+     *
+     * @param timestampNs key of the frame
+     * @param flags see [FrameMetadata]
+     */
+    @Synchronized
+    fun addFlags(timestampNs: Long, flags: Int) {
+        val index = findIndex(timestampNs, 0L, false)
+        if (index >= 0) {
+            mSlots[index].dropFlags = mSlots[index].dropFlags or flags
+        }
+    }
+
+    /**
+     * Find a frame by its key
+     *
+     * @param timestampNs SurfaceTexture timestamp, or encoder pts * 1000
+     * @param toleranceNs max distance, such as the pts rounding
+     * @param out filled when found
+     * @return false when not found
+     */
+    @Synchronized
+    fun find(timestampNs: Long, toleranceNs: Long, out: FrameMetadata): Boolean {
+        val index = findIndex(timestampNs, toleranceNs, false)
+        if (index < 0) {
+            return false
+        }
+        out.copyFrom(mSlots[index])
+        return true
+    }
+
+    @Synchronized
+    fun clear() {
+        mSlots.forEach {
+            it.sequence = 0L
+        }
+        mPendingFlags = 0
+    }
+
+    private fun findIndex(timeNs: Long, toleranceNs: Long, isCaptureTime: Boolean): Int {
+        var bestIndex = -1
+        var bestDistance = Long.MAX_VALUE
+        for (i in mSlots.indices) {
+            val slot = mSlots[i]
+            if (slot.sequence == 0L) {
+                continue
+            }
+            val slotTime = if (isCaptureTime) slot.captureTimeNs else slot.timestampNs
+            val distance = if (slotTime > timeNs) slotTime - timeNs else timeNs - slotTime
+            if (distance <= toleranceNs && distance < bestDistance) {
+                bestIndex = i
+                bestDistance = distance
+            }
+        }
+        return bestIndex
+    }
+
+    companion object {
+        private const val DEFAULT_CAPACITY = 64
+    }
+}
@@ -16,6 +16,8 @@
 package com.jiangdg.ausbc.camera.bean
 
 import androidx.annotation.Keep
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack
+import com.jiangdg.ausbc.render.bean.RenderTarget
 import com.jiangdg.ausbc.render.effect.AbstractEffect
 import com.jiangdg.ausbc.render.env.RotateType
 
@@ -31,10 +33,20 @@ class CameraRequest private constructor() {
     var renderMode: RenderMode = RenderMode.OPENGL
     var isAspectRatioShow: Boolean = true
     var isRawPreviewData: Boolean = false
+    var previewDataFormat: IPreviewDataCallBack.DataFormat = IPreviewDataCallBack.DataFormat.RGBA
+    var renderFrameRate: Int = 0
+    var isRenderVsync: Boolean = false
+    var isRenderEngineShared: Boolean = false
+    var renderBudgetMs: Int = 0
+    var renderTargets: MutableMap<RenderTarget.Type, RenderTarget> = mutableMapOf()
     var isCaptureRawImage: Boolean = false
     var defaultEffect: AbstractEffect? = null
     var defaultRotateType: RotateType = RotateType.ANGLE_0
     var audioSource: AudioSource = AudioSource.SOURCE_AUTO
+    var audioSampleRate: Int = DEFAULT_AUDIO_SAMPLE_RATE
+    var audioChannelCount: Int = DEFAULT_AUDIO_CHANNEL_COUNT
+    var audioDevMicGain: Float = DEFAULT_AUDIO_GAIN
+    var audioSysMicGain: Float = DEFAULT_AUDIO_GAIN
     var previewFormat: PreviewFormat = PreviewFormat.FORMAT_MJPEG
 
     @kotlin.Deprecated("Deprecated since version 3.3.0")
@@ -132,6 +144,60 @@ class CameraRequest private constructor() {
             return this
         }
 
+        /**
+         * Set preview data format when OpenGL ES render opened and raw preview data is not needed
+         *
+         * @param format [IPreviewDataCallBack.DataFormat.RGBA], or NV12, I420 converted on gpu,
+         *  default is [IPreviewDataCallBack.DataFormat.RGBA]
+         * @return see [Builder]
+         */
+        fun setPreviewDataFormat(format: IPreviewDataCallBack.DataFormat): Builder {
+            mRequest.previewDataFormat = format
+            return this
+        }
+
+        /**
+         * Set render pacing when OpenGL ES render opened,
+         *  camera frames arriving faster than rendering are skipped
+         *
+         * @param fps max render frame rate, default is 0, means no limit
+         * @param isVsync draw on display vsync, default is false
+         * @return see [Builder]
+         */
+        fun setRenderPacing(fps: Int, isVsync: Boolean): Builder {
+            mRequest.renderFrameRate = fps
+            mRequest.isRenderVsync = isVsync
+            return this
+        }
+
+        /**
+         * Render on the engine shared by all cameras when OpenGL ES render opened,
+         *  one thread and one EGL context, draws are served round-robin
+         *
+         * @param isShared default is false, each camera has its own render thread
+         * @param budgetMs draw time budget of a frame, a camera exceeding it is delayed,
+         *  default is 0, means no limit
+         * @return see [Builder]
+         */
+        fun setSharedRenderEngine(isShared: Boolean, budgetMs: Int): Builder {
+            mRequest.isRenderEngineShared = isShared
+            mRequest.renderBudgetMs = budgetMs
+            return this
+        }
+
+        /**
+         * Set output of a render target when OpenGL ES render opened,
+         *  such as capturing 1080p while previewing 720p
+         *
+         * @param type target type, see [RenderTarget.Type]
+         * @param target size, scale type and frame rate, default all targets follow the render size
+         * @return see [Builder]
+         */
+        fun setRenderTarget(type: RenderTarget.Type, target: RenderTarget): Builder {
+            mRequest.renderTargets[type] = target
+            return this
+        }
+
         /**
          * Capture raw jpeg image when OpenGL ES render opened
          *  You also should set setRawPreviewData(true) at the same time.
@@ -177,6 +243,41 @@ class CameraRequest private constructor() {
             return this
         }
 
+        /**
+         * Set audio sample rate, pcm of any source is resampled to it
+         *
+         * @param sampleRate such as 44100 or 48000, default is 44100
+         * @return see [Builder]
+         */
+        fun setAudioSampleRate(sampleRate: Int): Builder {
+            mRequest.audioSampleRate = sampleRate
+            return this
+        }
+
+        /**
+         * Set audio channel count, pcm of any source is mixed to it
+         *
+         * @param channelCount 1 or 2, default is 1
+         * @return see [Builder]
+         */
+        fun setAudioChannelCount(channelCount: Int): Builder {
+            mRequest.audioChannelCount = channelCount.coerceIn(1, 2)
+            return this
+        }
+
+        /**
+         * Set gains of [AudioSource.SOURCE_MIX_MIC]
+         *
+         * @param devMicGain linear gain of camera device mic, 0 ~ 4, default is 1
+         * @param sysMicGain linear gain of system mic, 0 ~ 4, default is 1
+         * @return see [Builder]
+         */
+        fun setAudioMixGain(devMicGain: Float, sysMicGain: Float): Builder {
+            mRequest.audioDevMicGain = devMicGain
+            mRequest.audioSysMicGain = sysMicGain
+            return this
+        }
+
         /**
          * Set preview format
          *
@@ -217,12 +318,16 @@ class CameraRequest private constructor() {
      * SOURCE_DEV_MIC: record from camera device mic(UAC)
      * SOURCE_AUTO: record from camera device mic, if unsupported
      *              switch to system mic.default mode.
+     * SOURCE_MIX_MIC: record from both system mic and camera device mic,
+     *              mixed to one track, if device mic unsupported
+     *              switch to system mic.
      */
     enum class AudioSource {
         NONE,
         SOURCE_SYS_MIC,
         SOURCE_DEV_MIC,
-        SOURCE_AUTO
+        SOURCE_AUTO,
+        SOURCE_MIX_MIC
     }
 
     /**
@@ -238,6 +343,9 @@ class CameraRequest private constructor() {
 
     companion object {
         private const val DEFAULT_WIDTH = 640
+        private const val DEFAULT_AUDIO_SAMPLE_RATE = 44100
+        private const val DEFAULT_AUDIO_CHANNEL_COUNT = 1
+        private const val DEFAULT_AUDIO_GAIN = 1f
         private const val DEFAULT_HEIGHT = 480
     }
 }
\ No newline at end of file
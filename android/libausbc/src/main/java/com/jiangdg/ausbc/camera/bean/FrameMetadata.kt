@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.camera.bean
+
+import androidx.annotation.Keep
+
+/** Metadata of a camera frame, carried from the camera to the sinks
+ *
+ * Records are reused, they are only valid during the callback,
+ *  call [copyFrom] if need keeping one.
+ */
+@Keep
+class FrameMetadata {
+    /** time the frame arrived from the camera, see [System.nanoTime] */
+    var captureTimeNs: Long = 0L
+        internal set
+    /** key of the frame downstream, SurfaceTexture timestamp or encoder pts, in ns */
+    var timestampNs: Long = 0L
+        internal set
+    /** frame sequence of the camera, from 1 */
+    var sequence: Long = 0L
+        internal set
+    /** camera id, usb device name */
+    var cameraId: String = ""
+        internal set
+    /** absolute exposure time when captured, in 100us, -1 means unknown */
+    var exposure: Int = UNKNOWN
+        internal set
+    /** gain when captured, in %, -1 means unknown */
+    var gain: Int = UNKNOWN
+        internal set
+    /** frames dropped before this one, see [FLAG_DROP_CALLBACK], [FLAG_DROP_RENDER], [FLAG_DROP_ENCODE] */
+    var dropFlags: Int = 0
+        internal set
+
+    /**
+     * Get latency from capture
+     *
+     * @param nowNs current time, see [System.nanoTime]
+     * @return latency in ns
+     */
+    fun getLatencyNs(nowNs: Long = System.nanoTime()) = nowNs - captureTimeNs
+
+    fun hasDropFlag(flag: Int) = (dropFlags and flag) != 0
+
+    fun copyFrom(other: FrameMetadata): FrameMetadata {
+        captureTimeNs = other.captureTimeNs
+        timestampNs = other.timestampNs
+        sequence = other.sequence
+        cameraId = other.cameraId
+        exposure = other.exposure
+        gain = other.gain
+        dropFlags = other.dropFlags
+        return this
+    }
+
+    override fun toString(): String {
+        return "FrameMetadata(camera=$cameraId, sequence=$sequence, captureTimeNs=$captureTimeNs, " +
+                "timestampNs=$timestampNs, exposure=$exposure, gain=$gain, dropFlags=$dropFlags)"
+    }
+
+    companion object {
+        const val UNKNOWN = -1
+        /** invalid raw frames skipped by the camera callback */
+        const val FLAG_DROP_CALLBACK = 0x01
+        /** older frames replaced before this one was drawn */
+        const val FLAG_DROP_RENDER = 0x02
+        /** frames not sent to the encoder, it was busy */
+        const val FLAG_DROP_ENCODE = 0x04
+    }
+}
@@ -20,15 +20,17 @@ import android.os.Process
 import com.jiangdg.ausbc.callback.ICaptureCallBack
 import com.jiangdg.ausbc.callback.IEncodeDataCallBack
 import com.jiangdg.ausbc.callback.IPlayCallBack
+import com.jiangdg.ausbc.encode.audio.AudioClock
+import com.jiangdg.ausbc.encode.audio.AudioLevelMeter
+import com.jiangdg.ausbc.encode.audio.AudioMonitor
 import com.jiangdg.ausbc.encode.audio.AudioStrategySystem
 import com.jiangdg.ausbc.encode.audio.IAudioStrategy
-import com.jiangdg.ausbc.encode.bean.RawData
+import com.jiangdg.ausbc.encode.audio.PcmBroadcastRing
+import com.jiangdg.ausbc.encode.bean.EncodedPacket
+import com.jiangdg.ausbc.utils.BufferedChannelWriter
 import com.jiangdg.ausbc.utils.Logger
-import com.jiangdg.ausbc.utils.MediaUtils
 import com.jiangdg.ausbc.utils.Utils
 import com.jiangdg.natives.LameMp3
-import java.io.File
-import java.io.FileOutputStream
 import java.nio.ByteBuffer
 import java.util.concurrent.*
 import java.util.concurrent.atomic.AtomicBoolean
@@ -39,17 +41,20 @@ import kotlin.Exception
  * @author Created by jiangdg on 2022/2/10
  */
 class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(false) {
-    private var mAudioTrack: AudioTrack? = null
+    @Volatile
+    private var mAudioMonitor: AudioMonitor? = null
     private var mPresentationTimeUs: Long = 0L
+    private var mLastInputPtsUs: Long = 0L
     private var mCountDownLatch: CountDownLatch? = null
-    private val mPlayQueue: ConcurrentLinkedQueue<RawData> by lazy {
-        ConcurrentLinkedQueue()
-    }
-    private val mRecordMp3Queue: ConcurrentLinkedQueue<RawData> by lazy {
-        ConcurrentLinkedQueue()
+    // pcm is copied once, encoder, player and mp3 read it with their own cursor
+    private val mPcmRing: PcmBroadcastRing by lazy {
+        PcmBroadcastRing()
     }
+    @Volatile
+    private var mEncodeCursor: PcmBroadcastRing.Cursor? = null
     private val mAudioThreadPool: ExecutorService by lazy {
-        Executors.newFixedThreadPool(3)
+        // record, play, mp3 and level meter may run together
+        Executors.newCachedThreadPool()
     }
     private val mAudioRecordState: AtomicBoolean by lazy {
         AtomicBoolean(false)
@@ -60,13 +65,21 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
     private val mRecordMp3State: AtomicBoolean by lazy {
         AtomicBoolean(false)
     }
+    private val mAudioLevelState: AtomicBoolean by lazy {
+        AtomicBoolean(false)
+    }
+    @Volatile
+    private var mAudioLevelMeter: AudioLevelMeter? = null
     private var mAudioRecord: IAudioStrategy = strategy ?: AudioStrategySystem()
+    @Volatile
+    private var mAudioClock: AudioClock? = null
 
     private var mSamplingRateIndex: Int = -1
 
     override fun getThreadName(): String = TAG
 
     override fun handleStartEncode() {
+        mEncodeCursor = mPcmRing.openCursor(CURSOR_ENCODE)
         initAudioRecord()
         try {
             val sampleRate = mAudioRecord.getSampleRate()
@@ -104,35 +117,122 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
         } catch (e: Exception) {
             Logger.e(TAG, "release aac media codec failed, err = ${e.localizedMessage}", e)
         } finally {
+            mPcmRing.closeCursor(mEncodeCursor)
+            mEncodeCursor = null
             releaseAudioRecord()
-            mRawDataQueue.clear()
             mMediaCodec = null
         }
     }
 
+    /**
+     * Read pcm from the ring directly, a chunk is consumed only when the codec has
+     *  an input buffer, otherwise it waits in the ring. A chunk larger than the input
+     *  buffer is queued in parts, each part stamped by its offset in the chunk.
+     */
+    override fun queueFrameIfNeed() {
+        val codec = mMediaCodec ?: return
+        val cursor = mEncodeCursor ?: return
+        do {
+            if (cursor.peekSize() <= 0) {
+                return
+            }
+            val inputIndex = codec.dequeueInputBuffer(INPUT_TIMES_OUT_US)
+            if (inputIndex < 0) {
+                return
+            }
+            val inputBuffer = if (isLowerLollipop()) {
+                codec.inputBuffers[inputIndex]
+            } else {
+                codec.getInputBuffer(inputIndex)
+            }
+            inputBuffer?.clear()
+            var size = 0
+            // overwritten when copying, the cursor is moved to the newest chunk, read it instead
+            while (inputBuffer != null && size == 0 && cursor.peekSize() > 0) {
+                size = cursor.read(inputBuffer)
+            }
+            if (size <= 0) {
+                // closed, the dequeued buffer must be returned
+                codec.queueInputBuffer(inputIndex, 0, 0, mLastInputPtsUs, 0)
+                return
+            }
+            val ptsUs = if (cursor.lastPtsUs > 0L) {
+                cursor.lastPtsUs + getDurationUs(cursor.lastOffset)
+            } else {
+                getPTSUs(size)
+            }
+            mLastInputPtsUs = ptsUs
+            codec.queueInputBuffer(inputIndex, 0, size, ptsUs, 0)
+        } while (cursor.hasRemainder())
+    }
+
+    /**
+     * Open a pcm cursor, for a custom consumer
+     *
+     * A consumer costs only a cursor, a slow consumer is reported by
+     *  [PcmBroadcastRing.OnLagListener] and never blocks the others.
+     *
+     * @param name consumer name
+     * @return see [PcmBroadcastRing.Cursor], close it by [closePcmCursor]
+     */
+    fun openPcmCursor(name: String): PcmBroadcastRing.Cursor = mPcmRing.openCursor(name)
+
+    /**
+     * Close a pcm cursor
+     *
+     * @param cursor see [openPcmCursor]
+     */
+    fun closePcmCursor(cursor: PcmBroadcastRing.Cursor?) {
+        mPcmRing.closeCursor(cursor)
+    }
+
+    /**
+     * Set lagging consumer listener
+     *
+     * @param listener see [PcmBroadcastRing.OnLagListener]
+     */
+    fun setOnPcmLagListener(listener: PcmBroadcastRing.OnLagListener?) {
+        mPcmRing.setOnLagListener(listener)
+    }
+
+    /**
+     * Fallback of pcm without capture time, pcm is stamped by [AudioClock] when read out
+     */
     override fun getPTSUs(bufferSize: Int): Long {
         //A frame of audio frame size int size = sampling rate * bit width * sampling time * number of channels
-        // 1s timestamp calculation formula presentationTimeUs = 1000000L * (totalBytes / sampleRate/ audioFormat / channelCount / 8 )
-        //totalBytes : total size of incoming encoder
-        //1000 000L : The unit is microseconds, after conversion = 1s,
-        //Divided by 8: The original unit of pcm is bit, 1 byte = 8 bit, 1 short = 16 bit, and it needs to be converted if it is carried by Byte[] and Short[]
+        // 1s timestamp calculation formula presentationTimeUs = 1000000L * totalBytes / (sampleRate * channelCount * bytesPerSample)
+        mPresentationTimeUs += getDurationUs(bufferSize)
+        return mPresentationTimeUs
+    }
+
+    private fun getDurationUs(bufferSize: Int): Long {
         val sampleRate = mAudioRecord.getSampleRate()
         val channelCount = mAudioRecord.getChannelCount()
-        val format = mAudioRecord.getAudioFormat()
-        val formatBit = if (format == AudioFormat.ENCODING_PCM_16BIT) {
-            18
-        } else {
-            8
-        }
-        mPresentationTimeUs += (1.0 * bufferSize / (sampleRate * channelCount * (formatBit / 8)) * 1000000.0).toLong()
-        return mPresentationTimeUs
+        val bytesPerSample = AudioClock.getBytesPerSample(mAudioRecord.getAudioFormat())
+        return 1000000L * bufferSize / (sampleRate * channelCount * bytesPerSample)
     }
 
+    /**
+     * Get drift between audio sample clock and video clock
+     *
+     * @return drift in us, see [AudioClock.getDriftUs]
+     */
+    fun getAudioDriftUs(): Long = mAudioClock?.getDriftUs() ?: 0L
+
+    /**
+     * Get audio record strategy
+     *
+     * @return see [IAudioStrategy]
+     */
+    fun getAudioStrategy(): IAudioStrategy = mAudioRecord
+
     override fun processOutputData(
         encodeData: ByteBuffer,
-        bufferInfo: MediaCodec.BufferInfo
-    ): Pair<IEncodeDataCallBack.DataType, ByteBuffer> {
-        return Pair(IEncodeDataCallBack.DataType.AAC, encodeData)
+        bufferInfo: MediaCodec.BufferInfo,
+        packet: EncodedPacket
+    ): EncodedPacket {
+        packet.type = IEncodeDataCallBack.DataType.AAC
+        return packet
     }
 
     override fun processInputData(data: ByteArray): ByteArray? {
@@ -153,24 +253,23 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
                     callBack?.onError("times out, init audio failed")
                     return@submit
                 }
-                initAudioTrack()
-                mMainHandler.post {
-                    callBack?.onBegin()
-                }
-                if (Utils.debugCamera) {
-                    Logger.i(TAG, "start play mic success.")
-                }
-                while (mAudioPlayState.get()) {
-                    val state = mAudioTrack?.state
-                    if (state != AudioTrack.STATE_INITIALIZED) {
-                        break
-                    }
-                    mPlayQueue.poll()?.apply {
-                        mAudioTrack?.play()
-                        mAudioTrack?.write(data, 0, size)
+                val monitor = initAudioMonitor() ?: return@submit
+                val cursor = mPcmRing.openCursor(CURSOR_PLAY)
+                try {
+                    // paced by the track, returns when stopped
+                    monitor.run(cursor) {
+                        mMainHandler.post {
+                            callBack?.onBegin()
+                        }
+                        if (Utils.debugCamera) {
+                            Logger.i(TAG, "start play mic success.")
+                        }
                     }
+                } finally {
+                    mPcmRing.closeCursor(cursor)
+                    mAudioMonitor = null
+                    mAudioPlayState.set(false)
                 }
-                releaseAudioTrack()
                 releaseAudioRecord()
                 mMainHandler.post {
                     callBack?.onComplete()
@@ -192,6 +291,75 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
      */
     fun playAudioStop() {
         mAudioPlayState.set(false)
+        mAudioMonitor?.stop()
+    }
+
+    /**
+     * Get mic monitor, for its underrun, overrun and latency
+     *
+     * @return null means not playing, see [AudioMonitor]
+     */
+    fun getAudioMonitor(): AudioMonitor? = mAudioMonitor
+
+    /**
+     * Start audio level meter
+     *
+     * @param listener level and voice activity, called on the meter thread,
+     *  see [AudioLevelMeter.OnAudioLevelListener]
+     */
+    fun startAudioLevel(listener: AudioLevelMeter.OnAudioLevelListener) {
+        if (! mAudioLevelState.compareAndSet(false, true)) {
+            Logger.w(TAG, "audio level meter has ready execute!")
+            return
+        }
+        mAudioThreadPool.submit {
+            var cursor: PcmBroadcastRing.Cursor? = null
+            try {
+                // already recording for encoder, player or mp3, attach to the running ring
+                if (! mAudioRecordState.get()) {
+                    mCountDownLatch = CountDownLatch(1)
+                    initAudioRecord()
+                    if (mCountDownLatch?.await(3, TimeUnit.SECONDS) == false) {
+                        Logger.e(TAG, "times out, init audio failed")
+                        return@submit
+                    }
+                }
+                val meter = AudioLevelMeter(
+                    mAudioRecord.getSampleRate(),
+                    mAudioRecord.getChannelCount(),
+                    mAudioRecord.getAudioFormat()
+                ).apply {
+                    setOnAudioLevelListener(listener)
+                }
+                mAudioLevelMeter = meter
+                // stopped before started
+                if (! mAudioLevelState.get()) {
+                    return@submit
+                }
+                val levelCursor = mPcmRing.openCursor(CURSOR_LEVEL).also {
+                    cursor = it
+                }
+                if (Utils.debugCamera) {
+                    Logger.i(TAG, "start audio level success.")
+                }
+                meter.run(levelCursor)
+            } catch (e: Exception) {
+                Logger.e(TAG, "start/stop audio level failed, err = ${e.localizedMessage}", e)
+            } finally {
+                mPcmRing.closeCursor(cursor)
+                mAudioLevelMeter = null
+                mAudioLevelState.set(false)
+                releaseAudioRecord()
+            }
+        }
+    }
+
+    /**
+     * Stop audio level meter
+     */
+    fun stopAudioLevel() {
+        mAudioLevelState.set(false)
+        mAudioLevelMeter?.stop()
     }
 
     /**
@@ -202,7 +370,8 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
      */
     fun recordMp3Start(audioPath: String?, callBack: ICaptureCallBack) {
         mAudioThreadPool.submit {
-            var fos: FileOutputStream? = null
+            var writer: BufferedChannelWriter? = null
+            var cursor: PcmBroadcastRing.Cursor? = null
             try {
                 if (audioPath.isNullOrEmpty()) {
                     mMainHandler.post {
@@ -216,12 +385,7 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
                     callBack.onError("times out, init audio failed")
                     return@submit
                 }
-                val file = File(audioPath)
-                if (file.exists()) {
-                    file.delete()
-                }
-                fos = FileOutputStream(file)
-                val mp3Buf = ByteArray(2048)
+                writer = BufferedChannelWriter(audioPath, MP3_WRITE_BUFFER_SIZE)
                 val sampleRate = mAudioRecord.getSampleRate()
                 val channelCount = mAudioRecord.getChannelCount()
                 if (Utils.debugCamera) {
@@ -231,20 +395,39 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
                 mMainHandler.post {
                     callBack.onBegin()
                 }
+                val mp3Cursor = mPcmRing.openCursor(CURSOR_MP3).also {
+                    cursor = it
+                }
+                var pcm = ByteArray(0)
+                var left = ShortArray(0)
+                var right: ShortArray? = null
+                var mp3Buf = ByteArray(getMp3BufferSize(0))
                 mRecordMp3State.set(true)
+                // parks in the ring when no pcm, buffers only grow to the max chunk
                 while (mRecordMp3State.get()) {
-                    mRecordMp3Queue.poll()?.apply {
-                        val tmpData = MediaUtils.transferByte2Short(data, size)
-                        val encodeSize = LameMp3.lameEncode(tmpData, null, tmpData.size, mp3Buf)
-                        Logger.i(TAG, "encode, $size, $encodeSize")
-                        if (encodeSize > 0) {
-                            fos?.write(mp3Buf, 0, encodeSize)
-                        }
+                    if (! mp3Cursor.await(READ_TIMES_OUT_MS)) {
+                        continue
+                    }
+                    pcm = ensureCapacity(pcm, mp3Cursor.peekSize())
+                    val size = mp3Cursor.read(pcm)
+                    if (size <= 0) {
+                        continue
+                    }
+                    val samples = size / (2 * channelCount)
+                    if (left.size < samples) {
+                        left = ShortArray(samples)
+                        right = if (channelCount == 2) ShortArray(samples) else null
+                        mp3Buf = ByteArray(getMp3BufferSize(samples))
+                    }
+                    deinterleave(pcm, samples, channelCount, left, right)
+                    val encodeSize = LameMp3.lameEncode(left, right, samples, mp3Buf)
+                    if (encodeSize > 0) {
+                        writer.write(mp3Buf, 0, encodeSize)
                     }
                 }
                 val flushSize = LameMp3.lameFlush(mp3Buf)
                 if (flushSize > 0) {
-                    fos.write(mp3Buf, 0, flushSize)
+                    writer.write(mp3Buf, 0, flushSize)
                 }
             } catch (e: Exception) {
                 mMainHandler.post {
@@ -252,9 +435,10 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
                 }
                 Logger.e(TAG, "start/stop record mp3 failed, err = ${e.localizedMessage}", e)
             } finally {
+                mPcmRing.closeCursor(cursor)
                 try {
-                    fos?.close()
-                    fos = null
+                    writer?.close()
+                    writer = null
                     LameMp3.lameClose()
                     releaseAudioRecord()
                     mMainHandler.post {
@@ -285,74 +469,79 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
         mAudioThreadPool.submit {
             mAudioRecord.initAudioRecord()
             mAudioRecord.startRecording()
+            val clock = AudioClock(
+                mAudioRecord.getSampleRate(),
+                mAudioRecord.getChannelCount(),
+                mAudioRecord.getAudioFormat()
+            ).also {
+                mAudioClock = it
+            }
             mAudioRecordState.set(true)
             mCountDownLatch?.countDown()
             while (mAudioRecordState.get()) {
                 val data = mAudioRecord.read()
                 data ?: continue
-                // pcm encode queue
-                putRawData(data)
-                // pcm play queue
-                if (mPlayQueue.size >= MAX_QUEUE_SIZE) {
-                    mPlayQueue.poll()
-                }
-                mPlayQueue.offer(data)
-                // pcm to mp3 queue
-                if (mRecordMp3Queue.size >= MAX_QUEUE_SIZE) {
-                    mRecordMp3Queue.poll()
-                }
-                mRecordMp3Queue.offer(data)
+                // stamp when read out, same clock as video
+                val ptsUs = clock.getPtsUs(data.size)
+                // copy once, consumers read by their own cursor
+                mPcmRing.write(data.data, data.size, ptsUs)
+                data.release()
             }
             mAudioRecord.stopRecording()
             mAudioRecord.releaseAudioRecord()
             mAudioRecordState.set(false)
-            mPlayQueue.clear()
-            mRecordMp3Queue.clear()
-            mRawDataQueue.clear()
         }
     }
 
+    /**
+     * 16 bit little endian interleaved pcm to lame input
+     *
+     * @param right null means mono
+     */
+    private fun deinterleave(pcm: ByteArray, samples: Int, channelCount: Int, left: ShortArray, right: ShortArray?) {
+        var offset = 0
+        for (i in 0 until samples) {
+            left[i] = ((pcm[offset].toInt() and 0xFF) or (pcm[offset + 1].toInt() shl 8)).toShort()
+            offset += 2
+            if (channelCount == 2) {
+                right?.set(i, ((pcm[offset].toInt() and 0xFF) or (pcm[offset + 1].toInt() shl 8)).toShort())
+                offset += 2
+            }
+        }
+    }
+
+    /**
+     * Worst case of lame output, 1.25 * samples + 7200
+     *
+     * @param samples samples per channel
+     */
+    private fun getMp3BufferSize(samples: Int) = samples * 5 / 4 + MP3_BUFFER_PADDING
+
+    private fun ensureCapacity(buffer: ByteArray, size: Int): ByteArray {
+        return if (buffer.size >= size) buffer else ByteArray(size)
+    }
+
     private fun releaseAudioRecord() {
-        if (mEncodeState.get() || mAudioPlayState.get() || mRecordMp3State.get()) {
+        if (mEncodeState.get() || mAudioPlayState.get() || mRecordMp3State.get() || mAudioLevelState.get()) {
             Logger.w(TAG, "audio is using, cancel release")
             return
         }
         mAudioRecordState.set(false)
     }
 
-    private fun initAudioTrack() {
+    private fun initAudioMonitor(): AudioMonitor? {
         if (mAudioPlayState.get()) {
-            Logger.w(TAG, "initAudioTracker has ready execute!")
-            return
+            Logger.w(TAG, "audio monitor has ready execute!")
+            return null
         }
         val sampleRate = mAudioRecord.getSampleRate()
         val audioFormat = mAudioRecord.getAudioFormat()
         val channelCount = mAudioRecord.getChannelCount()
-        val channelConfig = mAudioRecord.getChannelConfig()
-        Logger.i(TAG, "initAudioTrack: sample=$sampleRate,format=$audioFormat,count=$channelCount")
+        Logger.i(TAG, "initAudioMonitor: sample=$sampleRate,format=$audioFormat,count=$channelCount")
         Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
-        val minBufferSize = AudioTrack.getMinBufferSize(
-            sampleRate,
-            channelConfig,
-            audioFormat
-        )
-        mAudioTrack = AudioTrack(
-            AudioManager.STREAM_MUSIC,
-            sampleRate,
-            channelConfig,
-            audioFormat,
-            minBufferSize,
-            AUDIO_TRACK_MODE
-        )
         mAudioPlayState.set(true)
-    }
-
-    private fun releaseAudioTrack() {
-        try {
-            mAudioTrack?.release()
-            mAudioTrack = null
-        } catch (e: Exception) {
-            Logger.e(TAG, "releaseAudioTracker failed, err = ${e.localizedMessage}", e)
+        return AudioMonitor(sampleRate, channelCount, audioFormat).also {
+            mAudioMonitor = it
         }
     }
 
@@ -372,8 +561,15 @@ class AACEncodeProcessor(strategy: IAudioStrategy? = null) : AbstractProcessor(f
         const val BIT_RATE = 32 * 1024
         private const val MAX_INPUT_SIZE = 48000
         const val CHANNEL_OUT_CONFIG = AudioFormat.CHANNEL_OUT_MONO
-        private const val AUDIO_TRACK_MODE = AudioTrack.MODE_STREAM
         private const val CODEC_AAC_PROFILE = MediaCodecInfo.CodecProfileLevel.AACObjectLC
         private const val DEGREE_RECORD_MP3 = 7
+        private const val MP3_BUFFER_PADDING = 7200
+        private const val MP3_WRITE_BUFFER_SIZE = 64 * 1024
+        private const val INPUT_TIMES_OUT_US = 10000L
+        private const val READ_TIMES_OUT_MS = 20L
+        private const val CURSOR_ENCODE = "aac"
+        private const val CURSOR_PLAY = "play"
+        private const val CURSOR_MP3 = "mp3"
+        private const val CURSOR_LEVEL = "level"
     }
 }
\ No newline at end of file
@@ -21,7 +21,11 @@ import android.os.Handler
 import android.os.HandlerThread
 import android.os.Looper
 import com.jiangdg.ausbc.callback.IEncodeDataCallBack
+import com.jiangdg.ausbc.camera.FrameMetadataRing
+import com.jiangdg.ausbc.camera.bean.FrameMetadata
+import com.jiangdg.ausbc.encode.bean.EncodedPacket
 import com.jiangdg.ausbc.encode.bean.RawData
+import com.jiangdg.ausbc.encode.muxer.ElementaryStreamRecorder
 import com.jiangdg.ausbc.encode.muxer.Mp4Muxer
 import com.jiangdg.ausbc.utils.Logger
 import java.nio.ByteBuffer
@@ -40,6 +44,7 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
     private var mStartTimeStamps: Long = 0L
     protected var mMediaCodec: MediaCodec? = null
     private var mMp4Muxer: Mp4Muxer? = null
+    private var mStreamRecorder: ElementaryStreamRecorder? = null
     private var mEncodeDataCb: IEncodeDataCallBack? = null
     protected val mRawDataQueue: ConcurrentLinkedQueue<RawData> = ConcurrentLinkedQueue()
     protected var mBitRate: Int? = null
@@ -56,6 +61,17 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         MediaCodec.BufferInfo()
     }
 
+    private val mEncodedPacket by lazy {
+        EncodedPacket()
+    }
+
+    private val mFrameMetadata by lazy {
+        FrameMetadata()
+    }
+
+    @Volatile
+    private var mFrameMetadataRing: FrameMetadataRing? = null
+
     /**
      * Start encode
      *
@@ -110,6 +126,15 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         this.mEncodeDataCb = callBack
     }
 
+    /**
+     * Set frame metadata ring, video packets are matched to their source frames by pts
+     *
+     * @param ring see [FrameMetadataRing], null means no metadata
+     */
+    fun setFrameMetadataRing(ring: FrameMetadataRing?) {
+        this.mFrameMetadataRing = ring
+    }
+
     /**
      * Set mp4muxer
      *
@@ -130,21 +155,49 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         }
     }
 
+    /**
+     * Set elementary stream recorder
+     *
+     * @param recorder raw h264 & aac recorder, null means removing it
+     */
+    @Synchronized
+    fun setStreamRecorder(recorder: ElementaryStreamRecorder?) {
+        this.mStreamRecorder = recorder
+        if (! isEncoding()) {
+            return
+        }
+        try {
+            recorder?.setOutputFormat(mMediaCodec?.outputFormat, isVideo)
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+    }
+
     /**
      * Put raw data
      *
-     * @param data media data, pcm or yuv
+     * @param data media data, pcm or yuv, owned by the processor after called
      */
     fun putRawData(data: RawData) {
         if (! mEncodeState.get()) {
+            data.release()
             return
         }
         if (mRawDataQueue.size >= MAX_QUEUE_SIZE) {
-            mRawDataQueue.poll()
+            mRawDataQueue.poll()?.release()
         }
         mRawDataQueue.offer(data)
     }
 
+    /**
+     * Clear raw data queue, and release the data
+     */
+    protected fun clearRawData() {
+        while (true) {
+            mRawDataQueue.poll()?.release() ?: break
+        }
+    }
+
     /**
      * Is encoding
      */
@@ -178,7 +231,7 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
     /**
      * Is lower lollipop
      */
-    private fun isLowerLollipop() = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+    protected fun isLowerLollipop() = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
 
     /**
      * Do encode data
@@ -195,6 +248,7 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
                             MediaCodec.INFO_OUTPUT_FORMAT_CHANGED -> {
                                 Logger.i(TAG, "addTracker is video = $isVideo")
                                 mMp4Muxer?.addTracker(mMediaCodec?.outputFormat, isVideo)
+                                mStreamRecorder?.setOutputFormat(mMediaCodec?.outputFormat, isVideo)
                             }
                             else -> {
                                 if (outputIndex < 0) {
@@ -210,17 +264,25 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
                                         codec.getOutputBuffer(outputIndex)
                                     }
                                     outputBuffer ?: return@let
-                                    processOutputData(outputBuffer, mBufferInfo)?.apply {
+                                    val packet = mEncodedPacket.reset(outputBuffer, mBufferInfo, isVideo)
+                                    // pts is the frame timestamp in us
+                                    if (isVideo && mFrameMetadataRing?.find(mBufferInfo.presentationTimeUs * 1000L,
+                                            PTS_TOLERANCE_NS, mFrameMetadata) == true) {
+                                        packet.metadata = mFrameMetadata
+                                    }
+                                    processOutputData(outputBuffer, mBufferInfo, packet)?.apply {
                                         mEncodeDataCb?.onEncodeData(
-                                            first,
+                                            type,
                                             outputBuffer,
-                                            mBufferInfo.offset,
-                                            mBufferInfo.size,
-                                            mBufferInfo.presentationTimeUs / 1000L - mStartTimeStamps
+                                            offset,
+                                            size,
+                                            ptsUs / 1000L - mStartTimeStamps
                                         )
+                                        mEncodeDataCb?.onEncodePacket(this)
                                     }
                                     // muxer data
-                                    mMp4Muxer?.pumpStream(outputBuffer, mBufferInfo, isVideo)
+                                    mMp4Muxer?.pumpStream(packet, mBufferInfo)
+                                    mStreamRecorder?.pumpStream(packet)
                                 } catch (e: Exception) {
                                     e.printStackTrace()
                                 } finally {
@@ -236,35 +298,50 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         }
     }
 
-    private fun queueFrameIfNeed() {
+    /**
+     * Queue raw data to the codec, one frame each time
+     */
+    protected open fun queueFrameIfNeed() {
         mMediaCodec?.let { codec ->
             if (mRawDataQueue.isEmpty()) {
                 return@let
             }
             val rawData = mRawDataQueue.poll() ?: return@let
-            val data: ByteArray = rawData.data
-            if (processInputData(data) == null) {
-                return@let
-            }
-            val inputIndex = codec.dequeueInputBuffer(TIMES_OUT_US)
-            if (inputIndex < 0) {
-                return@let
-            }
-            val inputBuffer = if (isLowerLollipop()) {
-                codec.inputBuffers[inputIndex]
-            } else {
-                codec.getInputBuffer(inputIndex)
+            try {
+                val data = processInputData(rawData.data) ?: return@let
+                val size = minOf(rawData.size, data.size)
+                val inputIndex = codec.dequeueInputBuffer(TIMES_OUT_US)
+                if (inputIndex < 0) {
+                    return@let
+                }
+                val inputBuffer = if (isLowerLollipop()) {
+                    codec.inputBuffers[inputIndex]
+                } else {
+                    codec.getInputBuffer(inputIndex)
+                }
+                inputBuffer?.clear()
+                inputBuffer?.put(data, 0, size)
+                val ptsUs = if (rawData.ptsUs > 0L) rawData.ptsUs else getPTSUs(size)
+                codec.queueInputBuffer(inputIndex, 0, size, ptsUs, 0)
+            } finally {
+                rawData.release()
             }
-            inputBuffer?.clear()
-            inputBuffer?.put(data)
-            codec.queueInputBuffer(inputIndex, 0, data.size, getPTSUs(data.size), 0)
         }
     }
 
+    /**
+     * Process output data
+     *
+     * @param encodeData encoded data
+     * @param bufferInfo see [MediaCodec.BufferInfo]
+     * @param packet packet reset with encodeData, type and nal units should be filled in
+     * @return null means dropping it
+     */
     protected abstract fun processOutputData(
         encodeData: ByteBuffer,
-        bufferInfo: MediaCodec.BufferInfo
-    ): Pair<IEncodeDataCallBack.DataType, ByteBuffer>?
+        bufferInfo: MediaCodec.BufferInfo,
+        packet: EncodedPacket
+    ): EncodedPacket?
 
     protected abstract fun processInputData(data: ByteArray): ByteArray?
 
@@ -273,6 +350,7 @@ abstract class AbstractProcessor(private val isVideo: Boolean) {
         private const val MSG_START = 1
         private const val MSG_STOP = 2
         private const val TIMES_OUT_US = 10000L
+        private const val PTS_TOLERANCE_NS = 1000L
 
         const val MAX_QUEUE_SIZE = 5
     }
@@ -20,6 +20,8 @@ import android.media.MediaCodecInfo
 import android.media.MediaFormat
 import android.view.Surface
 import com.jiangdg.ausbc.callback.IEncodeDataCallBack
+import com.jiangdg.ausbc.encode.bean.EncodedPacket
+import com.jiangdg.ausbc.encode.parser.NalUnitParser
 import com.jiangdg.ausbc.utils.Logger
 import com.jiangdg.natives.YUVUtils
 import java.lang.Exception
@@ -41,6 +43,9 @@ class H264EncodeProcessor(
     private val isPortrait: Boolean = true
 ) : AbstractProcessor(true) {
     private var mReadyListener: OnEncodeReadyListener? = null
+    private val mNalUnitParser by lazy {
+        NalUnitParser()
+    }
 
     override fun getThreadName(): String = TAG
 
@@ -60,6 +65,7 @@ class H264EncodeProcessor(
                 mReadyListener?.onReady(mMediaCodec?.createInputSurface())
             }
             mMediaCodec?.start()
+            mNalUnitParser.reset()
             mEncodeState.set(true)
             doEncodeData()
             Logger.i(TAG, "init h264 media codec success, bit = ")
@@ -78,7 +84,7 @@ class H264EncodeProcessor(
         } catch (e: Exception) {
             Logger.e(TAG, "Stop mediaCodec failed, err = ${e.localizedMessage}", e)
         } finally {
-            mRawDataQueue.clear()
+            clearRawData()
             mMediaCodec = null
         }
     }
@@ -87,20 +93,23 @@ class H264EncodeProcessor(
 
     override fun processOutputData(
         encodeData: ByteBuffer,
-        bufferInfo: MediaCodec.BufferInfo
-    ): Pair<IEncodeDataCallBack.DataType, ByteBuffer> {
-        val type = when (bufferInfo.flags) {
-            MediaCodec.BUFFER_FLAG_CODEC_CONFIG -> {
+        bufferInfo: MediaCodec.BufferInfo,
+        packet: EncodedPacket
+    ): EncodedPacket {
+        mNalUnitParser.parse(encodeData, bufferInfo.offset, bufferInfo.size, packet)
+        // flags may be combined, such as KEY_FRAME | PARTIAL_FRAME
+        packet.type = when {
+            packet.isConfig() -> {
                 IEncodeDataCallBack.DataType.H264_SPS
             }
-            MediaCodec.BUFFER_FLAG_KEY_FRAME -> {
+            packet.isKeyFrame() -> {
                 IEncodeDataCallBack.DataType.H264_KEY
             }
             else -> {
                 IEncodeDataCallBack.DataType.H264
             }
         }
-        return Pair(type, encodeData)
+        return packet
     }
 
     override fun processInputData(data: ByteArray): ByteArray? {
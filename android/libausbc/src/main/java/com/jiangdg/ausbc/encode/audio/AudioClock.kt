@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import android.media.AudioFormat
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+import kotlin.math.abs
+
+/**
+ * Sample accurate audio clock
+ *
+ * Pts is counted by samples and anchored to the capture time of the first pcm,
+ *  which is the same clock(System.nanoTime) as the video pts.
+ *  The device sample rate is never exact, so the drift between the sample clock
+ *  and the video clock is measured on every read, and corrected by skewing pts
+ *  slowly, no jump and no going back.
+ *
+ * @property sampleRate pcm sample rate
+ *
+ * @param channelCount pcm channel count
+ * @param audioFormat pcm format, see [AudioFormat]
+ */
+class AudioClock(private val sampleRate: Int, channelCount: Int, audioFormat: Int) {
+    private val mBytesPerFrame = channelCount * getBytesPerSample(audioFormat)
+    private var mAnchorUs = -1L
+    private var mTotalBytes = 0L
+    private var mCorrectionUs = 0L
+    private var mSmoothDriftUs = 0.0
+    private var mLastPtsUs = -1L
+
+    /**
+     * Get pts of pcm
+     *
+     * @param bufferSize pcm size in bytes
+     * @param captureTimeUs time the pcm read out, the last sample captured, System.nanoTime in us
+     * @return presentation time of the first sample in us
+     */
+    fun getPtsUs(bufferSize: Int, captureTimeUs: Long = System.nanoTime() / 1000L): Long {
+        val durationUs = bytesToUs(bufferSize.toLong())
+        val startUs = captureTimeUs - durationUs
+        if (mAnchorUs < 0) {
+            mAnchorUs = startUs
+        }
+        val nominalUs = mAnchorUs + bytesToUs(mTotalBytes)
+        val driftUs = startUs - (nominalUs + mCorrectionUs)
+        if (abs(driftUs) > RESYNC_THRESHOLD_US) {
+            // samples lost or clock jumped, resync at once
+            mCorrectionUs += driftUs
+            mSmoothDriftUs = 0.0
+            Logger.w(TAG, "audio clock resync, drift = ${driftUs}us")
+        } else {
+            // read time jitters a lot, only follow the average
+            mSmoothDriftUs += (driftUs - mSmoothDriftUs) * SMOOTH_FACTOR
+            val maxSkewUs = maxOf(1L, durationUs * MAX_SKEW_PPM / 1000000L)
+            mCorrectionUs += mSmoothDriftUs.toLong().coerceIn(-maxSkewUs, maxSkewUs)
+        }
+        mTotalBytes += bufferSize
+        var ptsUs = nominalUs + mCorrectionUs
+        if (ptsUs <= mLastPtsUs) {
+            ptsUs = mLastPtsUs + 1
+        }
+        mLastPtsUs = ptsUs
+        return ptsUs
+    }
+
+    /**
+     * Get drift between the sample clock and the video clock
+     *
+     * @return smoothed drift in us, positive means audio is behind
+     */
+    fun getDriftUs(): Long = mSmoothDriftUs.toLong()
+
+    /**
+     * Get accumulated correction
+     *
+     * @return skewed time in us since anchored
+     */
+    fun getCorrectionUs(): Long = mCorrectionUs
+
+    /**
+     * Reset clock, anchor again on next pcm
+     */
+    fun reset() {
+        if (Utils.debugCamera && mAnchorUs >= 0) {
+            Logger.i(TAG, "audio clock reset, correction = ${mCorrectionUs}us, drift = ${getDriftUs()}us")
+        }
+        mAnchorUs = -1L
+        mTotalBytes = 0L
+        mCorrectionUs = 0L
+        mSmoothDriftUs = 0.0
+        mLastPtsUs = -1L
+    }
+
+    private fun bytesToUs(bytes: Long): Long {
+        if (mBytesPerFrame <= 0 || sampleRate <= 0) {
+            return 0L
+        }
+        return bytes / mBytesPerFrame * 1000000L / sampleRate
+    }
+
+    companion object {
+        private const val TAG = "AudioClock"
+        private const val RESYNC_THRESHOLD_US = 200_000L
+        private const val SMOOTH_FACTOR = 0.02
+        private const val MAX_SKEW_PPM = 5000L
+
+        /**
+         * Get bytes per sample of a pcm format
+         *
+         * @param audioFormat see [AudioFormat]
+         */
+        fun getBytesPerSample(audioFormat: Int): Int {
+            return when (audioFormat) {
+                AudioFormat.ENCODING_PCM_8BIT -> 1
+                AudioFormat.ENCODING_PCM_FLOAT -> 4
+                else -> 2
+            }
+        }
+    }
+}
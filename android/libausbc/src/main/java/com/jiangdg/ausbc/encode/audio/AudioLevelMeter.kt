@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import android.media.AudioFormat
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+import kotlin.math.log10
+import kotlin.math.sqrt
+
+/**
+ * Audio level meter and voice activity detector
+ *
+ * Pcm is measured sample by sample in 10ms blocks, a block gives rms, peak and
+ *  a voice decision against an adaptive noise floor. Results are published every
+ *  [publishIntervalMs], nothing is allocated per block.
+ *
+ * @property sampleRate pcm sample rate
+ * @property channelCount pcm channel count
+ * @property audioFormat pcm format, 8 bit or 16 bit, see [AudioFormat]
+ * @property publishIntervalMs min interval of [OnAudioLevelListener]
+ */
+class AudioLevelMeter(
+    private val sampleRate: Int,
+    private val channelCount: Int,
+    private val audioFormat: Int,
+    private val publishIntervalMs: Int = DEFAULT_PUBLISH_INTERVAL_MS
+) {
+    private val mBlockSamples = maxOf(1, sampleRate / BLOCKS_PER_SECOND) * channelCount
+    private val mPublishBlocks = maxOf(1, publishIntervalMs * BLOCKS_PER_SECOND / 1000)
+    private val mBytesPerSample = AudioClock.getBytesPerSample(audioFormat)
+    // current block
+    private var mBlockSumSquares = 0L
+    private var mBlockPeak = 0
+    private var mBlockCount = 0
+    // current publish interval
+    private var mIntervalSumSquares = 0L
+    private var mIntervalSamples = 0L
+    private var mIntervalPeak = 0
+    private var mIntervalBlocks = 0
+    // voice activity
+    private var mNoiseFloorDb = INIT_NOISE_FLOOR_DB
+    private var mActiveBlocks = 0
+    private var mHangoverBlocks = 0
+    private var isVoice = false
+    // cost
+    private var mTotalCostNs = 0L
+    private var mTotalBlocks = 0L
+    private var mListener: OnAudioLevelListener? = null
+    @Volatile
+    private var isRunning = true
+
+    /**
+     * Audio level listener
+     */
+    fun interface OnAudioLevelListener {
+        /**
+         * Called on the meter thread, at most once per publish interval
+         *
+         * @param rmsDb rms of the interval, dBFS
+         * @param peakDb peak of the interval, dBFS
+         * @param isVoice voice detected
+         */
+        fun onAudioLevel(rmsDb: Float, peakDb: Float, isVoice: Boolean)
+    }
+
+    /**
+     * Set level listener
+     *
+     * @param listener see [OnAudioLevelListener]
+     */
+    fun setOnAudioLevelListener(listener: OnAudioLevelListener?) {
+        this.mListener = listener
+    }
+
+    /**
+     * Measure the pcm of a cursor, blocks until [stop], one meter runs once
+     *
+     * @param cursor see [PcmBroadcastRing.Cursor]
+     */
+    fun run(cursor: PcmBroadcastRing.Cursor) {
+        var pcm = ByteArray(0)
+        while (isRunning) {
+            if (! cursor.await(READ_TIMES_OUT_MS)) {
+                continue
+            }
+            val need = cursor.peekSize()
+            if (pcm.size < need) {
+                pcm = ByteArray(need)
+            }
+            val size = cursor.read(pcm)
+            if (size > 0) {
+                process(pcm, size)
+            }
+        }
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "meter stopped, blocks = $mTotalBlocks, cost = ${getAverageCostUs()}us/block")
+        }
+    }
+
+    /**
+     * Stop measuring
+     */
+    fun stop() {
+        isRunning = false
+    }
+
+    /**
+     * Measure pcm, can also be called without [run]
+     *
+     * @param pcm pcm data, little endian when 16 bit
+     * @param size pcm size
+     */
+    fun process(pcm: ByteArray, size: Int) {
+        val beginNs = System.nanoTime()
+        var blocks = 0
+        var i = 0
+        while (i + mBytesPerSample <= size) {
+            val sample = if (mBytesPerSample == 1) {
+                // 8 bit pcm is unsigned
+                ((pcm[i].toInt() and 0xFF) - 128) shl 8
+            } else {
+                (pcm[i].toInt() and 0xFF) or (pcm[i + 1].toInt() shl 8)
+            }
+            i += mBytesPerSample
+            mBlockSumSquares += sample.toLong() * sample
+            val abs = if (sample < 0) -sample else sample
+            if (abs > mBlockPeak) {
+                mBlockPeak = abs
+            }
+            if (++mBlockCount == mBlockSamples) {
+                finishBlock()
+                blocks++
+            }
+        }
+        if (blocks > 0) {
+            mTotalCostNs += System.nanoTime() - beginNs
+            mTotalBlocks += blocks
+        }
+    }
+
+    /**
+     * Get average processing time of a 10ms block
+     *
+     * @return cost in us, the budget is 10000us
+     */
+    fun getAverageCostUs(): Float {
+        return if (mTotalBlocks == 0L) 0f else mTotalCostNs / 1000f / mTotalBlocks
+    }
+
+    private fun finishBlock() {
+        val rmsDb = toDb(sqrt(mBlockSumSquares.toDouble() / mBlockCount))
+        detectVoice(rmsDb)
+        mIntervalSumSquares += mBlockSumSquares
+        mIntervalSamples += mBlockCount
+        if (mBlockPeak > mIntervalPeak) {
+            mIntervalPeak = mBlockPeak
+        }
+        mBlockSumSquares = 0L
+        mBlockPeak = 0
+        mBlockCount = 0
+        if (++mIntervalBlocks < mPublishBlocks) {
+            return
+        }
+        val intervalRmsDb = toDb(sqrt(mIntervalSumSquares.toDouble() / mIntervalSamples))
+        val intervalPeakDb = toDb(mIntervalPeak.toDouble())
+        mIntervalSumSquares = 0L
+        mIntervalSamples = 0L
+        mIntervalPeak = 0
+        mIntervalBlocks = 0
+        mListener?.onAudioLevel(intervalRmsDb, intervalPeakDb, isVoice)
+    }
+
+    /**
+     * Energy vad, noise floor follows quiet blocks fast and loud blocks slowly,
+     *  voice starts after a few active blocks and holds for a while.
+     */
+    private fun detectVoice(rmsDb: Float) {
+        val factor = if (rmsDb < mNoiseFloorDb) NOISE_FALL_FACTOR else NOISE_RISE_FACTOR
+        mNoiseFloorDb += (rmsDb - mNoiseFloorDb) * factor
+        val isActive = rmsDb > maxOf(mNoiseFloorDb + VAD_MARGIN_DB, VAD_MIN_DB)
+        if (isActive) {
+            if (++mActiveBlocks >= VAD_ATTACK_BLOCKS) {
+                isVoice = true
+                mHangoverBlocks = VAD_HANGOVER_BLOCKS
+            }
+            return
+        }
+        mActiveBlocks = 0
+        if (mHangoverBlocks > 0) {
+            mHangoverBlocks--
+        } else {
+            isVoice = false
+        }
+    }
+
+    private fun toDb(amplitude: Double): Float {
+        if (amplitude <= 0.0) {
+            return MIN_DB
+        }
+        return maxOf(MIN_DB, (20.0 * log10(amplitude / FULL_SCALE)).toFloat())
+    }
+
+    companion object {
+        private const val TAG = "AudioLevelMeter"
+        private const val BLOCKS_PER_SECOND = 100
+        private const val DEFAULT_PUBLISH_INTERVAL_MS = 100
+        private const val READ_TIMES_OUT_MS = 20L
+        private const val FULL_SCALE = 32768.0
+        private const val MIN_DB = -96f
+        private const val INIT_NOISE_FLOOR_DB = -60f
+        private const val NOISE_FALL_FACTOR = 0.2f
+        // about 5s to follow a louder background
+        private const val NOISE_RISE_FACTOR = 0.002f
+        private const val VAD_MARGIN_DB = 10f
+        private const val VAD_MIN_DB = -55f
+        private const val VAD_ATTACK_BLOCKS = 3
+        private const val VAD_HANGOVER_BLOCKS = 30
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import android.media.AudioFormat
+import android.media.AudioManager
+import android.media.AudioTimestamp
+import android.media.AudioTrack
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+
+/**
+ * Mic monitor with an adaptive jitter buffer
+ *
+ * Pcm from the ring is queued in a jitter buffer, and written to [AudioTrack]
+ *  in fixed periods by blocking writes, so the loop is paced by the device.
+ *  The buffer is primed to the target latency first, an underrun primes it
+ *  again with a larger target, a long stable run shrinks the target back,
+ *  and an overrun drops the oldest pcm.
+ *
+ * @property sampleRate pcm sample rate
+ * @property channelCount pcm channel count
+ * @property audioFormat pcm format, see [AudioFormat]
+ *
+ * @param targetLatencyMs initial jitter buffer latency, also the min
+ */
+class AudioMonitor(
+    private val sampleRate: Int,
+    private val channelCount: Int,
+    private val audioFormat: Int,
+    targetLatencyMs: Int = DEFAULT_TARGET_LATENCY_MS
+) {
+    private val mBytesPerFrame = channelCount * AudioClock.getBytesPerSample(audioFormat)
+    private val mPeriodBytes = msToBytes(PERIOD_MS)
+    private val mMinTargetBytes = maxOf(mPeriodBytes, msToBytes(targetLatencyMs))
+    private val mMaxTargetBytes = maxOf(mMinTargetBytes, msToBytes(MAX_TARGET_LATENCY_MS))
+    // jitter buffer, fixed size
+    private val mFifo = ByteArray(mMaxTargetBytes * 2 + mPeriodBytes)
+    private var mFifoRead = 0
+    private var mFifoSize = 0
+    private var mTailPtsUs = 0L
+    private var mTargetBytes = mMinTargetBytes
+    private var mStablePeriods = 0
+    private var mWrittenFrames = 0L
+    private var mLastDroppedChunks = 0L
+    private var mAudioTrack: AudioTrack? = null
+    private val mTimestamp = AudioTimestamp()
+    @Volatile
+    private var isRunning = true
+
+    /**
+     * Times the jitter buffer ran dry
+     */
+    @Volatile
+    var underrunCount: Long = 0L
+        private set
+
+    /**
+     * Times pcm dropped because of too much buffered, or the cursor lagging
+     */
+    @Volatile
+    var overrunCount: Long = 0L
+        private set
+
+    /**
+     * Smoothed latency from capture to playback, in ms
+     */
+    @Volatile
+    var latencyMs: Int = 0
+        private set
+
+    /**
+     * Current target latency of the jitter buffer, in ms
+     */
+    fun getTargetLatencyMs(): Int = bytesToUs(mTargetBytes.toLong()).toInt() / 1000
+
+    /**
+     * Get underrun count reported by [AudioTrack]
+     */
+    fun getTrackUnderrunCount(): Int = mAudioTrack?.underrunCount ?: 0
+
+    /**
+     * Play the pcm of a cursor, blocks until [stop], one monitor runs once
+     *
+     * @param cursor see [PcmBroadcastRing.Cursor]
+     * @param onStarted called when the track is ready
+     */
+    fun run(cursor: PcmBroadcastRing.Cursor, onStarted: (() -> Unit)? = null) {
+        val track = createAudioTrack()
+        mAudioTrack = track
+        try {
+            track.play()
+            onStarted?.invoke()
+            var chunk = ByteArray(0)
+            var isPriming = true
+            while (isRunning && track.state == AudioTrack.STATE_INITIALIZED) {
+                // take what has arrived, never wait here
+                while (cursor.available() > 0) {
+                    chunk = ensureCapacity(chunk, cursor.peekSize())
+                    val size = cursor.read(chunk)
+                    if (size > 0) {
+                        push(chunk, size, cursor.lastPtsUs)
+                    }
+                }
+                checkCursorLag(cursor)
+                if (isPriming) {
+                    if (mFifoSize < mTargetBytes) {
+                        cursor.await(PERIOD_MS.toLong())
+                        continue
+                    }
+                    isPriming = false
+                }
+                if (mFifoSize < mPeriodBytes) {
+                    if (cursor.await(PERIOD_MS.toLong())) {
+                        continue
+                    }
+                    onUnderrun()
+                    isPriming = true
+                    continue
+                }
+                writePeriod(track)
+                adaptTarget()
+            }
+        } finally {
+            isRunning = false
+            try {
+                track.stop()
+                track.release()
+            } catch (e: Exception) {
+                Logger.e(TAG, "release audio track failed, err = ${e.localizedMessage}", e)
+            }
+            mAudioTrack = null
+            if (Utils.debugCamera) {
+                Logger.i(TAG, "monitor stopped, underrun = $underrunCount, overrun = $overrunCount, latency = ${latencyMs}ms")
+            }
+        }
+    }
+
+    /**
+     * Stop playing, [run] returns after the current period
+     */
+    fun stop() {
+        isRunning = false
+    }
+
+    private fun createAudioTrack(): AudioTrack {
+        val channelConfig = if (channelCount == 1) {
+            AudioFormat.CHANNEL_OUT_MONO
+        } else {
+            AudioFormat.CHANNEL_OUT_STEREO
+        }
+        val minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, audioFormat)
+        // keep the track buffer small, latency is held by the jitter buffer
+        val bufferSize = maxOf(minBufferSize, mPeriodBytes * 2)
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "create audio track, $sampleRate, $channelCount, min = $minBufferSize, use = $bufferSize")
+        }
+        return AudioTrack(
+            AudioManager.STREAM_MUSIC,
+            sampleRate,
+            channelConfig,
+            audioFormat,
+            bufferSize,
+            AudioTrack.MODE_STREAM
+        )
+    }
+
+    private fun push(data: ByteArray, size: Int, ptsUs: Long) {
+        val capacity = mFifo.size
+        if (mFifoSize + size > capacity) {
+            dropOldest(mFifoSize + size - capacity)
+        }
+        val writePos = (mFifoRead + mFifoSize) % capacity
+        val first = minOf(size, capacity - writePos)
+        System.arraycopy(data, 0, mFifo, writePos, first)
+        if (first < size) {
+            System.arraycopy(data, first, mFifo, 0, size - first)
+        }
+        mFifoSize += size
+        mTailPtsUs = ptsUs + bytesToUs(size.toLong())
+        // too much buffered, back to target
+        val maxBytes = mTargetBytes * 2 + mPeriodBytes
+        if (mFifoSize > maxBytes) {
+            dropOldest(mFifoSize - mTargetBytes)
+        }
+    }
+
+    private fun dropOldest(bytes: Int, isOverrun: Boolean = true) {
+        val dropBytes = alignFrame(minOf(bytes + mBytesPerFrame - 1, mFifoSize))
+        mFifoRead = (mFifoRead + dropBytes) % mFifo.size
+        mFifoSize -= dropBytes
+        if (! isOverrun) {
+            return
+        }
+        overrunCount++
+        if (Utils.debugCamera) {
+            Logger.w(TAG, "monitor overrun, drop $dropBytes bytes, count = $overrunCount")
+        }
+    }
+
+    private fun writePeriod(track: AudioTrack) {
+        val headPtsUs = mTailPtsUs - bytesToUs(mFifoSize.toLong())
+        val first = minOf(mPeriodBytes, mFifo.size - mFifoRead)
+        var written = track.write(mFifo, mFifoRead, first)
+        if (written == first && first < mPeriodBytes) {
+            written += maxOf(0, track.write(mFifo, 0, mPeriodBytes - first))
+        }
+        if (written <= 0) {
+            return
+        }
+        mFifoRead = (mFifoRead + written) % mFifo.size
+        mFifoSize -= written
+        mWrittenFrames += written / mBytesPerFrame
+        updateLatency(track, headPtsUs, written / mBytesPerFrame)
+    }
+
+    /**
+     * Latency of the first frame of the period, from its capture to its playback
+     */
+    private fun updateLatency(track: AudioTrack, headPtsUs: Long, frames: Int) {
+        val frameIndex = mWrittenFrames - frames
+        val nowUs = System.nanoTime() / 1000L
+        val playUs = if (track.getTimestamp(mTimestamp)) {
+            mTimestamp.nanoTime / 1000L + (frameIndex - mTimestamp.framePosition) * 1000000L / sampleRate
+        } else {
+            val headPosition = track.playbackHeadPosition.toLong() and 0xFFFFFFFFL
+            nowUs + (frameIndex - headPosition) * 1000000L / sampleRate
+        }
+        val latencyUs = playUs - headPtsUs
+        if (latencyUs <= 0) {
+            return
+        }
+        val smoothMs = if (latencyMs == 0) {
+            latencyUs / 1000L
+        } else {
+            latencyMs + (latencyUs / 1000L - latencyMs) / LATENCY_SMOOTH_DIVISOR
+        }
+        latencyMs = smoothMs.toInt()
+    }
+
+    private fun onUnderrun() {
+        underrunCount++
+        mStablePeriods = 0
+        mTargetBytes = minOf(mMaxTargetBytes, mTargetBytes + msToBytes(TARGET_STEP_UP_MS))
+        if (Utils.debugCamera) {
+            Logger.w(TAG, "monitor underrun, count = $underrunCount, target = ${getTargetLatencyMs()}ms")
+        }
+    }
+
+    private fun adaptTarget() {
+        if (++mStablePeriods < STABLE_PERIODS) {
+            return
+        }
+        mStablePeriods = 0
+        if (mTargetBytes > mMinTargetBytes) {
+            mTargetBytes = maxOf(mMinTargetBytes, mTargetBytes - msToBytes(TARGET_STEP_DOWN_MS))
+            // shrink the buffer as well, or the latency never goes down
+            val maxBytes = mTargetBytes + mPeriodBytes
+            if (mFifoSize > maxBytes) {
+                dropOldest(mFifoSize - maxBytes, false)
+            }
+        }
+    }
+
+    private fun checkCursorLag(cursor: PcmBroadcastRing.Cursor) {
+        val dropped = cursor.droppedChunks
+        if (dropped != mLastDroppedChunks) {
+            overrunCount += dropped - mLastDroppedChunks
+            mLastDroppedChunks = dropped
+        }
+    }
+
+    private fun ensureCapacity(buffer: ByteArray, size: Int): ByteArray {
+        return if (buffer.size >= size) buffer else ByteArray(size)
+    }
+
+    private fun alignFrame(bytes: Int) = bytes / mBytesPerFrame * mBytesPerFrame
+
+    private fun msToBytes(ms: Int) = (sampleRate.toLong() * ms / 1000L).toInt() * mBytesPerFrame
+
+    private fun bytesToUs(bytes: Long): Long = bytes / mBytesPerFrame * 1000000L / sampleRate
+
+    companion object {
+        private const val TAG = "AudioMonitor"
+        private const val PERIOD_MS = 10
+        private const val DEFAULT_TARGET_LATENCY_MS = 40
+        private const val MAX_TARGET_LATENCY_MS = 200
+        private const val TARGET_STEP_UP_MS = 10
+        private const val TARGET_STEP_DOWN_MS = 5
+        // 5s without underrun
+        private const val STABLE_PERIODS = 500
+        private const val LATENCY_SMOOTH_DIVISOR = 8
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import android.media.AudioFormat
+import com.jiangdg.ausbc.encode.bean.RawData
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+
+/** Audio record mixed from several sources
+ *
+ * Each source is captured by its own thread, converted to [sampleRate] and
+ *  [channelCount] by [AudioStrategyResample], stamped by [AudioClock] and queued.
+ *  The first source is the master, [read] returns a 20ms block when the master has one,
+ *  the others are aligned to the pts of the master block, by dropping old samples
+ *  or padding silence, then all are mixed with fixed point gains.
+ *
+ * @property sampleRate output sample rate
+ * @property channelCount output channel count, 1 or 2
+ *
+ * @param sources pcm sources, the first one is the master, such as [AudioStrategySystem]
+ */
+class AudioStrategyMix(
+    sources: List<IAudioStrategy>,
+    private val sampleRate: Int,
+    private val channelCount: Int
+) : IAudioStrategy {
+    private val mChannels = sources.mapIndexed { index, source ->
+        SourceChannel(index, AudioStrategyResample(source, sampleRate, channelCount))
+    }
+    private val mBlockSamples = sampleRate * BLOCK_MS / 1000 * channelCount
+    private val mMixBuffer = IntArray(mBlockSamples)
+    private val mBufferPool by lazy {
+        PcmBufferPool()
+    }
+    private var mTotalCostNs = 0L
+    private var mTotalBlocks = 0L
+
+    init {
+        require(sources.isNotEmpty()) {
+            "no audio source to mix"
+        }
+    }
+
+    /**
+     * Set gain of a source
+     *
+     * @param index source index, in the constructor order
+     * @param gain linear gain, 0 ~ 4
+     */
+    fun setGain(index: Int, gain: Float) {
+        mChannels.getOrNull(index)?.gainQ12 = (gain.coerceIn(0f, MAX_GAIN) * GAIN_ONE).toInt()
+    }
+
+    /**
+     * Get average mixing time of a block
+     *
+     * @return cost in us, the block is 20ms
+     */
+    fun getMixCostUs(): Float {
+        return if (mTotalBlocks == 0L) 0f else mTotalCostNs / 1000f / mTotalBlocks
+    }
+
+    /**
+     * Get mixer load
+     *
+     * @return mixing time / audio time
+     */
+    fun getMixLoad(): Float = getMixCostUs() / (BLOCK_MS * 1000f)
+
+    override fun initAudioRecord() {
+        mChannels.forEach {
+            it.source.initAudioRecord()
+        }
+    }
+
+    override fun startRecording() {
+        mTotalCostNs = 0L
+        mTotalBlocks = 0L
+        mChannels.forEach {
+            it.source.startRecording()
+            it.start()
+        }
+    }
+
+    override fun stopRecording() {
+        mChannels.forEach {
+            it.stop()
+            it.source.stopRecording()
+        }
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "stop mixing, cost = ${getMixCostUs()}us/block, load = ${getMixLoad()}")
+        }
+    }
+
+    override fun releaseAudioRecord() {
+        mChannels.forEach {
+            it.source.releaseAudioRecord()
+        }
+        mBufferPool.clear()
+    }
+
+    override fun read(): RawData? {
+        val master = mChannels[0]
+        if (! master.await(mBlockSamples, READ_TIMES_OUT_MS)) {
+            return null
+        }
+        val beginNs = System.nanoTime()
+        mMixBuffer.fill(0)
+        val blockPtsUs = master.getHeadPtsUs()
+        master.mixInto(mMixBuffer, 0, mBlockSamples)
+        for (i in 1 until mChannels.size) {
+            mChannels[i].let { channel ->
+                val offset = channel.alignTo(blockPtsUs)
+                if (offset < mBlockSamples) {
+                    channel.mixInto(mMixBuffer, offset, mBlockSamples - offset)
+                }
+            }
+        }
+        val rawData = mBufferPool.obtain(mBlockSamples * 2)
+        val data = rawData.data
+        for (i in 0 until mBlockSamples) {
+            val sample = (mMixBuffer[i] shr GAIN_SHIFT).coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt())
+            data[i * 2] = sample.toByte()
+            data[i * 2 + 1] = (sample shr 8).toByte()
+        }
+        rawData.size = mBlockSamples * 2
+        mTotalCostNs += System.nanoTime() - beginNs
+        mTotalBlocks++
+        return rawData
+    }
+
+    override fun isRecording(): Boolean = mChannels[0].source.isRecording()
+
+    override fun getSampleRate(): Int = sampleRate
+
+    override fun getAudioFormat(): Int = AudioFormat.ENCODING_PCM_16BIT
+
+    override fun getChannelCount(): Int = channelCount
+
+    override fun getChannelConfig(): Int = if (channelCount == 1) {
+        AudioFormat.CHANNEL_IN_MONO
+    } else {
+        AudioFormat.CHANNEL_IN_STEREO
+    }
+
+    private fun usToSamples(us: Long) = (us * sampleRate / 1000000L).toInt() * channelCount
+
+    private fun samplesToUs(samples: Int) = samples.toLong() / channelCount * 1000000L / sampleRate
+
+    /**
+     * Capture thread and pcm queue of a source
+     */
+    private inner class SourceChannel(private val index: Int, val source: IAudioStrategy) {
+        private val mLock = Object()
+        private val mFifo = ShortArray(sampleRate * MAX_QUEUE_MS / 1000 * channelCount)
+        private var mFifoRead = 0
+        private var mFifoSize = 0
+        private var mTailPtsUs = 0L
+        private var mThread: Thread? = null
+        private val mClock = AudioClock(sampleRate, channelCount, AudioFormat.ENCODING_PCM_16BIT)
+        @Volatile
+        private var isRunning = false
+        @Volatile
+        var gainQ12 = GAIN_ONE
+
+        fun start() {
+            isRunning = true
+            mClock.reset()
+            synchronized(mLock) {
+                mFifoRead = 0
+                mFifoSize = 0
+            }
+            mThread = Thread({ captureLoop() }, "$TAG-$index").apply {
+                start()
+            }
+        }
+
+        fun stop() {
+            isRunning = false
+            synchronized(mLock) {
+                mLock.notifyAll()
+            }
+            try {
+                mThread?.join(STOP_TIMES_OUT_MS)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+            }
+            mThread = null
+        }
+
+        private fun captureLoop() {
+            while (isRunning) {
+                val rawData = source.read()
+                if (rawData == null) {
+                    // source failed, not spin
+                    if (! source.isRecording()) {
+                        try {
+                            Thread.sleep(READ_TIMES_OUT_MS)
+                        } catch (e: InterruptedException) {
+                            Thread.currentThread().interrupt()
+                            break
+                        }
+                    }
+                    continue
+                }
+                val ptsUs = mClock.getPtsUs(rawData.size)
+                push(rawData.data, rawData.size / 2, ptsUs)
+                rawData.release()
+            }
+        }
+
+        private fun push(data: ByteArray, samples: Int, ptsUs: Long) {
+            synchronized(mLock) {
+                val capacity = mFifo.size
+                if (mFifoSize + samples > capacity) {
+                    // mixer is not reading, drop the oldest
+                    val drop = minOf(mFifoSize, mFifoSize + samples - capacity)
+                    mFifoRead = (mFifoRead + drop) % capacity
+                    mFifoSize -= drop
+                }
+                var writePos = (mFifoRead + mFifoSize) % capacity
+                val count = minOf(samples, capacity)
+                for (i in 0 until count) {
+                    mFifo[writePos] = ((data[i * 2].toInt() and 0xFF) or (data[i * 2 + 1].toInt() shl 8)).toShort()
+                    if (++writePos == capacity) {
+                        writePos = 0
+                    }
+                }
+                mFifoSize += count
+                mTailPtsUs = ptsUs + samplesToUs(samples)
+                mLock.notifyAll()
+            }
+        }
+
+        fun await(samples: Int, timeoutMs: Long): Boolean {
+            synchronized(mLock) {
+                if (mFifoSize < samples && isRunning) {
+                    try {
+                        mLock.wait(timeoutMs)
+                    } catch (e: InterruptedException) {
+                        Thread.currentThread().interrupt()
+                    }
+                }
+                return mFifoSize >= samples
+            }
+        }
+
+        fun getHeadPtsUs(): Long {
+            synchronized(mLock) {
+                return mTailPtsUs - samplesToUs(mFifoSize)
+            }
+        }
+
+        /**
+         * Align the queue head to the master pts
+         *
+         * @return samples of silence before this source, 0 means aligned
+         */
+        fun alignTo(ptsUs: Long): Int {
+            synchronized(mLock) {
+                if (mFifoSize == 0) {
+                    return 0
+                }
+                val diffUs = ptsUs - (mTailPtsUs - samplesToUs(mFifoSize))
+                if (diffUs > ALIGN_TOLERANCE_US) {
+                    // this source is behind, drop its old samples
+                    val drop = minOf(mFifoSize, usToSamples(diffUs))
+                    mFifoRead = (mFifoRead + drop) % mFifo.size
+                    mFifoSize -= drop
+                    return 0
+                }
+                if (diffUs < -ALIGN_TOLERANCE_US) {
+                    // this source is ahead, starts later in the block
+                    return minOf(mBlockSamples, usToSamples(-diffUs))
+                }
+                return 0
+            }
+        }
+
+        /**
+         * Mix queued samples into the accumulator, consume them
+         */
+        fun mixInto(acc: IntArray, offset: Int, samples: Int) {
+            val gain = gainQ12
+            synchronized(mLock) {
+                val count = minOf(samples, mFifoSize)
+                var readPos = mFifoRead
+                for (i in 0 until count) {
+                    acc[offset + i] += mFifo[readPos] * gain
+                    if (++readPos == mFifo.size) {
+                        readPos = 0
+                    }
+                }
+                mFifoRead = readPos
+                mFifoSize -= count
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "AudioMix"
+        private const val BLOCK_MS = 20
+        private const val MAX_QUEUE_MS = 500
+        private const val READ_TIMES_OUT_MS = 20L
+        private const val STOP_TIMES_OUT_MS = 500L
+        private const val ALIGN_TOLERANCE_US = 15000L
+        // gain in Q12, 1.0 = 4096
+        private const val GAIN_SHIFT = 12
+        private const val GAIN_ONE = 1 shl GAIN_SHIFT
+        // two full scale sources at max gain still fit in int
+        private const val MAX_GAIN = 4f
+    }
+}
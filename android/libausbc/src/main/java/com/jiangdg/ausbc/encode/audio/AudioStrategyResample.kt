@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import android.media.AudioFormat
+import com.jiangdg.ausbc.encode.bean.RawData
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+
+/** Audio record with a fixed output format
+ *
+ * Wrap a source, convert its pcm to 16 bit, [sampleRate] and [channelCount],
+ *  whatever the source reports, see [PolyphaseResampler].
+ *
+ * @property source pcm source, such as [AudioStrategyUAC]
+ * @property sampleRate output sample rate
+ * @property channelCount output channel count, 1 or 2
+ */
+class AudioStrategyResample(
+    private val source: IAudioStrategy,
+    private val sampleRate: Int,
+    private val channelCount: Int
+) : IAudioStrategy {
+    private var mResampler: PolyphaseResampler? = null
+    private var mSourceChannelCount = 0
+    private var mSourceFormat = 0
+    private var mInputBuffer = ShortArray(0)
+    private var mOutputBuffer = ShortArray(0)
+    private val mBufferPool by lazy {
+        PcmBufferPool()
+    }
+
+    override fun initAudioRecord() {
+        source.initAudioRecord()
+    }
+
+    override fun startRecording() {
+        source.startRecording()
+    }
+
+    override fun stopRecording() {
+        source.stopRecording()
+        mResampler = null
+    }
+
+    override fun releaseAudioRecord() {
+        source.releaseAudioRecord()
+        mBufferPool.clear()
+    }
+
+    override fun read(): RawData? {
+        val rawData = source.read() ?: return null
+        if (isSameFormat()) {
+            return rawData
+        }
+        try {
+            val resampler = getResampler()
+            val inFrames = toShort(rawData)
+            if (inFrames <= 0) {
+                return null
+            }
+            val maxOutSamples = resampler.getMaxOutputFrames(inFrames) * channelCount
+            if (mOutputBuffer.size < maxOutSamples) {
+                mOutputBuffer = ShortArray(maxOutSamples)
+            }
+            val outFrames = resampler.process(mInputBuffer, 0, inFrames, mOutputBuffer, 0)
+            if (outFrames <= 0) {
+                return null
+            }
+            val outBytes = outFrames * channelCount * 2
+            return mBufferPool.obtain(outBytes).also { outData ->
+                val data = outData.data
+                for (i in 0 until outFrames * channelCount) {
+                    val sample = mOutputBuffer[i].toInt()
+                    data[i * 2] = sample.toByte()
+                    data[i * 2 + 1] = (sample shr 8).toByte()
+                }
+                outData.size = outBytes
+            }
+        } finally {
+            rawData.release()
+        }
+    }
+
+    override fun isRecording(): Boolean = source.isRecording()
+
+    override fun getSampleRate(): Int = sampleRate
+
+    override fun getAudioFormat(): Int = AudioFormat.ENCODING_PCM_16BIT
+
+    override fun getChannelCount(): Int = channelCount
+
+    override fun getChannelConfig(): Int = if (channelCount == 1) {
+        AudioFormat.CHANNEL_IN_MONO
+    } else {
+        AudioFormat.CHANNEL_IN_STEREO
+    }
+
+    private fun isSameFormat(): Boolean {
+        return source.getSampleRate() == sampleRate
+                && source.getChannelCount() == channelCount
+                && source.getAudioFormat() == AudioFormat.ENCODING_PCM_16BIT
+    }
+
+    /**
+     * Source format is known after recording started, such as uac
+     */
+    private fun getResampler(): PolyphaseResampler {
+        val sourceRate = source.getSampleRate()
+        mSourceChannelCount = source.getChannelCount()
+        mSourceFormat = source.getAudioFormat()
+        mResampler?.let {
+            if (it.inSampleRate == sourceRate) {
+                return it
+            }
+        }
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "resample $sourceRate/$mSourceChannelCount -> $sampleRate/$channelCount")
+        }
+        return PolyphaseResampler(sourceRate, sampleRate, channelCount).also {
+            mResampler = it
+        }
+    }
+
+    /**
+     * Convert source pcm to 16 bit with output channels
+     *
+     * @return frames per channel
+     */
+    private fun toShort(rawData: RawData): Int {
+        val bytesPerSample = AudioClock.getBytesPerSample(mSourceFormat)
+        val srcChannels = maxOf(1, mSourceChannelCount)
+        val frames = rawData.size / (bytesPerSample * srcChannels)
+        if (mInputBuffer.size < frames * channelCount) {
+            mInputBuffer = ShortArray(frames * channelCount)
+        }
+        val data = rawData.data
+        for (frame in 0 until frames) {
+            val base = frame * srcChannels
+            if (channelCount == 1) {
+                // down mix
+                var sum = 0
+                for (ch in 0 until srcChannels) {
+                    sum += readSample(data, base + ch, bytesPerSample)
+                }
+                mInputBuffer[frame] = (sum / srcChannels).toShort()
+            } else {
+                for (ch in 0 until channelCount) {
+                    // up mix mono, or drop extra channels
+                    val srcCh = if (ch < srcChannels) ch else srcChannels - 1
+                    mInputBuffer[frame * channelCount + ch] = readSample(data, base + srcCh, bytesPerSample).toShort()
+                }
+            }
+        }
+        return frames
+    }
+
+    private fun readSample(data: ByteArray, index: Int, bytesPerSample: Int): Int {
+        return if (bytesPerSample == 1) {
+            // 8 bit pcm is unsigned
+            ((data[index].toInt() and 0xFF) - 128) shl 8
+        } else {
+            val offset = index * 2
+            (data[offset].toInt() and 0xFF) or (data[offset + 1].toInt() shl 8)
+        }
+    }
+
+    companion object {
+        private const val TAG = "AudioResample"
+    }
+}
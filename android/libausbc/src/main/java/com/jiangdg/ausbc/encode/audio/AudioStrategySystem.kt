@@ -22,24 +22,33 @@ import com.jiangdg.ausbc.utils.Logger
 import com.jiangdg.ausbc.utils.Utils
 
 /** System audio record
+ *
+ * @property sampleRate record sample rate, 44100 is supported by all devices
+ * @property channelCount 1 or 2
  *
  * @author Created by jiangdg on 2022/9/14
  */
-class AudioStrategySystem : IAudioStrategy {
+class AudioStrategySystem(
+    private val sampleRate: Int = SAMPLE_RATE,
+    private val channelCount: Int = CHANNEL_COUNT
+) : IAudioStrategy {
     private val mBufferSize: Int by lazy {
         AudioRecord.getMinBufferSize(
-            SAMPLE_RATE,
-            CHANNEL_IN_CONFIG,
+            sampleRate,
+            getChannelConfig(),
             AUDIO_FORMAT_16BIT
         )
     }
     private var mAudioRecord: AudioRecord? = null
+    private val mBufferPool by lazy {
+        PcmBufferPool()
+    }
 
     override fun initAudioRecord() {
         try {
             Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO)
-            mAudioRecord = AudioRecord(AUDIO_RECORD_SOURCE, SAMPLE_RATE,
-                CHANNEL_IN_CONFIG, AUDIO_FORMAT_16BIT, mBufferSize
+            mAudioRecord = AudioRecord(AUDIO_RECORD_SOURCE, sampleRate,
+                getChannelConfig(), AUDIO_FORMAT_16BIT, mBufferSize
             )
             if (Utils.debugCamera) {
                 Logger.i(TAG, "initAudioRecord success")
@@ -75,6 +84,7 @@ class AudioStrategySystem : IAudioStrategy {
         try {
             mAudioRecord?.release()
             mAudioRecord = null
+            mBufferPool.clear()
             if (Utils.debugCamera) {
                 Logger.i(TAG, "releaseAudioRecord success.")
             }
@@ -84,30 +94,37 @@ class AudioStrategySystem : IAudioStrategy {
     }
 
     override fun read(): RawData? {
-        return if (! isRecording()) {
-            null
-        } else {
-            val data = ByteArray(mBufferSize)
-            val readBytes = mAudioRecord?.read(data, 0, mBufferSize) ?: 0
-            RawData(data, readBytes)
+        if (! isRecording()) {
+            return null
         }
+        val rawData = mBufferPool.obtain(mBufferSize)
+        val readBytes = mAudioRecord?.read(rawData.data, 0, mBufferSize) ?: 0
+        if (readBytes <= 0) {
+            rawData.release()
+            return null
+        }
+        rawData.size = readBytes
+        return rawData
     }
 
     override fun isRecording(): Boolean = mAudioRecord?.recordingState == AudioRecord.RECORDSTATE_RECORDING
 
-    override fun getSampleRate(): Int = SAMPLE_RATE
+    override fun getSampleRate(): Int = sampleRate
 
     override fun getAudioFormat(): Int = AUDIO_FORMAT_16BIT
 
-    override fun getChannelCount(): Int = CHANNEL_COUNT
+    override fun getChannelCount(): Int = channelCount
 
-    override fun getChannelConfig(): Int = CHANNEL_IN_CONFIG
+    override fun getChannelConfig(): Int = if (channelCount == 1) {
+        AudioFormat.CHANNEL_IN_MONO
+    } else {
+        AudioFormat.CHANNEL_IN_STEREO
+    }
 
     companion object {
         private const val TAG = "AudioSystem"
         private const val SAMPLE_RATE = 8000
         private const val CHANNEL_COUNT = 1
-        private const val CHANNEL_IN_CONFIG = AudioFormat.CHANNEL_IN_MONO
         private const val AUDIO_FORMAT_16BIT = AudioFormat.ENCODING_PCM_16BIT
         private const val AUDIO_RECORD_SOURCE = MediaRecorder.AudioSource.MIC
     }
@@ -20,9 +20,11 @@ import com.jiangdg.ausbc.encode.bean.RawData
 import com.jiangdg.ausbc.utils.Logger
 import com.jiangdg.ausbc.utils.Utils
 import com.jiangdg.uac.UACAudioCallBack
+import com.jiangdg.uac.UACAudioFormat
 import com.jiangdg.uac.UACAudioHandler
 import com.jiangdg.usb.USBMonitor
-import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
 
 /** UAC audio record
  *
@@ -30,16 +32,28 @@ import java.util.concurrent.ConcurrentLinkedQueue
  */
 class AudioStrategyUAC(private val ctrlBlock: USBMonitor.UsbControlBlock): IAudioStrategy {
     private var mUacHandler: UACAudioHandler? = null
-    private val mPcmDataQueue: ConcurrentLinkedQueue<ByteArray> = ConcurrentLinkedQueue()
+    @Volatile
+    private var mAudioFormat: UACAudioFormat? = null
+    private val mPcmDataQueue: ArrayBlockingQueue<RawData> = ArrayBlockingQueue(MAX_QUEUE_SIZE)
+    private val mBufferPool by lazy {
+        PcmBufferPool()
+    }
 
     private val mCallback = UACAudioCallBack { data ->
-        if (mPcmDataQueue.size >= MAX_QUEUE_SIZE) {
-            mPcmDataQueue.poll()
+        if (data == null || data.isEmpty()) {
+            return@UACAudioCallBack
+        }
+        // native array is short-lived, copy to a pooled buffer
+        val rawData = mBufferPool.obtain(data.size)
+        System.arraycopy(data, 0, rawData.data, 0, data.size)
+        rawData.size = data.size
+        while (! mPcmDataQueue.offer(rawData)) {
+            mPcmDataQueue.poll()?.release()
         }
-        mPcmDataQueue.offer(data)
     }
 
     override fun initAudioRecord() {
+        mAudioFormat = null
         mUacHandler = UACAudioHandler.createHandler(ctrlBlock)
         mUacHandler?.initAudioRecord()
         if (Utils.debugCamera) {
@@ -58,6 +72,9 @@ class AudioStrategyUAC(private val ctrlBlock: USBMonitor.UsbControlBlock): IAudi
     override fun stopRecording() {
         mUacHandler?.stopRecording()
         mUacHandler?.removeDataCallBack(mCallback)
+        while (true) {
+            mPcmDataQueue.poll()?.release() ?: break
+        }
         if (Utils.debugCamera) {
             Logger.i(TAG, "stopRecording:")
         }
@@ -71,19 +88,18 @@ class AudioStrategyUAC(private val ctrlBlock: USBMonitor.UsbControlBlock): IAudi
     }
 
     override fun read(): RawData? {
-        return mPcmDataQueue.poll()?.let {
-            RawData(it, it.size)
-        }
+        // wait a while, not spin the read loop
+        return mPcmDataQueue.poll(READ_TIMES_OUT_MS, TimeUnit.MILLISECONDS)
     }
 
     override fun isRecording(): Boolean = mUacHandler?.isRecording == true
 
     override fun getSampleRate(): Int {
-        return mUacHandler?.sampleRate ?: SAMPLE_RATE
+        return getUacFormat().sampleRate
     }
 
     override fun getAudioFormat(): Int {
-        return if (mUacHandler?.bitResolution == BIT_RESOLUTION) {
+        return if (getUacFormat().bitResolution == BIT_RESOLUTION) {
             AudioFormat.ENCODING_PCM_8BIT
         } else {
             AudioFormat.ENCODING_PCM_16BIT
@@ -91,7 +107,27 @@ class AudioStrategyUAC(private val ctrlBlock: USBMonitor.UsbControlBlock): IAudi
     }
 
     override fun getChannelCount(): Int {
-        return mUacHandler?.channelCount ?: CHANNEL_COUNT
+        return getUacFormat().channelCount
+    }
+
+    /**
+     * Format is discovered in the uac thread, cached per device,
+     *  never block the caller longer than [FORMAT_TIMES_OUT_MS]
+     *
+     * The first format handed out, discovered or default, is kept until the next
+     *  [initAudioRecord], so the encoder never sees the format change in a session.
+     */
+    @Synchronized
+    private fun getUacFormat(): UACAudioFormat {
+        mAudioFormat?.let {
+            return it
+        }
+        val format = mUacHandler?.getAudioFormat(FORMAT_TIMES_OUT_MS)
+            ?: UACAudioFormat(SAMPLE_RATE, CHANNEL_COUNT, DEFAULT_BIT_RESOLUTION).also {
+                Logger.w(TAG, "get uac format timeout or failed, use default")
+            }
+        mAudioFormat = format
+        return format
     }
 
     override fun getChannelConfig(): Int = if (getChannelCount() == CHANNEL_COUNT) {
@@ -103,8 +139,11 @@ class AudioStrategyUAC(private val ctrlBlock: USBMonitor.UsbControlBlock): IAudi
     companion object {
         private const val TAG = "AudioUac"
         private const val MAX_QUEUE_SIZE = 10
+        private const val READ_TIMES_OUT_MS = 20L
+        private const val FORMAT_TIMES_OUT_MS = 1500L
         private const val SAMPLE_RATE = 8000
         private const val BIT_RESOLUTION = 8
+        private const val DEFAULT_BIT_RESOLUTION = 16
         private const val CHANNEL_COUNT = 1
     }
 }
\ No newline at end of file
@@ -18,6 +18,9 @@ package com.jiangdg.ausbc.encode.audio
 import com.jiangdg.ausbc.encode.bean.RawData
 
 /** Audio(pcm) collection context
+ *
+ * [read] may return pooled data, see [PcmBufferPool],
+ *  the caller should call [RawData.release] when done.
  *
  * @author Created by jiangdg on 2022/9/14
  */
@@ -26,6 +29,12 @@ interface IAudioStrategy {
     fun startRecording()
     fun stopRecording()
     fun releaseAudioRecord()
+
+    /**
+     * Read pcm
+     *
+     * @return pcm data, null means no data, zero-length reads are never returned
+     */
     fun read(): RawData?
     fun isRecording(): Boolean
     fun getSampleRate(): Int
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import com.jiangdg.ausbc.utils.Logger
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Single producer multi consumer pcm broadcast ring
+ *
+ * The producer copies each pcm chunk into a preallocated slot once, every consumer
+ *  reads with its own [Cursor]. The producer never waits for consumers, a consumer
+ *  falling behind more than the ring is moved to the newest chunk and reported by
+ *  [OnLagListener], the others are not affected. A chunk larger than the destination
+ *  is read in parts, the rest is returned by the next read.
+ *
+ * @param slotCount count of the chunks kept
+ */
+class PcmBroadcastRing(private val slotCount: Int = DEFAULT_SLOT_COUNT) {
+    private val mSlotData = Array(slotCount) { ByteArray(0) }
+    private val mSlotSize = IntArray(slotCount)
+    private val mSlotPts = LongArray(slotCount)
+    private val mCursors = CopyOnWriteArrayList<Cursor>()
+    private val mLock = Object()
+    private val mWaitingCount = AtomicInteger(0)
+    // count of published chunks
+    @Volatile
+    private var mWriteSeq = 0L
+    private var mLagListener: OnLagListener? = null
+
+    /**
+     * Lagging consumer listener
+     */
+    fun interface OnLagListener {
+        /**
+         * Called on the consumer thread
+         *
+         * @param name consumer name
+         * @param droppedChunks chunks skipped this time
+         * @param totalDropped chunks skipped since opened
+         */
+        fun onLag(name: String, droppedChunks: Long, totalDropped: Long)
+    }
+
+    /**
+     * Set lag listener
+     *
+     * @param listener see [OnLagListener], null means only logging
+     */
+    fun setOnLagListener(listener: OnLagListener?) {
+        this.mLagListener = listener
+    }
+
+    /**
+     * Write a pcm chunk, only one producer
+     *
+     * @param data pcm data
+     * @param size pcm size
+     * @param ptsUs pcm presentation time
+     */
+    fun write(data: ByteArray, size: Int, ptsUs: Long) {
+        if (size <= 0) {
+            return
+        }
+        val index = (mWriteSeq % slotCount).toInt()
+        // slots grow to the chunk size once, then reused
+        if (mSlotData[index].size < size) {
+            mSlotData[index] = ByteArray(size)
+        }
+        System.arraycopy(data, 0, mSlotData[index], 0, size)
+        mSlotSize[index] = size
+        mSlotPts[index] = ptsUs
+        mWriteSeq++
+        if (mWaitingCount.get() > 0) {
+            synchronized(mLock) {
+                mLock.notifyAll()
+            }
+        }
+    }
+
+    /**
+     * Open a consumer cursor, start at the next chunk
+     *
+     * @param name consumer name, for lag report
+     * @return see [Cursor]
+     */
+    fun openCursor(name: String): Cursor {
+        return Cursor(name).also {
+            mCursors.add(it)
+        }
+    }
+
+    /**
+     * Close a consumer cursor, blocked read returns at once
+     *
+     * @param cursor see [openCursor]
+     */
+    fun closeCursor(cursor: Cursor?) {
+        cursor ?: return
+        cursor.isClosed = true
+        mCursors.remove(cursor)
+        synchronized(mLock) {
+            mLock.notifyAll()
+        }
+    }
+
+    /**
+     * Get count of the opened cursors
+     */
+    fun getCursorCount() = mCursors.size
+
+    /**
+     * Consumer read cursor
+     *
+     * @property name consumer name
+     */
+    inner class Cursor internal constructor(val name: String) {
+        private var mReadSeq = mWriteSeq
+        // bytes of the current chunk already read
+        private var mReadOffset = 0
+        @Volatile
+        internal var isClosed = false
+
+        /**
+         * Presentation time of the last read chunk
+         */
+        var lastPtsUs: Long = 0L
+            private set
+
+        /**
+         * Offset of the last read part in its chunk, not 0 means the chunk is read in parts
+         */
+        var lastOffset: Int = 0
+            private set
+
+        /**
+         * Chunks skipped since opened, because of lagging
+         */
+        var droppedChunks: Long = 0L
+            private set
+
+        /**
+         * Get chunks not read yet
+         */
+        fun available(): Long = mWriteSeq - mReadSeq
+
+        /**
+         * Get size not read of the next chunk
+         *
+         * @return 0 means no data
+         */
+        fun peekSize(): Int {
+            skipIfLagging()
+            if (mWriteSeq == mReadSeq) {
+                return 0
+            }
+            return mSlotSize[(mReadSeq % slotCount).toInt()] - mReadOffset
+        }
+
+        /**
+         * Whether the current chunk is partly read
+         */
+        fun hasRemainder(): Boolean = mReadOffset > 0
+
+        /**
+         * Read a chunk to byte array
+         *
+         * @param dst destination, the chunk larger than it is read in parts
+         * @param timeoutMs max waiting time when no data, 0 means not waiting
+         * @return size read, 0 means no data, -1 means closed
+         */
+        fun read(dst: ByteArray, timeoutMs: Long = 0L): Int {
+            if (! await(timeoutMs)) {
+                return if (isClosed) -1 else 0
+            }
+            val index = (mReadSeq % slotCount).toInt()
+            val chunkSize = mSlotSize[index]
+            val size = minOf(chunkSize - mReadOffset, dst.size)
+            System.arraycopy(mSlotData[index], mReadOffset, dst, 0, size)
+            return finishRead(index, chunkSize, size)
+        }
+
+        /**
+         * Read a chunk to byte buffer
+         *
+         * @param dst destination, from its position, the chunk larger than it is read in parts
+         * @param timeoutMs max waiting time when no data, 0 means not waiting
+         * @return size read, 0 means no data, -1 means closed
+         */
+        fun read(dst: ByteBuffer, timeoutMs: Long = 0L): Int {
+            if (! await(timeoutMs)) {
+                return if (isClosed) -1 else 0
+            }
+            val index = (mReadSeq % slotCount).toInt()
+            val position = dst.position()
+            val chunkSize = mSlotSize[index]
+            val size = minOf(chunkSize - mReadOffset, dst.remaining())
+            dst.put(mSlotData[index], mReadOffset, size)
+            val result = finishRead(index, chunkSize, size)
+            if (result <= 0) {
+                dst.position(position)
+            }
+            return result
+        }
+
+        private fun finishRead(index: Int, chunkSize: Int, size: Int): Int {
+            // overwritten by the producer when copying, drop it and resync
+            if (mWriteSeq - mReadSeq > slotCount - SAFE_SLOTS) {
+                skipIfLagging()
+                return 0
+            }
+            lastPtsUs = mSlotPts[index]
+            lastOffset = mReadOffset
+            mReadOffset += size
+            if (mReadOffset >= chunkSize) {
+                mReadOffset = 0
+                mReadSeq++
+            }
+            return size
+        }
+
+        /**
+         * Wait until the next chunk is ready
+         *
+         * @param timeoutMs max waiting time, 0 means not waiting
+         * @return false means timeout or closed
+         */
+        fun await(timeoutMs: Long): Boolean {
+            skipIfLagging()
+            if (mWriteSeq != mReadSeq) {
+                return true
+            }
+            if (timeoutMs <= 0 || isClosed) {
+                return false
+            }
+            val deadline = System.currentTimeMillis() + timeoutMs
+            synchronized(mLock) {
+                mWaitingCount.incrementAndGet()
+                try {
+                    while (mWriteSeq == mReadSeq && ! isClosed) {
+                        val remaining = deadline - System.currentTimeMillis()
+                        if (remaining <= 0) {
+                            break
+                        }
+                        mLock.wait(remaining)
+                    }
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                } finally {
+                    mWaitingCount.decrementAndGet()
+                }
+            }
+            skipIfLagging()
+            return mWriteSeq != mReadSeq && ! isClosed
+        }
+
+        private fun skipIfLagging() {
+            val writeSeq = mWriteSeq
+            val lag = writeSeq - mReadSeq
+            if (lag <= slotCount - SAFE_SLOTS) {
+                return
+            }
+            // jump to the newest chunk, keep latency low
+            val dropped = lag - 1
+            mReadSeq = writeSeq - 1
+            mReadOffset = 0
+            droppedChunks += dropped
+            mLagListener?.onLag(name, dropped, droppedChunks) ?: Logger.w(TAG, "$name is lagging, drop $dropped chunks, total = $droppedChunks")
+        }
+    }
+
+    companion object {
+        private const val TAG = "PcmBroadcastRing"
+        // keep away from the slot being written
+        private const val SAFE_SLOTS = 2
+        const val DEFAULT_SLOT_COUNT = 32
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import com.jiangdg.ausbc.encode.bean.RawData
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Recycled pcm or yuv buffer pool
+ *
+ * Buffers are returned by [RawData.release] when their owner is done with them,
+ *  such as after the pcm was written into [PcmBroadcastRing].
+ *
+ * @param maxPoolSize max count of the idle buffers kept
+ */
+class PcmBufferPool(maxPoolSize: Int = DEFAULT_POOL_SIZE) {
+    private val mIdleQueue = ArrayBlockingQueue<RawData>(maxPoolSize)
+
+    /**
+     * Obtain a buffer
+     *
+     * @param capacity min capacity of the buffer
+     * @return pcm buffer, size is 0
+     */
+    fun obtain(capacity: Int): RawData {
+        var rawData = mIdleQueue.poll()
+        // capacity changed, such as audio format switched
+        while (rawData != null && rawData.data.size < capacity) {
+            rawData = mIdleQueue.poll()
+        }
+        return (rawData ?: RawData(ByteArray(capacity), 0)).apply {
+            attach(this@PcmBufferPool)
+        }
+    }
+
+    /**
+     * Recycle a buffer, called by [RawData.release]
+     *
+     * @param rawData buffer no one used
+     */
+    fun recycle(rawData: RawData) {
+        // drop it when pool is full
+        mIdleQueue.offer(rawData)
+    }
+
+    /**
+     * Drop all idle buffers
+     */
+    fun clear() {
+        mIdleQueue.clear()
+    }
+
+    companion object {
+        const val DEFAULT_POOL_SIZE = 16
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.audio
+
+import kotlin.math.PI
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * Streaming polyphase resampler for 16 bit interleaved pcm
+ *
+ * The ratio is reduced to L/M, output time is stepped by M/L exactly, and each
+ *  output sample is a dot product of the history and one phase of a kaiser windowed
+ *  sinc filter. Phases are quantized to [MAX_PHASES] when L is too large.
+ *  No allocation after created, so it can be used in the audio read loop.
+ *
+ * @property inSampleRate input sample rate
+ * @property outSampleRate output sample rate
+ * @property channelCount interleaved channel count
+ * @property tapsPerPhase filter length of each phase, even number
+ */
+class PolyphaseResampler(
+    val inSampleRate: Int,
+    val outSampleRate: Int,
+    val channelCount: Int,
+    private val tapsPerPhase: Int = DEFAULT_TAPS_PER_PHASE
+) {
+    private val mUpFactor: Int
+    private val mDownFactor: Int
+    private val mPhaseCount: Int
+    private val mCoefficients: FloatArray
+    // history of each channel is written twice, so the filter window is always contiguous
+    private val mHistory: Array<FloatArray>
+    private var mHistoryPos = 0
+    // output time in 1/L input sample, relative to the filter center
+    private var mTimeNum = 0L
+
+    init {
+        require(inSampleRate > 0 && outSampleRate > 0 && channelCount > 0) {
+            "invalid format, $inSampleRate -> $outSampleRate, channel = $channelCount"
+        }
+        require(tapsPerPhase >= 2 && tapsPerPhase % 2 == 0) {
+            "tapsPerPhase should be even"
+        }
+        val gcd = gcd(inSampleRate, outSampleRate)
+        mUpFactor = outSampleRate / gcd
+        mDownFactor = inSampleRate / gcd
+        mPhaseCount = minOf(mUpFactor, MAX_PHASES)
+        mCoefficients = FloatArray(mPhaseCount * tapsPerPhase)
+        mHistory = Array(channelCount) {
+            FloatArray(tapsPerPhase * 2)
+        }
+        designFilter()
+    }
+
+    /**
+     * Is passthrough, input equals output
+     */
+    fun isPassthrough() = inSampleRate == outSampleRate
+
+    /**
+     * Get max output frames for an input
+     *
+     * @param inputFrames input frames per channel
+     * @return output buffer should be larger than it * channelCount
+     */
+    fun getMaxOutputFrames(inputFrames: Int): Int {
+        return ((inputFrames.toLong() * mUpFactor + mDownFactor - 1) / mDownFactor).toInt() + 1
+    }
+
+    /**
+     * Resample pcm
+     *
+     * @param input interleaved pcm
+     * @param inOffset input offset in samples
+     * @param inFrames input frames per channel
+     * @param output interleaved pcm, capacity see [getMaxOutputFrames]
+     * @param outOffset output offset in samples
+     * @return output frames per channel
+     */
+    fun process(input: ShortArray, inOffset: Int, inFrames: Int, output: ShortArray, outOffset: Int): Int {
+        if (isPassthrough()) {
+            System.arraycopy(input, inOffset, output, outOffset, inFrames * channelCount)
+            return inFrames
+        }
+        val taps = tapsPerPhase
+        var outIndex = outOffset
+        var inIndex = inOffset
+        for (frame in 0 until inFrames) {
+            // push one frame
+            for (ch in 0 until channelCount) {
+                val sample = input[inIndex++].toFloat()
+                val history = mHistory[ch]
+                history[mHistoryPos] = sample
+                history[mHistoryPos + taps] = sample
+            }
+            mHistoryPos = if (mHistoryPos + 1 == taps) 0 else mHistoryPos + 1
+            // emit all outputs between this sample and the next one
+            while (mTimeNum < mUpFactor) {
+                val phase = if (mPhaseCount == mUpFactor) {
+                    mTimeNum.toInt()
+                } else {
+                    (mTimeNum * mPhaseCount / mUpFactor).toInt()
+                }
+                val coefOffset = phase * taps
+                for (ch in 0 until channelCount) {
+                    val history = mHistory[ch]
+                    var sum = 0f
+                    // oldest sample is at mHistoryPos
+                    var h = mHistoryPos
+                    for (j in 0 until taps) {
+                        sum += history[h++] * mCoefficients[coefOffset + j]
+                    }
+                    output[outIndex++] = clamp(sum)
+                }
+                mTimeNum += mDownFactor
+            }
+            mTimeNum -= mUpFactor
+        }
+        return (outIndex - outOffset) / channelCount
+    }
+
+    /**
+     * Reset history, such as source restarted
+     */
+    fun reset() {
+        mHistory.forEach {
+            it.fill(0f)
+        }
+        mHistoryPos = 0
+        mTimeNum = 0L
+    }
+
+    /**
+     * Kaiser windowed sinc, cutoff below the lower nyquist,
+     *  each phase normalized to unity dc gain
+     */
+    private fun designFilter() {
+        val taps = tapsPerPhase
+        val half = taps / 2
+        val cutoff = 0.5 * minOf(1.0, outSampleRate.toDouble() / inSampleRate) * ROLLOFF
+        val i0Beta = besselI0(KAISER_BETA)
+        for (phase in 0 until mPhaseCount) {
+            val fraction = phase.toDouble() / mPhaseCount
+            var sum = 0.0
+            for (j in 0 until taps) {
+                // window is [newest - taps + 1, newest], center is newest - half
+                val t = j - half + 1 - fraction
+                val x = 2.0 * cutoff * t
+                val sinc = if (x == 0.0) 1.0 else sin(PI * x) / (PI * x)
+                val r = t / half
+                val window = if (r <= -1.0 || r >= 1.0) 0.0 else besselI0(KAISER_BETA * sqrt(1.0 - r * r)) / i0Beta
+                val coef = 2.0 * cutoff * sinc * window
+                mCoefficients[phase * taps + j] = coef.toFloat()
+                sum += coef
+            }
+            if (sum != 0.0) {
+                for (j in 0 until taps) {
+                    mCoefficients[phase * taps + j] = (mCoefficients[phase * taps + j] / sum).toFloat()
+                }
+            }
+        }
+    }
+
+    private fun clamp(value: Float): Short {
+        return when {
+            value >= Short.MAX_VALUE -> Short.MAX_VALUE
+            value <= Short.MIN_VALUE -> Short.MIN_VALUE
+            else -> value.toInt().toShort()
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_TAPS_PER_PHASE = 32
+        private const val MAX_PHASES = 1024
+        private const val KAISER_BETA = 8.0
+        private const val ROLLOFF = 0.92
+
+        private fun gcd(a: Int, b: Int): Int = if (b == 0) a else gcd(b, a % b)
+
+        private fun besselI0(x: Double): Double {
+            var sum = 1.0
+            var term = 1.0
+            val halfX = x / 2.0
+            var k = 1
+            while (term > sum * 1e-12) {
+                val factor = halfX / k
+                term *= factor * factor
+                sum += term
+                k++
+            }
+            return sum
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.bean
+
+import android.media.MediaCodec
+import androidx.annotation.Keep
+import com.jiangdg.ausbc.callback.IEncodeDataCallBack
+import com.jiangdg.ausbc.camera.bean.FrameMetadata
+import java.nio.ByteBuffer
+
+/**
+ * Encoded packet, a view of the encoder output buffer
+ *
+ * The packet and its buffer are reused by the encoder, they are only valid
+ *  during the callback. Copy the data if need keeping it.
+ */
+@Keep
+class EncodedPacket {
+    /** aac or h264 data type, see [IEncodeDataCallBack.DataType] */
+    var type: IEncodeDataCallBack.DataType = IEncodeDataCallBack.DataType.H264
+    /** encoder output buffer */
+    var buffer: ByteBuffer? = null
+        private set
+    /** data offset in [buffer] */
+    var offset: Int = 0
+        private set
+    /** data size */
+    var size: Int = 0
+        private set
+    /** presentation time in us */
+    var ptsUs: Long = 0L
+    /** decode time in us, MediaCodec not report it, it is the monotonic output order time */
+    var dtsUs: Long = 0L
+    /** flags of [MediaCodec.BufferInfo] */
+    var flags: Int = 0
+        private set
+    var isVideo: Boolean = false
+        private set
+    /** contains an IDR slice */
+    var isIdr: Boolean = false
+    /** first slice type, 0: P, 1: B, 2: I, 3: SP, 4: SI, -1 means no slice */
+    var sliceType: Int = -1
+    /** latest sps of the stream, null means no sps received yet */
+    var sps: SpsInfo? = null
+    /** metadata of the source frame, null when not found or audio, see [FrameMetadata] */
+    var metadata: FrameMetadata? = null
+    /** count of the nal units in the packet */
+    var nalCount: Int = 0
+        private set
+
+    private val mNalTypes = IntArray(MAX_NAL_UNITS)
+    private val mNalOffsets = IntArray(MAX_NAL_UNITS)
+    private val mNalSizes = IntArray(MAX_NAL_UNITS)
+
+    /**
+     * Reset the packet with a new encoder output
+     *
+     * @param buffer encoder output buffer
+     * @param bufferInfo encoder output info, see [MediaCodec.BufferInfo]
+     * @param isVideo h264 or aac
+     * @return this packet
+     */
+    fun reset(buffer: ByteBuffer, bufferInfo: MediaCodec.BufferInfo, isVideo: Boolean): EncodedPacket {
+        return reset(buffer, bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags, isVideo)
+    }
+
+    fun reset(buffer: ByteBuffer, offset: Int, size: Int, ptsUs: Long, flags: Int, isVideo: Boolean): EncodedPacket {
+        this.type = if (isVideo) IEncodeDataCallBack.DataType.H264 else IEncodeDataCallBack.DataType.AAC
+        this.buffer = buffer
+        this.offset = offset
+        this.size = size
+        this.ptsUs = ptsUs
+        this.dtsUs = ptsUs
+        this.flags = flags
+        this.isVideo = isVideo
+        this.isIdr = false
+        this.sliceType = -1
+        this.nalCount = 0
+        this.metadata = null
+        return this
+    }
+
+    /**
+     * Add a nal unit
+     *
+     * @param nalType nal_unit_type
+     * @param nalOffset nal offset in [buffer], start code excluded
+     * @param nalSize nal size, start code excluded
+     * @return false means too many nal units
+     */
+    fun addNalUnit(nalType: Int, nalOffset: Int, nalSize: Int): Boolean {
+        if (nalCount >= MAX_NAL_UNITS) {
+            return false
+        }
+        mNalTypes[nalCount] = nalType
+        mNalOffsets[nalCount] = nalOffset
+        mNalSizes[nalCount] = nalSize
+        nalCount++
+        return true
+    }
+
+    fun getNalType(index: Int) = mNalTypes[index]
+
+    fun getNalOffset(index: Int) = mNalOffsets[index]
+
+    fun getNalSize(index: Int) = mNalSizes[index]
+
+    fun hasNalType(nalType: Int): Boolean {
+        for (i in 0 until nalCount) {
+            if (mNalTypes[i] == nalType) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /** sps & pps, or aac codec specific data */
+    fun isConfig() = flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0
+
+    fun isKeyFrame() = isIdr || (flags and MediaCodec.BUFFER_FLAG_KEY_FRAME != 0)
+
+    fun isEndOfStream() = flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0
+
+    companion object {
+        const val MAX_NAL_UNITS = 32
+
+        const val NAL_TYPE_SLICE = 1
+        const val NAL_TYPE_IDR = 5
+        const val NAL_TYPE_SEI = 6
+        const val NAL_TYPE_SPS = 7
+        const val NAL_TYPE_PPS = 8
+        const val NAL_TYPE_AUD = 9
+    }
+}
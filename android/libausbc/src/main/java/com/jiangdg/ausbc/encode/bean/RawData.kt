@@ -16,18 +16,47 @@
 package com.jiangdg.ausbc.encode.bean
 
 import androidx.annotation.Keep
+import com.jiangdg.ausbc.encode.audio.PcmBufferPool
 
 /**
  * PCM or YUV raw data
  *
  * @property data media data, pcm or yuv
- * @property size media data size
+ * @property size media data size, data may be larger than it when pooled
+ * @property ptsUs capture time in us, 0 means stamped by the encoder when queued
+ *
+ * Pooled data has one owner at a time, it is handed over with the data,
+ *  the last owner calls [release] when done, see [PcmBufferPool]
  * @constructor Create empty Raw data
  *
  * @author Created by jiangdg on 2022/2/10
  */
 @Keep
-data class RawData(val data: ByteArray, val size: Int) {
+data class RawData(val data: ByteArray, var size: Int) {
+    var ptsUs: Long = 0L
+    private var mPool: PcmBufferPool? = null
+
+    /**
+     * Attach to pool, reset as a new buffer
+     *
+     * @param pool owner pool
+     */
+    fun attach(pool: PcmBufferPool) {
+        mPool = pool
+        size = 0
+        ptsUs = 0L
+    }
+
+    /**
+     * Recycle to the pool, not pooled data is left to gc
+     */
+    fun release() {
+        val pool = mPool ?: return
+        // released twice is ignored
+        mPool = null
+        pool.recycle(this)
+    }
+
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
         if (javaClass != other?.javaClass) return false
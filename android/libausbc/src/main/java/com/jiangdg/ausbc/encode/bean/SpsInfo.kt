@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.bean
+
+import androidx.annotation.Keep
+
+/**
+ * H.264 sequence parameter set
+ *  reused by [com.jiangdg.ausbc.encode.parser.NalUnitParser], call [copy] if need keeping it
+ *
+ * @property profileIdc profile, such as 66(baseline), 77(main), 100(high)
+ * @property constraintFlags constraint_set0~5 flags
+ * @property levelIdc level * 10, such as 31 means level 3.1
+ * @property spsId seq_parameter_set_id
+ * @property chromaFormatIdc 0: monochrome, 1: 4:2:0, 2: 4:2:2, 3: 4:4:4
+ * @property maxNumRefFrames max_num_ref_frames
+ * @property isFrameMbsOnly progressive or not
+ * @property width picture width after cropping
+ * @property height picture height after cropping
+ */
+@Keep
+class SpsInfo {
+    var profileIdc: Int = 0
+    var constraintFlags: Int = 0
+    var levelIdc: Int = 0
+    var spsId: Int = 0
+    var chromaFormatIdc: Int = 1
+    var maxNumRefFrames: Int = 0
+    var isFrameMbsOnly: Boolean = true
+    var width: Int = 0
+    var height: Int = 0
+
+    /**
+     * Copy from other sps
+     *
+     * @param other sps source
+     */
+    fun set(other: SpsInfo) {
+        profileIdc = other.profileIdc
+        constraintFlags = other.constraintFlags
+        levelIdc = other.levelIdc
+        spsId = other.spsId
+        chromaFormatIdc = other.chromaFormatIdc
+        maxNumRefFrames = other.maxNumRefFrames
+        isFrameMbsOnly = other.isFrameMbsOnly
+        width = other.width
+        height = other.height
+    }
+
+    fun copy(): SpsInfo = SpsInfo().also {
+        it.set(this)
+    }
+
+    override fun toString(): String {
+        return "SpsInfo(profile=$profileIdc, level=$levelIdc, size=${width}x$height, refFrames=$maxNumRefFrames)"
+    }
+}
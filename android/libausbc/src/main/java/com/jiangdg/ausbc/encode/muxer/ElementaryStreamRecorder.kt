@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.muxer
+
+import android.media.MediaFormat
+import android.os.Environment
+import android.os.Handler
+import android.os.Looper
+import com.jiangdg.ausbc.callback.ICaptureCallBack
+import com.jiangdg.ausbc.encode.bean.EncodedPacket
+import com.jiangdg.ausbc.utils.BufferedChannelWriter
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+import java.lang.Exception
+import java.nio.ByteBuffer
+import java.text.SimpleDateFormat
+import java.util.*
+
+/**
+ * Elementary stream recorder
+ *
+ * Save Annex-B H.264 to path.h264 and ADTS AAC to path.aac without muxing,
+ *  and an index file path.idx for offline analysis.
+ *
+ * Index file layout, big endian:
+ *  header: magic "ESIX"(4) + version(4)
+ *  record: track(1, 0 video 1 aac) + flags(1, bit0 key, bit1 config) + reserved(2)
+ *          + size(4) + ptsUs(8) + offset in track file(8)
+ *
+ * @property path saving path without extension, default is DCIM/Camera
+ * @property isVideoOnly no aac file
+ *
+ * @param callBack capture status, see [ICaptureCallBack]
+ */
+class ElementaryStreamRecorder(
+    callBack: ICaptureCallBack,
+    private var path: String? = null,
+    private val isVideoOnly: Boolean = false
+) {
+    private var mCaptureCallBack: ICaptureCallBack? = callBack
+    private var mMainHandler: Handler = Handler(Looper.getMainLooper())
+    private var mVideoWriter: BufferedChannelWriter? = null
+    private var mAudioWriter: BufferedChannelWriter? = null
+    private var mIndexWriter: BufferedChannelWriter? = null
+    private var mVideoCsd: ByteBuffer? = null
+    private var isVideoConfigWritten = false
+    private var hasKeyFrame = false
+    private var mAacObjectType = -1
+    private var mAacFreqIndex = -1
+    private var mAacChannelConfig = -1
+    private val mAdtsHeader = ByteArray(ADTS_HEADER_SIZE)
+    private val mIndexRecord = ByteArray(INDEX_RECORD_SIZE)
+    @Volatile
+    private var isReleased = false
+    private val mDateFormat by lazy {
+        SimpleDateFormat("yyyyMMddHHmmssSSS", Locale.getDefault())
+    }
+    private val mCameraDir by lazy {
+        "${Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM)}/Camera"
+    }
+
+    init {
+        try {
+            if (path.isNullOrEmpty()) {
+                val date = mDateFormat.format(System.currentTimeMillis())
+                path = "$mCameraDir/ES_JJCamera_$date"
+            }
+            mVideoWriter = BufferedChannelWriter("$path.h264")
+            if (! isVideoOnly) {
+                mAudioWriter = BufferedChannelWriter("$path.aac", AUDIO_BUFFER_SIZE)
+            }
+            mIndexWriter = BufferedChannelWriter("$path.idx", INDEX_BUFFER_SIZE).apply {
+                write(INDEX_MAGIC)
+                putInt(mIndexRecord, 0, INDEX_VERSION)
+                write(mIndexRecord, 0, 4)
+            }
+            mMainHandler.post {
+                mCaptureCallBack?.onBegin()
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "init stream recorder failed, err = ${e.localizedMessage}", e)
+            closeWriters()
+            mMainHandler.post {
+                mCaptureCallBack?.onError(e.localizedMessage)
+            }
+        }
+    }
+
+    /**
+     * Set output format, for recording midway when encoding,
+     *  sps & pps or aac config will be taken from it
+     *
+     * @param mediaFormat encoder output format, see [MediaFormat]
+     * @param isVideo h264 or aac
+     */
+    @Synchronized
+    fun setOutputFormat(mediaFormat: MediaFormat?, isVideo: Boolean) {
+        mediaFormat ?: return
+        if (isVideo) {
+            val sps = mediaFormat.getByteBuffer("csd-0") ?: return
+            val pps = mediaFormat.getByteBuffer("csd-1")
+            ByteBuffer.allocate(sps.remaining() + (pps?.remaining() ?: 0)).apply {
+                put(sps.duplicate())
+                pps?.let {
+                    put(it.duplicate())
+                }
+                flip()
+            }.also {
+                mVideoCsd = it
+            }
+            return
+        }
+        mediaFormat.getByteBuffer("csd-0")?.let { csd ->
+            parseAudioSpecificConfig(csd, csd.position(), csd.remaining())
+        }
+    }
+
+    /**
+     * Pump encoded stream, called on encoder threads
+     *  only copying to the write buffer, so video and audio share one lock
+     *
+     * @param packet encoded h264 or aac, see [EncodedPacket]
+     */
+    @Synchronized
+    fun pumpStream(packet: EncodedPacket) {
+        if (isReleased) {
+            return
+        }
+        try {
+            if (packet.isVideo) {
+                writeVideo(packet)
+            } else {
+                writeAudio(packet)
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "pump stream failed, err = ${e.localizedMessage}", e)
+            closeWriters()
+            mMainHandler.post {
+                mCaptureCallBack?.onError(e.localizedMessage)
+            }
+        }
+    }
+
+    /**
+     * Flush and close all files
+     */
+    @Synchronized
+    fun release() {
+        if (isReleased) {
+            return
+        }
+        if (closeWriters()) {
+            mMainHandler.post {
+                mCaptureCallBack?.onComplete(path)
+            }
+        } else {
+            mMainHandler.post {
+                mCaptureCallBack?.onError("close stream files failed")
+            }
+        }
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "stream recorder released, path = $path")
+        }
+    }
+
+    private fun closeWriters(): Boolean {
+        isReleased = true
+        var isSuccess = true
+        arrayOf(mVideoWriter, mAudioWriter, mIndexWriter).forEach { writer ->
+            try {
+                writer?.close()
+            } catch (e: Exception) {
+                Logger.e(TAG, "close stream file failed, err = ${e.localizedMessage}", e)
+                isSuccess = false
+            }
+        }
+        mVideoWriter = null
+        mAudioWriter = null
+        mIndexWriter = null
+        return isSuccess
+    }
+
+    private fun writeVideo(packet: EncodedPacket) {
+        val buffer = packet.buffer ?: return
+        if (packet.isConfig()) {
+            isVideoConfigWritten = true
+            writeTrack(TRACK_VIDEO, buffer, packet.offset, packet.size, packet.ptsUs, FLAG_CONFIG)
+            return
+        }
+        // start with a key frame, so the file can be decoded from the head
+        if (! hasKeyFrame && ! packet.isKeyFrame()) {
+            return
+        }
+        if (! isVideoConfigWritten) {
+            val csd = mVideoCsd ?: return
+            isVideoConfigWritten = true
+            writeTrack(TRACK_VIDEO, csd, 0, csd.limit(), packet.ptsUs, FLAG_CONFIG)
+        }
+        hasKeyFrame = true
+        val flags = if (packet.isKeyFrame()) FLAG_KEY else 0
+        writeTrack(TRACK_VIDEO, buffer, packet.offset, packet.size, packet.ptsUs, flags)
+    }
+
+    private fun writeAudio(packet: EncodedPacket) {
+        val buffer = packet.buffer ?: return
+        val writer = mAudioWriter ?: return
+        if (packet.isConfig()) {
+            parseAudioSpecificConfig(buffer, packet.offset, packet.size)
+            return
+        }
+        if (mAacFreqIndex < 0 || packet.size <= 0) {
+            return
+        }
+        val offset = writer.writtenBytes
+        fillAdtsHeader(packet.size + ADTS_HEADER_SIZE)
+        writer.write(mAdtsHeader)
+        writer.write(buffer, packet.offset, packet.size)
+        writeIndex(TRACK_AUDIO, FLAG_KEY, packet.size + ADTS_HEADER_SIZE, packet.ptsUs, offset)
+    }
+
+    private fun writeTrack(track: Int, buffer: ByteBuffer, offset: Int, size: Int, ptsUs: Long, flags: Int) {
+        val writer = mVideoWriter ?: return
+        val fileOffset = writer.writtenBytes
+        writer.write(buffer, offset, size)
+        writeIndex(track, flags, size, ptsUs, fileOffset)
+    }
+
+    private fun writeIndex(track: Int, flags: Int, size: Int, ptsUs: Long, offset: Long) {
+        val writer = mIndexWriter ?: return
+        mIndexRecord[0] = track.toByte()
+        mIndexRecord[1] = flags.toByte()
+        mIndexRecord[2] = 0
+        mIndexRecord[3] = 0
+        putInt(mIndexRecord, 4, size)
+        putLong(mIndexRecord, 8, ptsUs)
+        putLong(mIndexRecord, 16, offset)
+        writer.write(mIndexRecord)
+    }
+
+    /**
+     * AudioSpecificConfig, see ISO/IEC 14496-3 1.6.2.1
+     *  objectType(5) + frequencyIndex(4) + channelConfiguration(4)
+     */
+    private fun parseAudioSpecificConfig(buffer: ByteBuffer, offset: Int, size: Int) {
+        if (size < 2) {
+            return
+        }
+        val b0 = buffer.get(offset).toInt() and 0xFF
+        val b1 = buffer.get(offset + 1).toInt() and 0xFF
+        val freqIndex = ((b0 and 0x07) shl 1) or (b1 shr 7)
+        if (freqIndex == 0x0F) {
+            Logger.w(TAG, "explicit aac sample rate not support in adts")
+            return
+        }
+        mAacObjectType = b0 shr 3
+        mAacFreqIndex = freqIndex
+        mAacChannelConfig = (b1 shr 3) and 0x0F
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "aac config, object = $mAacObjectType, freq = $mAacFreqIndex, channel = $mAacChannelConfig")
+        }
+    }
+
+    /**
+     * ADTS fixed and variable header without crc, see ISO/IEC 13818-7 6.2
+     */
+    private fun fillAdtsHeader(frameLength: Int) {
+        val profile = (mAacObjectType - 1).coerceIn(0, 3)
+        mAdtsHeader[0] = 0xFF.toByte()
+        mAdtsHeader[1] = 0xF1.toByte()
+        mAdtsHeader[2] = ((profile shl 6) or (mAacFreqIndex shl 2) or (mAacChannelConfig shr 2)).toByte()
+        mAdtsHeader[3] = (((mAacChannelConfig and 0x03) shl 6) or (frameLength shr 11)).toByte()
+        mAdtsHeader[4] = ((frameLength shr 3) and 0xFF).toByte()
+        mAdtsHeader[5] = (((frameLength and 0x07) shl 5) or 0x1F).toByte()
+        mAdtsHeader[6] = 0xFC.toByte()
+    }
+
+    private fun putInt(data: ByteArray, offset: Int, value: Int) {
+        data[offset] = (value shr 24).toByte()
+        data[offset + 1] = (value shr 16).toByte()
+        data[offset + 2] = (value shr 8).toByte()
+        data[offset + 3] = value.toByte()
+    }
+
+    private fun putLong(data: ByteArray, offset: Int, value: Long) {
+        putInt(data, offset, (value shr 32).toInt())
+        putInt(data, offset + 4, value.toInt())
+    }
+
+    companion object {
+        private const val TAG = "ElementaryStreamRecorder"
+        private const val ADTS_HEADER_SIZE = 7
+        private const val INDEX_RECORD_SIZE = 24
+        private const val INDEX_VERSION = 1
+        private const val AUDIO_BUFFER_SIZE = 64 * 1024
+        private const val INDEX_BUFFER_SIZE = 32 * 1024
+        private val INDEX_MAGIC = byteArrayOf('E'.code.toByte(), 'S'.code.toByte(), 'I'.code.toByte(), 'X'.code.toByte())
+
+        const val TRACK_VIDEO = 0
+        const val TRACK_AUDIO = 1
+        const val FLAG_KEY = 0x01
+        const val FLAG_CONFIG = 0x02
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.muxer
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.media.Image
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.media.MediaMetadataRetriever
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.MediaUtils
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.RandomAccessFile
+import java.lang.Exception
+
+/**
+ * Keyframe index of a recording session, written by [Mp4Muxer]
+ *
+ * Sidecar file layout, big endian:
+ *  header: magic "KFIX"(4) + version(4)
+ *  record: session ptsUs(8) + segment ptsUs(8) + file offset(8) + segment index(4) + sample size(4)
+ *
+ * Records are sorted by session pts, so a keyframe is found by binary search
+ *  and its sample is read at the file offset without scanning the segment.
+ *
+ * @property basePath recording path without extension, segment n is basePath_n.mp4
+ */
+class KeyframeIndex private constructor(
+    val basePath: String,
+    private val mSessionPtsUs: LongArray,
+    private val mSegmentPtsUs: LongArray,
+    private val mFileOffsets: LongArray,
+    private val mSegmentIndexes: IntArray,
+    private val mSampleSizes: IntArray
+) {
+
+    /**
+     * Count of keyframes
+     */
+    val size: Int
+        get() = mSessionPtsUs.size
+
+    /**
+     * Find the nearest keyframe not later than ptsUs
+     *
+     * @param sessionPtsUs time from the beginning of the session
+     * @return keyframe position, -1 means empty index
+     */
+    fun findKeyframe(sessionPtsUs: Long): Int {
+        if (size == 0) {
+            return -1
+        }
+        var low = 0
+        var high = size - 1
+        while (low < high) {
+            val mid = (low + high + 1) ushr 1
+            if (mSessionPtsUs[mid] <= sessionPtsUs) {
+                low = mid
+            } else {
+                high = mid - 1
+            }
+        }
+        return low
+    }
+
+    fun getSessionPtsUs(position: Int) = mSessionPtsUs[position]
+
+    /**
+     * @return presentation time in the segment file, used to seek it
+     */
+    fun getSegmentPtsUs(position: Int) = mSegmentPtsUs[position]
+
+    /**
+     * @return byte offset of the keyframe sample in the segment file
+     */
+    fun getFileOffset(position: Int) = mFileOffsets[position]
+
+    fun getSegmentIndex(position: Int) = mSegmentIndexes[position]
+
+    fun getSampleSize(position: Int) = mSampleSizes[position]
+
+    /**
+     * Get segment file path
+     *
+     * @param segmentIndex see [getSegmentIndex]
+     * @return name.mp4 or name_n.mp4
+     */
+    fun getSegmentPath(segmentIndex: Int): String {
+        return if (segmentIndex == 0) "$basePath.mp4" else "${basePath}_$segmentIndex.mp4"
+    }
+
+    /**
+     * Extract the thumbnail of the nearest keyframe
+     *
+     * The keyframe sample is read at its file offset and decoded alone, the
+     *  segment is only opened for its track format. Falls back to a sync frame
+     *  seek by pts if the sample can not be decoded.
+     *
+     * @param sessionPtsUs time from the beginning of the session
+     * @param width thumbnail max width, 0 means original size
+     * @param height thumbnail max height, 0 means original size
+     * @return thumbnail, null means failed
+     */
+    fun extractThumbnail(sessionPtsUs: Long, width: Int = 0, height: Int = 0): Bitmap? {
+        val position = findKeyframe(sessionPtsUs)
+        if (position < 0) {
+            return null
+        }
+        val segmentPath = getSegmentPath(getSegmentIndex(position))
+        val bitmap = decodeKeyframe(segmentPath, getFileOffset(position), getSampleSize(position))
+            ?: extractSyncFrame(segmentPath, getSegmentPtsUs(position))
+            ?: return null
+        if (width <= 0 || height <= 0 || (bitmap.width <= width && bitmap.height <= height)) {
+            return bitmap
+        }
+        val scale = minOf(width.toFloat() / bitmap.width, height.toFloat() / bitmap.height)
+        return Bitmap.createScaledBitmap(bitmap, (bitmap.width * scale).toInt(), (bitmap.height * scale).toInt(), true).also {
+            bitmap.recycle()
+        }
+    }
+
+    private fun decodeKeyframe(segmentPath: String, fileOffset: Long, sampleSize: Int): Bitmap? {
+        if (sampleSize <= 0) {
+            return null
+        }
+        val format = getVideoFormat(segmentPath) ?: return null
+        val mime = format.getString(MediaFormat.KEY_MIME) ?: return null
+        val sample = ByteArray(sampleSize)
+        var codec: MediaCodec? = null
+        return try {
+            RandomAccessFile(segmentPath, "r").use { file ->
+                file.seek(fileOffset)
+                file.readFully(sample)
+            }
+            if (! toAnnexB(sample)) {
+                Logger.w(TAG, "keyframe at $fileOffset of $segmentPath is not a sample")
+                return null
+            }
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible)
+            codec = MediaCodec.createDecoderByType(mime).apply {
+                configure(format, null, null, 0)
+                start()
+            }
+            decodeSample(codec, sample)
+        } catch (e: Exception) {
+            Logger.e(TAG, "decode keyframe failed, err = ${e.localizedMessage}", e)
+            null
+        } finally {
+            try {
+                codec?.stop()
+                codec?.release()
+            } catch (e: Exception) {
+                Logger.e(TAG, "release decoder failed, err = ${e.localizedMessage}", e)
+            }
+        }
+    }
+
+    /**
+     * Queue the keyframe and end of stream, wait for the first picture
+     */
+    private fun decodeSample(codec: MediaCodec, sample: ByteArray): Bitmap? {
+        val info = MediaCodec.BufferInfo()
+        var queued = 0
+        val endMillis = System.currentTimeMillis() + DECODE_TIMES_OUT_MS
+        while (System.currentTimeMillis() < endMillis) {
+            if (queued < 2) {
+                val inIndex = codec.dequeueInputBuffer(CODEC_TIMES_OUT_US)
+                if (inIndex >= 0) {
+                    if (queued == 0) {
+                        codec.getInputBuffer(inIndex)?.apply {
+                            clear()
+                            put(sample)
+                        }
+                        codec.queueInputBuffer(inIndex, 0, sample.size, 0L, MediaCodec.BUFFER_FLAG_KEY_FRAME)
+                    } else {
+                        codec.queueInputBuffer(inIndex, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                    }
+                    queued++
+                }
+            }
+            val outIndex = codec.dequeueOutputBuffer(info, CODEC_TIMES_OUT_US)
+            if (outIndex < 0) {
+                continue
+            }
+            val bitmap = if (info.size > 0) {
+                codec.getOutputImage(outIndex)?.use { image ->
+                    toBitmap(image)
+                }
+            } else {
+                null
+            }
+            codec.releaseOutputBuffer(outIndex, false)
+            if (bitmap != null || info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                return bitmap
+            }
+        }
+        Logger.w(TAG, "decode keyframe times out")
+        return null
+    }
+
+    private fun toBitmap(image: Image): Bitmap? {
+        val crop = image.cropRect
+        val width = crop.width() and 1.inv()
+        val height = crop.height() and 1.inv()
+        val nv21 = ByteArray(width * height * 3 / 2)
+        val yPlane = image.planes[0]
+        for (row in 0 until height) {
+            val rowOffset = (crop.top + row) * yPlane.rowStride + crop.left * yPlane.pixelStride
+            for (col in 0 until width) {
+                nv21[row * width + col] = yPlane.buffer.get(rowOffset + col * yPlane.pixelStride)
+            }
+        }
+        val uPlane = image.planes[1]
+        val vPlane = image.planes[2]
+        var index = width * height
+        for (row in 0 until height / 2) {
+            for (col in 0 until width / 2) {
+                val uvRow = crop.top / 2 + row
+                val uvCol = crop.left / 2 + col
+                nv21[index++] = vPlane.buffer.get(uvRow * vPlane.rowStride + uvCol * vPlane.pixelStride)
+                nv21[index++] = uPlane.buffer.get(uvRow * uPlane.rowStride + uvCol * uPlane.pixelStride)
+            }
+        }
+        val jpeg = MediaUtils.transformYuv2Jpeg(nv21, width, height) ?: return null
+        return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.size)
+    }
+
+    private fun getVideoFormat(segmentPath: String): MediaFormat? {
+        val extractor = MediaExtractor()
+        return try {
+            extractor.setDataSource(segmentPath)
+            (0 until extractor.trackCount).map {
+                extractor.getTrackFormat(it)
+            }.firstOrNull {
+                it.getString(MediaFormat.KEY_MIME)?.startsWith("video/") == true
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "read video format failed, err = ${e.localizedMessage}", e)
+            null
+        } finally {
+            extractor.release()
+        }
+    }
+
+    private fun extractSyncFrame(segmentPath: String, segmentPtsUs: Long): Bitmap? {
+        val retriever = MediaMetadataRetriever()
+        return try {
+            retriever.setDataSource(segmentPath)
+            retriever.getFrameAtTime(segmentPtsUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC)
+        } catch (e: Exception) {
+            Logger.e(TAG, "extract sync frame failed, err = ${e.localizedMessage}", e)
+            null
+        } finally {
+            try {
+                retriever.release()
+            } catch (e: Exception) {
+                Logger.e(TAG, "release retriever failed, err = ${e.localizedMessage}", e)
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "KeyframeIndex"
+        private const val HEADER_SIZE = 8
+        private const val NAL_LENGTH_SIZE = 4
+        private const val CODEC_TIMES_OUT_US = 10_000L
+        private const val DECODE_TIMES_OUT_MS = 1000L
+
+        internal const val RECORD_SIZE = 32
+        internal const val VERSION = 1
+        internal val MAGIC = byteArrayOf('K'.code.toByte(), 'F'.code.toByte(), 'I'.code.toByte(), 'X'.code.toByte())
+
+        const val EXTENSION = "kfi"
+
+        /**
+         * Get sidecar path of a recording
+         *
+         * @param basePath recording path without extension
+         */
+        fun getIndexPath(basePath: String) = "$basePath.$EXTENSION"
+
+        /**
+         * Replace the 4 bytes nal lengths of a mp4 sample with start codes, in place
+         *
+         * @param sample h.264 or h.265 sample written by MediaMuxer
+         * @return false means the lengths not match the sample size
+         */
+        internal fun toAnnexB(sample: ByteArray): Boolean {
+            var offset = 0
+            while (offset + NAL_LENGTH_SIZE <= sample.size) {
+                val length = ((sample[offset].toInt() and 0xFF) shl 24) or
+                        ((sample[offset + 1].toInt() and 0xFF) shl 16) or
+                        ((sample[offset + 2].toInt() and 0xFF) shl 8) or
+                        (sample[offset + 3].toInt() and 0xFF)
+                if (length <= 0 || length > sample.size - offset - NAL_LENGTH_SIZE) {
+                    return false
+                }
+                sample[offset] = 0
+                sample[offset + 1] = 0
+                sample[offset + 2] = 0
+                sample[offset + 3] = 1
+                offset += NAL_LENGTH_SIZE + length
+            }
+            return offset == sample.size && offset > 0
+        }
+
+        /**
+         * Load keyframe index
+         *
+         * @param indexPath sidecar path, see [getIndexPath]
+         * @return index, null means not exist or invalid
+         */
+        fun load(indexPath: String): KeyframeIndex? {
+            val file = File(indexPath)
+            if (! file.exists() || file.length() < HEADER_SIZE) {
+                return null
+            }
+            return try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    val magic = ByteArray(MAGIC.size)
+                    input.readFully(magic)
+                    if (! magic.contentEquals(MAGIC) || input.readInt() != VERSION) {
+                        Logger.w(TAG, "invalid keyframe index $indexPath")
+                        return null
+                    }
+                    // tail may be incomplete if the app crashed
+                    val count = ((file.length() - HEADER_SIZE) / RECORD_SIZE).toInt()
+                    val sessionPts = LongArray(count)
+                    val segmentPts = LongArray(count)
+                    val offsets = LongArray(count)
+                    val segments = IntArray(count)
+                    val sizes = IntArray(count)
+                    for (i in 0 until count) {
+                        sessionPts[i] = input.readLong()
+                        segmentPts[i] = input.readLong()
+                        offsets[i] = input.readLong()
+                        segments[i] = input.readInt()
+                        sizes[i] = input.readInt()
+                    }
+                    KeyframeIndex(indexPath.removeSuffix(".$EXTENSION"), sessionPts, segmentPts, offsets, segments, sizes)
+                }
+            } catch (e: Exception) {
+                Logger.e(TAG, "load keyframe index failed, err = ${e.localizedMessage}", e)
+                null
+            }
+        }
+    }
+}
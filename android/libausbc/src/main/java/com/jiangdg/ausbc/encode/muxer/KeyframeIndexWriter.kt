@@ -0,0 +1,341 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.muxer
+
+import com.jiangdg.ausbc.utils.BufferedChannelWriter
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+import java.io.RandomAccessFile
+import java.lang.Exception
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keyframe index sidecar writer of [Mp4Muxer]
+ *
+ * MediaMuxer not reports where the samples are written, so keyframe pts are
+ *  collected when muxing, and their file offsets are resolved from the sample
+ *  table(stss, stsz, stsc, stco) when the segment finished. The sample table is
+ *  parsed on an index thread, not on the muxer thread.
+ *  See [KeyframeIndex] for the file layout.
+ *
+ * @param path sidecar file path
+ */
+class KeyframeIndexWriter(path: String) {
+    private var mWriter: BufferedChannelWriter? = BufferedChannelWriter(path, BUFFER_SIZE)
+    private val mPendingPts = ArrayList<Long>()
+    // only touched on the index thread after init
+    private val mRecord = ByteArray(KeyframeIndex.RECORD_SIZE)
+    private var mSegmentBaseUs = 0L
+    private val mIndexExecutor: ExecutorService = Executors.newSingleThreadExecutor()
+    private var isClosed = false
+
+    init {
+        mWriter?.apply {
+            write(KeyframeIndex.MAGIC)
+            putInt(mRecord, 0, KeyframeIndex.VERSION)
+            write(mRecord, 0, 4)
+        }
+    }
+
+    /**
+     * Start a new segment
+     *
+     * @param segmentBaseUs session time of the segment's first video sample
+     */
+    fun startSegment(segmentBaseUs: Long) {
+        mPendingPts.clear()
+        mSegmentBaseUs = segmentBaseUs
+    }
+
+    /**
+     * Add a keyframe written to the muxer
+     *
+     * @param segmentPtsUs presentation time passed to the muxer
+     */
+    fun addKeyframe(segmentPtsUs: Long) {
+        mPendingPts.add(segmentPtsUs)
+    }
+
+    /**
+     * Resolve file offsets of the finished segment and append them to the sidecar,
+     *  returns at once, the segment is indexed on the index thread
+     *
+     * @param segmentPath finished mp4 file, muxer should be stopped
+     * @param segmentIndex 0 is name.mp4, n is name_n.mp4
+     */
+    fun finishSegment(segmentPath: String?, segmentIndex: Int) {
+        if (isClosed || segmentPath.isNullOrEmpty() || mPendingPts.isEmpty()) {
+            return
+        }
+        val pendingPts = mPendingPts.toLongArray()
+        val segmentBaseUs = mSegmentBaseUs
+        mPendingPts.clear()
+        mIndexExecutor.submit {
+            indexSegment(segmentPath, segmentIndex, pendingPts, segmentBaseUs)
+        }
+    }
+
+    /**
+     * Flush and close the sidecar, waits for the pending segments to be indexed
+     */
+    fun close() {
+        if (isClosed) {
+            return
+        }
+        isClosed = true
+        mIndexExecutor.submit {
+            try {
+                mWriter?.close()
+            } catch (e: Exception) {
+                Logger.e(TAG, "close keyframe index failed, err = ${e.localizedMessage}", e)
+            } finally {
+                mWriter = null
+            }
+        }
+        mIndexExecutor.shutdown()
+        try {
+            if (! mIndexExecutor.awaitTermination(CLOSE_TIMES_OUT_MS, TimeUnit.MILLISECONDS)) {
+                Logger.w(TAG, "close keyframe index times out")
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    private fun indexSegment(segmentPath: String, segmentIndex: Int, pendingPts: LongArray, segmentBaseUs: Long) {
+        val writer = mWriter ?: return
+        try {
+            val syncSamples = SyncSampleReader(segmentPath).read()
+            if (syncSamples == null) {
+                Logger.w(TAG, "no sync sample table in $segmentPath")
+                return
+            }
+            val count = minOf(syncSamples.size / 2, pendingPts.size)
+            if (count != pendingPts.size) {
+                Logger.w(TAG, "keyframe count not match, muxed = ${pendingPts.size}, stss = ${syncSamples.size / 2}")
+            }
+            for (i in 0 until count) {
+                val ptsUs = pendingPts[i]
+                putLong(mRecord, 0, segmentBaseUs + ptsUs)
+                putLong(mRecord, 8, ptsUs)
+                putLong(mRecord, 16, syncSamples[i * 2])
+                putInt(mRecord, 24, segmentIndex)
+                putInt(mRecord, 28, syncSamples[i * 2 + 1].toInt())
+                writer.write(mRecord)
+            }
+            if (Utils.debugCamera) {
+                Logger.i(TAG, "index $count keyframes of $segmentPath")
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "index segment failed, err = ${e.localizedMessage}", e)
+        }
+    }
+
+    private fun putInt(data: ByteArray, offset: Int, value: Int) {
+        data[offset] = (value shr 24).toByte()
+        data[offset + 1] = (value shr 16).toByte()
+        data[offset + 2] = (value shr 8).toByte()
+        data[offset + 3] = value.toByte()
+    }
+
+    private fun putLong(data: ByteArray, offset: Int, value: Long) {
+        putInt(data, offset, (value shr 32).toInt())
+        putInt(data, offset + 4, value.toInt())
+    }
+
+    /**
+     * Read offset and size of the video sync samples from the mp4 sample table
+     */
+    private class SyncSampleReader(private val path: String) {
+        private val mHeader = ByteArray(16)
+        private var mStss: ByteArray? = null
+        private var mStsz: ByteArray? = null
+        private var mStsc: ByteArray? = null
+        private var mStco: ByteArray? = null
+        private var isCo64 = false
+
+        /**
+         * @return offset & size pairs, null means not found
+         */
+        fun read(): LongArray? {
+            RandomAccessFile(path, "r").use { file ->
+                val moov = findBox(file, 0, file.length(), BOX_MOOV) ?: return null
+                var isFound = false
+                forEachBox(file, moov[0], moov[1]) { type, start, end ->
+                    if (type == BOX_TRAK && readVideoSampleTable(file, start, end)) {
+                        isFound = true
+                    }
+                    ! isFound
+                }
+                if (! isFound) {
+                    return null
+                }
+            }
+            return resolveSyncSamples()
+        }
+
+        private fun readVideoSampleTable(file: RandomAccessFile, trakStart: Long, trakEnd: Long): Boolean {
+            val mdia = findBox(file, trakStart, trakEnd, BOX_MDIA) ?: return false
+            val hdlr = findBox(file, mdia[0], mdia[1], BOX_HDLR) ?: return false
+            // version & flags(4) + pre_defined(4) + handler_type(4)
+            file.seek(hdlr[0] + 8)
+            if (file.readInt() != HANDLER_VIDE) {
+                return false
+            }
+            val minf = findBox(file, mdia[0], mdia[1], BOX_MINF) ?: return false
+            val stbl = findBox(file, minf[0], minf[1], BOX_STBL) ?: return false
+            forEachBox(file, stbl[0], stbl[1]) { type, start, end ->
+                when (type) {
+                    BOX_STSS -> mStss = readPayload(file, start, end)
+                    BOX_STSZ -> mStsz = readPayload(file, start, end)
+                    BOX_STSC -> mStsc = readPayload(file, start, end)
+                    BOX_STCO -> mStco = readPayload(file, start, end)
+                    BOX_CO64 -> {
+                        mStco = readPayload(file, start, end)
+                        isCo64 = true
+                    }
+                }
+                true
+            }
+            return mStsz != null && mStsc != null && mStco != null
+        }
+
+        /**
+         * Walk chunks and samples once, see ISO/IEC 14496-12 8.7
+         */
+        private fun resolveSyncSamples(): LongArray? {
+            val stsz = mStsz ?: return null
+            val stsc = mStsc ?: return null
+            val stco = mStco ?: return null
+            val stss = mStss
+            val uniformSize = getInt(stsz, 4)
+            val sampleCount = getInt(stsz, 8)
+            val syncCount = if (stss == null) sampleCount else getInt(stss, 4)
+            val chunkCount = getInt(stco, 4)
+            val stscCount = getInt(stsc, 4)
+            val result = LongArray(syncCount * 2)
+            var syncIndex = 0
+            var nextSync = if (stss == null) 1 else getInt(stss, 8)
+            var sample = 1
+            var stscIndex = 0
+            for (chunk in 1..chunkCount) {
+                while (stscIndex + 1 < stscCount && getInt(stsc, 8 + (stscIndex + 1) * 12) <= chunk) {
+                    stscIndex++
+                }
+                val samplesPerChunk = getInt(stsc, 8 + stscIndex * 12 + 4)
+                var offset = if (isCo64) getLong(stco, 8 + (chunk - 1) * 8) else getInt(stco, 8 + (chunk - 1) * 4).toLong() and 0xFFFFFFFFL
+                for (i in 0 until samplesPerChunk) {
+                    if (sample > sampleCount || syncIndex >= syncCount) {
+                        return result
+                    }
+                    val size = if (uniformSize != 0) uniformSize else getInt(stsz, 12 + (sample - 1) * 4)
+                    if (sample == nextSync) {
+                        result[syncIndex * 2] = offset
+                        result[syncIndex * 2 + 1] = size.toLong()
+                        syncIndex++
+                        nextSync = when {
+                            syncIndex >= syncCount -> Int.MAX_VALUE
+                            stss == null -> sample + 1
+                            else -> getInt(stss, 8 + syncIndex * 4)
+                        }
+                    }
+                    offset += size
+                    sample++
+                }
+            }
+            return if (syncIndex == syncCount) result else result.copyOf(syncIndex * 2)
+        }
+
+        private fun findBox(file: RandomAccessFile, start: Long, end: Long, boxType: Int): LongArray? {
+            var result: LongArray? = null
+            forEachBox(file, start, end) { type, payloadStart, boxEnd ->
+                if (type == boxType) {
+                    result = longArrayOf(payloadStart, boxEnd)
+                }
+                result == null
+            }
+            return result
+        }
+
+        private inline fun forEachBox(
+            file: RandomAccessFile,
+            start: Long,
+            end: Long,
+            action: (type: Int, payloadStart: Long, boxEnd: Long) -> Boolean
+        ) {
+            var offset = start
+            while (offset + 8 <= end) {
+                file.seek(offset)
+                file.readFully(mHeader, 0, 8)
+                var size = getInt(mHeader, 0).toLong() and 0xFFFFFFFFL
+                val type = getInt(mHeader, 4)
+                var headerSize = 8
+                if (size == 1L) {
+                    size = file.readLong()
+                    headerSize = 16
+                } else if (size == 0L) {
+                    size = end - offset
+                }
+                if (size < headerSize || offset + size > end) {
+                    return
+                }
+                if (! action(type, offset + headerSize, offset + size)) {
+                    return
+                }
+                offset += size
+            }
+        }
+
+        private fun readPayload(file: RandomAccessFile, start: Long, end: Long): ByteArray {
+            return ByteArray((end - start).toInt()).also {
+                file.seek(start)
+                file.readFully(it)
+            }
+        }
+
+        private fun getInt(data: ByteArray, offset: Int): Int {
+            return ((data[offset].toInt() and 0xFF) shl 24) or
+                    ((data[offset + 1].toInt() and 0xFF) shl 16) or
+                    ((data[offset + 2].toInt() and 0xFF) shl 8) or
+                    (data[offset + 3].toInt() and 0xFF)
+        }
+
+        private fun getLong(data: ByteArray, offset: Int): Long {
+            return (getInt(data, offset).toLong() shl 32) or (getInt(data, offset + 4).toLong() and 0xFFFFFFFFL)
+        }
+    }
+
+    companion object {
+        private const val TAG = "KeyframeIndexWriter"
+        private const val BUFFER_SIZE = 16 * 1024
+        private const val CLOSE_TIMES_OUT_MS = 3000L
+
+        private const val BOX_MOOV = 0x6D6F6F76
+        private const val BOX_TRAK = 0x7472616B
+        private const val BOX_MDIA = 0x6D646961
+        private const val BOX_HDLR = 0x68646C72
+        private const val BOX_MINF = 0x6D696E66
+        private const val BOX_STBL = 0x7374626C
+        private const val BOX_STSS = 0x73747373
+        private const val BOX_STSZ = 0x7374737A
+        private const val BOX_STSC = 0x73747363
+        private const val BOX_STCO = 0x7374636F
+        private const val BOX_CO64 = 0x636F3634
+        private const val HANDLER_VIDE = 0x76696465
+    }
+}
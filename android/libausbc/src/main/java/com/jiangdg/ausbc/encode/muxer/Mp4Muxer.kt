@@ -21,18 +21,21 @@ import android.media.MediaCodec
 import android.media.MediaFormat
 import android.media.MediaMetadataRetriever
 import android.media.MediaMuxer
+import android.os.Build
 import android.os.Environment
 import android.os.Handler
 import android.os.Looper
 import android.provider.MediaStore
 import android.text.format.DateUtils
 import com.jiangdg.ausbc.callback.ICaptureCallBack
+import com.jiangdg.ausbc.encode.bean.EncodedPacket
 import com.jiangdg.ausbc.utils.Logger
 import com.jiangdg.ausbc.utils.MediaUtils
 import com.jiangdg.ausbc.utils.Utils
 import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
 import java.lang.Exception
-import java.nio.ByteBuffer
 import java.text.SimpleDateFormat
 import java.util.*
 
@@ -41,6 +44,9 @@ import java.util.*
  *
  * @property path mp4 saving path
  * @property durationInSec mp4 file auto divided in seconds
+ * @property storageManager check free space and preallocate file, see [RecordStorageManager]
+ *
+ * A keyframe index sidecar path.kfi is written too, see [KeyframeIndex]
  *
  * @constructor
  * @param context context
@@ -53,7 +59,8 @@ class Mp4Muxer(
     callBack: ICaptureCallBack,
     private var path: String? = null,
     private val durationInSec: Long = 0,
-    private val isVideoOnly: Boolean = false
+    private val isVideoOnly: Boolean = false,
+    private val storageManager: RecordStorageManager? = null
 ) {
     private var mContext: Context? = null
     private var mMediaMuxer: MediaMuxer? = null
@@ -69,7 +76,13 @@ class Mp4Muxer(
     private var mMainHandler: Handler = Handler(Looper.getMainLooper())
     private var mOriginalPath: String? = null
     private var mVideoPts: Long = 0L
-    private var mAudioPts: Long = 0L
+    private var mSegmentFile: RandomAccessFile? = null
+    private var mLastStorageCheckMillis: Long = 0L
+    private var mStorageLowNotified: Boolean = false
+    private var mKeyframeIndexWriter: KeyframeIndexWriter? = null
+    private var mSessionVideoPts: Long = 0L
+    // segments and index of this recording, never evicted while recording
+    private val mSessionPaths = HashSet<String>()
     private val mDateFormat by lazy {
         SimpleDateFormat("yyyyMMddHHmmssSSS", Locale.getDefault())
     }
@@ -87,7 +100,11 @@ class Mp4Muxer(
             }
             mOriginalPath = path
             path = "${path}.mp4"
-            mMediaMuxer = MediaMuxer(path!!, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+            mKeyframeIndexWriter = createKeyframeIndexWriter(mOriginalPath!!)
+            if (storageManager?.ensureSpace(excludePath = path, keepPaths = mSessionPaths) == false) {
+                throw IOException("storage space is not enough")
+            }
+            mMediaMuxer = createMediaMuxer(path!!)
         } catch (e: Exception) {
             mCaptureCallBack?.onError(e.localizedMessage)
             Logger.e(TAG, "init media muxer failed, err = ${e.localizedMessage}", e)
@@ -151,36 +168,48 @@ class Mp4Muxer(
     /**
      * write audio(aac) or video(h264) data to media muxer
      *
-     * @param outputBuffer encode output buffer, see [MediaCodec]
+     * @param packet encoded packet, see [EncodedPacket]
      * @param bufferInfo encode output buffer info, see [MediaCodec.BufferInfo]
-     * @param isVideo media data type, audio or video
      */
     @Synchronized
-    fun pumpStream(outputBuffer: ByteBuffer, bufferInfo: MediaCodec.BufferInfo, isVideo: Boolean) {
+    fun pumpStream(packet: EncodedPacket, bufferInfo: MediaCodec.BufferInfo) {
+        val outputBuffer = packet.buffer ?: return
+        val isVideo = packet.isVideo
         try {
             if (!isMuxerStarter()) {
                 return
             }
-            if (bufferInfo.size <= 0) {
+            // sps & pps were added by format
+            if (bufferInfo.size <= 0 || packet.isConfig()) {
                 return
             }
             val index = if (isVideo) {
                 if (mVideoPts == 0L) {
                     mVideoPts = bufferInfo.presentationTimeUs
+                    if (mSessionVideoPts == 0L) {
+                        mSessionVideoPts = mVideoPts
+                    }
+                    mKeyframeIndexWriter?.startSegment(mVideoPts - mSessionVideoPts)
                 }
                 bufferInfo.presentationTimeUs = bufferInfo.presentationTimeUs - mVideoPts
                 mVideoTrackerIndex
             } else {
-                if (mAudioPts == 0L) {
-                    mAudioPts = bufferInfo.presentationTimeUs
+                // audio and video share one clock, keep their offset
+                // audio earlier than the first video frame is dropped
+                if (mVideoPts == 0L || bufferInfo.presentationTimeUs < mVideoPts) {
+                    return
                 }
-                bufferInfo.presentationTimeUs = bufferInfo.presentationTimeUs - mAudioPts
+                bufferInfo.presentationTimeUs = bufferInfo.presentationTimeUs - mVideoPts
                 mAudioTrackerIndex
             }
             outputBuffer.position(bufferInfo.offset)
             outputBuffer.limit(bufferInfo.offset + bufferInfo.size)
             mMediaMuxer?.writeSampleData(index, outputBuffer, bufferInfo)
+            if (isVideo && bufferInfo.flags and MediaCodec.BUFFER_FLAG_KEY_FRAME != 0) {
+                mKeyframeIndexWriter?.addKeyframe(bufferInfo.presentationTimeUs)
+            }
             saveNewFileIfNeed()
+            checkStorageIfNeed()
         } catch (e: Exception) {
             Logger.e(TAG, "pumpStream failed, err = ${e.localizedMessage}", e)
         }
@@ -195,18 +224,31 @@ class Mp4Muxer(
             if (endMillis - mBeginMillis <= durationInSec * 1000) {
                 return
             }
+            // no space for next segment, finish recording
+            if (storageManager?.ensureSpace(excludePath = path, keepPaths = mSessionPaths) == false) {
+                release()
+                mMainHandler.post {
+                    mCaptureCallBack?.onError("storage space is not enough")
+                }
+                Logger.e(TAG, "save new file failed, storage space is not enough")
+                return
+            }
 
             mMediaMuxer?.stop()
             mMediaMuxer?.release()
             mMediaMuxer = null
+            closeSegmentFile()
+            mKeyframeIndexWriter?.finishSegment(path, mFileSubIndex)
             mAudioTrackerIndex = -1
             mVideoTrackerIndex = -1
-            mAudioPts = 0L
             mVideoPts = 0L
             insertDCIM(mContext, path)
+            path?.let {
+                mSessionPaths.add(it)
+            }
 
             path = "${mOriginalPath}_${++mFileSubIndex}.mp4"
-            mMediaMuxer = MediaMuxer(path!!, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+            mMediaMuxer = createMediaMuxer(path!!)
             addTracker(mVideoFormat, true)
             addTracker(mAudioFormat, false)
         } catch (e: Exception) {
@@ -225,6 +267,8 @@ class Mp4Muxer(
         try {
             mMediaMuxer?.stop()
             mMediaMuxer?.release()
+            closeSegmentFile()
+            mKeyframeIndexWriter?.finishSegment(path, mFileSubIndex)
             insertDCIM(mContext, path, true)
             Logger.i(TAG, "stop media muxer")
         } catch (e: Exception) {
@@ -233,16 +277,94 @@ class Mp4Muxer(
             }
             Logger.e(TAG, "release media muxer failed, err = ${e.localizedMessage}", e)
         } finally {
+            closeSegmentFile()
+            mKeyframeIndexWriter?.close()
+            mKeyframeIndexWriter = null
             mMediaMuxer = null
             mAudioTrackerIndex = -1
             mVideoTrackerIndex = -1
-            mAudioPts = 0L
             mVideoPts = 0L
         }
     }
 
     fun getSavePath() = path
 
+    /**
+     * Create media muxer
+     *  with a preallocated file if storage manager was set
+     *
+     * @param path mp4 saving path
+     */
+    private fun createMediaMuxer(path: String): MediaMuxer {
+        val manager = storageManager
+        if (manager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            manager?.register(path)
+            return MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+        }
+        val file = manager.openSegmentFile(path)
+            ?: return MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+        mSegmentFile = file
+        return MediaMuxer(file.fd, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+    }
+
+    private fun createKeyframeIndexWriter(basePath: String): KeyframeIndexWriter? {
+        return try {
+            val indexPath = KeyframeIndex.getIndexPath(basePath)
+            mSessionPaths.add(indexPath)
+            storageManager?.register(indexPath)
+            KeyframeIndexWriter(indexPath)
+        } catch (e: Exception) {
+            // recording goes on without index
+            Logger.e(TAG, "create keyframe index failed, err = ${e.localizedMessage}", e)
+            null
+        }
+    }
+
+    private fun closeSegmentFile() {
+        storageManager?.closeSegmentFile(mSegmentFile)
+        mSegmentFile = null
+    }
+
+    /**
+     * Check storage space periodically
+     *  warn before space runs out, and evict old medias or stop recording when critical
+     */
+    private fun checkStorageIfNeed() {
+        val manager = storageManager ?: return
+        val nowMillis = System.currentTimeMillis()
+        if (nowMillis - mLastStorageCheckMillis < STORAGE_CHECK_INTERVAL_MS) {
+            return
+        }
+        mLastStorageCheckMillis = nowMillis
+        when (manager.checkLevel(path)) {
+            RecordStorageManager.Level.LOW -> {
+                if (mStorageLowNotified) {
+                    return
+                }
+                mStorageLowNotified = true
+                val savePath = path
+                val freeBytes = manager.getFreeBytes()
+                mMainHandler.post {
+                    mCaptureCallBack?.onStorageLow(savePath, freeBytes)
+                }
+                Logger.w(TAG, "storage space is low, free bytes = $freeBytes")
+            }
+            RecordStorageManager.Level.CRITICAL -> {
+                if (manager.ensureSpace(0L, path, mSessionPaths)) {
+                    return
+                }
+                release()
+                mMainHandler.post {
+                    mCaptureCallBack?.onError("storage space is not enough")
+                }
+                Logger.e(TAG, "stop media muxer, storage space is not enough")
+            }
+            else -> {
+                mStorageLowNotified = false
+            }
+        }
+    }
+
     private fun insertDCIM(context: Context?, videoPath: String?, notifyOut: Boolean = false) {
         context?.let { ctx ->
             if (videoPath.isNullOrEmpty()) {
@@ -291,5 +413,6 @@ class Mp4Muxer(
 
     companion object {
         private const val TAG = "Mp4Muxer"
+        private const val STORAGE_CHECK_INTERVAL_MS = 2000L
     }
 }
\ No newline at end of file
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.muxer
+
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+import java.io.File
+import java.lang.Exception
+import java.nio.ByteBuffer
+
+/**
+ * Lossless remuxer of segmented recordings
+ *
+ * Concat name.mp4, name_1.mp4 ... to one file and trim it on keyframe boundary.
+ *  Samples are copied one by one with a reused buffer, no decoding and no re-encoding,
+ *  so memory is constant whatever the session length.
+ *  It blocks the calling thread, so run it in a work thread.
+ *
+ * @property segmentPaths segment files in order, see [listSegments]
+ */
+class Mp4Remuxer(private val segmentPaths: List<String>) {
+    @Volatile
+    private var isCanceled = false
+    private val mBufferInfo by lazy {
+        MediaCodec.BufferInfo()
+    }
+
+    /**
+     * Remux segments to one mp4
+     *
+     * @param outputPath output mp4 path
+     * @param startUs trim start in session time, moved to the previous keyframe
+     * @param endUs trim end in session time, Long.MAX_VALUE means the end of session
+     * @return true means success
+     */
+    fun remux(outputPath: String, startUs: Long = 0L, endUs: Long = Long.MAX_VALUE): Boolean {
+        if (segmentPaths.isEmpty() || startUs >= endUs) {
+            Logger.e(TAG, "remux failed, no segment or invalid range [$startUs, $endUs)")
+            return false
+        }
+        isCanceled = false
+        val cutter = SampleCutter(startUs, endUs)
+        var muxer: MediaMuxer? = null
+        var isStarted = false
+        var isSuccess = false
+        try {
+            File(outputPath).parentFile?.mkdirs()
+            val mediaMuxer = MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+            muxer = mediaMuxer
+            var buffer: ByteBuffer? = null
+            var trackMimes: Array<String?>? = null
+            var muxerTracks: IntArray? = null
+            var segmentBaseUs = 0L
+            for (path in segmentPaths) {
+                if (isCanceled || cutter.isAfterRange(segmentBaseUs)) {
+                    break
+                }
+                val extractor = MediaExtractor()
+                try {
+                    extractor.setDataSource(path)
+                    val durationUs = getDurationUs(extractor)
+                    if (cutter.isBeforeRange(segmentBaseUs, durationUs)) {
+                        segmentBaseUs += durationUs
+                        continue
+                    }
+                    if (muxerTracks == null) {
+                        val mimes = arrayOfNulls<String>(extractor.trackCount)
+                        muxerTracks = IntArray(extractor.trackCount) { i ->
+                            val format = extractor.getTrackFormat(i)
+                            mimes[i] = format.getString(MediaFormat.KEY_MIME)
+                            if (mimes[i]?.startsWith("video/") == true) {
+                                cutter.videoTrack = i
+                            }
+                            mediaMuxer.addTrack(format)
+                        }
+                        trackMimes = mimes
+                        mediaMuxer.start()
+                        isStarted = true
+                        buffer = ByteBuffer.allocateDirect(getMaxInputSize(extractor))
+                    } else if (! isSameTracks(getTrackMimes(extractor), trackMimes!!)) {
+                        throw IllegalStateException("tracks of $path not match the first segment")
+                    }
+                    for (i in 0 until extractor.trackCount) {
+                        extractor.selectTrack(i)
+                    }
+                    val seekUs = cutter.getSeekUs(segmentBaseUs)
+                    if (seekUs > 0) {
+                        extractor.seekTo(seekUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+                    }
+                    copySamples(extractor, mediaMuxer, muxerTracks, buffer!!, segmentBaseUs, cutter)
+                    segmentBaseUs += durationUs
+                } finally {
+                    extractor.release()
+                }
+            }
+            isSuccess = isStarted && ! isCanceled
+        } catch (e: Exception) {
+            Logger.e(TAG, "remux failed, err = ${e.localizedMessage}", e)
+        } finally {
+            try {
+                if (isStarted) {
+                    muxer?.stop()
+                }
+                muxer?.release()
+            } catch (e: Exception) {
+                Logger.e(TAG, "release muxer failed, err = ${e.localizedMessage}", e)
+                isSuccess = false
+            }
+        }
+        if (! isSuccess) {
+            File(outputPath).delete()
+        }
+        return isSuccess
+    }
+
+    /**
+     * Cancel remuxing, [remux] returns false
+     */
+    fun cancel() {
+        isCanceled = true
+    }
+
+    private fun copySamples(
+        extractor: MediaExtractor,
+        muxer: MediaMuxer,
+        muxerTracks: IntArray,
+        buffer: ByteBuffer,
+        segmentBaseUs: Long,
+        cutter: SampleCutter
+    ) {
+        var count = 0
+        while (! isCanceled) {
+            val track = extractor.sampleTrackIndex
+            if (track < 0) {
+                break
+            }
+            val sessionUs = segmentBaseUs + extractor.sampleTime
+            val isSync = extractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
+            when (cutter.filter(track, sessionUs, isSync)) {
+                SampleCutter.ACTION_END_TRACK -> {
+                    // samples are interleaved, the other track may be earlier
+                    extractor.unselectTrack(track)
+                    continue
+                }
+                SampleCutter.ACTION_SKIP -> {
+                    extractor.advance()
+                    continue
+                }
+            }
+            buffer.clear()
+            val size = extractor.readSampleData(buffer, 0)
+            if (size < 0) {
+                break
+            }
+            val flags = if (isSync) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+            mBufferInfo.set(0, size, cutter.getOutputPtsUs(sessionUs), flags)
+            muxer.writeSampleData(muxerTracks[track], buffer, mBufferInfo)
+            count++
+            extractor.advance()
+        }
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "copy $count samples, segment base = $segmentBaseUs")
+        }
+    }
+
+    private fun getTrackMimes(extractor: MediaExtractor): Array<String?> {
+        return Array(extractor.trackCount) { i ->
+            extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME)
+        }
+    }
+
+    private fun getDurationUs(extractor: MediaExtractor): Long {
+        var durationUs = 0L
+        for (i in 0 until extractor.trackCount) {
+            extractor.getTrackFormat(i).let { format ->
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    durationUs = maxOf(durationUs, format.getLong(MediaFormat.KEY_DURATION))
+                }
+            }
+        }
+        return durationUs
+    }
+
+    private fun getMaxInputSize(extractor: MediaExtractor): Int {
+        var size = DEFAULT_MAX_INPUT_SIZE
+        for (i in 0 until extractor.trackCount) {
+            extractor.getTrackFormat(i).let { format ->
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    size = maxOf(size, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE))
+                }
+            }
+        }
+        return size
+    }
+
+    /**
+     * Trim of the session, the pure part of [remux]
+     *
+     * Segments are laid end to end, a sample is at segment base + sample time in
+     *  session time. Output begins at the first video keyframe not later than
+     *  the start, earlier samples of all tracks are skipped, and pts are shifted
+     *  so the output starts at 0. Each track ends at its first sample at [endUs].
+     *
+     * @property startUs trim start in session time
+     * @property endUs trim end in session time
+     */
+    internal class SampleCutter(private val startUs: Long, private val endUs: Long) {
+        /**
+         * Video track index, -1 means audio only, then any sync sample begins
+         */
+        var videoTrack = -1
+
+        /**
+         * Session time of the first written sample, -1 means not found yet
+         */
+        var cutUs = -1L
+            private set
+
+        fun isBeforeRange(segmentBaseUs: Long, durationUs: Long) = segmentBaseUs + durationUs <= startUs
+
+        fun isAfterRange(segmentBaseUs: Long) = segmentBaseUs >= endUs
+
+        /**
+         * @return time in the segment to seek to before copying, 0 means no seek
+         */
+        fun getSeekUs(segmentBaseUs: Long): Long {
+            return if (cutUs < 0 && startUs > segmentBaseUs) startUs - segmentBaseUs else 0L
+        }
+
+        /**
+         * Decide a sample, called in sample order
+         *
+         * @return [ACTION_WRITE], [ACTION_SKIP] or [ACTION_END_TRACK]
+         */
+        fun filter(track: Int, sessionUs: Long, isSync: Boolean): Int {
+            if (sessionUs >= endUs) {
+                return ACTION_END_TRACK
+            }
+            if (cutUs < 0) {
+                // begin with a video keyframe, skip the earlier audio
+                if (! isSync || (videoTrack >= 0 && track != videoTrack)) {
+                    return ACTION_SKIP
+                }
+                cutUs = sessionUs
+            }
+            return if (sessionUs < cutUs) ACTION_SKIP else ACTION_WRITE
+        }
+
+        fun getOutputPtsUs(sessionUs: Long) = sessionUs - cutUs
+
+        companion object {
+            const val ACTION_WRITE = 0
+            const val ACTION_SKIP = 1
+            const val ACTION_END_TRACK = 2
+        }
+    }
+
+    companion object {
+        private const val TAG = "Mp4Remuxer"
+        private const val DEFAULT_MAX_INPUT_SIZE = 2 * 1024 * 1024
+
+        /**
+         * Same track count and mimes in the same order
+         */
+        internal fun isSameTracks(trackMimes: Array<String?>, expectMimes: Array<String?>): Boolean {
+            return trackMimes.contentEquals(expectMimes)
+        }
+
+        /**
+         * List segments of a recording, see [Mp4Muxer]
+         *
+         * @param basePath recording path without extension
+         * @return name.mp4, name_1.mp4 ... which exist
+         */
+        fun listSegments(basePath: String): List<String> {
+            val segments = arrayListOf<String>()
+            var index = 0
+            while (true) {
+                val path = if (index == 0) "$basePath.mp4" else "${basePath}_$index.mp4"
+                if (! File(path).exists()) {
+                    break
+                }
+                segments.add(path)
+                index++
+            }
+            return segments
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.muxer
+
+import android.content.Context
+import android.os.StatFs
+import android.provider.MediaStore
+import android.system.ErrnoException
+import android.system.Os
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+import java.io.File
+import java.io.RandomAccessFile
+import java.lang.Exception
+
+/**
+ * Storage manager for recording
+ *
+ * Check free space before recording, preallocate segment files and
+ * evict the least recently used medias when the quota or free space is exceeded.
+ *
+ * Only registered files are counted and evicted, they are listed in a manifest in
+ *  [storageDir] from the least to the most recently used, other files in it are
+ *  never touched. A media is used when it is registered or [touch]ed.
+ *
+ * @property storageDir managed media directory
+ * @property quotaBytes max bytes of managed medias in [storageDir], 0 means no quota
+ * @property minFreeBytes min free bytes of the storage, lower than it recording will be stopped
+ * @property warnFreeBytes free bytes to warn, see [com.jiangdg.ausbc.callback.ICaptureCallBack.onStorageLow]
+ * @property preallocateBytes bytes reserved for each segment file
+ */
+class RecordStorageManager(
+    context: Context?,
+    private val storageDir: String,
+    private val quotaBytes: Long = 0L,
+    private val minFreeBytes: Long = DEFAULT_MIN_FREE_BYTES,
+    private val warnFreeBytes: Long = DEFAULT_WARN_FREE_BYTES,
+    private val preallocateBytes: Long = DEFAULT_PREALLOCATE_BYTES
+) {
+    private val mContext: Context? = context?.applicationContext
+    private val mManifestFile = File(storageDir, MANIFEST_NAME)
+    private var mManagedNames: LinkedHashSet<String>? = null
+
+    /**
+     * Storage level
+     *
+     * NORMAL: enough space
+     * LOW: free space lower than warnFreeBytes
+     * CRITICAL: free space lower than minFreeBytes, or quota exceeded
+     */
+    enum class Level {
+        NORMAL,
+        LOW,
+        CRITICAL
+    }
+
+    /**
+     * Get free bytes of the storage
+     *
+     * @return available bytes, -1 means unknown
+     */
+    fun getFreeBytes(): Long {
+        return try {
+            File(storageDir).let { dir ->
+                if (! dir.exists()) {
+                    dir.mkdirs()
+                }
+            }
+            StatFs(storageDir).availableBytes
+        } catch (e: Exception) {
+            Logger.e(TAG, "get free bytes failed, err = ${e.localizedMessage}", e)
+            -1L
+        }
+    }
+
+    /**
+     * Get used bytes of the managed medias in [storageDir]
+     *
+     * @param excludePath file not counting into
+     */
+    fun getUsedBytes(excludePath: String? = null): Long {
+        return listMediaFiles().filter {
+            it.path != excludePath
+        }.sumOf {
+            it.length()
+        }
+    }
+
+    /**
+     * Check storage level
+     *
+     * @param excludePath file which is writing, not counting into quota
+     * @return see [Level]
+     */
+    fun checkLevel(excludePath: String? = null): Level {
+        val freeBytes = getFreeBytes()
+        if (freeBytes in 0 until minFreeBytes) {
+            return Level.CRITICAL
+        }
+        if (quotaBytes > 0 && getUsedBytes(excludePath) > quotaBytes) {
+            return Level.CRITICAL
+        }
+        if (freeBytes in 0 until warnFreeBytes) {
+            return Level.LOW
+        }
+        return Level.NORMAL
+    }
+
+    /**
+     * Make sure there is enough space for writing new media,
+     *  evict the least recently used medias if need
+     *
+     * @param requiredBytes bytes going to be written
+     * @param excludePath file which is writing, not counting into quota and never evicted
+     * @param keepPaths other files of the recording session, such as written segments
+     *  and the keyframe index, never evicted
+     * @return true means enough space
+     */
+    @Synchronized
+    fun ensureSpace(
+        requiredBytes: Long = preallocateBytes,
+        excludePath: String? = null,
+        keepPaths: Collection<String> = emptySet()
+    ): Boolean {
+        val freeBytes = getFreeBytes()
+        if (freeBytes < 0) {
+            // unknown, don't block recording
+            return true
+        }
+        var needFreeBytes = requiredBytes + minFreeBytes - freeBytes
+        var needQuotaBytes = if (quotaBytes > 0) {
+            getUsedBytes(excludePath) + requiredBytes - quotaBytes
+        } else {
+            0L
+        }
+        if (needFreeBytes <= 0 && needQuotaBytes <= 0) {
+            return true
+        }
+        val keepNames = HashSet<String>(keepPaths.size * 2 + 1)
+        keepPaths.forEach {
+            keepNames.add(File(it).name)
+        }
+        excludePath?.let {
+            keepNames.add(File(it).name)
+        }
+        // manifest order, least recently used first
+        listMediaFiles().filter {
+            ! keepNames.contains(it.name)
+        }.forEach { file ->
+            if (needFreeBytes <= 0 && needQuotaBytes <= 0) {
+                return@forEach
+            }
+            val length = file.length()
+            if (! deleteMedia(file)) {
+                return@forEach
+            }
+            needFreeBytes -= length
+            needQuotaBytes -= length
+            if (Utils.debugCamera) {
+                Logger.i(TAG, "evict media ${file.path}, size = $length")
+            }
+        }
+        return needFreeBytes <= 0 && needQuotaBytes <= 0
+    }
+
+    /**
+     * Add a media to the manifest as the most recently used, so it can be evicted
+     *
+     * @param path media path, should be in [storageDir]
+     */
+    @Synchronized
+    fun register(path: String?) {
+        path ?: return
+        try {
+            val file = File(path)
+            if (file.parentFile?.canonicalPath != File(storageDir).canonicalPath) {
+                Logger.w(TAG, "register $path failed, not in $storageDir")
+                return
+            }
+            val names = getManagedNames()
+            names.remove(file.name)
+            names.add(file.name)
+            saveManifest()
+        } catch (e: Exception) {
+            Logger.e(TAG, "register $path failed, err = ${e.localizedMessage}", e)
+        }
+    }
+
+    /**
+     * Mark a managed media as the most recently used,
+     *  call it when the media is opened or played
+     *
+     * @param path media path, not managed ones are ignored
+     */
+    @Synchronized
+    fun touch(path: String?) {
+        path ?: return
+        try {
+            val file = File(path)
+            if (file.parentFile?.canonicalPath != File(storageDir).canonicalPath) {
+                return
+            }
+            val names = getManagedNames()
+            if (! names.remove(file.name)) {
+                return
+            }
+            names.add(file.name)
+            saveManifest()
+        } catch (e: Exception) {
+            Logger.e(TAG, "touch $path failed, err = ${e.localizedMessage}", e)
+        }
+    }
+
+    /**
+     * Open a segment file with preallocated space
+     *  reduce fragmentation and metadata writes when muxing
+     *
+     * @param path segment file path
+     * @return opened file, should be closed by [closeSegmentFile]
+     */
+    fun openSegmentFile(path: String): RandomAccessFile? {
+        return try {
+            File(path).let { file ->
+                if (file.exists()) {
+                    file.delete()
+                }
+                file.parentFile?.mkdirs()
+            }
+            register(path)
+            RandomAccessFile(path, "rw").also { raf ->
+                try {
+                    Os.posix_fallocate(raf.fd, 0, preallocateBytes)
+                } catch (e: ErrnoException) {
+                    // some file systems not support, such as fuse
+                    Logger.w(TAG, "preallocate $path failed, err = ${e.localizedMessage}")
+                }
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "open segment file failed, err = ${e.localizedMessage}", e)
+            null
+        }
+    }
+
+    /**
+     * Close the segment file, and cut the unused preallocated space
+     *
+     * @param file segment file, see [openSegmentFile]
+     */
+    fun closeSegmentFile(file: RandomAccessFile?) {
+        file ?: return
+        try {
+            val length = file.length()
+            val end = findMp4End(file, length)
+            if (end in 1 until length) {
+                file.setLength(end)
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "trim segment file failed, err = ${e.localizedMessage}", e)
+        } finally {
+            try {
+                file.close()
+            } catch (e: Exception) {
+                Logger.e(TAG, "close segment file failed, err = ${e.localizedMessage}", e)
+            }
+        }
+    }
+
+    @Synchronized
+    private fun listMediaFiles(): List<File> {
+        val names = getManagedNames()
+        val files = ArrayList<File>(names.size)
+        val iterator = names.iterator()
+        var isChanged = false
+        while (iterator.hasNext()) {
+            val file = File(storageDir, iterator.next())
+            if (file.isFile) {
+                files.add(file)
+            } else {
+                // deleted by others
+                iterator.remove()
+                isChanged = true
+            }
+        }
+        if (isChanged) {
+            saveManifest()
+        }
+        return files
+    }
+
+    private fun getManagedNames(): LinkedHashSet<String> {
+        mManagedNames?.let {
+            return it
+        }
+        val names = LinkedHashSet<String>()
+        try {
+            if (mManifestFile.exists()) {
+                mManifestFile.forEachLine { line ->
+                    if (line.isNotBlank()) {
+                        names.add(line.trim())
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "read manifest failed, err = ${e.localizedMessage}", e)
+        }
+        mManagedNames = names
+        return names
+    }
+
+    private fun saveManifest() {
+        val names = mManagedNames ?: return
+        try {
+            mManifestFile.parentFile?.mkdirs()
+            val tmpFile = File(storageDir, "$MANIFEST_NAME.tmp")
+            tmpFile.writeText(names.joinToString("\n"))
+            if (! tmpFile.renameTo(mManifestFile)) {
+                Logger.w(TAG, "save manifest failed")
+            }
+        } catch (e: Exception) {
+            Logger.e(TAG, "save manifest failed, err = ${e.localizedMessage}", e)
+        }
+    }
+
+    @Synchronized
+    private fun deleteMedia(file: File): Boolean {
+        val path = file.path
+        if (! file.delete()) {
+            Logger.w(TAG, "delete media $path failed")
+            return false
+        }
+        if (getManagedNames().remove(file.name)) {
+            saveManifest()
+        }
+        try {
+            mContext?.contentResolver?.delete(
+                MediaStore.Files.getContentUri("external"),
+                "${MediaStore.MediaColumns.DATA}=?",
+                arrayOf(path)
+            )
+        } catch (e: Exception) {
+            Logger.w(TAG, "delete media store of $path failed, err = ${e.localizedMessage}")
+        }
+        return true
+    }
+
+    /**
+     * Walk the top level mp4 boxes, the preallocated tail is zero
+     *  so the first invalid box header means the end of mp4
+     */
+    private fun findMp4End(file: RandomAccessFile, length: Long): Long {
+        val header = ByteArray(BOX_HEADER_SIZE)
+        var offset = 0L
+        while (offset + BOX_HEADER_SIZE <= length) {
+            file.seek(offset)
+            file.readFully(header)
+            var size = readUInt32(header, 0)
+            if (! isBoxType(header, 4)) {
+                break
+            }
+            if (size == 1L) {
+                size = file.readLong()
+            }
+            if (size < BOX_HEADER_SIZE || offset + size > length) {
+                break
+            }
+            offset += size
+        }
+        return offset
+    }
+
+    private fun readUInt32(data: ByteArray, offset: Int): Long {
+        return ((data[offset].toLong() and 0xFF) shl 24) or
+                ((data[offset + 1].toLong() and 0xFF) shl 16) or
+                ((data[offset + 2].toLong() and 0xFF) shl 8) or
+                (data[offset + 3].toLong() and 0xFF)
+    }
+
+    private fun isBoxType(data: ByteArray, offset: Int): Boolean {
+        for (i in offset until offset + 4) {
+            val c = data[i].toInt()
+            if (c < 0x20 || c > 0x7E) {
+                return false
+            }
+        }
+        return true
+    }
+
+    companion object {
+        private const val TAG = "RecordStorageManager"
+        private const val BOX_HEADER_SIZE = 8
+        private const val MANIFEST_NAME = ".record_manifest"
+
+        const val DEFAULT_MIN_FREE_BYTES = 100L * 1024 * 1024
+        const val DEFAULT_WARN_FREE_BYTES = 500L * 1024 * 1024
+        const val DEFAULT_PREALLOCATE_BYTES = 64L * 1024 * 1024
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.encode.parser
+
+import com.jiangdg.ausbc.encode.bean.EncodedPacket
+import com.jiangdg.ausbc.encode.bean.SpsInfo
+import java.nio.ByteBuffer
+
+/**
+ * H.264 Annex-B nal unit parser
+ *
+ * Read the buffer by absolute index, no copy and no allocation per packet.
+ *  It splits nal units, parses sps and the first slice header.
+ */
+class NalUnitParser {
+    private val mSps = SpsInfo()
+    private val mTmpSps = SpsInfo()
+    private val mBitReader = BitReader()
+    private var hasSps = false
+    private var mLastDtsUs = Long.MIN_VALUE
+
+    /**
+     * Parse h264 data to packet
+     *
+     * @param buffer encoded data, position and limit not changed
+     * @param offset data offset
+     * @param size data size
+     * @param packet see [EncodedPacket], nal units and sps will be filled in
+     */
+    fun parse(buffer: ByteBuffer, offset: Int, size: Int, packet: EncodedPacket) {
+        val end = offset + size
+        var nalStart = -1
+        var i = offset
+        while (i + 2 < end) {
+            val b2 = buffer.get(i + 2).toInt() and 0xFF
+            if (b2 > 1) {
+                i += 3
+                continue
+            }
+            if (b2 == 1 && buffer.get(i + 1).toInt() == 0 && buffer.get(i).toInt() == 0) {
+                if (nalStart >= 0) {
+                    onNalUnit(buffer, nalStart, trimTrailingZero(buffer, nalStart, i), packet)
+                }
+                i += 3
+                nalStart = i
+                continue
+            }
+            i++
+        }
+        if (nalStart >= 0) {
+            onNalUnit(buffer, nalStart, end, packet)
+        } else if (size > 0) {
+            // no start code, treat as one nal unit
+            onNalUnit(buffer, offset, end, packet)
+        }
+        if (hasSps) {
+            packet.sps = mSps
+        }
+        // MediaCodec not output dts, keep it monotonic
+        if (! packet.isConfig()) {
+            packet.dtsUs = if (packet.ptsUs > mLastDtsUs) packet.ptsUs else mLastDtsUs + 1
+            mLastDtsUs = packet.dtsUs
+        }
+    }
+
+    /**
+     * Get latest parsed sps
+     *
+     * @return null means no sps received
+     */
+    fun getSps(): SpsInfo? = if (hasSps) mSps else null
+
+    /**
+     * Reset parser, such as encoder restarted
+     */
+    fun reset() {
+        hasSps = false
+        mLastDtsUs = Long.MIN_VALUE
+    }
+
+    private fun onNalUnit(buffer: ByteBuffer, start: Int, end: Int, packet: EncodedPacket) {
+        if (start >= end) {
+            return
+        }
+        val nalType = buffer.get(start).toInt() and 0x1F
+        packet.addNalUnit(nalType, start, end - start)
+        when (nalType) {
+            EncodedPacket.NAL_TYPE_SPS -> {
+                if (parseSps(buffer, start + 1, end, mTmpSps)) {
+                    mSps.set(mTmpSps)
+                    hasSps = true
+                }
+            }
+            EncodedPacket.NAL_TYPE_IDR, EncodedPacket.NAL_TYPE_SLICE -> {
+                if (nalType == EncodedPacket.NAL_TYPE_IDR) {
+                    packet.isIdr = true
+                }
+                if (packet.sliceType < 0) {
+                    packet.sliceType = parseSliceType(buffer, start + 1, end)
+                }
+            }
+        }
+    }
+
+    private fun trimTrailingZero(buffer: ByteBuffer, start: Int, end: Int): Int {
+        var nalEnd = end
+        while (nalEnd > start && buffer.get(nalEnd - 1).toInt() == 0) {
+            nalEnd--
+        }
+        return nalEnd
+    }
+
+    private fun parseSliceType(buffer: ByteBuffer, start: Int, end: Int): Int {
+        mBitReader.reset(buffer, start, end)
+        mBitReader.readUE() // first_mb_in_slice
+        val sliceType = mBitReader.readUE()
+        return if (mBitReader.isOverflow() || sliceType > 9) -1 else sliceType % 5
+    }
+
+    /**
+     * Parse sps, see ITU-T H.264 7.3.2.1.1
+     */
+    private fun parseSps(buffer: ByteBuffer, start: Int, end: Int, sps: SpsInfo): Boolean {
+        val reader = mBitReader
+        reader.reset(buffer, start, end)
+        sps.profileIdc = reader.readBits(8)
+        sps.constraintFlags = reader.readBits(8)
+        sps.levelIdc = reader.readBits(8)
+        sps.spsId = reader.readUE()
+        var chromaFormatIdc = 1
+        var separateColourPlane = false
+        if (isHighProfile(sps.profileIdc)) {
+            chromaFormatIdc = reader.readUE()
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = reader.readBit() == 1
+            }
+            reader.readUE() // bit_depth_luma_minus8
+            reader.readUE() // bit_depth_chroma_minus8
+            reader.readBit() // qpprime_y_zero_transform_bypass_flag
+            if (reader.readBit() == 1) {
+                val count = if (chromaFormatIdc != 3) 8 else 12
+                for (i in 0 until count) {
+                    if (reader.readBit() == 1) {
+                        skipScalingList(if (i < 6) 16 else 64)
+                    }
+                }
+            }
+        }
+        sps.chromaFormatIdc = chromaFormatIdc
+        reader.readUE() // log2_max_frame_num_minus4
+        when (reader.readUE()) { // pic_order_cnt_type
+            0 -> {
+                reader.readUE() // log2_max_pic_order_cnt_lsb_minus4
+            }
+            1 -> {
+                reader.readBit() // delta_pic_order_always_zero_flag
+                reader.readSE() // offset_for_non_ref_pic
+                reader.readSE() // offset_for_top_to_bottom_field
+                val cycle = reader.readUE()
+                for (i in 0 until cycle) {
+                    reader.readSE()
+                    if (reader.isOverflow()) {
+                        return false
+                    }
+                }
+            }
+        }
+        sps.maxNumRefFrames = reader.readUE()
+        reader.readBit() // gaps_in_frame_num_value_allowed_flag
+        val widthInMbs = reader.readUE() + 1
+        val heightInMapUnits = reader.readUE() + 1
+        val frameMbsOnly = reader.readBit() == 1
+        if (! frameMbsOnly) {
+            reader.readBit() // mb_adaptive_frame_field_flag
+        }
+        reader.readBit() // direct_8x8_inference_flag
+        var cropLeft = 0
+        var cropRight = 0
+        var cropTop = 0
+        var cropBottom = 0
+        if (reader.readBit() == 1) {
+            cropLeft = reader.readUE()
+            cropRight = reader.readUE()
+            cropTop = reader.readUE()
+            cropBottom = reader.readUE()
+        }
+        if (reader.isOverflow()) {
+            return false
+        }
+        val frameHeightFactor = if (frameMbsOnly) 1 else 2
+        val cropUnitX: Int
+        val cropUnitY: Int
+        if (chromaFormatIdc == 0 || separateColourPlane) {
+            cropUnitX = 1
+            cropUnitY = frameHeightFactor
+        } else {
+            cropUnitX = if (chromaFormatIdc == 3) 1 else 2
+            cropUnitY = (if (chromaFormatIdc == 1) 2 else 1) * frameHeightFactor
+        }
+        sps.isFrameMbsOnly = frameMbsOnly
+        sps.width = widthInMbs * 16 - cropUnitX * (cropLeft + cropRight)
+        sps.height = frameHeightFactor * heightInMapUnits * 16 - cropUnitY * (cropTop + cropBottom)
+        return sps.width > 0 && sps.height > 0
+    }
+
+    private fun skipScalingList(size: Int) {
+        var lastScale = 8
+        var nextScale = 8
+        for (j in 0 until size) {
+            if (nextScale != 0) {
+                val delta = mBitReader.readSE()
+                nextScale = (lastScale + delta + 256) % 256
+            }
+            lastScale = if (nextScale == 0) lastScale else nextScale
+        }
+    }
+
+    private fun isHighProfile(profileIdc: Int) = when (profileIdc) {
+        100, 110, 122, 244, 44, 83, 86, 118, 128, 138, 139, 134, 135 -> true
+        else -> false
+    }
+
+    /**
+     * Exp-Golomb bit reader over rbsp, emulation prevention bytes(0x000003) skipped
+     */
+    private class BitReader {
+        private var mBuffer: ByteBuffer? = null
+        private var mPosition = 0
+        private var mEnd = 0
+        private var mCurByte = 0
+        private var mBitsLeft = 0
+        private var mZeroCount = 0
+        private var mOverflow = false
+
+        fun reset(buffer: ByteBuffer, start: Int, end: Int) {
+            mBuffer = buffer
+            mPosition = start
+            mEnd = end
+            mCurByte = 0
+            mBitsLeft = 0
+            mZeroCount = 0
+            mOverflow = false
+        }
+
+        fun isOverflow() = mOverflow
+
+        fun readBit(): Int {
+            if (mBitsLeft == 0 && ! loadByte()) {
+                mOverflow = true
+                return 0
+            }
+            mBitsLeft--
+            return (mCurByte shr mBitsLeft) and 0x01
+        }
+
+        fun readBits(count: Int): Int {
+            var value = 0
+            for (i in 0 until count) {
+                value = (value shl 1) or readBit()
+            }
+            return value
+        }
+
+        fun readUE(): Int {
+            var leadingZeros = 0
+            while (readBit() == 0) {
+                if (mOverflow || ++leadingZeros > 31) {
+                    mOverflow = true
+                    return 0
+                }
+            }
+            if (leadingZeros == 0) {
+                return 0
+            }
+            return ((1 shl leadingZeros) - 1) + readBits(leadingZeros)
+        }
+
+        fun readSE(): Int {
+            val value = readUE()
+            return if (value and 0x01 == 1) (value + 1) / 2 else -(value / 2)
+        }
+
+        private fun loadByte(): Boolean {
+            val buffer = mBuffer ?: return false
+            if (mPosition >= mEnd) {
+                return false
+            }
+            var b = buffer.get(mPosition++).toInt() and 0xFF
+            if (mZeroCount >= 2 && b == 0x03) {
+                mZeroCount = 0
+                if (mPosition >= mEnd) {
+                    return false
+                }
+                b = buffer.get(mPosition++).toInt() and 0xFF
+            }
+            mZeroCount = if (b == 0) mZeroCount + 1 else 0
+            mCurByte = b
+            mBitsLeft = 8
+            return true
+        }
+    }
+}
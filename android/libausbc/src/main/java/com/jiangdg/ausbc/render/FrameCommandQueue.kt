@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render
+
+import java.util.concurrent.atomic.AtomicLong
+
+/** Lock free queue of frame draw commands, one producer and one consumer
+ *
+ * Commands are kept in preallocated primitive slots, nothing is allocated
+ *  when offering or polling, such as the render thread feeding the codec render thread.
+ *  A command offered to a full queue is dropped.
+ *
+ * @param capacity max queued commands, rounded up to a power of 2
+ */
+class FrameCommandQueue(capacity: Int = DEFAULT_CAPACITY) {
+    private val mCapacity = Integer.highestOneBit(maxOf(2, capacity) - 1) shl 1
+    private val mMask = (mCapacity - 1).toLong()
+    private val mTextureIds = IntArray(mCapacity)
+    private val mTimestamps = LongArray(mCapacity)
+    // next slot to read, written by the consumer
+    private val mHead = AtomicLong(0L)
+    // next slot to write, written by the producer
+    private val mTail = AtomicLong(0L)
+
+    /**
+     * Texture id of the last polled command
+     */
+    var textureId: Int = 0
+        private set
+
+    /**
+     * Timestamp of the last polled command, in ns
+     */
+    var timestampNs: Long = 0L
+        private set
+
+    /**
+     * Commands dropped for the queue full
+     */
+    @Volatile
+    var droppedCount: Long = 0L
+        private set
+
+    /**
+     * Offer a command, producer thread only
+     *
+     * @param textureId texture to draw
+     * @param timestampNs presentation time, in ns
+     * @return false when full and dropped
+     */
+    fun offer(textureId: Int, timestampNs: Long): Boolean {
+        val tail = mTail.get()
+        if (tail - mHead.get() >= mCapacity) {
+            droppedCount++
+            return false
+        }
+        val index = (tail and mMask).toInt()
+        mTextureIds[index] = textureId
+        mTimestamps[index] = timestampNs
+        // publish the slot after it is written
+        mTail.lazySet(tail + 1)
+        return true
+    }
+
+    /**
+     * Poll a command into [textureId] and [timestampNs], consumer thread only
+     *
+     * @return false when empty
+     */
+    fun poll(): Boolean {
+        val head = mHead.get()
+        if (head >= mTail.get()) {
+            return false
+        }
+        val index = (head and mMask).toInt()
+        textureId = mTextureIds[index]
+        timestampNs = mTimestamps[index]
+        mHead.lazySet(head + 1)
+        return true
+    }
+
+    /**
+     * Get queued commands
+     */
+    fun size(): Int = (mTail.get() - mHead.get()).toInt()
+
+    fun getCapacity() = mCapacity
+
+    companion object {
+        private const val DEFAULT_CAPACITY = 4
+    }
+}
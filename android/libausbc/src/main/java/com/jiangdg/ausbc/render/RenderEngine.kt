@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.Message
+import com.jiangdg.ausbc.render.bean.RenderEngineStats
+import com.jiangdg.ausbc.render.env.EGLEvn
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+import com.jiangdg.ausbc.utils.bus.BusKey
+import com.jiangdg.ausbc.utils.bus.EventBus
+import java.util.concurrent.atomic.AtomicBoolean
+
+/** Render engine shared by several cameras
+ *
+ * One thread and one EGL context for all [RenderManager]s of a multi camera session,
+ *  so programs and textures are shared and the gpu is not fought over by many threads.
+ *  Each camera is a [Client], pending draws are served round-robin, a pass gives
+ *  the looper back after [PASS_BUDGET_NS] so the other messages are not starved.
+ *  A client exceeding its time budget is delayed by the excess, in favour of the others.
+ *
+ * Get one by [acquire], and [release] it when the session closed.
+ */
+class RenderEngine private constructor() : Handler.Callback {
+    private val mThread = HandlerThread(ENGINE_THREAD).apply {
+        start()
+    }
+    private val mHandler = Handler(mThread.looper, this)
+    private val mClients = arrayListOf<Client>()
+    private val mDrawScheduled = AtomicBoolean(false)
+    private var mEgl: EGLEvn? = null
+    private var mNextIndex = 0
+    private var mStatsStartNs = 0L
+    private var mRefCount = 0
+
+    /**
+     * A camera drawn by the engine
+     *
+     * @property name camera name in the statistics
+     * @param onDraw draw the latest frame, called on the engine thread
+     */
+    class Client(@Volatile var name: String, private val onDraw: () -> Unit) {
+        internal val isPending = AtomicBoolean(false)
+        @Volatile
+        internal var budgetNs = 0L
+        @Volatile
+        internal var targetFps = 0
+        internal var throttleUntilNs = 0L
+        internal var drawCount = 0
+        internal var throttledCount = 0
+        internal var totalCostNs = 0L
+        internal var maxCostNs = 0L
+
+        /**
+         * Set draw time budget
+         *
+         * @param budgetMs max draw time of a frame, 0 means no limit
+         */
+        fun setBudget(budgetMs: Int) {
+            budgetNs = maxOf(0, budgetMs) * NS_PER_MS
+        }
+
+        /**
+         * Set frame rate reported in the statistics, paced by [RenderManager]
+         */
+        fun setTargetFps(fps: Int) {
+            targetFps = fps
+        }
+
+        internal fun draw() = onDraw.invoke()
+
+        internal fun onDrawn(endNs: Long, costNs: Long) {
+            drawCount++
+            totalCostNs += costNs
+            maxCostNs = maxOf(maxCostNs, costNs)
+            if (budgetNs > 0 && costNs > budgetNs) {
+                throttleUntilNs = endNs + costNs - budgetNs
+            }
+        }
+
+        internal fun resetStats() {
+            drawCount = 0
+            throttledCount = 0
+            totalCostNs = 0L
+            maxCostNs = 0L
+        }
+    }
+
+    init {
+        mHandler.obtainMessage(MSG_ENGINE_INIT).sendToTarget()
+    }
+
+    override fun handleMessage(msg: Message): Boolean {
+        when (msg.what) {
+            MSG_ENGINE_INIT -> {
+                // a pbuffer keeps the context current when no camera surface
+                mEgl = EGLEvn().apply {
+                    initEgl()
+                    setupSurface(null, 1, 1)
+                    eglMakeCurrent()
+                }
+            }
+            MSG_ENGINE_DRAW -> {
+                drawPass()
+            }
+            MSG_ENGINE_RELEASE -> {
+                mHandler.removeMessages(MSG_ENGINE_DRAW)
+                mClients.clear()
+                mEgl?.releaseElg()
+                mEgl = null
+                mThread.quitSafely()
+                Logger.i(TAG, "release render engine")
+            }
+        }
+        return true
+    }
+
+    /**
+     * Get looper of the engine thread, all clients render on it
+     */
+    fun getLooper(): Looper = mThread.looper
+
+    /**
+     * Get the shared EGL, engine thread only
+     *
+     * @return see [EGLEvn.initEgl]
+     */
+    fun getEGLEvn(): EGLEvn? = mEgl
+
+    /**
+     * Add a client, engine thread only
+     */
+    fun addClient(client: Client) {
+        if (! mClients.contains(client)) {
+            mClients.add(client)
+        }
+    }
+
+    /**
+     * Remove a client, engine thread only
+     */
+    fun removeClient(client: Client) {
+        mClients.remove(client)
+        client.isPending.set(false)
+    }
+
+    /**
+     * Request a draw of the client, coalesced until it is served
+     *
+     * @param client see [Client]
+     */
+    fun requestDraw(client: Client) {
+        client.isPending.set(true)
+        if (mDrawScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(MSG_ENGINE_DRAW)
+        }
+    }
+
+    private fun drawPass() {
+        mDrawScheduled.set(false)
+        val count = mClients.size
+        if (count == 0) {
+            return
+        }
+        val passBeginNs = System.nanoTime()
+        var nextIndex = (mNextIndex + 1) % count
+        var hasPending = false
+        var minThrottleNs = Long.MAX_VALUE
+        for (i in 0 until count) {
+            val index = (mNextIndex + i) % count
+            val client = mClients[index]
+            if (! client.isPending.get()) {
+                continue
+            }
+            val nowNs = System.nanoTime()
+            if (nowNs - passBeginNs >= PASS_BUDGET_NS) {
+                // start from here in the next pass
+                nextIndex = index
+                hasPending = true
+                break
+            }
+            if (nowNs < client.throttleUntilNs) {
+                client.throttledCount++
+                minThrottleNs = minOf(minThrottleNs, client.throttleUntilNs - nowNs)
+                continue
+            }
+            client.isPending.set(false)
+            client.draw()
+            val endNs = System.nanoTime()
+            client.onDrawn(endNs, endNs - nowNs)
+        }
+        mNextIndex = nextIndex
+        when {
+            hasPending -> scheduleDraw(0L)
+            minThrottleNs != Long.MAX_VALUE -> scheduleDraw(minThrottleNs)
+        }
+        emitStats(System.nanoTime())
+    }
+
+    private fun scheduleDraw(delayNs: Long) {
+        if (! mDrawScheduled.compareAndSet(false, true)) {
+            return
+        }
+        if (delayNs <= 0L) {
+            mHandler.sendEmptyMessage(MSG_ENGINE_DRAW)
+        } else {
+            mHandler.sendEmptyMessageDelayed(MSG_ENGINE_DRAW, (delayNs + NS_PER_MS - 1) / NS_PER_MS)
+        }
+    }
+
+    private fun emitStats(nowNs: Long) {
+        if (mStatsStartNs == 0L) {
+            mStatsStartNs = nowNs
+            return
+        }
+        if (nowNs - mStatsStartNs < NS_PER_SECOND) {
+            return
+        }
+        val stats = mClients.map { client ->
+            val avgCostNs = if (client.drawCount == 0) 0L else client.totalCostNs / client.drawCount
+            RenderEngineStats(
+                client.name,
+                client.drawCount,
+                client.targetFps,
+                (avgCostNs / NS_PER_US).toInt(),
+                (client.maxCostNs / NS_PER_US).toInt(),
+                (client.budgetNs / NS_PER_US).toInt(),
+                client.throttledCount
+            ).also {
+                client.resetStats()
+            }
+        }
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "render engine stats: $stats")
+        }
+        EventBus.with<List<RenderEngineStats>>(BusKey.KEY_RENDER_ENGINE_STATS).postMessage(stats)
+        mStatsStartNs = nowNs
+    }
+
+    companion object {
+        private const val TAG = "RenderEngine"
+        private const val ENGINE_THREAD = "gl_render_engine"
+        private const val NS_PER_US = 1000L
+        private const val NS_PER_MS = 1000000L
+        private const val NS_PER_SECOND = 1000000000L
+        // a pass gives the looper back after about one 60fps frame
+        private const val PASS_BUDGET_NS = 16 * NS_PER_MS
+        private const val MSG_ENGINE_INIT = 0x00
+        private const val MSG_ENGINE_DRAW = 0x01
+        private const val MSG_ENGINE_RELEASE = 0x02
+
+        private var sInstance: RenderEngine? = null
+
+        /**
+         * Acquire the shared engine, created when first acquired
+         *
+         * @return see [RenderEngine]
+         */
+        @JvmStatic
+        @Synchronized
+        fun acquire(): RenderEngine {
+            val engine = sInstance ?: RenderEngine().also {
+                sInstance = it
+                Logger.i(TAG, "create render engine")
+            }
+            engine.mRefCount++
+            return engine
+        }
+
+        /**
+         * Release the engine, destroyed after the last release
+         *  and the pending messages of its clients
+         *
+         * @param engine acquired by [acquire]
+         */
+        @JvmStatic
+        @Synchronized
+        fun release(engine: RenderEngine) {
+            if (engine.mRefCount <= 0) {
+                return
+            }
+            if (--engine.mRefCount > 0) {
+                return
+            }
+            if (sInstance === engine) {
+                sInstance = null
+            }
+            engine.mHandler.obtainMessage(MSG_ENGINE_RELEASE).sendToTarget()
+        }
+    }
+}
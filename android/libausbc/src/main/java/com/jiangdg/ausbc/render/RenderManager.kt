@@ -19,28 +19,37 @@ import android.content.ContentValues
 import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.SurfaceTexture
-import android.opengl.EGLContext
 import android.os.*
 import android.provider.MediaStore
+import android.view.Choreographer
 import android.view.Surface
 import com.jiangdg.ausbc.callback.ICaptureCallBack
 import com.jiangdg.ausbc.callback.IPreviewDataCallBack
+import com.jiangdg.ausbc.camera.FrameMetadataRing
+import com.jiangdg.ausbc.camera.bean.FrameMetadata
+import com.jiangdg.ausbc.render.bean.RenderStats
+import com.jiangdg.ausbc.render.bean.RenderTarget
 import com.jiangdg.ausbc.render.env.RotateType
+import com.jiangdg.ausbc.render.env.ScaleType
 import com.jiangdg.ausbc.render.effect.AbstractEffect
+import com.jiangdg.ausbc.render.effect.fusion.EffectChainRender
 import com.jiangdg.ausbc.render.internal.*
+import com.jiangdg.ausbc.render.readback.FrameReadback
+import com.jiangdg.ausbc.render.readback.PboFrameReader
+import com.jiangdg.ausbc.render.readback.SyncFrameReader
 import com.jiangdg.ausbc.utils.*
 import com.jiangdg.ausbc.utils.bus.BusKey
 import com.jiangdg.ausbc.utils.bus.EventBus
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
 import java.text.SimpleDateFormat
 import java.util.*
 import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 /**
  * Render manager
@@ -49,6 +58,7 @@ import java.util.concurrent.atomic.AtomicBoolean
  * @property surfaceHeight camera preview height
  *
  * @param context context
+ * @param engine render on a shared engine instead of its own thread and context, see [RenderEngine]
  *
  * @author Created by jiangdg on 2021/12/28
  */
@@ -56,18 +66,33 @@ class RenderManager(
     context: Context,
     private val surfaceWidth: Int,         // render surface width
     private val surfaceHeight: Int,        // render surface height
-    private val mPreviewDataCbList: CopyOnWriteArrayList<IPreviewDataCallBack>?=null
+    private val mPreviewDataCbList: CopyOnWriteArrayList<IPreviewDataCallBack>?=null,
+    private val engine: RenderEngine? = null
 ) : SurfaceTexture.OnFrameAvailableListener, Handler.Callback {
-    private var mPreviewByteBuffer: ByteBuffer? = null
+    private var mFrameReadback: FrameReadback? = null
+    private var mYuvConvertRender: YuvConvertRender? = null
+    @Volatile
+    private var mPreviewDataFormat = IPreviewDataCallBack.DataFormat.RGBA
     private var mEOSTextureId: Int? = null
     private var mRenderThread: HandlerThread? = null
     private var mRenderHandler: Handler? = null
     private var mRenderCodecThread: HandlerThread? = null
     private var mRenderCodecHandler: Handler? = null
+    // draw commands to the codec render thread, only one message pending
+    private var mCodecDrawQueue: FrameCommandQueue? = null
+    private var mCodecDrawScheduled: AtomicBoolean? = null
+    private var isCodecDropped = false
+    // frame metadata, recorded when available, bound to the SurfaceTexture timestamp when drawn
+    @Volatile
+    private var mFrameMetadataRing: FrameMetadataRing? = null
+    private val mPreviewMetadata by lazy {
+        FrameMetadata()
+    }
     private var mCameraRender: CameraRender? = null
     private var mScreenRender: ScreenRender? = null
     private var mEncodeRender: EncodeRender? = null
     private var mCaptureRender: CaptureRender? = null
+    private var mPreviewDataRender: CaptureRender? = null
     private var mCameraSurfaceTexture: SurfaceTexture? = null
     private var mTransformMatrix: FloatArray = FloatArray(16)
     private var mWidth: Int = 0
@@ -76,10 +101,52 @@ class RenderManager(
     private var mContext: Context = context
     private var mEffectList = arrayListOf<AbstractEffect>()
     private var mCacheEffectList = arrayListOf<AbstractEffect>()
+    private val mEffectChainRender by lazy {
+        EffectChainRender(context)
+    }
     private var mCaptureDataCb: ICaptureCallBack? = null
     private var mFrameRate = 0
     private var mEndTime: Long = 0L
     private var mStartTime = System.currentTimeMillis()
+    @Volatile
+    private var mLastFrameRate = 0
+    // draw scheduling, pending frames are coalesced into one draw
+    private val mDrawPending = AtomicBoolean(false)
+    private val mAvailableFrames = AtomicInteger(0)
+    @Volatile
+    private var mFirstAvailableNs = 0L
+    private val mRenderPacer = RenderPacer()
+    @Volatile
+    private var mRenderFps = 0
+    // fps applied to mRenderPacer, on the render thread
+    private var mPacerFps = 0
+    @Volatile
+    private var isVsyncPacing = false
+    private var mChoreographer: Choreographer? = null
+    private var mRenderedFrames = 0
+    private var mSkippedFrames = 0
+    private var mMaxLatencyNs = 0L
+    private var mStatsStartNs = 0L
+    // render targets, null means following the render size
+    private val mRenderTargets = AtomicReferenceArray<RenderTarget?>(RenderTarget.Type.values().size)
+    private val mTargetPacers = Array(RenderTarget.Type.values().size) {
+        RenderPacer()
+    }
+    private var mSourceWidth = 0
+    private var mSourceHeight = 0
+    // no view surface, render to capture and encoder only
+    @Volatile
+    private var isHeadless = false
+    private val mVsyncCallback by lazy {
+        Choreographer.FrameCallback {
+            drawFrameOrRequest()
+        }
+    }
+    private val mEngineClient = engine?.let {
+        RenderEngine.Client("$TAG@${Integer.toHexString(hashCode())}") {
+            drawFrameInternal()
+        }
+    }
     private val mStFuture by lazy {
         SettableFuture<SurfaceTexture>()
     }
@@ -95,6 +162,20 @@ class RenderManager(
     private val mCameraDir by lazy {
         "${Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM)}/Camera"
     }
+    private val mPreviewFrameListener by lazy {
+        FrameReadback.OnFrameListener { data, width, height, format, timestampNs ->
+            val hasMetadata = mFrameMetadataRing?.find(timestampNs, 0L, mPreviewMetadata) == true
+            val callbacks = mPreviewDataCbList ?: return@OnFrameListener
+            // index loop, no iterator per frame
+            for (i in 0 until callbacks.size) {
+                val callback = Utils.getOrNull(callbacks, i) ?: break
+                if (hasMetadata) {
+                    callback.onPreviewMetadata(mPreviewMetadata)
+                }
+                callback.onPreviewData(data, width, height, format)
+            }
+        }
+    }
 
     init {
         this.mCameraRender = CameraRender(context)
@@ -109,42 +190,48 @@ class RenderManager(
      * Note: EGL must be initialized first, otherwise GL cannot run
      */
     override fun handleMessage(msg: Message): Boolean {
+        // the shared context may be current on the surface of another camera
+        if (engine != null && msg.what != MSG_GL_INIT) {
+            mScreenRender?.makeCurrent()
+        }
         when (msg.what) {
             MSG_GL_INIT -> {
-                (msg.obj as Triple<*, *, *>).apply {
-                    val w = first as Int
-                    val h = second as Int
-                    val surface = third as? Surface
-                    mScreenRender?.initEGLEvn()
+                val w = msg.arg1
+                val h = msg.arg2
+                val surface = msg.obj as? Surface
+                mScreenRender?.initEGLEvn(engine?.getEGLEvn())
+                if (isHeadless) {
+                    // the pbuffer only keeps the context current, nothing drawn on it
+                    mScreenRender?.setupSurface(null, HEADLESS_PBUFFER_SIZE, HEADLESS_PBUFFER_SIZE)
+                } else {
                     mScreenRender?.setupSurface(surface, w, h)
                     mScreenRender?.initGLES()
-                    mCameraRender?.initGLES()
-                    mCaptureRender?.initGLES()
-                    mEOSTextureId = mCameraRender?.getCameraTextureId()?.apply {
-                        mStFuture.set(SurfaceTexture(this))
-                    }
-                    EventBus.with<Boolean>(BusKey.KEY_RENDER_READY).postMessage(true)
                 }
+                mCameraRender?.initGLES()
+                mCaptureRender?.initGLES()
+                mEOSTextureId = mCameraRender?.getCameraTextureId()?.apply {
+                    mStFuture.set(SurfaceTexture(this))
+                }
+                mChoreographer = Choreographer.getInstance()
+                mEngineClient?.let { client ->
+                    engine?.addClient(client)
+                }
+                EventBus.with<Boolean>(BusKey.KEY_RENDER_READY).postMessage(true)
             }
             MSG_GL_CHANGED_SIZE -> {
-                (msg.obj as Pair<*, *>).apply {
-                    mWidth = first as Int
-                    mHeight = second as Int
-                    mCameraRender?.setSize(mWidth, mHeight)
-                    mScreenRender?.setSize(mWidth, mHeight)
-                    mCaptureRender?.setSize(mWidth, mHeight)
-                    mCameraSurfaceTexture?.setDefaultBufferSize(mWidth, mHeight)
-                }
+                mWidth = msg.arg1
+                mHeight = msg.arg2
+                applyRenderTargets()
+            }
+            MSG_GL_APPLY_TARGETS -> {
+                applyRenderTargets()
             }
             MSG_GL_SAVE_IMAGE -> {
                 saveImageInternal(msg.obj as? String)
             }
             MSG_GL_START_RENDER_CODEC -> {
-                (msg.obj as Triple<*, *, *>).apply {
-                    val surface = first as Surface
-                    val width = second as Int
-                    val height = third as Int
-                    startRenderCodecInternal(surface, width, height)
+                (msg.obj as? Surface)?.let { surface ->
+                    startRenderCodecInternal(surface, msg.arg1, msg.arg2)
                 }
             }
             MSG_GL_STOP_RENDER_CODEC -> {
@@ -156,35 +243,18 @@ class RenderManager(
                 }
             }
             MSG_GL_DRAW -> {
-                //Render camera data to SurfaceTexture
-                //Set the correction matrix of the image at the same time
-                mCameraSurfaceTexture?.updateTexImage()
-                mCameraSurfaceTexture?.getTransformMatrix(mTransformMatrix)
-                mCameraRender?.setTransformMatrix(mTransformMatrix)
-                val textureId = mEOSTextureId?.let { mCameraRender?.drawFrame(it) }
-                //Filter FBO and rendering
-                textureId?.let { fboId ->
-                    var effectId = fboId
-                    mEffectList.forEach { effectRender ->
-                        effectId = effectRender.drawFrame(effectId)
-                    }
-                    effectId
-                }?.also { id ->
-                    mScreenRender?.drawFrame(id)
-                    drawFrame2Capture(id)
-                    drawFrame2Codec(id, mCameraSurfaceTexture?.timestamp ?: 0)
-                }
-                mScreenRender?.swapBuffers(mCameraSurfaceTexture?.timestamp ?: 0)
+                scheduleDraw()
             }
             MSG_GL_ADD_EFFECT -> {
                 (msg.obj as? AbstractEffect)?.let { effect->
                     if (mEffectList.contains(effect)) {
                         return@let
                     }
+                    // sized by the chain, an effect fused with others needs no fbo
                     effect.initGLES()
-                    effect.setSize(mWidth, mHeight)
                     mEffectList.add(effect)
                     mCacheEffectList.add(effect)
+                    mEffectChainRender.setEffects(mEffectList)
                     Logger.i(TAG, "add effect, name = ${effect.javaClass.simpleName}, size = ${mEffectList.size}")
                 }
             }
@@ -196,63 +266,307 @@ class RenderManager(
                     it.releaseGLES()
                     mEffectList.remove(it)
                     mCacheEffectList.remove(it)
+                    mEffectChainRender.setEffects(mEffectList)
                     Logger.i(TAG, "remove effect, name = ${it.javaClass.simpleName}, size = ${mEffectList.size}")
                 }
             }
             MSG_GL_RELEASE -> {
                 EventBus.with<Boolean>(BusKey.KEY_RENDER_READY).postMessage(false)
+                mRenderHandler?.removeMessages(MSG_GL_DRAW)
+                mChoreographer?.removeFrameCallback(mVsyncCallback)
+                mChoreographer = null
+                mRenderPacer.reset()
+                mTargetPacers.forEach { pacer ->
+                    pacer.reset()
+                }
                 mEffectList.forEach { effect ->
                     effect.releaseGLES()
                 }
                 mEffectList.clear()
+                mEffectChainRender.release()
                 mCameraRender?.releaseGLES()
                 mScreenRender?.releaseGLES()
                 mCaptureRender?.releaseGLES()
+                mPreviewDataRender?.releaseGLES()
+                mPreviewDataRender = null
+                mYuvConvertRender?.releaseGLES()
+                mYuvConvertRender = null
+                mFrameReadback?.release()
+                mFrameReadback = null
                 mCameraSurfaceTexture?.setOnFrameAvailableListener(null)
                 mCameraSurfaceTexture = null
+                mEngineClient?.let { client ->
+                    engine?.removeClient(client)
+                }
             }
         }
         return true
     }
 
-    private fun drawFrame2Capture(fboId: Int) {
-        mCaptureRender?.drawFrame(fboId)?.let {
-            mCaptureRender!!.getFrameBufferId()
-        }?.also { id ->
-            mFBOBufferId = id
-            // opengl preview data, format is rgba
-            val renderWidth = mCaptureRender?.getRenderWidth() ?: mWidth
-            val renderHeight = mCaptureRender?.getRenderHeight() ?: mHeight
-            val rgbaLen = renderWidth * renderHeight * 4
-            mPreviewDataCbList?.forEach { callback ->
-                if (mPreviewByteBuffer==null || mPreviewByteBuffer?.remaining() != rgbaLen) {
-                    mPreviewByteBuffer = ByteBuffer.allocateDirect(rgbaLen)
-                    mPreviewByteBuffer?.order(ByteOrder.LITTLE_ENDIAN)
+    /**
+     * Size every render by its target, on the render thread
+     *
+     * Camera and effects render at the source size, other targets scale from it.
+     */
+    private fun applyRenderTargets() {
+        if (mWidth == 0 || mHeight == 0) {
+            return
+        }
+        mSourceWidth = getTargetWidth(RenderTarget.Type.SOURCE)
+        mSourceHeight = getTargetHeight(RenderTarget.Type.SOURCE)
+        mCameraRender?.setSize(mSourceWidth, mSourceHeight)
+        mEffectChainRender.setSize(mSourceWidth, mSourceHeight)
+        mCameraSurfaceTexture?.setDefaultBufferSize(mSourceWidth, mSourceHeight)
+        // screen surface size is decided by the view
+        mScreenRender?.setScaleType(getTargetScaleType(RenderTarget.Type.SCREEN), mSourceWidth, mSourceHeight)
+        mScreenRender?.setSize(mWidth, mHeight)
+        mCaptureRender?.setScaleType(getTargetScaleType(RenderTarget.Type.CAPTURE), mSourceWidth, mSourceHeight)
+        mCaptureRender?.setSize(getTargetWidth(RenderTarget.Type.CAPTURE), getTargetHeight(RenderTarget.Type.CAPTURE))
+        // preview data shares the capture fbo, unless it has its own size
+        if (mRenderTargets.get(RenderTarget.Type.PREVIEW_DATA.ordinal)?.hasSize() == true) {
+            val render = mPreviewDataRender ?: CaptureRender(mContext).also {
+                it.initGLES()
+                mPreviewDataRender = it
+            }
+            render.setScaleType(getTargetScaleType(RenderTarget.Type.PREVIEW_DATA), mSourceWidth, mSourceHeight)
+            render.setSize(getTargetWidth(RenderTarget.Type.PREVIEW_DATA), getTargetHeight(RenderTarget.Type.PREVIEW_DATA))
+        } else {
+            mPreviewDataRender?.releaseGLES()
+            mPreviewDataRender = null
+        }
+        mFrameReadback?.reset()
+        mTargetPacers.forEachIndexed { index, pacer ->
+            pacer.setTargetFps(mRenderTargets.get(index)?.fps ?: 0)
+            pacer.reset()
+        }
+        applyCodecScaleType()
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "apply render targets, source = ${mSourceWidth}x$mSourceHeight, screen = ${mWidth}x$mHeight")
+        }
+    }
+
+    private fun applyCodecScaleType() {
+        mRenderCodecHandler?.obtainMessage(MSG_GL_RENDER_CODEC_SCALE_TYPE, mSourceWidth, mSourceHeight,
+            getTargetScaleType(RenderTarget.Type.ENCODE))?.sendToTarget()
+    }
+
+    private fun getTargetWidth(type: RenderTarget.Type): Int {
+        return mRenderTargets.get(type.ordinal)?.takeIf { it.hasSize() }?.width ?: mWidth
+    }
+
+    private fun getTargetHeight(type: RenderTarget.Type): Int {
+        return mRenderTargets.get(type.ordinal)?.takeIf { it.hasSize() }?.height ?: mHeight
+    }
+
+    private fun getTargetScaleType(type: RenderTarget.Type): ScaleType {
+        return mRenderTargets.get(type.ordinal)?.scaleType ?: ScaleType.STRETCH
+    }
+
+    /**
+     * Whether a target is due at this frame, by its own frame rate
+     */
+    private fun isTargetDue(type: RenderTarget.Type, nowNs: Long): Boolean {
+        val pacer = mTargetPacers[type.ordinal]
+        if (pacer.getDelayNs(nowNs) > 0) {
+            return false
+        }
+        pacer.onDraw(nowNs)
+        return true
+    }
+
+    /**
+     * Draw now, or later by the pacer or vsync,
+     *  frames available before the draw are coalesced into it
+     */
+    private fun scheduleDraw() {
+        val fps = mRenderFps
+        if (fps != mPacerFps) {
+            // reconfigured, not delayed by the last draw of the old rate
+            mPacerFps = fps
+            mRenderPacer.setTargetFps(fps)
+            mRenderPacer.reset()
+        }
+        val delayNs = mRenderPacer.getDelayNs(System.nanoTime())
+        if (delayNs > 0) {
+            mRenderHandler?.sendEmptyMessageDelayed(MSG_GL_DRAW, (delayNs + NS_PER_MS - 1) / NS_PER_MS)
+            return
+        }
+        val choreographer = mChoreographer
+        if (isVsyncPacing && choreographer != null) {
+            choreographer.postFrameCallback(mVsyncCallback)
+            return
+        }
+        drawFrameOrRequest()
+    }
+
+    /**
+     * Draw now, or in the next round of the shared engine
+     */
+    private fun drawFrameOrRequest() {
+        val client = mEngineClient
+        if (client != null) {
+            engine?.requestDraw(client)
+            return
+        }
+        drawFrameInternal()
+    }
+
+    private fun drawFrameInternal() {
+        if (engine != null) {
+            mScreenRender?.makeCurrent()
+        }
+        mDrawPending.set(false)
+        val frames = mAvailableFrames.getAndSet(0)
+        if (frames == 0) {
+            return
+        }
+        val nowNs = System.nanoTime()
+        mRenderPacer.onDraw(nowNs)
+        mRenderedFrames++
+        mSkippedFrames += frames - 1
+        mMaxLatencyNs = maxOf(mMaxLatencyNs, nowNs - mFirstAvailableNs)
+        //Render camera data to SurfaceTexture
+        //Set the correction matrix of the image at the same time
+        mCameraSurfaceTexture?.updateTexImage()
+        mCameraSurfaceTexture?.getTransformMatrix(mTransformMatrix)
+        mCameraRender?.setTransformMatrix(mTransformMatrix)
+        val surfaceTexture = mCameraSurfaceTexture
+        val timestamp = if (surfaceTexture != null) surfaceTexture.timestamp else 0L
+        mFrameMetadataRing?.bind(timestamp, METADATA_BIND_TOLERANCE_NS,
+            if (frames > 1) FrameMetadata.FLAG_DROP_RENDER else 0)
+        //Filter FBO and rendering
+        //Color only effects are fused into one pass
+        //Each target renders at its own size and frame rate
+        //Primitive locals only, nothing is allocated per frame
+        val isScreenDue = ! isHeadless && isTargetDue(RenderTarget.Type.SCREEN, nowNs)
+        val cameraRender = mCameraRender
+        val eosTextureId = mEOSTextureId
+        if (cameraRender != null && eosTextureId != null) {
+            val id = mEffectChainRender.drawFrame(cameraRender.drawFrame(eosTextureId))
+            if (isScreenDue) {
+                mScreenRender?.drawFrame(id)
+            }
+            drawFrame2Capture(id, nowNs, timestamp)
+            if (mRenderCodecHandler != null && isTargetDue(RenderTarget.Type.ENCODE, nowNs)) {
+                drawFrame2Codec(id, timestamp)
+            }
+        }
+        if (isScreenDue) {
+            mScreenRender?.swapBuffers(timestamp)
+        }
+        emitRenderStats(nowNs)
+    }
+
+    private fun drawFrame2Capture(fboId: Int, nowNs: Long, timestamp: Long) {
+        var captureTextureId = 0
+        val isCaptureDue = isTargetDue(RenderTarget.Type.CAPTURE, nowNs)
+        val captureRender = mCaptureRender
+        if (isCaptureDue && captureRender != null) {
+            captureTextureId = captureRender.drawFrame(fboId)
+            mFBOBufferId = captureRender.getFrameBufferId()
+        }
+        if (mPreviewDataCbList.isNullOrEmpty()) {
+            mFrameReadback?.reset()
+            return
+        }
+        if (! isTargetDue(RenderTarget.Type.PREVIEW_DATA, nowNs)) {
+            return
+        }
+        // preview data has its own fbo, or shares the capture one
+        val previewRender = mPreviewDataRender ?: mCaptureRender ?: return
+        if (previewRender !== mCaptureRender || ! isCaptureDue) {
+            captureTextureId = previewRender.drawFrame(fboId)
+        }
+        previewRender.getFrameBufferId().also { id ->
+            // opengl preview data, format is rgba, or yuv converted on gpu
+            // read once for all callbacks, by pbo when supported
+            val renderWidth = previewRender.getRenderWidth()
+            val renderHeight = previewRender.getRenderHeight()
+            val readback = mFrameReadback ?: createFrameReadback().also {
+                mFrameReadback = it
+            }
+            val format = mPreviewDataFormat
+            if (format == IPreviewDataCallBack.DataFormat.NV12 || format == IPreviewDataCallBack.DataFormat.I420) {
+                // convert on gpu, read back 1.5 bytes per pixel
+                val render = mYuvConvertRender ?: YuvConvertRender(mContext).also {
+                    it.initGLES()
+                    if (! it.isReady()) {
+                        Logger.e(TAG, "yuv convert program unavailable, preview data falls back to rgba")
+                    }
+                    mYuvConvertRender = it
                 }
-                mPreviewByteBuffer?.let {
-                    it.clear()
-                    GLBitmapUtils.readPixelToByteBuffer(id,renderWidth, renderHeight, mPreviewByteBuffer)
-                    callback.onPreviewData(it.array(),renderWidth, renderHeight, IPreviewDataCallBack.DataFormat.RGBA)
+                render.takeIf {
+                    it.isReady()
+                }?.setImageSize(renderWidth, renderHeight, format)?.let { packer ->
+                    render.drawFrame(captureTextureId)
+                    readback.readFrame(render.getFrameBufferId(), packer.packedWidth, packer.packedHeight,
+                        renderWidth, renderHeight, format, mPreviewFrameListener, timestamp)
+                    return@also
                 }
             }
+            readback.readFrame(id, renderWidth, renderHeight, mPreviewFrameListener, timestamp)
+        }
+    }
+
+    /**
+     * Set output of a render target, can be called before rendering
+     *
+     * @param type target type, see [RenderTarget.Type]
+     * @param target size, scale type and frame rate, null means following the render size
+     */
+    fun setRenderTarget(type: RenderTarget.Type, target: RenderTarget?) {
+        mRenderTargets.set(type.ordinal, target)
+        mRenderHandler?.obtainMessage(MSG_GL_APPLY_TARGETS)?.sendToTarget()
+    }
+
+    /**
+     * Set data format of [IPreviewDataCallBack] in OpenGL mode
+     *
+     * @param format [IPreviewDataCallBack.DataFormat.RGBA], [IPreviewDataCallBack.DataFormat.NV12]
+     *  or [IPreviewDataCallBack.DataFormat.I420], yuv size must be multiple of 8 x 4
+     *  and the gpu must support highp float in fragment shaders, otherwise rgba is delivered
+     */
+    fun setPreviewDataFormat(format: IPreviewDataCallBack.DataFormat) {
+        if (format == IPreviewDataCallBack.DataFormat.NV21) {
+            Logger.w(TAG, "NV21 is not supported in OpenGL mode, use NV12 instead")
+            mPreviewDataFormat = IPreviewDataCallBack.DataFormat.NV12
+            return
         }
+        mPreviewDataFormat = format
+    }
+
+    private fun createFrameReadback(): FrameReadback {
+        val reader = if (PboFrameReader.isSupported()) {
+            PboFrameReader()
+        } else {
+            SyncFrameReader()
+        }
+        Logger.i(TAG, "create frame readback, reader = ${reader.javaClass.simpleName}")
+        return FrameReadback(reader)
     }
 
     /**
      * Start render screen
      *
-     * @param w surface width
-     * @param h surface height
-     * @param outSurface render surface
+     * @param w surface width, or the render size when headless
+     * @param h surface height, or the render size when headless
+     * @param outSurface render surface, null means headless, the screen pass and swap are skipped,
+     *  only capture, preview data and encoder are rendered
      * @param listener acquire camera surface texture, see [CameraSurfaceTextureListener]
      */
     fun startRenderScreen(w: Int, h: Int, outSurface: Surface?, listener: CameraSurfaceTextureListener? = null) {
-        mRenderThread = HandlerThread(RENDER_THREAD)
-        mRenderThread?.start()
-        mRenderHandler = Handler(mRenderThread!!.looper, this@RenderManager)
-        Triple(w, h, outSurface).apply {
-            mRenderHandler?.obtainMessage(MSG_GL_INIT, this)?.sendToTarget()
+        isHeadless = outSurface == null
+        if (isHeadless) {
+            Logger.i(TAG, "start headless render, size = ${w}x$h")
+        }
+        mRenderHandler = if (engine != null) {
+            Handler(engine.getLooper(), this@RenderManager)
+        } else {
+            mRenderThread = HandlerThread(RENDER_THREAD)
+            mRenderThread?.start()
+            Handler(mRenderThread!!.looper, this@RenderManager)
         }
+        mRenderHandler?.obtainMessage(MSG_GL_INIT, w, h, outSurface)?.sendToTarget()
         // wait camera SurfaceTexture created
         try {
             mStFuture.get(3, TimeUnit.SECONDS)
@@ -270,6 +584,11 @@ class RenderManager(
         setRenderSize(w, h)
     }
 
+    /**
+     * Whether rendering without a view surface
+     */
+    fun isHeadlessRender() = isHeadless
+
     /**
      * Stop render screen
      */
@@ -288,9 +607,7 @@ class RenderManager(
      * @param height camera preview height
      */
     fun startRenderCodec(inputSurface: Surface, width: Int, height: Int) {
-        Triple(inputSurface, width, height).apply {
-            mRenderHandler?.obtainMessage(MSG_GL_START_RENDER_CODEC, this)?.sendToTarget()
-        }
+        mRenderHandler?.obtainMessage(MSG_GL_START_RENDER_CODEC, width, height, inputSurface)?.sendToTarget()
     }
 
     /**
@@ -307,7 +624,7 @@ class RenderManager(
      * @param h surface height
      */
     fun setRenderSize(w: Int, h: Int) {
-        mRenderHandler?.obtainMessage(MSG_GL_CHANGED_SIZE, Pair(w, h))?.sendToTarget()
+        mRenderHandler?.obtainMessage(MSG_GL_CHANGED_SIZE, w, h)?.sendToTarget()
     }
 
     /**
@@ -355,40 +672,103 @@ class RenderManager(
         mRenderHandler?.obtainMessage(MSG_GL_SAVE_IMAGE, path)?.sendToTarget()
     }
 
+    /**
+     * Set render pacing, frames arriving faster are skipped
+     *
+     * @param fps max render frame rate, 0 means no limit
+     * @param isVsync draw on display vsync
+     */
+    fun setRenderPacing(fps: Int, isVsync: Boolean) {
+        this.mRenderFps = fps
+        this.isVsyncPacing = isVsync
+        mEngineClient?.setTargetFps(fps)
+    }
+
+    /**
+     * Set draw time budget on the shared engine, a camera exceeding it is delayed
+     *  in favour of the others, see [RenderEngine]
+     *
+     * @param budgetMs max draw time of a frame, 0 means no limit
+     * @param name camera name in [com.jiangdg.ausbc.render.bean.RenderEngineStats]
+     */
+    fun setRenderBudget(budgetMs: Int, name: String? = null) {
+        mEngineClient?.setBudget(budgetMs)
+        name?.let {
+            mEngineClient?.name = it
+        }
+    }
+
+    /**
+     * Set frame metadata ring, frames are recorded when available
+     *  and bound to the SurfaceTexture timestamp when drawn
+     *
+     * @param ring see [FrameMetadataRing], null means no metadata
+     */
+    fun setFrameMetadataRing(ring: FrameMetadataRing?) {
+        this.mFrameMetadataRing = ring
+    }
+
     override fun onFrameAvailable(surfaceTexture: SurfaceTexture?) {
         emitFrameRate()
-        mRenderHandler?.obtainMessage(MSG_GL_DRAW)?.sendToTarget()
+        val nowNs = System.nanoTime()
+        mFrameMetadataRing?.record(nowNs)
+        if (mAvailableFrames.getAndIncrement() == 0) {
+            mFirstAvailableNs = nowNs
+        }
+        // only one draw pending, it takes the latest frame
+        if (mDrawPending.compareAndSet(false, true)) {
+            mRenderHandler?.sendEmptyMessage(MSG_GL_DRAW)
+        }
     }
 
     private fun startRenderCodecInternal(surface: Surface, w: Int, h: Int) {
         stopRenderCodecInternal()
-        mRenderCodecThread = HandlerThread(RENDER_CODEC_THREAD)
-        mRenderCodecThread?.start()
-        mRenderCodecHandler = Handler(mRenderCodecThread!!.looper) { message ->
+        val shareContext = mScreenRender?.getCurrentContext()
+            ?: throw NullPointerException("Current EGLContext can't be null.")
+        // the shared engine draws the encoder on its own thread and context
+        val codecLooper = if (engine != null) {
+            engine.getLooper()
+        } else {
+            mRenderCodecThread = HandlerThread(RENDER_CODEC_THREAD)
+            mRenderCodecThread?.start()
+            mRenderCodecThread!!.looper
+        }
+        val drawQueue = FrameCommandQueue()
+        val drawScheduled = AtomicBoolean(false)
+        mCodecDrawQueue = drawQueue
+        mCodecDrawScheduled = drawScheduled
+        mRenderCodecHandler = Handler(codecLooper) { message ->
             when (message.what) {
                 MSG_GL_RENDER_CODEC_INIT -> {
-                    (message.obj as Pair<*, *>).apply {
-                        val shareContext = first as EGLContext
-                        val inputSurface = second as Surface
+                    (message.obj as? Surface)?.let { inputSurface ->
                         mEncodeRender = EncodeRender(mContext)
-                        mEncodeRender?.initEGLEvn(shareContext)
+                        val sharedEgl = engine?.getEGLEvn()
+                        if (sharedEgl != null) {
+                            mEncodeRender?.initEGLEvn(sharedEgl)
+                        } else {
+                            mEncodeRender?.initEGLEvn(shareContext)
+                        }
                         mEncodeRender?.setupSurface(inputSurface)
                         mEncodeRender?.initGLES()
                     }
                 }
                 MSG_GL_RENDER_CODEC_CHANGED_SIZE -> {
-                    (message.obj as Pair<*, *>).apply {
-                        val width = first as Int
-                        val height = second as Int
-                        mEncodeRender?.setSize(width, height)
+                    mEncodeRender?.setSize(message.arg1, message.arg2)
+                }
+                MSG_GL_RENDER_CODEC_SCALE_TYPE -> {
+                    (message.obj as? ScaleType)?.let { scaleType ->
+                        mEncodeRender?.setScaleType(scaleType, message.arg1, message.arg2)
                     }
                 }
                 MSG_GL_RENDER_CODEC_DRAW -> {
-                    (message.obj as Pair<*, *>).apply {
-                        val textureId = first as Int
-                        val timeStamps = second as Long
-                        mEncodeRender?.drawFrame(textureId)
-                        mEncodeRender?.swapBuffers(timeStamps)
+                    // drain all queued draws, commands offered from now post a new message
+                    drawScheduled.set(false)
+                    if (engine != null) {
+                        mEncodeRender?.makeCurrent()
+                    }
+                    while (drawQueue.poll()) {
+                        mEncodeRender?.drawFrame(drawQueue.textureId)
+                        mEncodeRender?.swapBuffers(drawQueue.timestampNs)
                     }
                 }
                 MSG_GL_RENDER_CODEC_RELEASE -> {
@@ -398,18 +778,27 @@ class RenderManager(
             }
             true
         }
-        mScreenRender?.getCurrentContext().let {
-            if (it == null) {
-                throw NullPointerException("Current EGLContext can't be null.")
-            }
-            mRenderCodecHandler?.obtainMessage(MSG_GL_RENDER_CODEC_INIT, Pair(it, surface))?.sendToTarget()
-        }
-        mRenderCodecHandler?.obtainMessage(MSG_GL_RENDER_CODEC_CHANGED_SIZE, Pair(w, h))?.sendToTarget()
+        mRenderCodecHandler?.obtainMessage(MSG_GL_RENDER_CODEC_INIT, surface)?.sendToTarget()
+        mRenderCodecHandler?.obtainMessage(MSG_GL_RENDER_CODEC_CHANGED_SIZE, w, h)?.sendToTarget()
+        mTargetPacers[RenderTarget.Type.ENCODE.ordinal].reset()
+        applyCodecScaleType()
     }
 
     private fun drawFrame2Codec(textureId: Int, timeStamps: Long) {
-        Pair(textureId, timeStamps).apply {
-            mRenderCodecHandler?.obtainMessage(MSG_GL_RENDER_CODEC_DRAW, this)?.sendToTarget()
+        val queue = mCodecDrawQueue ?: return
+        if (! queue.offer(textureId, timeStamps)) {
+            isCodecDropped = true
+            if (Utils.debugCamera) {
+                Logger.w(TAG, "codec render is busy, drop frame, dropped = ${queue.droppedCount}")
+            }
+            return
+        }
+        if (isCodecDropped) {
+            mFrameMetadataRing?.addFlags(timeStamps, FrameMetadata.FLAG_DROP_ENCODE)
+            isCodecDropped = false
+        }
+        if (mCodecDrawScheduled?.compareAndSet(false, true) == true) {
+            mRenderCodecHandler?.sendEmptyMessage(MSG_GL_RENDER_CODEC_DRAW)
         }
     }
 
@@ -418,6 +807,8 @@ class RenderManager(
         mRenderCodecThread?.quitSafely()
         mRenderCodecThread = null
         mRenderCodecHandler = null
+        mCodecDrawQueue = null
+        mCodecDrawScheduled = null
     }
 
     private fun saveImageInternal(savePath: String?) {
@@ -432,8 +823,8 @@ class RenderManager(
         val title = savePath ?: "IMG_AUSBC_$date"
         val displayName = savePath ?: "$title.jpg"
         val path = savePath ?: "$mCameraDir/$displayName"
-        val width = mWidth
-        val height = mHeight
+        val width = mCaptureRender?.getRenderWidth() ?: mWidth
+        val height = mCaptureRender?.getRenderHeight() ?: mHeight
         // 写入文件
         // glReadPixels读取的是大端数据，但是我们保存的是小端
         // 故需要将图片上下颠倒为正
@@ -497,11 +888,31 @@ class RenderManager(
                 Logger.i(TAG, "camera render frame rate is $mFrameRate fps-->${Thread.currentThread().name}")
             }
             EventBus.with<Int>(BusKey.KEY_FRAME_RATE).postMessage(mFrameRate)
+            mLastFrameRate = mFrameRate
             mStartTime = mEndTime
             mFrameRate = 0
         }
     }
 
+    private fun emitRenderStats(nowNs: Long) {
+        if (mStatsStartNs == 0L) {
+            mStatsStartNs = nowNs
+            return
+        }
+        if (nowNs - mStatsStartNs < NS_PER_SECOND) {
+            return
+        }
+        val stats = RenderStats(mLastFrameRate, mRenderedFrames, mSkippedFrames, (mMaxLatencyNs / NS_PER_MS).toInt())
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "render stats: $stats")
+        }
+        EventBus.with<RenderStats>(BusKey.KEY_RENDER_STATS).postMessage(stats)
+        mStatsStartNs = nowNs
+        mRenderedFrames = 0
+        mSkippedFrames = 0
+        mMaxLatencyNs = 0L
+    }
+
     /**
      * Camera surface texture listener
      *
@@ -520,6 +931,11 @@ class RenderManager(
         private const val TAG = "RenderManager"
         private const val RENDER_THREAD = "gl_render"
         private const val RENDER_CODEC_THREAD = "gl_render_codec"
+        private const val NS_PER_MS = 1000000L
+        private const val NS_PER_SECOND = 1000000000L
+        private const val HEADLESS_PBUFFER_SIZE = 1
+        // SurfaceTexture timestamp is the queue time of the producer, a little before available
+        private const val METADATA_BIND_TOLERANCE_NS = 20 * NS_PER_MS
         // render
         private const val MSG_GL_INIT = 0x00
         private const val MSG_GL_DRAW = 0x01
@@ -531,11 +947,13 @@ class RenderManager(
         private const val MSG_GL_REMOVE_EFFECT = 0x07
         private const val MSG_GL_SAVE_IMAGE = 0x08
         private const val MSG_GL_ROUTE_ANGLE = 0x09
+        private const val MSG_GL_APPLY_TARGETS = 0x0A
 
         // codec
         private const val MSG_GL_RENDER_CODEC_INIT = 0x11
         private const val MSG_GL_RENDER_CODEC_CHANGED_SIZE = 0x12
         private const val MSG_GL_RENDER_CODEC_DRAW = 0x13
         private const val MSG_GL_RENDER_CODEC_RELEASE = 0x14
+        private const val MSG_GL_RENDER_CODEC_SCALE_TYPE = 0x15
     }
 }
\ No newline at end of file
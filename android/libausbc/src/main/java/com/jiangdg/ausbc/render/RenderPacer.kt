@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render
+
+/** Pace draws to a target frame rate
+ *
+ * A draw is delayed until a frame interval after the last one, with a little
+ *  tolerance so a camera at the same rate is not delayed by jitter.
+ */
+class RenderPacer {
+    private var mIntervalNs = 0L
+    private var mLastDrawNs = 0L
+
+    /**
+     * Set target frame rate
+     *
+     * @param fps frames per second, 0 means no limit
+     */
+    fun setTargetFps(fps: Int) {
+        mIntervalNs = if (fps > 0) NS_PER_SECOND / fps else 0L
+    }
+
+    /**
+     * Get delay of the next draw
+     *
+     * @param nowNs current time, see [System.nanoTime]
+     * @return delay in ns, 0 means drawing now
+     */
+    fun getDelayNs(nowNs: Long): Long {
+        if (mIntervalNs == 0L || mLastDrawNs == 0L) {
+            return 0L
+        }
+        val nextNs = mLastDrawNs + mIntervalNs - mIntervalNs / TOLERANCE_DIVISOR
+        return maxOf(0L, nextNs - nowNs)
+    }
+
+    /**
+     * Called when a frame drawn
+     *
+     * @param nowNs current time, see [System.nanoTime]
+     */
+    fun onDraw(nowNs: Long) {
+        mLastDrawNs = nowNs
+    }
+
+    /**
+     * Forget the last draw
+     */
+    fun reset() {
+        mLastDrawNs = 0L
+    }
+
+    companion object {
+        private const val NS_PER_SECOND = 1000000000L
+        private const val TOLERANCE_DIVISOR = 8
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.bean
+
+import androidx.annotation.Keep
+
+/** Per camera statistics of the shared render engine in the last second,
+ *  see [com.jiangdg.ausbc.utils.bus.BusKey.KEY_RENDER_ENGINE_STATS]
+ *
+ * @property name camera name
+ * @property frameRate frames drawn
+ * @property targetFps max frame rate, 0 means no limit
+ * @property avgCostUs average draw time
+ * @property maxCostUs max draw time
+ * @property budgetUs draw time budget, 0 means no limit
+ * @property throttledDraws draws delayed for exceeding the budget
+ */
+@Keep
+data class RenderEngineStats(
+    val name: String,
+    val frameRate: Int,
+    val targetFps: Int,
+    val avgCostUs: Int,
+    val maxCostUs: Int,
+    val budgetUs: Int,
+    val throttledDraws: Int
+)
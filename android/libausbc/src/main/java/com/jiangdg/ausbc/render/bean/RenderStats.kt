@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.bean
+
+import androidx.annotation.Keep
+
+/** Render statistics of the last second, see [com.jiangdg.ausbc.utils.bus.BusKey.KEY_RENDER_STATS]
+ *
+ * @property frameRate camera frames available
+ * @property renderedFrames frames drawn
+ * @property skippedFrames frames replaced by a newer one before drawn
+ * @property maxLatencyMs max time from a frame available to drawn
+ */
+@Keep
+data class RenderStats(
+    val frameRate: Int,
+    val renderedFrames: Int,
+    val skippedFrames: Int,
+    val maxLatencyMs: Int
+)
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.bean
+
+import androidx.annotation.Keep
+import com.jiangdg.ausbc.render.env.ScaleType
+
+/** Output of a render target
+ *
+ * @property width target width, 0 means following the render size
+ * @property height target height, 0 means following the render size
+ * @property scaleType how the source is scaled into the target, see [ScaleType]
+ * @property fps max frame rate of the target, 0 means every rendered frame
+ */
+@Keep
+data class RenderTarget(
+    val width: Int = 0,
+    val height: Int = 0,
+    val scaleType: ScaleType = ScaleType.STRETCH,
+    val fps: Int = 0
+) {
+    fun hasSize() = width > 0 && height > 0
+
+    /**
+     * Render target type
+     *
+     * SOURCE: camera and effects, other targets are scaled from it, only size is used
+     * SCREEN: view surface, always the render size, size is not used
+     * CAPTURE: fbo of captured images
+     * ENCODE: encoder input surface, size is applied when the encoder is created
+     * PREVIEW_DATA: fbo of [com.jiangdg.ausbc.callback.IPreviewDataCallBack],
+     *              shares the CAPTURE fbo when no size set
+     */
+    enum class Type {
+        SOURCE,
+        SCREEN,
+        CAPTURE,
+        ENCODE,
+        PREVIEW_DATA
+    }
+}
@@ -16,6 +16,7 @@
 package com.jiangdg.ausbc.render.effect
 
 import android.content.Context
+import com.jiangdg.ausbc.render.effect.fusion.ColorStage
 import com.jiangdg.ausbc.render.internal.AbstractFboRender
 
 /** abstract effect class, extended from AbstractFboRender
@@ -37,4 +38,20 @@ abstract class AbstractEffect(ctx: Context) : AbstractFboRender(ctx) {
      * @return effect classify id
      */
     abstract fun getClassifyId(): Int
+
+    /**
+     * Get color stage, override it when the effect only changes the color
+     *  of each pixel, then it can be fused with neighbors into one pass
+     *
+     * @return see [ColorStage], null means drawing by its own pass
+     */
+    open fun getColorStage(): ColorStage? = null
+
+    /**
+     * Set uniforms of the color stage in a fused program
+     *
+     * @param program fused program, in use
+     * @param prefix prefix of names in the stage, see [ColorStage.PREFIX]
+     */
+    open fun beforeFusedDraw(program: Int, prefix: String) {}
 }
\ No newline at end of file
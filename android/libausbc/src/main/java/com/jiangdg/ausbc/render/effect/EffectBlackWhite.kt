@@ -18,6 +18,7 @@ package com.jiangdg.ausbc.render.effect
 import android.content.Context
 import com.jiangdg.ausbc.R
 import com.jiangdg.ausbc.render.effect.bean.CameraEffect
+import com.jiangdg.ausbc.render.effect.fusion.ColorStage
 
 /** Black White effect
  *
@@ -33,7 +34,18 @@ class EffectBlackWhite(ctx: Context) : AbstractEffect(ctx) {
 
     override fun getFragmentSourceId(): Int = R.raw.effect_blackw_fragment
 
+    // same as effect_blackw_fragment.glsl
+    override fun getColorStage(): ColorStage = COLOR_STAGE
+
     companion object {
         const val ID = 100
+
+        private val COLOR_STAGE = ColorStage(
+            "EffectBlackWhite",
+            """
+            float luminance = color.r * 0.299 + color.g * 0.584 + color.b * 0.114;
+            color = vec4(vec3(luminance), color.a);
+            """.trimIndent()
+        )
     }
 }
\ No newline at end of file
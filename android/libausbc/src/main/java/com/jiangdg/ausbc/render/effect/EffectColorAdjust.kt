@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.effect
+
+import android.content.Context
+import android.opengl.GLES20
+import com.jiangdg.ausbc.R
+import com.jiangdg.ausbc.render.effect.bean.CameraEffect
+import com.jiangdg.ausbc.render.effect.fusion.ColorStage
+
+/** Brightness, contrast and saturation effect
+ *
+ * Only changes the color of each pixel, so it is fused with neighbor
+ *  color effects, such as [EffectBlackWhite], into one pass. It has its own
+ *  classify, so it can be used together with a filter.
+ */
+class EffectColorAdjust(ctx: Context) : AbstractEffect(ctx) {
+    @Volatile
+    private var mBrightness = DEFAULT_BRIGHTNESS
+    @Volatile
+    private var mContrast = DEFAULT_CONTRAST
+    @Volatile
+    private var mSaturation = DEFAULT_SATURATION
+    private var mBrightnessHandler = -1
+    private var mContrastHandler = -1
+    private var mSaturationHandler = -1
+    // uniform locations in the fused program, looked up again when it changed
+    private var mFusedProgram = 0
+    private var mFusedPrefix: String? = null
+    private var mFusedBrightnessHandler = -1
+    private var mFusedContrastHandler = -1
+    private var mFusedSaturationHandler = -1
+
+    /**
+     * Set brightness
+     *
+     * @param brightness added to each channel, -1.0 to 1.0, 0.0 means unchanged
+     */
+    fun setBrightness(brightness: Float) {
+        mBrightness = brightness.coerceIn(-1f, 1f)
+    }
+
+    /**
+     * Set contrast
+     *
+     * @param contrast scale around the middle gray, 0.0 to 4.0, 1.0 means unchanged
+     */
+    fun setContrast(contrast: Float) {
+        mContrast = contrast.coerceIn(0f, 4f)
+    }
+
+    /**
+     * Set saturation
+     *
+     * @param saturation 0.0 is grayscale, 1.0 means unchanged, up to 4.0
+     */
+    fun setSaturation(saturation: Float) {
+        mSaturation = saturation.coerceIn(0f, 4f)
+    }
+
+    override fun getId(): Int = ID
+
+    override fun getClassifyId(): Int = CameraEffect.CLASSIFY_ID_ADJUST
+
+    override fun init() {
+        mBrightnessHandler = GLES20.glGetUniformLocation(mProgram, "uBrightness")
+        mContrastHandler = GLES20.glGetUniformLocation(mProgram, "uContrast")
+        mSaturationHandler = GLES20.glGetUniformLocation(mProgram, "uSaturation")
+    }
+
+    override fun beforeDraw() {
+        GLES20.glUniform1f(mBrightnessHandler, mBrightness)
+        GLES20.glUniform1f(mContrastHandler, mContrast)
+        GLES20.glUniform1f(mSaturationHandler, mSaturation)
+    }
+
+    override fun getVertexSourceId(): Int = R.raw.base_vertex
+
+    override fun getFragmentSourceId(): Int = R.raw.effect_color_adjust_fragment
+
+    // same as effect_color_adjust_fragment.glsl
+    override fun getColorStage(): ColorStage = COLOR_STAGE
+
+    override fun beforeFusedDraw(program: Int, prefix: String) {
+        if (program != mFusedProgram || prefix != mFusedPrefix) {
+            mFusedProgram = program
+            mFusedPrefix = prefix
+            mFusedBrightnessHandler = GLES20.glGetUniformLocation(program, "${prefix}brightness")
+            mFusedContrastHandler = GLES20.glGetUniformLocation(program, "${prefix}contrast")
+            mFusedSaturationHandler = GLES20.glGetUniformLocation(program, "${prefix}saturation")
+        }
+        GLES20.glUniform1f(mFusedBrightnessHandler, mBrightness)
+        GLES20.glUniform1f(mFusedContrastHandler, mContrast)
+        GLES20.glUniform1f(mFusedSaturationHandler, mSaturation)
+    }
+
+    companion object {
+        const val ID = 101
+        const val DEFAULT_BRIGHTNESS = 0f
+        const val DEFAULT_CONTRAST = 1f
+        const val DEFAULT_SATURATION = 1f
+
+        private val COLOR_STAGE = ColorStage(
+            "EffectColorAdjust",
+            """
+            vec3 ${ColorStage.PREFIX}rgb = (color.rgb - 0.5) * ${ColorStage.PREFIX}contrast + 0.5 + ${ColorStage.PREFIX}brightness;
+            float ${ColorStage.PREFIX}luminance = dot(${ColorStage.PREFIX}rgb, vec3(0.299, 0.587, 0.114));
+            ${ColorStage.PREFIX}rgb = mix(vec3(${ColorStage.PREFIX}luminance), ${ColorStage.PREFIX}rgb, ${ColorStage.PREFIX}saturation);
+            color = vec4(clamp(${ColorStage.PREFIX}rgb, 0.0, 1.0), color.a);
+            """.trimIndent(),
+            """
+            uniform float ${ColorStage.PREFIX}brightness;
+            uniform float ${ColorStage.PREFIX}contrast;
+            uniform float ${ColorStage.PREFIX}saturation;
+            """.trimIndent()
+        )
+    }
+}
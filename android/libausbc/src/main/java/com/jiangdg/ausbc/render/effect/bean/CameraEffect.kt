@@ -53,6 +53,7 @@ data class CameraEffect(
 
         const val CLASSIFY_ID_FILTER = 1
         const val CLASSIFY_ID_ANIMATION = 2
+        const val CLASSIFY_ID_ADJUST = 3
         const val ID_NONE_FILTER = -1
         const val ID_NONE_ANIMATION = -2
         private const val NAME_NONE = "None"
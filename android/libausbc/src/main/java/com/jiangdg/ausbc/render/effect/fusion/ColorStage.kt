@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.effect.fusion
+
+/** Per pixel color transform of an effect, can be fused with others into one pass
+ *
+ * [body] is a piece of GLSL run in main() of the fused shader, it reads and writes
+ *  `vec4 color`, locals are scoped to the stage. [declarations] are put before main(),
+ *  such as uniforms and functions. Names in both must contain [PREFIX], which is
+ *  replaced with a unique prefix of the stage, see [EffectShaderGenerator.getPrefix].
+ *
+ * @property key unique for the same GLSL, such as the effect class name
+ * @property body GLSL statements
+ * @property declarations GLSL declarations
+ */
+data class ColorStage(
+    val key: String,
+    val body: String,
+    val declarations: String = ""
+) {
+    companion object {
+        const val PREFIX = "_P_"
+    }
+}
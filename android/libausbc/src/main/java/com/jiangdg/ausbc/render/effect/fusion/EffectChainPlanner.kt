@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.effect.fusion
+
+/** Split an effect chain into passes
+ *
+ * Consecutive effects with a [ColorStage] are fused into one pass, others,
+ *  such as effects sampling neighbors or moving vertices, keep their own pass.
+ *  A single fusible effect keeps its own pass as well.
+ *
+ * @param stageOf color stage of an effect, null means not fusible
+ */
+class EffectChainPlanner<T>(private val stageOf: (T) -> ColorStage?) {
+
+    /**
+     * A draw pass
+     */
+    sealed class Pass<T> {
+        /**
+         * Draw by the effect itself
+         */
+        class Single<T>(val effect: T) : Pass<T>()
+
+        /**
+         * Draw by a generated program
+         *
+         * @property effects fused effects in draw order
+         * @property stages color stages of [effects]
+         * @property signature see [EffectShaderGenerator.getSignature]
+         */
+        class Fused<T>(val effects: List<T>, val stages: List<ColorStage>, val signature: String) : Pass<T>()
+    }
+
+    /**
+     * Plan passes of an effect chain
+     *
+     * @param effects effects in draw order
+     * @return passes in draw order
+     */
+    fun plan(effects: List<T>): List<Pass<T>> {
+        val passes = arrayListOf<Pass<T>>()
+        val runEffects = arrayListOf<T>()
+        val runStages = arrayListOf<ColorStage>()
+        fun flush() {
+            when (runEffects.size) {
+                0 -> return
+                1 -> passes.add(Pass.Single(runEffects[0]))
+                else -> passes.add(Pass.Fused(runEffects.toList(), runStages.toList(), EffectShaderGenerator.getSignature(runStages)))
+            }
+            runEffects.clear()
+            runStages.clear()
+        }
+        effects.forEach { effect ->
+            val stage = stageOf(effect)
+            if (stage == null) {
+                flush()
+                passes.add(Pass.Single(effect))
+                return@forEach
+            }
+            runEffects.add(effect)
+            runStages.add(stage)
+        }
+        flush()
+        return passes
+    }
+}
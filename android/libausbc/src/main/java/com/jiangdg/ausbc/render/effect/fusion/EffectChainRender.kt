@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.effect.fusion
+
+import android.content.Context
+import com.jiangdg.ausbc.render.effect.AbstractEffect
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+
+/** Draw an effect chain with fused passes
+ *
+ * The chain is planned by [EffectChainPlanner] when effects changed, programs
+ *  of fused passes are cached by signature, so switching filters back and forth
+ *  does not compile again. Must be used on the render thread.
+ */
+class EffectChainRender(private val context: Context) {
+    private val mPlanner = EffectChainPlanner<AbstractEffect> { effect ->
+        effect.getColorStage()
+    }
+    private val mFusedCache = SignatureCache<FusedEffectRender>(MAX_CACHED_PROGRAMS) { render ->
+        render.releaseGLES()
+    }
+    private var mPasses: List<EffectChainPlanner.Pass<AbstractEffect>> = emptyList()
+    private var mWidth = 0
+    private var mHeight = 0
+
+    /**
+     * Set effects, called when an effect added or removed
+     *
+     * @param effects effects in draw order, already initialized
+     */
+    fun setEffects(effects: List<AbstractEffect>) {
+        mPasses = mPlanner.plan(effects)
+        applySize()
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "plan effects, effects = ${effects.size}, passes = ${mPasses.size}")
+        }
+    }
+
+    /**
+     * Set size of the passes, only effects drawn by their own pass have a fbo
+     */
+    fun setSize(width: Int, height: Int) {
+        mWidth = width
+        mHeight = height
+        mFusedCache.forEach { render ->
+            render.setSize(width, height)
+        }
+        applySize()
+    }
+
+    /**
+     * Draw the chain
+     *
+     * @param textureId input texture
+     * @return output texture, the input one if no effect
+     */
+    fun drawFrame(textureId: Int): Int {
+        // index loops, no iterator per frame
+        var id = textureId
+        val passes = mPasses
+        for (i in passes.indices) {
+            id = when (val pass = passes[i]) {
+                is EffectChainPlanner.Pass.Single -> pass.effect.drawFrame(id)
+                is EffectChainPlanner.Pass.Fused -> drawFused(pass, id)
+            }
+        }
+        return id
+    }
+
+    /**
+     * Release cached programs
+     */
+    fun release() {
+        mFusedCache.clear()
+        mPasses = emptyList()
+    }
+
+    private fun drawFused(pass: EffectChainPlanner.Pass.Fused<AbstractEffect>, textureId: Int): Int {
+        val render = mFusedCache.getOrPut(pass.signature) {
+            FusedEffectRender(context, pass.stages).apply {
+                initGLES()
+                setSize(mWidth, mHeight)
+                Logger.i(TAG, "create fused program, signature = ${pass.signature}, ready = ${isProgramReady()}")
+            }
+        }
+        if (! render.isProgramReady()) {
+            // generated shader failed, draw one by one
+            var id = textureId
+            for (i in pass.effects.indices) {
+                ensureSize(pass.effects[i])
+                id = pass.effects[i].drawFrame(id)
+            }
+            return id
+        }
+        render.setEffects(pass.effects)
+        return render.drawFrame(textureId)
+    }
+
+    private fun applySize() {
+        val passes = mPasses
+        for (i in passes.indices) {
+            when (val pass = passes[i]) {
+                is EffectChainPlanner.Pass.Single -> ensureSize(pass.effect)
+                // drawn by the fused program, their own fbo is never used
+                is EffectChainPlanner.Pass.Fused -> pass.effects.forEach { effect ->
+                    effect.releaseFBO()
+                }
+            }
+        }
+    }
+
+    private fun ensureSize(effect: AbstractEffect) {
+        if (mWidth == 0 || mHeight == 0) {
+            return
+        }
+        if (effect.hasFBO() && effect.getRenderWidth() == mWidth && effect.getRenderHeight() == mHeight) {
+            return
+        }
+        effect.setSize(mWidth, mHeight)
+    }
+
+    companion object {
+        private const val TAG = "EffectChainRender"
+        private const val MAX_CACHED_PROGRAMS = 4
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.effect.fusion
+
+/** Generate the fragment shader of fused color stages
+ */
+object EffectShaderGenerator {
+    private const val SEPARATOR = "|"
+
+    /**
+     * Signature of a chain, same signature same shader
+     *
+     * @param stages color stages in draw order
+     * @return signature
+     */
+    fun getSignature(stages: List<ColorStage>): String {
+        return stages.joinToString(SEPARATOR) { it.key }
+    }
+
+    /**
+     * Prefix of names of a stage
+     *
+     * @param index stage index in the chain
+     * @return prefix, such as "s0_"
+     */
+    fun getPrefix(index: Int): String = "s${index}_"
+
+    /**
+     * Generate fragment shader, works with base_vertex.glsl
+     *
+     * @param stages color stages in draw order
+     * @return GLSL source
+     */
+    fun generateFragment(stages: List<ColorStage>): String {
+        val sb = StringBuilder()
+        sb.append("precision mediump float;\n")
+        sb.append("uniform sampler2D uTextureSampler;\n")
+        sb.append("varying vec2 vTextureCoord;\n")
+        stages.forEachIndexed { index, stage ->
+            if (stage.declarations.isNotBlank()) {
+                sb.append("// ").append(stage.key).append('\n')
+                sb.append(stage.declarations.replace(ColorStage.PREFIX, getPrefix(index)).trimEnd()).append('\n')
+            }
+        }
+        sb.append("void main()\n{\n")
+        sb.append("    vec4 color = texture2D(uTextureSampler, vTextureCoord);\n")
+        stages.forEachIndexed { index, stage ->
+            sb.append("    // ").append(stage.key).append('\n')
+            sb.append("    {\n")
+            stage.body.replace(ColorStage.PREFIX, getPrefix(index)).trimEnd().lines().forEach { line ->
+                sb.append("        ").append(line.trim()).append('\n')
+            }
+            sb.append("    }\n")
+        }
+        sb.append("    gl_FragColor = color;\n")
+        sb.append("}\n")
+        return sb.toString()
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.effect.fusion
+
+import android.content.Context
+import com.jiangdg.ausbc.R
+import com.jiangdg.ausbc.render.effect.AbstractEffect
+import com.jiangdg.ausbc.render.internal.AbstractFboRender
+
+/** Inherit from AbstractFboRender
+ *      draw fused color stages with base_vertex.glsl and a generated fragment shader
+ *
+ * @param stages color stages in draw order, see [EffectShaderGenerator]
+ */
+class FusedEffectRender(context: Context, private val stages: List<ColorStage>) : AbstractFboRender(context) {
+    private var mEffects: List<AbstractEffect> = emptyList()
+    private val mPrefixes = Array(stages.size) { index ->
+        EffectShaderGenerator.getPrefix(index)
+    }
+
+    /**
+     * Set effects owning the stages, they set their uniforms before drawing
+     *
+     * @param effects effects in draw order
+     */
+    fun setEffects(effects: List<AbstractEffect>) {
+        this.mEffects = effects
+    }
+
+    fun isProgramReady() = mProgram != 0
+
+    override fun beforeDraw() {
+        val effects = mEffects
+        for (i in effects.indices) {
+            effects[i].beforeFusedDraw(mProgram, mPrefixes[i])
+        }
+    }
+
+    override fun getFragmentSource(): String = EffectShaderGenerator.generateFragment(stages)
+
+    override fun getProgramKey(): String = "fused-${EffectShaderGenerator.getSignature(stages)}"
+
+    override fun getVertexSourceId(): Int = R.raw.base_vertex
+
+    override fun getFragmentSourceId(): Int = 0
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.effect.fusion
+
+/** Least recently used cache keyed by signature
+ *
+ * @property maxSize max entries
+ * @property onEvict called when an entry is evicted or cleared
+ */
+class SignatureCache<V>(
+    private val maxSize: Int,
+    private val onEvict: (V) -> Unit
+) {
+    private val mMap = object : LinkedHashMap<String, V>(maxSize, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, V>?): Boolean {
+            if (size <= maxSize) {
+                return false
+            }
+            eldest?.value?.let(onEvict)
+            return true
+        }
+    }
+
+    /**
+     * Get a cached value, or create and cache one
+     *
+     * @param signature key
+     * @param create create a value when missed
+     * @return value
+     */
+    fun getOrPut(signature: String, create: () -> V): V {
+        mMap[signature]?.let {
+            return it
+        }
+        return create().also {
+            mMap[signature] = it
+        }
+    }
+
+    /**
+     * Visit all values, such as resizing
+     */
+    fun forEach(action: (V) -> Unit) {
+        mMap.values.forEach(action)
+    }
+
+    fun size() = mMap.size
+
+    /**
+     * Evict all
+     */
+    fun clear() {
+        mMap.values.forEach(onEvict)
+        mMap.clear()
+    }
+}
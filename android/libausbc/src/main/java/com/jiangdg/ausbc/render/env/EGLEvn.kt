@@ -18,6 +18,7 @@ package com.jiangdg.ausbc.render.env
 import android.opengl.*
 import android.opengl.EGLSurface
 import android.view.Surface
+import com.jiangdg.ausbc.render.internal.ProgramCache
 import com.jiangdg.ausbc.utils.Logger
 
 /**
@@ -31,6 +32,28 @@ class EGLEvn {
     private var mEglContext: EGLContext = EGL14.EGL_NO_CONTEXT
     private var mSurface: Surface? = null
     private val configs = arrayOfNulls<EGLConfig>(1)
+    // display and context borrowed from another EGLEvn, only the surface is owned
+    private var mOwner: EGLEvn? = null
+    private var mGlVersion = 0
+
+    /**
+     * Share display and context of an initialized [EGLEvn] on the same thread,
+     *  programs and textures are shared, only the surface is created and released.
+     *
+     * @param owner owner of the context, its surface is made current when releasing
+     */
+    fun initEgl(owner: EGLEvn): Boolean {
+        if (owner.mEglContext == EGL14.EGL_NO_CONTEXT) {
+            loggerError("Share context")
+            return false
+        }
+        mOwner = owner
+        mEglDisplay = owner.mEglDisplay
+        mEglContext = owner.mEglContext
+        mGlVersion = owner.mGlVersion
+        configs[0] = owner.configs[0]
+        return true
+    }
 
     fun initEgl(curContext: EGLContext? = null): Boolean {
         // 1. 获取EGL Display
@@ -45,44 +68,60 @@ class EGLEvn {
             loggerError("Init egl")
             return false
         }
-        // 3. 指定Surface配置
-        // RGB888 & opengl ES2
+        // 3. 4. 指定Surface配置，创建OpenGL ES对应的上下文
+        // opengl ES3 first, pbo readback and program binary need it, otherwise ES2
+        if (! createContext(3, EGLExt.EGL_OPENGL_ES3_BIT_KHR, curContext)
+            && ! createContext(2, EGL14.EGL_OPENGL_ES2_BIT, curContext)) {
+            return false
+        }
+        // 5. 设置默认的上下文环境和输出缓冲区
+        // 将eglSurface先设置为EGL14.EGL_NO_SURFACE
+        if (! EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, mEglContext)) {
+            loggerError("Bind context and window")
+            return false
+        }
+        Logger.i(TAG, "Init EGL Success!, gl version = $mGlVersion")
+        return true
+    }
+
+    private fun createContext(clientVersion: Int, renderableType: Int, curContext: EGLContext?): Boolean {
+        // RGB888 & renderableType
         // EGL_RECORDABLE_ANDROID（API26以下必须指定）
         val configAttribs = intArrayOf(
-		    EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_RED_SIZE, 8,
             EGL14.EGL_GREEN_SIZE, 8,
             EGL14.EGL_BLUE_SIZE, 8,
             EGL14.EGL_ALPHA_SIZE, 8,
-            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+            EGL14.EGL_RENDERABLE_TYPE, renderableType,
             EGL_RECORDABLE_ANDROID, 1,
             EGL14.EGL_NONE
         )
         val numConfigs = IntArray(1)
-        if (! EGL14.eglChooseConfig(mEglDisplay, configAttribs, 0, configs, 0, configs.size, numConfigs, 0)) {
-            loggerError("Choose Config")
+        if (! EGL14.eglChooseConfig(mEglDisplay, configAttribs, 0, configs, 0, configs.size, numConfigs, 0) || numConfigs[0] <= 0) {
+            loggerError("Choose Config ES$clientVersion")
             return false
         }
-        // 4. 创建OpenGL ES对应的上下文
         // 如果传入了glContext，则使用传入的上下文，即纹理共享
         val ctxAttribs = intArrayOf(
-            EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+            EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion,
             EGL14.EGL_NONE
         )
         mEglContext = EGL14.eglCreateContext(mEglDisplay, configs[0], curContext ?: EGL14.EGL_NO_CONTEXT , ctxAttribs, 0)
         if (mEglContext == EGL14.EGL_NO_CONTEXT) {
-            loggerError("Create context")
+            loggerError("Create context ES$clientVersion")
             return false
         }
-        // 5. 设置默认的上下文环境和输出缓冲区
-        // 将eglSurface先设置为EGL14.EGL_NO_SURFACE
-        if (! EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, mEglContext)) {
-            loggerError("Bind context and window")
-            return false
-        }
-        Logger.i(TAG, "Init EGL Success!")
+        mGlVersion = clientVersion
         return true
     }
 
+    /**
+     * Get client version of the created context
+     *
+     * @return 3 or 2, 0 means not initialized
+     */
+    fun getGlVersion() = mGlVersion
+
     fun setupSurface(surface: Surface?, surfaceWidth: Int = 0, surfaceHeight: Int = 0) {
         if (mEglDisplay == EGL14.EGL_NO_DISPLAY) {
             return
@@ -146,7 +185,15 @@ class EGLEvn {
     }
 
     fun releaseElg() {
-        if (mEglDisplay != EGL14.EGL_NO_DISPLAY) {
+        val owner = mOwner
+        if (owner != null) {
+            // keep the shared context alive, release the surface only
+            owner.eglMakeCurrent()
+            if (mEglSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(mEglDisplay, mEglSurface)
+            }
+        } else if (mEglDisplay != EGL14.EGL_NO_DISPLAY) {
+            ProgramCache.releaseContext(mEglContext)
             EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT)
             EGL14.eglDestroySurface(mEglDisplay, mEglSurface)
             EGL14.eglDestroyContext(mEglDisplay, mEglContext)
@@ -158,6 +205,8 @@ class EGLEvn {
         mEglSurface = EGL14.EGL_NO_SURFACE
         mEglContext = EGL14.EGL_NO_CONTEXT      
         mSurface = null
+        mOwner = null
+        mGlVersion = 0
         Logger.i(TAG, "Release EGL Success!")
     }
 
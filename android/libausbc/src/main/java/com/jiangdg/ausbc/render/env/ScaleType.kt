@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.env
+
+/** Scale type of a render target, when its size differs from the source
+ */
+enum class ScaleType {
+    STRETCH,    // default, fill the target, aspect ratio not kept
+    FIT,        // keep aspect ratio, black bars
+    FILL;       // keep aspect ratio, crop
+
+    /**
+     * Compute the viewport of the source in the target
+     *
+     * @param srcWidth source width
+     * @param srcHeight source height
+     * @param dstWidth target width
+     * @param dstHeight target height
+     * @param out x, y, width and height of the viewport, may exceed the target when [FILL]
+     */
+    fun computeViewport(srcWidth: Int, srcHeight: Int, dstWidth: Int, dstHeight: Int, out: IntArray) {
+        if (this == STRETCH || srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+            out[0] = 0
+            out[1] = 0
+            out[2] = dstWidth
+            out[3] = dstHeight
+            return
+        }
+        val scaleX = dstWidth.toFloat() / srcWidth
+        val scaleY = dstHeight.toFloat() / srcHeight
+        val scale = if (this == FIT) minOf(scaleX, scaleY) else maxOf(scaleX, scaleY)
+        val width = Math.round(srcWidth * scale)
+        val height = Math.round(srcHeight * scale)
+        out[0] = (dstWidth - width) / 2
+        out[1] = (dstHeight - height) / 2
+        out[2] = width
+        out[3] = height
+    }
+}
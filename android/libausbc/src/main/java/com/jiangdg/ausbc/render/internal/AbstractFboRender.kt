@@ -45,6 +45,20 @@ abstract class AbstractFboRender(context: Context) : AbstractRender(context) {
 
     fun getFrameBufferTexture() = mFBOTextures[0]
 
+    fun hasFBO() = mFrameBuffers[0] != 0
+
+    /**
+     * Release the fbo but keep the program, [setSize] creates it again
+     */
+    fun releaseFBO() {
+        if (! hasFBO()) {
+            return
+        }
+        destroyFrameBuffers()
+        mWidth = 0
+        mHeight = 0
+    }
+
     override fun drawFrame(textureId: Int): Int {
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[0])
         super.drawFrame(textureId)
@@ -61,6 +75,10 @@ abstract class AbstractFboRender(context: Context) : AbstractRender(context) {
 
     protected open fun afterDrawFBO() {}
 
+    override fun clear() {
+        destroyFrameBuffers()
+    }
+
     private fun loadFBO(width: Int, height: Int) {
         destroyFrameBuffers()
         //Create FrameBuffer
@@ -93,6 +111,8 @@ abstract class AbstractFboRender(context: Context) : AbstractRender(context) {
     private fun destroyFrameBuffers() {
         GLES20.glDeleteTextures(1, mFBOTextures, 0)
         GLES20.glDeleteFramebuffers(1, mFrameBuffers, 0)
+        mFBOTextures[0] = 0
+        mFrameBuffers[0] = 0
     }
 
     companion object {
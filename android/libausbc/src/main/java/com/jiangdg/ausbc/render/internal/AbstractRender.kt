@@ -19,8 +19,9 @@ import android.content.Context
 import android.opengl.GLES11Ext
 import android.opengl.GLES20
 import android.util.Log
+import com.jiangdg.ausbc.render.env.ScaleType
 import com.jiangdg.ausbc.utils.Logger
-import com.jiangdg.ausbc.utils.MediaUtils
+import com.jiangdg.ausbc.utils.Utils
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.FloatBuffer
@@ -31,8 +32,6 @@ import java.nio.FloatBuffer
  * @author Created by jiangdg on 2021/12/27
  */
 abstract class AbstractRender(context: Context) {
-    private var mFragmentShader: Int = 0
-    private var mVertexShader: Int = 0
     private var mContext: Context? = null
     private var mStMatrixHandle = 0
     private var mMVPMatrixHandle = 0
@@ -42,6 +41,10 @@ abstract class AbstractRender(context: Context) {
     protected var mPositionLocation = 0
     protected var mTextureCoordLocation = 0
     protected var mTextureSampler = 0
+    private var mScaleType = ScaleType.STRETCH
+    private var mSourceWidth = 0
+    private var mSourceHeight = 0
+    private val mViewport = IntArray(4)
 
     var mTriangleVertices: FloatBuffer = ByteBuffer.allocateDirect(
         mTriangleVerticesData.size * FLOAT_SIZE_BYTES
@@ -55,13 +58,28 @@ abstract class AbstractRender(context: Context) {
     open fun setSize(width: Int, height: Int) {
         this.mWidth = width
         this.mHeight = height
+        mScaleType.computeViewport(mSourceWidth, mSourceHeight, mWidth, mHeight, mViewport)
         GLES20.glViewport(0, 0, mWidth, mHeight)
     }
 
+    /**
+     * Set how the input is scaled into this render
+     *
+     * @param scaleType see [ScaleType]
+     * @param sourceWidth input width
+     * @param sourceHeight input height
+     */
+    fun setScaleType(scaleType: ScaleType, sourceWidth: Int, sourceHeight: Int) {
+        this.mScaleType = scaleType
+        this.mSourceWidth = sourceWidth
+        this.mSourceHeight = sourceHeight
+        mScaleType.computeViewport(mSourceWidth, mSourceHeight, mWidth, mHeight, mViewport)
+    }
+
     open fun drawFrame(textureId: Int): Int {
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f)
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT or GLES20.GL_COLOR_BUFFER_BIT)
-        GLES20.glViewport(0, 0, mWidth, mHeight)
+        GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3])
         // 1. 激活程序，绑定纹理
         GLES20.glUseProgram(mProgram)
 
@@ -92,11 +110,19 @@ abstract class AbstractRender(context: Context) {
     protected open fun getBindTextureType() = GLES20.GL_TEXTURE_2D
     protected abstract fun getVertexSourceId(): Int
     protected abstract fun getFragmentSourceId(): Int
+    protected open fun getVertexSource(): String = ShaderSourceCache.get(mContext!!).getSource(getVertexSourceId())
+    protected open fun getFragmentSource(): String = ShaderSourceCache.get(mContext!!).getSource(getFragmentSourceId())
+
+    /**
+     * Key of the program in [ProgramCache], same key same shader sources
+     */
+    protected open fun getProgramKey(): String = "${getVertexSourceId()}-${getFragmentSourceId()}"
 
     fun initGLES() {
-        val vertexShaderSource = MediaUtils.readRawTextFile(mContext!!, getVertexSourceId())
-        val fragmentShaderSource = MediaUtils.readRawTextFile(mContext!!, getFragmentSourceId())
-        mProgram = createProgram(vertexShaderSource, fragmentShaderSource)
+        val beginNs = System.nanoTime()
+        mProgram = ProgramCache.acquire(getProgramKey()) {
+            createProgram(getVertexSource(), getFragmentSource())
+        }
         if (mProgram == 0) {
             Logger.e(TAG, "create program failed, err = ${GLES20.glGetError()}")
             return
@@ -110,18 +136,14 @@ abstract class AbstractRender(context: Context) {
         }
         init()
         Logger.i(TAG, "init surface texture render success!")
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "init ${javaClass.simpleName}, cost = ${(System.nanoTime() - beginNs) / 1000}us")
+        }
     }
 
     fun releaseGLES() {
-        if (mVertexShader != 0) {
-            GLES20.glDeleteShader(mVertexShader)
-        }
-        if (mFragmentShader != 0) {
-            GLES20.glDeleteShader(mFragmentShader)
-        }
-        if (mProgram != 0) {
-            GLES20.glDeleteProgram(mProgram)
-        }
+        ProgramCache.release(mProgram)
+        mProgram = 0
         clear()
         Logger.i(TAG, "release surface texture render success!")
     }
@@ -146,21 +168,27 @@ abstract class AbstractRender(context: Context) {
 
     private fun createProgram(vertexSource: String, fragmentSource: String): Int {
         // 创建顶点、片段着色器
-        mVertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource)
-        if (mVertexShader == 0) {
+        val vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource)
+        if (vertexShader == 0) {
             Logger.i(TAG, "vertexSource err = ${GLES20.glGetError()}: \n $vertexSource")
             return 0
         }
-        mFragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource)
-        if (mFragmentShader == 0) {
+        val fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource)
+        if (fragmentShader == 0) {
             Logger.i(TAG, "fragmentSource err = ${GLES20.glGetError()}: \n $fragmentSource")
+            GLES20.glDeleteShader(vertexShader)
             return 0
         }
         // 创建链接程序，并将着色器依附到程序
         val program = GLES20.glCreateProgram()
-        GLES20.glAttachShader(program, mVertexShader)
-        GLES20.glAttachShader(program, mFragmentShader)
+        GLES20.glAttachShader(program, vertexShader)
+        GLES20.glAttachShader(program, fragmentShader)
         GLES20.glLinkProgram(program)
+        // shaders are not needed after linking, the program may be cached
+        GLES20.glDetachShader(program, vertexShader)
+        GLES20.glDetachShader(program, fragmentShader)
+        GLES20.glDeleteShader(vertexShader)
+        GLES20.glDeleteShader(fragmentShader)
         val linkStatus = IntArray(1)
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0)
         if (linkStatus[0] != GLES20.GL_TRUE) {
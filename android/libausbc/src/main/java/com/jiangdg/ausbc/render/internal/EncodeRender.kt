@@ -35,11 +35,23 @@ class EncodeRender(context: Context): AbstractRender(context) {
         mEgl?.initEgl(glContext)
     }
 
+    /**
+     * Init EGL with the context of [sharedEgl], drawing on the same thread
+     */
+    fun initEGLEvn(sharedEgl: EGLEvn) {
+        mEgl = EGLEvn()
+        mEgl?.initEgl(sharedEgl)
+    }
+
     fun setupSurface(surface: Surface) {
         mEgl?.setupSurface(surface)
         mEgl?.eglMakeCurrent()
     }
 
+    fun makeCurrent() {
+        mEgl?.eglMakeCurrent()
+    }
+
     fun swapBuffers(timeStamp: Long) {
         mEgl?.setPresentationTime(timeStamp)
         mEgl?.swapBuffers()
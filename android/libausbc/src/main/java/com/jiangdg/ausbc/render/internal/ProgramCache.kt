@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.opengl.EGL14
+import android.opengl.EGLContext
+import android.opengl.GLES20
+import android.opengl.GLES30
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+/** Program cache
+ *
+ * Programs are shared by renders of the same EGL context with reference counts.
+ *  Linked programs are also kept as binaries for the process when OpenGL ES 3
+ *  supports it, so a program in a new context, such as reopening a camera,
+ *  is loaded by glProgramBinary without compiling. [com.jiangdg.ausbc.render.env.EGLEvn]
+ *  creates an ES3 context when the device has one, on ES2 programs are always compiled.
+ */
+object ProgramCache {
+    private const val TAG = "ProgramCache"
+    private val mPrograms = HashMap<EGLContext, HashMap<String, Entry>>()
+    private val mBinaries = ConcurrentHashMap<String, ProgramBinary>()
+    @Volatile
+    private var isBinarySupported: Boolean? = null
+
+    private class Entry(val program: Int, var refCount: Int)
+
+    private class ProgramBinary(val format: Int, val data: ByteBuffer)
+
+    /**
+     * Acquire a program of the current context
+     *
+     * @param key program key, same key same shader sources
+     * @param create compile and link a program, 0 if failed
+     * @return program, 0 if failed
+     */
+    fun acquire(key: String, create: () -> Int): Int {
+        val context = EGL14.eglGetCurrentContext()
+        synchronized(mPrograms) {
+            mPrograms[context]?.get(key)?.let { entry ->
+                entry.refCount++
+                return entry.program
+            }
+        }
+        var program = loadBinary(key)
+        if (program == 0) {
+            program = create()
+            if (program == 0) {
+                return 0
+            }
+            saveBinary(key, program)
+        }
+        synchronized(mPrograms) {
+            mPrograms.getOrPut(context) { HashMap() }[key] = Entry(program, 1)
+        }
+        return program
+    }
+
+    /**
+     * Release a program of the current context, deleted when no one uses it
+     *
+     * @param program program
+     */
+    fun release(program: Int) {
+        if (program == 0) {
+            return
+        }
+        val context = EGL14.eglGetCurrentContext()
+        synchronized(mPrograms) {
+            val programs = mPrograms[context] ?: return
+            val iterator = programs.entries.iterator()
+            while (iterator.hasNext()) {
+                val entry = iterator.next().value
+                if (entry.program != program) {
+                    continue
+                }
+                if (--entry.refCount <= 0) {
+                    GLES20.glDeleteProgram(program)
+                    iterator.remove()
+                }
+                break
+            }
+            if (programs.isEmpty()) {
+                mPrograms.remove(context)
+            }
+        }
+    }
+
+    /**
+     * Forget programs of a context, called before it is destroyed
+     *
+     * @param context EGL context
+     */
+    fun releaseContext(context: EGLContext) {
+        synchronized(mPrograms) {
+            mPrograms.remove(context)
+        }
+    }
+
+    private fun loadBinary(key: String): Int {
+        val binary = mBinaries[key] ?: return 0
+        val beginNs = System.nanoTime()
+        val program = GLES20.glCreateProgram()
+        val data = binary.data.duplicate()
+        data.position(0)
+        GLES30.glProgramBinary(program, binary.format, data, data.capacity())
+        val linkStatus = IntArray(1)
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0)
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            // driver updated or rejected, compile again
+            Logger.w(TAG, "load program binary failed, key = $key")
+            GLES20.glDeleteProgram(program)
+            mBinaries.remove(key)
+            return 0
+        }
+        if (Utils.debugCamera) {
+            Logger.i(TAG, "load program binary, key = $key, cost = ${(System.nanoTime() - beginNs) / 1000}us")
+        }
+        return program
+    }
+
+    private fun saveBinary(key: String, program: Int) {
+        if (mBinaries.containsKey(key) || ! checkBinarySupported()) {
+            return
+        }
+        val length = IntArray(1)
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0)
+        if (length[0] <= 0) {
+            return
+        }
+        val data = ByteBuffer.allocateDirect(length[0])
+        val format = IntArray(1)
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, data)
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            return
+        }
+        mBinaries[key] = ProgramBinary(format[0], data)
+    }
+
+    private fun checkBinarySupported(): Boolean {
+        isBinarySupported?.let {
+            return it
+        }
+        // the version of the current context, every context asks for the same, see EGLEvn
+        val version = GLES20.glGetString(GLES20.GL_VERSION) ?: return false
+        val formats = IntArray(1)
+        if (version.startsWith("OpenGL ES 3")) {
+            GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0)
+        }
+        return (formats[0] > 0).also {
+            isBinarySupported = it
+            Logger.i(TAG, "program binary supported = $it, formats = ${formats[0]}")
+        }
+    }
+}
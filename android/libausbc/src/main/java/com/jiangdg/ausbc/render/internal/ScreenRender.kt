@@ -27,9 +27,18 @@ import com.jiangdg.ausbc.render.env.EGLEvn
 class ScreenRender(context: Context) : AbstractRender(context) {
     private var mEgl: EGLEvn? = null
 
-    fun initEGLEvn() {
+    /**
+     * Init EGL
+     *
+     * @param sharedEgl share its context when not null, see [com.jiangdg.ausbc.render.RenderEngine]
+     */
+    fun initEGLEvn(sharedEgl: EGLEvn? = null) {
         mEgl = EGLEvn()
-        mEgl?.initEgl()
+        if (sharedEgl == null) {
+            mEgl?.initEgl()
+        } else {
+            mEgl?.initEgl(sharedEgl)
+        }
     }
 
     fun setupSurface(surface: Surface?, surfaceWidth: Int = 0, surfaceHeight: Int = 0) {
@@ -37,6 +46,10 @@ class ScreenRender(context: Context) : AbstractRender(context) {
         mEgl?.eglMakeCurrent()
     }
 
+    fun makeCurrent() {
+        mEgl?.eglMakeCurrent()
+    }
+
     fun swapBuffers(timeStamp: Long) {
         mEgl?.setPresentationTime(timeStamp)
         mEgl?.swapBuffers()
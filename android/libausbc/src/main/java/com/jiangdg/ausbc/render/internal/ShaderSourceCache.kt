@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.content.Context
+import com.jiangdg.ausbc.utils.MediaUtils
+import java.util.concurrent.ConcurrentHashMap
+
+/** Shader source cache, a raw resource is read once per process
+ *
+ * @param loader read a source by its id
+ */
+class ShaderSourceCache(private val loader: (Int) -> String) {
+    private val mSources = ConcurrentHashMap<Int, String>()
+
+    /**
+     * Get shader source
+     *
+     * @param id source id, such as a raw resource id
+     * @return source, empty if failed, which is not cached
+     */
+    fun getSource(id: Int): String {
+        mSources[id]?.let {
+            return it
+        }
+        val source = loader(id)
+        if (source.isNotEmpty()) {
+            mSources[id] = source
+        }
+        return source
+    }
+
+    fun size() = mSources.size
+
+    fun clear() {
+        mSources.clear()
+    }
+
+    companion object {
+        @Volatile
+        private var sInstance: ShaderSourceCache? = null
+
+        /**
+         * Process wide cache of raw resources
+         *
+         * @param context context
+         * @return see [ShaderSourceCache]
+         */
+        fun get(context: Context): ShaderSourceCache {
+            return sInstance ?: synchronized(this) {
+                sInstance ?: context.applicationContext.let { appContext ->
+                    ShaderSourceCache { id ->
+                        MediaUtils.readRawTextFile(appContext, id)
+                    }
+                }.also {
+                    sInstance = it
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.internal
+
+import android.content.Context
+import android.opengl.GLES20
+import com.jiangdg.ausbc.R
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack
+import com.jiangdg.ausbc.render.readback.YuvPacker
+import com.jiangdg.ausbc.utils.Logger
+
+/** Inherit from AbstractFboRender
+ *      convert the rgba capture fbo to a packed NV12 or I420 frame
+ *      with base_vertex.glsl and yuv_convert_fragment.glsl
+ */
+class YuvConvertRender(context: Context) : AbstractFboRender(context) {
+    private var mImageSizeHandle: Int = -1
+    private var mYuvFormatHandle: Int = -1
+    private var mPacker: YuvPacker? = null
+    private val mMinFilter = IntArray(1)
+    private var isHighFloatSupported = false
+
+    override fun init() {
+        mImageSizeHandle = GLES20.glGetUniformLocation(mProgram, "uImageSize")
+        mYuvFormatHandle = GLES20.glGetUniformLocation(mProgram, "uYuvFormat")
+        val range = IntArray(2)
+        val precision = IntArray(1)
+        GLES20.glGetShaderPrecisionFormat(GLES20.GL_FRAGMENT_SHADER, GLES20.GL_HIGH_FLOAT, range, 0, precision, 0)
+        isHighFloatSupported = precision[0] > 0
+        if (! isHighFloatSupported) {
+            Logger.e(TAG, "highp float is not supported in fragment shader")
+        }
+    }
+
+    /**
+     * Program is linked and precise enough, otherwise nothing should be drawn
+     *
+     * @return false means the frame should be delivered as rgba
+     */
+    fun isReady() = mProgram != 0 && isHighFloatSupported
+
+    /**
+     * Set the image size and yuv format, the fbo is resized to the packed size
+     *
+     * @param width image width
+     * @param height image height
+     * @param format [IPreviewDataCallBack.DataFormat.NV12] or [IPreviewDataCallBack.DataFormat.I420]
+     * @return packing of the fbo, null if unsupported
+     */
+    fun setImageSize(width: Int, height: Int, format: IPreviewDataCallBack.DataFormat): YuvPacker? {
+        mPacker?.let {
+            if (it.width == width && it.height == height && it.format == format) {
+                return it
+            }
+        }
+        if (! YuvPacker.isSupported(width, height, format)) {
+            mPacker = null
+            return null
+        }
+        return YuvPacker(width, height, format).also {
+            mPacker = it
+            setSize(it.packedWidth, it.packedHeight)
+        }
+    }
+
+    override fun drawFrame(textureId: Int): Int {
+        if (! isReady()) {
+            return textureId
+        }
+        // chroma is sampled at block corners, needs linear filter
+        // the texture is shared with other passes, restore its filter afterwards
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId)
+        GLES20.glGetTexParameteriv(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, mMinFilter, 0)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR)
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0)
+        val result = super.drawFrame(textureId)
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, mMinFilter[0])
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0)
+        return result
+    }
+
+    override fun beforeDraw() {
+        mPacker?.let {
+            GLES20.glUniform2f(mImageSizeHandle, it.width.toFloat(), it.height.toFloat())
+            val format = if (it.format == IPreviewDataCallBack.DataFormat.NV12) 0f else 1f
+            GLES20.glUniform1f(mYuvFormatHandle, format)
+        }
+    }
+
+    override fun getVertexSourceId(): Int = R.raw.base_vertex
+
+    override fun getFragmentSourceId(): Int = R.raw.yuv_convert_fragment
+
+    companion object {
+        private const val TAG = "YuvConvertRender"
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.readback
+
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack.DataFormat
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.Utils
+
+/** Read a frame buffer once per frame, deliver to listeners from a reused array
+ *
+ * Frame N is issued into one slot while frame N-1 is fetched from the other,
+ *  so with an async reader, see [PboFrameReader], the render thread never waits
+ *  for the gpu, and the frame delivered is one frame late.
+ *
+ * @param reader see [IFrameReader]
+ */
+class FrameReadback(private val reader: IFrameReader) {
+    private val mSlotWidth = IntArray(SLOT_COUNT)
+    private val mSlotHeight = IntArray(SLOT_COUNT)
+    private val mSlotFormat = arrayOfNulls<DataFormat>(SLOT_COUNT)
+    private val mSlotTimestamp = LongArray(SLOT_COUNT)
+    private var mSlotSize = 0
+    private var mWriteSlot = 0
+    private var mPendingSlot = NO_SLOT
+    private var mFrame = ByteArray(0)
+
+    /**
+     * Frames issued
+     */
+    var readCount: Long = 0L
+        private set
+
+    /**
+     * Frames delivered
+     */
+    var deliverCount: Long = 0L
+        private set
+
+    /**
+     * Frame listener
+     */
+    fun interface OnFrameListener {
+        /**
+         * Called on the render thread
+         *
+         * @param data frame data, reused after return, copy it if needed
+         * @param width image width
+         * @param height image height
+         * @param format data format, see [DataFormat]
+         * @param timestampNs timestamp of the frame when read
+         */
+        fun onFrame(data: ByteArray, width: Int, height: Int, format: DataFormat, timestampNs: Long)
+    }
+
+    /**
+     * Read a rgba frame, and deliver the oldest one ready
+     *
+     * @param frameBufferId frame buffer id
+     * @param width frame width
+     * @param height frame height
+     * @param listener see [OnFrameListener]
+     * @param timestampNs timestamp of the frame, passed to the listener
+     * @return true if a frame delivered
+     */
+    fun readFrame(frameBufferId: Int, width: Int, height: Int, listener: OnFrameListener, timestampNs: Long = 0L): Boolean {
+        return readFrame(frameBufferId, width, height, width, height, DataFormat.RGBA, listener, timestampNs)
+    }
+
+    /**
+     * Read a frame packed in a rgba frame buffer, such as yuv, and deliver the oldest one ready
+     *
+     * @param frameBufferId frame buffer id
+     * @param readWidth frame buffer width
+     * @param readHeight frame buffer height
+     * @param width image width, passed to the listener
+     * @param height image height, passed to the listener
+     * @param format data format, passed to the listener
+     * @param listener see [OnFrameListener]
+     * @param timestampNs timestamp of the frame, passed to the listener
+     * @return true if a frame delivered
+     */
+    fun readFrame(
+        frameBufferId: Int,
+        readWidth: Int,
+        readHeight: Int,
+        width: Int,
+        height: Int,
+        format: DataFormat,
+        listener: OnFrameListener,
+        timestampNs: Long = 0L
+    ): Boolean {
+        val size = readWidth * readHeight * 4
+        if (size <= 0) {
+            return false
+        }
+        if (size != mSlotSize) {
+            reader.setup(SLOT_COUNT, size)
+            mSlotSize = size
+            mPendingSlot = NO_SLOT
+            if (Utils.debugCamera) {
+                Logger.i(TAG, "setup readback, ${readWidth}x$readHeight, $format, async = ${reader.isAsync()}")
+            }
+        }
+        val slot = mWriteSlot
+        reader.issue(slot, frameBufferId, readWidth, readHeight)
+        mSlotWidth[slot] = width
+        mSlotHeight[slot] = height
+        mSlotFormat[slot] = format
+        mSlotTimestamp[slot] = timestampNs
+        mWriteSlot = (slot + 1) % SLOT_COUNT
+        readCount++
+        val fetchSlot = if (reader.isAsync()) mPendingSlot else slot
+        mPendingSlot = slot
+        if (fetchSlot == NO_SLOT) {
+            return false
+        }
+        if (mFrame.size != size) {
+            mFrame = ByteArray(size)
+        }
+        if (! reader.fetch(fetchSlot, mFrame, size)) {
+            return false
+        }
+        deliverCount++
+        listener.onFrame(mFrame, mSlotWidth[fetchSlot], mSlotHeight[fetchSlot],
+            mSlotFormat[fetchSlot] ?: DataFormat.RGBA, mSlotTimestamp[fetchSlot])
+        return true
+    }
+
+    /**
+     * Drop the pending frame, such as no listener any more
+     */
+    fun reset() {
+        mPendingSlot = NO_SLOT
+    }
+
+    /**
+     * Release the reader, must be called on the render thread
+     */
+    fun release() {
+        reader.release()
+        mSlotSize = 0
+        mPendingSlot = NO_SLOT
+        mFrame = ByteArray(0)
+    }
+
+    companion object {
+        private const val TAG = "FrameReadback"
+        private const val SLOT_COUNT = 2
+        private const val NO_SLOT = -1
+    }
+}
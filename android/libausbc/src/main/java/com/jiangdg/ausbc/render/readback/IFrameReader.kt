@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.readback
+
+/** Pixel reader of a frame buffer
+ *
+ * A reader owns some slots, [issue] starts reading a frame buffer into a slot,
+ *  [fetch] copies a slot out. An async reader may return from [issue] before
+ *  the pixels arrive, so [FrameReadback] fetches its slot one frame later.
+ */
+interface IFrameReader {
+    /**
+     * Is async
+     *
+     * @return true, a slot can only be fetched after the next issue
+     */
+    fun isAsync(): Boolean
+
+    /**
+     * Allocate slots, called on size changed
+     *
+     * @param slotCount slot count
+     * @param size bytes of a slot
+     */
+    fun setup(slotCount: Int, size: Int)
+
+    /**
+     * Start reading rgba pixels of a frame buffer into a slot
+     *
+     * @param slot slot index
+     * @param frameBufferId frame buffer id
+     * @param width frame width
+     * @param height frame height
+     */
+    fun issue(slot: Int, frameBufferId: Int, width: Int, height: Int)
+
+    /**
+     * Copy pixels of a slot out
+     *
+     * @param slot slot index
+     * @param dst target array
+     * @param size bytes to copy
+     * @return false if failed
+     */
+    fun fetch(slot: Int, dst: ByteArray, size: Int): Boolean
+
+    /**
+     * Release slots
+     */
+    fun release()
+}
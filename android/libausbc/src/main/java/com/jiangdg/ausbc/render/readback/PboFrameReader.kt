@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.readback
+
+import android.opengl.GLES20
+import android.opengl.GLES30
+import com.jiangdg.ausbc.utils.Logger
+import com.jiangdg.ausbc.utils.OpenGLUtils
+import java.nio.ByteBuffer
+
+/** Async reader by pixel buffer objects, needs OpenGL ES 3.0
+ *
+ * glReadPixels into a bound pbo returns at once, the copy is done by the gpu,
+ *  the pbo is mapped a frame later when the copy has finished.
+ */
+class PboFrameReader : IFrameReader {
+    private var mBuffers = IntArray(0)
+
+    override fun isAsync(): Boolean = true
+
+    override fun setup(slotCount: Int, size: Int) {
+        release()
+        mBuffers = IntArray(slotCount)
+        GLES20.glGenBuffers(slotCount, mBuffers, 0)
+        mBuffers.forEach { id ->
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, id)
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ)
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+        OpenGLUtils.checkGlError("setup pbo")
+    }
+
+    override fun issue(slot: Int, frameBufferId: Int, width: Int, height: Int) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId)
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[slot])
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0)
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0)
+    }
+
+    override fun fetch(slot: Int, dst: ByteArray, size: Int): Boolean {
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[slot])
+        val mapped = GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT) as? ByteBuffer
+        if (mapped == null) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+            Logger.e(TAG, "map pbo failed, slot = $slot, size = $size")
+            return false
+        }
+        mapped.get(dst, 0, size)
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER)
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0)
+        return true
+    }
+
+    override fun release() {
+        if (mBuffers.isNotEmpty()) {
+            GLES20.glDeleteBuffers(mBuffers.size, mBuffers, 0)
+            mBuffers = IntArray(0)
+        }
+    }
+
+    companion object {
+        private const val TAG = "PboFrameReader"
+
+        /**
+         * Is pbo supported by the current context
+         *
+         * [com.jiangdg.ausbc.render.env.EGLEvn] asks for an ES3 context first and falls
+         *  back to ES2, so it is false on ES2 only devices, [SyncFrameReader] is used then.
+         */
+        fun isSupported(): Boolean {
+            val version = GLES20.glGetString(GLES20.GL_VERSION) ?: return false
+            return version.startsWith("OpenGL ES 3")
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.readback
+
+import com.jiangdg.ausbc.utils.GLBitmapUtils
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/** Sync reader by glReadPixels, for OpenGL ES 2.0
+ *
+ * All slots share one direct buffer, a slot is fetched in the same frame.
+ */
+class SyncFrameReader : IFrameReader {
+    private var mBuffer: ByteBuffer? = null
+
+    override fun isAsync(): Boolean = false
+
+    override fun setup(slotCount: Int, size: Int) {
+        mBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    override fun issue(slot: Int, frameBufferId: Int, width: Int, height: Int) {
+        mBuffer?.let {
+            it.clear()
+            GLBitmapUtils.readPixelToByteBuffer(frameBufferId, width, height, it)
+        }
+    }
+
+    override fun fetch(slot: Int, dst: ByteArray, size: Int): Boolean {
+        val buffer = mBuffer ?: return false
+        buffer.position(0)
+        buffer.get(dst, 0, size)
+        return true
+    }
+
+    override fun release() {
+        mBuffer = null
+    }
+}
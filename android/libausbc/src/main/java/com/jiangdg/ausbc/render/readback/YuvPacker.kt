@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.render.readback
+
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack.DataFormat
+
+/** Packing of a yuv frame into an rgba target, see yuv_convert_fragment.glsl
+ *
+ * The target is width/4 x height*3/2 texels, each texel holds 4 bytes of
+ *  the frame, so reading it back gives the NV12 or I420 frame as it is.
+ *  Y rows come first, then the chroma rows, a chroma sample is the average
+ *  of a 2x2 block. [mapTexel] is the same math as the shader, [convert] builds
+ *  the frame plane by plane, both must give the same bytes.
+ *
+ * @property width image width, multiple of 8
+ * @property height image height, multiple of 4
+ * @property format [DataFormat.NV12] or [DataFormat.I420]
+ */
+class YuvPacker(val width: Int, val height: Int, val format: DataFormat) {
+    val packedWidth = width / 4
+    val packedHeight = height * 3 / 2
+    val frameSize = width * height * 3 / 2
+    private val mLocation = IntArray(3)
+
+    init {
+        require(isSupported(width, height, format)) {
+            "unsupported yuv packing, ${width}x$height, $format"
+        }
+    }
+
+    /**
+     * Map a byte of the target to its source
+     *
+     * @param ox texel x
+     * @param oy texel y, row 0 is the first row read back
+     * @param channel 0 ~ 3, r g b a
+     * @param out plane [PLANE_Y], [PLANE_U] or [PLANE_V], then x and y in that plane
+     */
+    fun mapTexel(ox: Int, oy: Int, channel: Int, out: IntArray) {
+        if (oy < height) {
+            out[0] = PLANE_Y
+            out[1] = ox * 4 + channel
+            out[2] = oy
+            return
+        }
+        var row = oy - height
+        if (format == DataFormat.NV12) {
+            out[0] = if (channel % 2 == 0) PLANE_U else PLANE_V
+            out[1] = ox * 2 + channel / 2
+            out[2] = row
+            return
+        }
+        val planeRows = height / 4
+        val isV = row >= planeRows
+        if (isV) {
+            row -= planeRows
+        }
+        val chromaWidth = width / 2
+        val index = row * width + ox * 4
+        out[0] = if (isV) PLANE_V else PLANE_U
+        out[1] = index % chromaWidth + channel
+        out[2] = index / chromaWidth
+    }
+
+    /**
+     * Pack by [mapTexel], texel by texel as the gpu does
+     *
+     * @param rgba rgba frame, row 0 is the top
+     * @param dst yuv frame, at least [frameSize]
+     */
+    fun packByTexel(rgba: ByteArray, dst: ByteArray) {
+        for (oy in 0 until packedHeight) {
+            for (ox in 0 until packedWidth) {
+                for (channel in 0 until 4) {
+                    mapTexel(ox, oy, channel, mLocation)
+                    dst[(oy * packedWidth + ox) * 4 + channel] = sample(rgba, mLocation[0], mLocation[1], mLocation[2])
+                }
+            }
+        }
+    }
+
+    /**
+     * Cpu reference, plane by plane
+     *
+     * @param rgba rgba frame, row 0 is the top
+     * @param dst yuv frame, at least [frameSize]
+     */
+    fun convert(rgba: ByteArray, dst: ByteArray) {
+        for (y in 0 until height) {
+            for (x in 0 until width) {
+                dst[y * width + x] = sample(rgba, PLANE_Y, x, y)
+            }
+        }
+        val chromaWidth = width / 2
+        val chromaHeight = height / 2
+        val ySize = width * height
+        val chromaSize = chromaWidth * chromaHeight
+        for (cy in 0 until chromaHeight) {
+            for (cx in 0 until chromaWidth) {
+                val u = sample(rgba, PLANE_U, cx, cy)
+                val v = sample(rgba, PLANE_V, cx, cy)
+                if (format == DataFormat.NV12) {
+                    dst[ySize + cy * width + cx * 2] = u
+                    dst[ySize + cy * width + cx * 2 + 1] = v
+                } else {
+                    dst[ySize + cy * chromaWidth + cx] = u
+                    dst[ySize + chromaSize + cy * chromaWidth + cx] = v
+                }
+            }
+        }
+    }
+
+    private fun sample(rgba: ByteArray, plane: Int, x: Int, y: Int): Byte {
+        if (plane == PLANE_Y) {
+            val offset = (y * width + x) * 4
+            return toY(unorm(rgba, offset), unorm(rgba, offset + 1), unorm(rgba, offset + 2))
+        }
+        // average of the 2x2 block
+        var r = 0f
+        var g = 0f
+        var b = 0f
+        for (dy in 0..1) {
+            for (dx in 0..1) {
+                val offset = ((y * 2 + dy) * width + x * 2 + dx) * 4
+                r += unorm(rgba, offset)
+                g += unorm(rgba, offset + 1)
+                b += unorm(rgba, offset + 2)
+            }
+        }
+        return if (plane == PLANE_U) toU(r / 4f, g / 4f, b / 4f) else toV(r / 4f, g / 4f, b / 4f)
+    }
+
+    companion object {
+        const val PLANE_Y = 0
+        const val PLANE_U = 1
+        const val PLANE_V = 2
+        private const val OFFSET_Y = 16f / 255f
+        private const val OFFSET_UV = 128f / 255f
+
+        /**
+         * Is the size packed without a texel across two rows
+         */
+        fun isSupported(width: Int, height: Int, format: DataFormat): Boolean {
+            if (format != DataFormat.NV12 && format != DataFormat.I420) {
+                return false
+            }
+            return width > 0 && height > 0 && width % 8 == 0 && height % 4 == 0
+        }
+
+        private fun unorm(rgba: ByteArray, offset: Int) = (rgba[offset].toInt() and 0xFF) / 255f
+
+        private fun toY(r: Float, g: Float, b: Float) = toByte(0.257f * r + 0.504f * g + 0.098f * b + OFFSET_Y)
+
+        private fun toU(r: Float, g: Float, b: Float) = toByte(-0.148f * r - 0.291f * g + 0.439f * b + OFFSET_UV)
+
+        private fun toV(r: Float, g: Float, b: Float) = toByte(0.439f * r - 0.368f * g - 0.071f * b + OFFSET_UV)
+
+        // same as writing a float to a unorm8 target
+        private fun toByte(value: Float) = Math.round(value.coerceIn(0f, 1f) * 255f).toByte()
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017-2023 Jiangdg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jiangdg.ausbc.utils
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Double buffered file writer
+ *
+ * The caller fills one direct buffer, while a writer thread flushes the other one
+ *  to [FileChannel], so the caller thread nearly never blocks on disk io.
+ *
+ * @param path file path, will be overwritten
+ * @param bufferSize size of each buffer
+ */
+class BufferedChannelWriter(path: String, bufferSize: Int = DEFAULT_BUFFER_SIZE) {
+    private val mFile: RandomAccessFile
+    private val mChannel: FileChannel
+    private val mFreeQueue = ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT)
+    private val mFullQueue = ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT + 1)
+    private var mActiveBuffer: ByteBuffer
+    private var mWriteThread: Thread? = null
+    // set on the writer thread, checked on the caller thread
+    @Volatile
+    private var mWriteError: IOException? = null
+    @Volatile
+    private var isClosed = false
+
+    /**
+     * Total bytes written by caller, also the offset of next write
+     */
+    var writtenBytes: Long = 0L
+        private set
+
+    init {
+        File(path).let { file ->
+            if (file.exists()) {
+                file.delete()
+            }
+            file.parentFile?.mkdirs()
+        }
+        mFile = RandomAccessFile(path, "rw")
+        mChannel = mFile.channel
+        mActiveBuffer = ByteBuffer.allocateDirect(bufferSize)
+        for (i in 1 until BUFFER_COUNT) {
+            mFreeQueue.offer(ByteBuffer.allocateDirect(bufferSize))
+        }
+        mWriteThread = Thread({ writeLoop() }, "$TAG-${File(path).name}").apply {
+            start()
+        }
+    }
+
+    /**
+     * Write bytes
+     *
+     * @param data source bytes
+     * @param offset offset of data
+     * @param size count to write
+     */
+    @Throws(IOException::class)
+    fun write(data: ByteArray, offset: Int = 0, size: Int = data.size) {
+        checkState()
+        var written = 0
+        while (written < size) {
+            val count = minOf(size - written, mActiveBuffer.remaining())
+            mActiveBuffer.put(data, offset + written, count)
+            written += count
+            swapIfFull()
+        }
+        writtenBytes += size
+    }
+
+    /**
+     * Write bytes of a buffer, the position and limit of it not changed
+     *
+     * @param data source buffer
+     * @param offset absolute offset of data
+     * @param size count to write
+     */
+    @Throws(IOException::class)
+    fun write(data: ByteBuffer, offset: Int, size: Int) {
+        checkState()
+        val position = data.position()
+        val limit = data.limit()
+        try {
+            var written = 0
+            while (written < size) {
+                val count = minOf(size - written, mActiveBuffer.remaining())
+                data.limit(offset + written + count)
+                data.position(offset + written)
+                mActiveBuffer.put(data)
+                written += count
+                swapIfFull()
+            }
+        } finally {
+            data.limit(limit)
+            data.position(position)
+        }
+        writtenBytes += size
+    }
+
+    /**
+     * Flush all data and close the file
+     */
+    @Throws(IOException::class)
+    fun close() {
+        if (isClosed) {
+            return
+        }
+        try {
+            if (mActiveBuffer.position() > 0) {
+                mActiveBuffer.flip()
+                mFullQueue.put(mActiveBuffer)
+            }
+            isClosed = true
+            mFullQueue.put(ByteBuffer.allocate(0))
+            mWriteThread?.join()
+            mWriteThread = null
+            mWriteError?.let {
+                throw it
+            }
+        } finally {
+            isClosed = true
+            mChannel.close()
+            mFile.close()
+        }
+    }
+
+    private fun swapIfFull() {
+        if (mActiveBuffer.hasRemaining()) {
+            return
+        }
+        mActiveBuffer.flip()
+        mFullQueue.put(mActiveBuffer)
+        // wait the writer returning a buffer
+        // only blocks when disk io slower than the caller
+        var buffer: ByteBuffer? = null
+        while (buffer == null) {
+            buffer = mFreeQueue.poll(WAIT_TIMES_OUT_MS, TimeUnit.MILLISECONDS)
+            mWriteError?.let {
+                throw it
+            }
+        }
+        mActiveBuffer = buffer
+    }
+
+    private fun checkState() {
+        if (isClosed) {
+            throw IOException("writer has been closed")
+        }
+        mWriteError?.let {
+            throw it
+        }
+    }
+
+    private fun writeLoop() {
+        while (true) {
+            val buffer = try {
+                mFullQueue.take()
+            } catch (e: InterruptedException) {
+                return
+            }
+            // empty buffer means the end
+            if (buffer.capacity() == 0) {
+                return
+            }
+            try {
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer)
+                }
+            } catch (e: IOException) {
+                Logger.e(TAG, "write file failed, err = ${e.localizedMessage}", e)
+                mWriteError = e
+            }
+            buffer.clear()
+            mFreeQueue.offer(buffer)
+        }
+    }
+
+    companion object {
+        private const val TAG = "BufferedChannelWriter"
+        private const val BUFFER_COUNT = 2
+        private const val WAIT_TIMES_OUT_MS = 100L
+        const val DEFAULT_BUFFER_SIZE = 512 * 1024
+    }
+}
@@ -24,6 +24,7 @@ import java.lang.Exception
  *
  * @author Created by jiangdg on 2023/7/27
  */
+@Deprecated("Debug only, use ElementaryStreamRecorder or ICamera.captureRawStreamStart instead")
 object H264TestUtil {
     private var fos: FileOutputStream? = null
 
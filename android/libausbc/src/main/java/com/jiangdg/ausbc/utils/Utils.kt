@@ -131,4 +131,14 @@ object Utils  {
         val intent = Intent(Settings.ACTION_MANAGE_OVERLAY_PERMISSION, uri)
         activity.startActivityForResult(intent, requestCode)
     }
+
+    /**
+     * Get an element of a list changed by other threads, such as a callback list
+     *  walked by index to avoid an iterator per frame
+     *
+     * @return null if out of range, such as removed meanwhile
+     */
+    fun <T> getOrNull(list: List<T>, index: Int): T? {
+        return if (index >= 0 && index < list.size) list[index] else null
+    }
 }
\ No newline at end of file
@@ -24,4 +24,6 @@ object BusKey {
     const val KEY_RENDER_READY = "render-ready"
     const val KEY_CAMERA_STATUS = "camera-status"
     const val KEY_PREVIEW_RATE = "preview-frame-rate"
+    const val KEY_RENDER_STATS = "render-stats"
+    const val KEY_RENDER_ENGINE_STATS = "render-engine-stats"
 }
\ No newline at end of file
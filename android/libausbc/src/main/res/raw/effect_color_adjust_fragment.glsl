@@ -0,0 +1,15 @@
+precision mediump float;
+uniform sampler2D uTextureSampler;
+uniform float uBrightness;
+uniform float uContrast;
+uniform float uSaturation;
+varying vec2 vTextureCoord;
+void main()
+{
+    vec4 tempColor = texture2D(uTextureSampler, vTextureCoord);
+    vec3 rgb = (tempColor.rgb - 0.5) * uContrast + 0.5 + uBrightness;
+    // Mix with the grayscale value of each pixel
+    float luminance = dot(rgb, vec3(0.299, 0.587, 0.114));
+    rgb = mix(vec3(luminance), rgb, uSaturation);
+    gl_FragColor = vec4(clamp(rgb, 0.0, 1.0), tempColor.a);
+}
@@ -0,0 +1,72 @@
+// pixel addressing of 1080p needs more than mediump,
+// YuvConvertRender is not used when highp is missing
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+precision highp float;
+#else
+precision mediump float;
+#endif
+uniform sampler2D uTextureSampler;
+// image width and height in pixels
+uniform vec2 uImageSize;
+// 0 is nv12, 1 is i420
+uniform float uYuvFormat;
+varying vec2 vTextureCoord;
+
+// BT.601 video range, same as YuvPacker
+float toY(vec3 c) { return dot(c, vec3(0.257, 0.504, 0.098)) + 0.0627451; }
+float toU(vec3 c) { return dot(c, vec3(-0.148, -0.291, 0.439)) + 0.5019608; }
+float toV(vec3 c) { return dot(c, vec3(0.439, -0.368, -0.071)) + 0.5019608; }
+
+// center of a pixel, row 0 is the top of the image
+vec3 pixelAt(float x, float y)
+{
+    return texture2D(uTextureSampler, vec2((x + 0.5) / uImageSize.x, (y + 0.5) / uImageSize.y)).rgb;
+}
+
+// corner of a 2x2 block, averaged by the linear filter
+vec3 blockAt(float cx, float cy)
+{
+    return texture2D(uTextureSampler, vec2((cx * 2.0 + 1.0) / uImageSize.x, (cy * 2.0 + 1.0) / uImageSize.y)).rgb;
+}
+
+void main()
+{
+    // a texel of the target packs 4 bytes of the yuv frame
+    float ox = floor(gl_FragCoord.x);
+    float oy = floor(gl_FragCoord.y);
+    float width = uImageSize.x;
+    float height = uImageSize.y;
+    if (oy < height) {
+        float x = ox * 4.0;
+        gl_FragColor = vec4(toY(pixelAt(x, oy)), toY(pixelAt(x + 1.0, oy)),
+                            toY(pixelAt(x + 2.0, oy)), toY(pixelAt(x + 3.0, oy)));
+        return;
+    }
+    float row = oy - height;
+    if (uYuvFormat < 0.5) {
+        // nv12, a row is a chroma row of U V U V
+        vec3 c0 = blockAt(ox * 2.0, row);
+        vec3 c1 = blockAt(ox * 2.0 + 1.0, row);
+        gl_FragColor = vec4(toU(c0), toV(c0), toU(c1), toV(c1));
+        return;
+    }
+    // i420, a row holds two chroma rows, U plane then V plane
+    float planeRows = height / 4.0;
+    bool isV = row >= planeRows;
+    if (isV) {
+        row -= planeRows;
+    }
+    float chromaWidth = width / 2.0;
+    float index = row * width + ox * 4.0;
+    float cy = floor(index / chromaWidth);
+    float cx = index - cy * chromaWidth;
+    vec3 c0 = blockAt(cx, cy);
+    vec3 c1 = blockAt(cx + 1.0, cy);
+    vec3 c2 = blockAt(cx + 2.0, cy);
+    vec3 c3 = blockAt(cx + 3.0, cy);
+    if (isV) {
+        gl_FragColor = vec4(toV(c0), toV(c1), toV(c2), toV(c3));
+    } else {
+        gl_FragColor = vec4(toU(c0), toU(c1), toU(c2), toU(c3));
+    }
+}
@@ -0,0 +1,104 @@
+package com.jiangdg.ausbc.camera
+
+import com.jiangdg.ausbc.camera.bean.FrameMetadata
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * [FrameMetadataRing] record, bind to the texture timestamp, find and wraparound
+ */
+class FrameMetadataRingTest {
+
+    @Test
+    fun recordThenFindByArrivalTime() {
+        val ring = FrameMetadataRing("camera", 8)
+        ring.setSnapshot(100, 50)
+        assertEquals(1L, ring.record(FRAME_NS))
+        val out = FrameMetadata()
+        assertTrue(ring.find(FRAME_NS, 0L, out))
+        assertEquals(1L, out.sequence)
+        assertEquals("camera", out.cameraId)
+        assertEquals(FRAME_NS, out.captureTimeNs)
+        assertEquals(100, out.exposure)
+        assertEquals(50, out.gain)
+        assertFalse(ring.find(FRAME_NS + 1, 0L, out))
+    }
+
+    @Test
+    fun bindMovesTheKeyToTheTextureTimestamp() {
+        val ring = FrameMetadataRing("camera", 8)
+        for (i in 0 until 4) {
+            ring.record(FRAME_NS + i * INTERVAL_NS)
+        }
+        // texture timestamp of the third frame, a little after it arrived
+        val textureNs = FRAME_NS + 2 * INTERVAL_NS + 3_000_000L
+        assertTrue(ring.bind(textureNs, BIND_TOLERANCE_NS, FrameMetadata.FLAG_DROP_RENDER))
+        val out = FrameMetadata()
+        assertTrue(ring.find(textureNs, 0L, out))
+        assertEquals(3L, out.sequence)
+        assertEquals(FRAME_NS + 2 * INTERVAL_NS, out.captureTimeNs)
+        assertTrue(out.hasDropFlag(FrameMetadata.FLAG_DROP_RENDER))
+        // the old key is gone
+        assertFalse(ring.find(FRAME_NS + 2 * INTERVAL_NS, 0L, out))
+        // the encoder pts is in us
+        assertTrue(ring.find(textureNs / 1000L * 1000L, 1000L, out))
+        assertEquals(3L, out.sequence)
+        // nothing arrived near
+        assertFalse(ring.bind(FRAME_NS + 10 * INTERVAL_NS, BIND_TOLERANCE_NS, 0))
+    }
+
+    @Test
+    fun pendingFlagsGoToTheNextFrame() {
+        val ring = FrameMetadataRing("camera", 8)
+        ring.record(FRAME_NS)
+        ring.addPendingFlags(FrameMetadata.FLAG_DROP_CALLBACK)
+        ring.record(FRAME_NS + INTERVAL_NS)
+        ring.record(FRAME_NS + 2 * INTERVAL_NS)
+        val out = FrameMetadata()
+        ring.find(FRAME_NS, 0L, out)
+        assertFalse(out.hasDropFlag(FrameMetadata.FLAG_DROP_CALLBACK))
+        ring.find(FRAME_NS + INTERVAL_NS, 0L, out)
+        assertTrue(out.hasDropFlag(FrameMetadata.FLAG_DROP_CALLBACK))
+        ring.find(FRAME_NS + 2 * INTERVAL_NS, 0L, out)
+        assertEquals(0, out.dropFlags)
+        ring.addFlags(FRAME_NS + 2 * INTERVAL_NS, FrameMetadata.FLAG_DROP_ENCODE)
+        ring.find(FRAME_NS + 2 * INTERVAL_NS, 0L, out)
+        assertTrue(out.hasDropFlag(FrameMetadata.FLAG_DROP_ENCODE))
+    }
+
+    @Test
+    fun oldFramesAreOverwritten() {
+        val capacity = 8
+        val ring = FrameMetadataRing("camera", capacity)
+        val frames = capacity * 3 + 5
+        for (i in 0 until frames) {
+            ring.record(FRAME_NS + i * INTERVAL_NS)
+        }
+        val out = FrameMetadata()
+        // only the latest capacity frames are kept
+        for (i in 0 until frames) {
+            val found = ring.find(FRAME_NS + i * INTERVAL_NS, 0L, out)
+            assertEquals("frame $i", i >= frames - capacity, found)
+            if (found) {
+                assertEquals(i + 1L, out.sequence)
+            }
+        }
+    }
+
+    @Test
+    fun clearForgetsAll() {
+        val ring = FrameMetadataRing("camera", 8)
+        ring.record(FRAME_NS)
+        ring.clear()
+        assertFalse(ring.find(FRAME_NS, 0L, FrameMetadata()))
+        assertFalse(ring.bind(FRAME_NS, BIND_TOLERANCE_NS, 0))
+    }
+
+    companion object {
+        private const val FRAME_NS = 1_000_000_000L
+        private const val INTERVAL_NS = 33_000_000L
+        private const val BIND_TOLERANCE_NS = 10_000_000L
+    }
+}
@@ -0,0 +1,103 @@
+package com.jiangdg.ausbc.encode.audio
+
+import android.media.AudioFormat
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+import kotlin.math.abs
+
+/**
+ * [AudioClock] against a simulated sound card whose sample rate is not exact
+ */
+class AudioClockTest {
+
+    @Test
+    fun followsSlowDeviceOverAnHour() {
+        assertMaxErrorOverAnHour(-300.0)
+    }
+
+    @Test
+    fun followsFastDeviceOverAnHour() {
+        assertMaxErrorOverAnHour(300.0)
+    }
+
+    @Test
+    fun exactDeviceNeedsNoCorrection() {
+        val clock = AudioClock(SAMPLE_RATE, 1, AudioFormat.ENCODING_PCM_16BIT)
+        var realUs = START_US
+        repeat(1000) {
+            realUs += BLOCK_US
+            assertEquals(realUs - BLOCK_US, clock.getPtsUs(BLOCK_BYTES, realUs))
+        }
+        assertEquals(0L, clock.getCorrectionUs())
+    }
+
+    @Test
+    fun resyncsAfterLostSamples() {
+        val clock = AudioClock(SAMPLE_RATE, 1, AudioFormat.ENCODING_PCM_16BIT)
+        var realUs = START_US
+        repeat(100) {
+            realUs += BLOCK_US
+            clock.getPtsUs(BLOCK_BYTES, realUs)
+        }
+        // half a second of samples never read
+        realUs += 500_000L + BLOCK_US
+        assertEquals(realUs - BLOCK_US, clock.getPtsUs(BLOCK_BYTES, realUs))
+    }
+
+    @Test
+    fun ptsNeverGoesBack() {
+        val clock = AudioClock(SAMPLE_RATE, 1, AudioFormat.ENCODING_PCM_16BIT)
+        var realUs = START_US
+        var lastPtsUs = -1L
+        repeat(100) {
+            realUs += BLOCK_US
+            lastPtsUs = clock.getPtsUs(BLOCK_BYTES, realUs)
+        }
+        // read time jumps back a lot, the clock resyncs but keeps increasing
+        assertTrue(clock.getPtsUs(BLOCK_BYTES, realUs - 1_000_000L) > lastPtsUs)
+    }
+
+    /**
+     * A device running [ppm] off its nominal rate is read in 20ms blocks with jitter,
+     *  the pts of every block should stay close to its real capture time
+     */
+    private fun assertMaxErrorOverAnHour(ppm: Double) {
+        val clock = AudioClock(SAMPLE_RATE, 1, AudioFormat.ENCODING_PCM_16BIT)
+        val random = Random(ppm.toLong())
+        val realRate = SAMPLE_RATE * (1.0 + ppm / 1_000_000.0)
+        val blocks = HOUR_US / BLOCK_US
+        var samples = 0L
+        var lastPtsUs = -1L
+        var maxErrorUs = 0L
+        for (i in 0 until blocks) {
+            val realStartUs = START_US + (samples * 1_000_000.0 / realRate).toLong()
+            samples += BLOCK_SAMPLES
+            val realEndUs = START_US + (samples * 1_000_000.0 / realRate).toLong()
+            // read returns a little after the last sample captured
+            val readUs = realEndUs + random.nextInt(MAX_JITTER_US)
+            val ptsUs = clock.getPtsUs(BLOCK_BYTES, readUs)
+            assertTrue("pts goes back at block $i", ptsUs > lastPtsUs)
+            lastPtsUs = ptsUs
+            // once settled, the error is the mean read latency plus noise
+            if (i > SETTLE_BLOCKS) {
+                maxErrorUs = maxOf(maxErrorUs, abs(ptsUs - realStartUs - MAX_JITTER_US / 2))
+            }
+        }
+        // without correction the error would be more than a second
+        assertTrue("max error ${maxErrorUs}us", maxErrorUs < MAX_ERROR_US)
+    }
+
+    companion object {
+        private const val SAMPLE_RATE = 48000
+        private const val BLOCK_SAMPLES = 960
+        private const val BLOCK_BYTES = BLOCK_SAMPLES * 2
+        private const val BLOCK_US = 20_000L
+        private const val HOUR_US = 3600L * 1_000_000L
+        private const val START_US = 1_000_000_000L
+        private const val MAX_JITTER_US = 4000
+        private const val SETTLE_BLOCKS = 500
+        private const val MAX_ERROR_US = 10_000L
+    }
+}
@@ -0,0 +1,80 @@
+package com.jiangdg.ausbc.encode.audio
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+/**
+ * [PcmBroadcastRing] partial reads and lagging cursors
+ */
+class PcmBroadcastRingTest {
+
+    @Test
+    fun readsLargeChunkInParts() {
+        val ring = PcmBroadcastRing(8)
+        val cursor = ring.openCursor("test")
+        val chunk = ByteArray(10) { it.toByte() }
+        ring.write(chunk, chunk.size, 1000L)
+        val dst = ByteBuffer.allocate(4)
+        val out = ByteArray(10)
+        var total = 0
+        val offsets = ArrayList<Int>()
+        do {
+            dst.clear()
+            val size = cursor.read(dst)
+            assertTrue(size > 0)
+            assertEquals(1000L, cursor.lastPtsUs)
+            offsets.add(cursor.lastOffset)
+            dst.flip()
+            dst.get(out, total, size)
+            total += size
+        } while (cursor.hasRemainder())
+        assertEquals(10, total)
+        assertEquals(listOf(0, 4, 8), offsets)
+        assertArrayEquals(chunk, out)
+        assertEquals(0, cursor.peekSize())
+    }
+
+    @Test
+    fun peekSizeIsTheRemainder() {
+        val ring = PcmBroadcastRing(8)
+        val cursor = ring.openCursor("test")
+        ring.write(ByteArray(10), 10, 1000L)
+        ring.write(ByteArray(6), 6, 2000L)
+        assertEquals(3, cursor.read(ByteArray(3)))
+        assertEquals(7, cursor.peekSize())
+        assertEquals(7, cursor.read(ByteArray(16)))
+        assertFalse(cursor.hasRemainder())
+        assertEquals(6, cursor.peekSize())
+    }
+
+    @Test
+    fun laggingCursorJumpsToNewestChunk() {
+        val ring = PcmBroadcastRing(8)
+        val cursor = ring.openCursor("test")
+        ring.write(ByteArray(10), 10, 0L)
+        cursor.read(ByteArray(4))
+        for (i in 1..20) {
+            ring.write(ByteArray(10) { i.toByte() }, 10, i * 1000L)
+        }
+        val dst = ByteArray(10)
+        // the partly read chunk is dropped with the others
+        assertEquals(10, cursor.read(dst))
+        assertEquals(20_000L, cursor.lastPtsUs)
+        assertEquals(0, cursor.lastOffset)
+        assertEquals(20.toByte(), dst[0])
+        assertEquals(20L, cursor.droppedChunks)
+    }
+
+    @Test
+    fun closedCursorReturnsAtOnce() {
+        val ring = PcmBroadcastRing(8)
+        val cursor = ring.openCursor("test")
+        ring.closeCursor(cursor)
+        assertEquals(-1, cursor.read(ByteArray(4), 1000L))
+        assertEquals(0, ring.getCursorCount())
+    }
+}
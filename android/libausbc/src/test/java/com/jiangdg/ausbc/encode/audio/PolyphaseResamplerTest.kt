@@ -0,0 +1,72 @@
+package com.jiangdg.ausbc.encode.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * [PolyphaseResampler] output length, tone and passthrough
+ */
+class PolyphaseResamplerTest {
+
+    @Test
+    fun outputLengthFollowsRatio() {
+        val resampler = PolyphaseResampler(48000, 44100, 2)
+        val chunkFrames = 480
+        val input = ShortArray(chunkFrames * 2)
+        val output = ShortArray(resampler.getMaxOutputFrames(chunkFrames) * 2)
+        var outFrames = 0L
+        // ten seconds in 10ms chunks
+        repeat(1000) {
+            outFrames += resampler.process(input, 0, chunkFrames, output, 0)
+        }
+        assertEquals(441000L, outFrames)
+    }
+
+    @Test
+    fun keepsToneAmplitude() {
+        val inRate = 44100
+        val outRate = 16000
+        val resampler = PolyphaseResampler(inRate, outRate, 1)
+        val inFrames = inRate
+        val input = tone(inRate, 1, inFrames, TONE_HZ)
+        val output = ShortArray(resampler.getMaxOutputFrames(inFrames))
+        val outFrames = resampler.process(input, 0, inFrames, output, 0)
+        // skip the filter delay
+        val rms = rms(output, outRate / 10, outFrames - outRate / 10)
+        val expected = TONE_AMPLITUDE / sqrt(2.0)
+        assertTrue("rms $rms", abs(rms - expected) < expected * 0.02)
+    }
+
+    @Test
+    fun passthroughCopiesInput() {
+        val resampler = PolyphaseResampler(48000, 48000, 2)
+        val input = tone(48000, 2, 480, TONE_HZ)
+        val output = ShortArray(input.size)
+        assertEquals(480, resampler.process(input, 0, 480, output, 0))
+        assertTrue(input.contentEquals(output))
+    }
+
+    private fun tone(sampleRate: Int, channelCount: Int, frames: Int, hz: Double): ShortArray {
+        return ShortArray(frames * channelCount) { i ->
+            (sin((i / channelCount) * 2.0 * PI * hz / sampleRate) * TONE_AMPLITUDE).toInt().toShort()
+        }
+    }
+
+    private fun rms(data: ShortArray, from: Int, to: Int): Double {
+        var sum = 0.0
+        for (i in from until to) {
+            sum += data[i].toDouble() * data[i]
+        }
+        return sqrt(sum / (to - from))
+    }
+
+    companion object {
+        private const val TONE_HZ = 1000.0
+        private const val TONE_AMPLITUDE = 16000.0
+    }
+}
@@ -0,0 +1,171 @@
+package com.jiangdg.ausbc.encode.muxer
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * [KeyframeIndexWriter] against hand built mp4 sample tables, read back by [KeyframeIndex]
+ */
+class KeyframeIndexTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun writeAndLoad() {
+        val index = writeTwoSegments()
+        assertEquals(4, index.size)
+        assertEquals(File(folder.root, "rec").path, index.basePath)
+        val expectedSessionPts = longArrayOf(0L, 2_000_000L, 4_000_000L, 5_000_000L)
+        val expectedSegmentPts = longArrayOf(0L, 2_000_000L, 0L, 1_000_000L)
+        // sync samples 1 and 4 of the video track, then 1 and 3
+        val expectedOffsets = longArrayOf(1000L, 5000L, 200L, 260L)
+        val expectedSizes = intArrayOf(100, 100, 50, 60)
+        val expectedSegments = intArrayOf(0, 0, 1, 1)
+        for (i in 0 until index.size) {
+            assertEquals(expectedSessionPts[i], index.getSessionPtsUs(i))
+            assertEquals(expectedSegmentPts[i], index.getSegmentPtsUs(i))
+            assertEquals(expectedOffsets[i], index.getFileOffset(i))
+            assertEquals(expectedSizes[i], index.getSampleSize(i))
+            assertEquals(expectedSegments[i], index.getSegmentIndex(i))
+        }
+        assertEquals("${index.basePath}.mp4", index.getSegmentPath(0))
+        assertEquals("${index.basePath}_1.mp4", index.getSegmentPath(1))
+    }
+
+    @Test
+    fun findKeyframe() {
+        val index = writeTwoSegments()
+        // earlier than the first keyframe still gives the first one
+        assertEquals(0, index.findKeyframe(-1L))
+        assertEquals(0, index.findKeyframe(0L))
+        assertEquals(0, index.findKeyframe(1_999_999L))
+        assertEquals(1, index.findKeyframe(2_000_000L))
+        assertEquals(2, index.findKeyframe(4_500_000L))
+        assertEquals(3, index.findKeyframe(Long.MAX_VALUE))
+    }
+
+    @Test
+    fun emptyIndex() {
+        val indexPath = KeyframeIndex.getIndexPath(File(folder.root, "empty").path)
+        KeyframeIndexWriter(indexPath).close()
+        val index = KeyframeIndex.load(indexPath)
+        assertNotNull(index)
+        assertEquals(0, index!!.size)
+        assertEquals(-1, index.findKeyframe(0L))
+    }
+
+    @Test
+    fun incompleteTailIsIgnored() {
+        writeTwoSegments()
+        val indexPath = KeyframeIndex.getIndexPath(File(folder.root, "rec").path)
+        FileOutputStream(indexPath, true).use {
+            it.write(ByteArray(KeyframeIndex.RECORD_SIZE - 1))
+        }
+        assertEquals(4, KeyframeIndex.load(indexPath)!!.size)
+    }
+
+    @Test
+    fun invalidIndex() {
+        val file = folder.newFile("bad.kfi")
+        file.writeBytes(ByteArray(64))
+        assertNull(KeyframeIndex.load(file.path))
+        assertNull(KeyframeIndex.load(File(folder.root, "missing.kfi").path))
+    }
+
+    @Test
+    fun sampleToAnnexB() {
+        val sample = byteArrayOf(0, 0, 0, 2, 0x65, 1, 0, 0, 0, 1, 0x06)
+        assertTrue(KeyframeIndex.toAnnexB(sample))
+        assertArrayEquals(byteArrayOf(0, 0, 0, 1, 0x65, 1, 0, 0, 0, 1, 0x06), sample)
+        // length runs past the sample
+        assertFalse(KeyframeIndex.toAnnexB(byteArrayOf(0, 0, 0, 5, 0x65, 1)))
+        assertFalse(KeyframeIndex.toAnnexB(ByteArray(0)))
+    }
+
+    private fun writeTwoSegments(): KeyframeIndex {
+        val basePath = File(folder.root, "rec").path
+        val segment0 = File("$basePath.mp4")
+        segment0.writeBytes(mp4(
+            sampleSizes = intArrayOf(100, 20, 30, 100, 25, 35),
+            samplesPerChunk = 3,
+            chunkOffsets = intArrayOf(1000, 5000),
+            syncSamples = intArrayOf(1, 4)
+        ))
+        val segment1 = File("${basePath}_1.mp4")
+        segment1.writeBytes(mp4(
+            sampleSizes = intArrayOf(50, 10, 60),
+            samplesPerChunk = 1,
+            chunkOffsets = intArrayOf(200, 250, 260),
+            syncSamples = intArrayOf(1, 3)
+        ))
+        val indexPath = KeyframeIndex.getIndexPath(basePath)
+        KeyframeIndexWriter(indexPath).apply {
+            startSegment(0L)
+            addKeyframe(0L)
+            addKeyframe(2_000_000L)
+            finishSegment(segment0.path, 0)
+            startSegment(4_000_000L)
+            addKeyframe(0L)
+            addKeyframe(1_000_000L)
+            finishSegment(segment1.path, 1)
+            close()
+        }
+        return KeyframeIndex.load(indexPath)!!
+    }
+
+    /**
+     * A moov with an audio track first, then the video track, no mdat is needed
+     */
+    private fun mp4(sampleSizes: IntArray, samplesPerChunk: Int, chunkOffsets: IntArray, syncSamples: IntArray): ByteArray {
+        val audio = trak(HANDLER_SOUN, box("stbl",
+            box("stsz", ints(0, 4, 10)),
+            box("stsc", ints(0, 1, 1, 10, 1)),
+            box("stco", ints(0, 1, 300))
+        ))
+        val video = trak(HANDLER_VIDE, box("stbl",
+            box("stss", ints(0, syncSamples.size, *syncSamples)),
+            box("stsz", ints(0, 0, sampleSizes.size, *sampleSizes)),
+            box("stsc", ints(0, 1, 1, samplesPerChunk, 1)),
+            box("stco", ints(0, chunkOffsets.size, *chunkOffsets))
+        ))
+        return box("ftyp", "isom".toByteArray()) + box("moov", audio, video)
+    }
+
+    private fun trak(handler: Int, stbl: ByteArray): ByteArray {
+        return box("trak", box("mdia",
+            box("hdlr", ints(0, 0, handler, 0, 0, 0)),
+            box("minf", stbl)
+        ))
+    }
+
+    private fun box(type: String, vararg payloads: ByteArray): ByteArray {
+        val size = 8 + payloads.sumOf { it.size }
+        return ByteBuffer.allocate(size).apply {
+            putInt(size)
+            put(type.toByteArray())
+            payloads.forEach { put(it) }
+        }.array()
+    }
+
+    private fun ints(vararg values: Int): ByteArray {
+        return ByteBuffer.allocate(values.size * 4).apply {
+            values.forEach { putInt(it) }
+        }.array()
+    }
+
+    companion object {
+        private const val HANDLER_VIDE = 0x76696465
+        private const val HANDLER_SOUN = 0x736F756E
+    }
+}
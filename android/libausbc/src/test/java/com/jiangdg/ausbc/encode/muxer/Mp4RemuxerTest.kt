@@ -0,0 +1,121 @@
+package com.jiangdg.ausbc.encode.muxer
+
+import com.jiangdg.ausbc.encode.muxer.Mp4Remuxer.SampleCutter
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+/**
+ * [Mp4Remuxer] trim and pts shift of segment samples, and segment listing
+ */
+class Mp4RemuxerTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun wholeSessionKeepsSessionTime() {
+        val cutter = SampleCutter(0L, Long.MAX_VALUE).apply {
+            videoTrack = VIDEO
+        }
+        assertFalse(cutter.isBeforeRange(0L, SEGMENT_US))
+        assertEquals(0L, cutter.getSeekUs(0L))
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(VIDEO, 0L, true))
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(AUDIO, 10_000L, true))
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(VIDEO, 33_000L, false))
+        // second segment, sample time 0.5s
+        val sessionUs = SEGMENT_US + 500_000L
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(VIDEO, sessionUs, false))
+        assertEquals(sessionUs, cutter.getOutputPtsUs(sessionUs))
+        assertFalse(cutter.isAfterRange(SEGMENT_US * 10))
+    }
+
+    @Test
+    fun audioBeforeTheFirstKeyframeIsSkipped() {
+        val cutter = SampleCutter(0L, Long.MAX_VALUE).apply {
+            videoTrack = VIDEO
+        }
+        // a recording begins with audio and a non key frame
+        assertEquals(SampleCutter.ACTION_SKIP, cutter.filter(AUDIO, 0L, true))
+        assertEquals(SampleCutter.ACTION_SKIP, cutter.filter(VIDEO, 5_000L, false))
+        assertEquals(-1L, cutter.cutUs)
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(VIDEO, 40_000L, true))
+        assertEquals(40_000L, cutter.cutUs)
+        assertEquals(0L, cutter.getOutputPtsUs(40_000L))
+        // interleaved audio earlier than the cut
+        assertEquals(SampleCutter.ACTION_SKIP, cutter.filter(AUDIO, 30_000L, true))
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(AUDIO, 50_000L, true))
+        assertEquals(10_000L, cutter.getOutputPtsUs(50_000L))
+    }
+
+    @Test
+    fun startInSecondSegment() {
+        val startUs = SEGMENT_US + 1_500_000L
+        val cutter = SampleCutter(startUs, Long.MAX_VALUE).apply {
+            videoTrack = VIDEO
+        }
+        assertTrue(cutter.isBeforeRange(0L, SEGMENT_US))
+        assertFalse(cutter.isBeforeRange(SEGMENT_US, SEGMENT_US))
+        // seek in segment time, the extractor goes back to the keyframe at 1s
+        assertEquals(1_500_000L, cutter.getSeekUs(SEGMENT_US))
+        val keyframeUs = SEGMENT_US + 1_000_000L
+        assertEquals(SampleCutter.ACTION_SKIP, cutter.filter(AUDIO, keyframeUs - 20_000L, true))
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(VIDEO, keyframeUs, true))
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(VIDEO, keyframeUs + 33_000L, false))
+        assertEquals(33_000L, cutter.getOutputPtsUs(keyframeUs + 33_000L))
+        // third segment continues from the same cut, no seek
+        assertEquals(0L, cutter.getSeekUs(SEGMENT_US * 2))
+        assertEquals(SEGMENT_US * 2 - keyframeUs, cutter.getOutputPtsUs(SEGMENT_US * 2))
+    }
+
+    @Test
+    fun endStopsEachTrack() {
+        val endUs = SEGMENT_US + 200_000L
+        val cutter = SampleCutter(0L, endUs).apply {
+            videoTrack = VIDEO
+        }
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(VIDEO, 0L, true))
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(AUDIO, endUs - 1L, true))
+        assertEquals(SampleCutter.ACTION_END_TRACK, cutter.filter(VIDEO, endUs, true))
+        assertEquals(SampleCutter.ACTION_END_TRACK, cutter.filter(AUDIO, endUs + 10_000L, true))
+        assertFalse(cutter.isAfterRange(SEGMENT_US))
+        assertTrue(cutter.isAfterRange(SEGMENT_US * 2))
+    }
+
+    @Test
+    fun audioOnlyBeginsAtAnySyncSample() {
+        val cutter = SampleCutter(0L, Long.MAX_VALUE)
+        assertEquals(SampleCutter.ACTION_SKIP, cutter.filter(0, 0L, false))
+        assertEquals(SampleCutter.ACTION_WRITE, cutter.filter(0, 20_000L, true))
+        assertEquals(0L, cutter.getOutputPtsUs(20_000L))
+    }
+
+    @Test
+    fun segmentTracksMustMatch() {
+        val tracks = arrayOf<String?>("audio/mp4a-latm", "video/avc")
+        assertTrue(Mp4Remuxer.isSameTracks(arrayOf("audio/mp4a-latm", "video/avc"), tracks))
+        assertFalse(Mp4Remuxer.isSameTracks(arrayOf("video/avc", "audio/mp4a-latm"), tracks))
+        assertFalse(Mp4Remuxer.isSameTracks(arrayOf("video/avc"), tracks))
+        assertFalse(Mp4Remuxer.isSameTracks(arrayOf("audio/mp4a-latm", "video/hevc"), tracks))
+    }
+
+    @Test
+    fun listSegmentsStopsAtTheFirstGap() {
+        val basePath = File(folder.root, "rec").path
+        assertTrue(Mp4Remuxer.listSegments(basePath).isEmpty())
+        File("$basePath.mp4").createNewFile()
+        File("${basePath}_1.mp4").createNewFile()
+        File("${basePath}_3.mp4").createNewFile()
+        assertEquals(listOf("$basePath.mp4", "${basePath}_1.mp4"), Mp4Remuxer.listSegments(basePath))
+    }
+
+    companion object {
+        private const val AUDIO = 0
+        private const val VIDEO = 1
+        private const val SEGMENT_US = 3_000_000L
+    }
+}
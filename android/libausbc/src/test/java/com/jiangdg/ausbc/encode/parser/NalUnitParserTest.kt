@@ -0,0 +1,129 @@
+package com.jiangdg.ausbc.encode.parser
+
+import android.media.MediaCodec
+import com.jiangdg.ausbc.encode.bean.EncodedPacket
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+/**
+ * [NalUnitParser] start code split, emulation prevention and sps fields
+ */
+class NalUnitParserTest {
+
+    @Test
+    fun splitsAnnexBAccessUnit() {
+        // sps and pps with 4 bytes start codes, idr slice with a 3 bytes one
+        val data = bytes("00 00 00 01 $SPS_1080P 00 00 00 01 $PPS 00 00 01 65 88 84 00 21")
+        val parser = NalUnitParser()
+        val packet = parse(parser, data, 0L)
+        assertEquals(3, packet.nalCount)
+        assertEquals(EncodedPacket.NAL_TYPE_SPS, packet.getNalType(0))
+        assertEquals(EncodedPacket.NAL_TYPE_PPS, packet.getNalType(1))
+        assertEquals(EncodedPacket.NAL_TYPE_IDR, packet.getNalType(2))
+        // offsets skip the start codes, sizes drop the zero of the next 4 bytes start code
+        assertEquals(4, packet.getNalOffset(0))
+        assertEquals(12, packet.getNalSize(0))
+        assertEquals(20, packet.getNalOffset(1))
+        assertEquals(4, packet.getNalSize(1))
+        assertEquals(27, packet.getNalOffset(2))
+        assertEquals(5, packet.getNalSize(2))
+        assertTrue(packet.isIdr)
+        assertEquals(2, packet.sliceType)
+        assertTrue(packet.isKeyFrame())
+        assertNotNull(packet.sps)
+    }
+
+    @Test
+    fun parsesHighProfileSpsWithCropping() {
+        val parser = NalUnitParser()
+        parse(parser, bytes("00 00 00 01 $SPS_1080P"), 0L)
+        val sps = parser.getSps()!!
+        assertEquals(100, sps.profileIdc)
+        assertEquals(0, sps.constraintFlags)
+        assertEquals(40, sps.levelIdc)
+        assertEquals(1, sps.chromaFormatIdc)
+        assertEquals(4, sps.maxNumRefFrames)
+        assertTrue(sps.isFrameMbsOnly)
+        // 1088 coded lines, 8 cropped
+        assertEquals(1920, sps.width)
+        assertEquals(1080, sps.height)
+    }
+
+    @Test
+    fun parsesBaselineSps() {
+        val parser = NalUnitParser()
+        parse(parser, bytes("00 00 00 01 $SPS_720P"), 0L)
+        val sps = parser.getSps()!!
+        assertEquals(66, sps.profileIdc)
+        assertEquals(0xC0, sps.constraintFlags)
+        assertEquals(31, sps.levelIdc)
+        assertEquals(1, sps.maxNumRefFrames)
+        assertEquals(1280, sps.width)
+        assertEquals(720, sps.height)
+    }
+
+    @Test
+    fun removesEmulationPrevention() {
+        // 4096x4096 macroblocks, the rbsp 00 00 02 is escaped as 00 00 03 02
+        val parser = NalUnitParser()
+        parse(parser, bytes("00 00 00 01 67 42 c0 1f da 00 04 00 00 03 02 00 19"), 0L)
+        val sps = parser.getSps()!!
+        assertEquals(65536, sps.width)
+        assertEquals(65536, sps.height)
+    }
+
+    @Test
+    fun parsesSliceTypeWithoutStartCode() {
+        val parser = NalUnitParser()
+        val packet = parse(parser, bytes("41 9a 02 04"), 0L)
+        assertEquals(1, packet.nalCount)
+        assertEquals(EncodedPacket.NAL_TYPE_SLICE, packet.getNalType(0))
+        assertEquals(0, packet.getNalOffset(0))
+        assertEquals(0, packet.sliceType)
+        assertFalse(packet.isIdr)
+        assertNull(packet.sps)
+    }
+
+    @Test
+    fun keepsDtsMonotonic() {
+        val parser = NalUnitParser()
+        val slice = bytes("00 00 00 01 41 9a 02 04")
+        assertEquals(1000L, parse(parser, slice, 1000L).dtsUs)
+        // pts going back, such as b frames
+        assertEquals(1001L, parse(parser, slice, 900L).dtsUs)
+        assertEquals(2000L, parse(parser, slice, 2000L).dtsUs)
+        // config packets are not timed
+        val config = parse(parser, bytes("00 00 00 01 $SPS_720P"), 0L, MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+        assertEquals(0L, config.dtsUs)
+        parser.reset()
+        assertNull(parser.getSps())
+        assertEquals(500L, parse(parser, slice, 500L).dtsUs)
+    }
+
+    private fun parse(parser: NalUnitParser, data: ByteArray, ptsUs: Long, flags: Int = 0): EncodedPacket {
+        val buffer = ByteBuffer.wrap(data)
+        val packet = EncodedPacket().reset(buffer, 0, data.size, ptsUs, flags, true)
+        parser.parse(buffer, 0, data.size, packet)
+        assertEquals(0, buffer.position())
+        return packet
+    }
+
+    private fun bytes(hex: String): ByteArray {
+        return hex.split(" ").map {
+            it.toInt(16).toByte()
+        }.toByteArray()
+    }
+
+    companion object {
+        // high, level 4.0, 1920x1088 cropped to 1080, no vui
+        private const val SPS_1080P = "67 64 00 28 ac d9 40 78 02 27 e5 40"
+        // constrained baseline, level 3.1, 1280x720, no vui
+        private const val SPS_720P = "67 42 c0 1f da 01 40 16 e4"
+        private const val PPS = "68 ee 3c 80"
+    }
+}
@@ -0,0 +1,113 @@
+package com.jiangdg.ausbc.render
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * [FrameCommandQueue] order, full and empty, and one producer against one consumer thread
+ */
+class FrameCommandQueueTest {
+
+    @Test
+    fun capacityIsPowerOfTwo() {
+        assertEquals(2, FrameCommandQueue(1).getCapacity())
+        assertEquals(4, FrameCommandQueue(4).getCapacity())
+        assertEquals(8, FrameCommandQueue(5).getCapacity())
+    }
+
+    @Test
+    fun emptyPollKeepsLastCommand() {
+        val queue = FrameCommandQueue()
+        assertFalse(queue.poll())
+        assertTrue(queue.offer(7, 70L))
+        assertTrue(queue.poll())
+        assertFalse(queue.poll())
+        assertEquals(7, queue.textureId)
+        assertEquals(70L, queue.timestampNs)
+        assertEquals(0, queue.size())
+    }
+
+    @Test
+    fun fullQueueDropsNewCommands() {
+        val queue = FrameCommandQueue(4)
+        for (i in 0 until 4) {
+            assertTrue(queue.offer(i, i * 10L))
+        }
+        assertFalse(queue.offer(4, 40L))
+        assertFalse(queue.offer(5, 50L))
+        assertEquals(2L, queue.droppedCount)
+        assertEquals(4, queue.size())
+        // the queued ones are kept in order
+        for (i in 0 until 4) {
+            assertTrue(queue.poll())
+            assertEquals(i, queue.textureId)
+            assertEquals(i * 10L, queue.timestampNs)
+        }
+        assertFalse(queue.poll())
+        // room again
+        assertTrue(queue.offer(8, 80L))
+    }
+
+    @Test
+    fun keepsOrderAcrossWrapAround() {
+        val queue = FrameCommandQueue(4)
+        var next = 0
+        var expected = 0
+        repeat(100) {
+            // fill 3, drain 3, slots wrap many times
+            repeat(3) {
+                assertTrue(queue.offer(next, next.toLong()))
+                next++
+            }
+            repeat(3) {
+                assertTrue(queue.poll())
+                assertEquals(expected, queue.textureId)
+                assertEquals(expected.toLong(), queue.timestampNs)
+                expected++
+            }
+        }
+        assertEquals(0L, queue.droppedCount)
+    }
+
+    @Test(timeout = 10000L)
+    fun producerAndConsumerThreads() {
+        val queue = FrameCommandQueue(8)
+        val count = 200_000
+        var error: Throwable? = null
+        val consumer = Thread {
+            try {
+                var expected = 0
+                while (expected < count) {
+                    if (! queue.poll()) {
+                        Thread.yield()
+                        continue
+                    }
+                    // timestamp is written with the texture id, a torn slot breaks the pair
+                    assertEquals(expected, queue.textureId)
+                    assertEquals(expected * 3L, queue.timestampNs)
+                    expected++
+                }
+            } catch (e: Throwable) {
+                error = e
+            }
+        }
+        consumer.start()
+        var offered = 0
+        var dropped = 0L
+        while (offered < count) {
+            if (queue.offer(offered, offered * 3L)) {
+                offered++
+            } else {
+                // full, retry the same command
+                dropped++
+                Thread.yield()
+            }
+        }
+        consumer.join()
+        error?.let { throw it }
+        assertEquals(dropped, queue.droppedCount)
+        assertEquals(0, queue.size())
+    }
+}
@@ -0,0 +1,52 @@
+package com.jiangdg.ausbc.render.effect.fusion
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * [EffectChainPlanner] pass splitting, effects are named by strings,
+ *  upper case ones are fusible
+ */
+class EffectChainPlannerTest {
+    private val mPlanner = EffectChainPlanner<String> { effect ->
+        if (effect[0].isUpperCase()) ColorStage(effect, "color.rgb = color.rgb;") else null
+    }
+
+    @Test
+    fun emptyChainHasNoPass() {
+        assertTrue(mPlanner.plan(emptyList()).isEmpty())
+    }
+
+    @Test
+    fun fusesConsecutiveColorStages() {
+        assertEquals(listOf("[A,B,C]"), describe(mPlanner.plan(listOf("A", "B", "C"))))
+    }
+
+    @Test
+    fun singleFusibleEffectKeepsItsPass() {
+        assertEquals(listOf("A"), describe(mPlanner.plan(listOf("A"))))
+    }
+
+    @Test
+    fun otherEffectsSplitTheRun() {
+        val passes = mPlanner.plan(listOf("A", "B", "blur", "C", "zoom", "D", "E", "F"))
+        assertEquals(listOf("[A,B]", "blur", "C", "zoom", "[D,E,F]"), describe(passes))
+    }
+
+    @Test
+    fun fusedPassKeepsStagesAndSignature() {
+        val pass = mPlanner.plan(listOf("A", "B")).single() as EffectChainPlanner.Pass.Fused
+        assertEquals(listOf("A", "B"), pass.stages.map { it.key })
+        assertEquals(EffectShaderGenerator.getSignature(pass.stages), pass.signature)
+    }
+
+    private fun describe(passes: List<EffectChainPlanner.Pass<String>>): List<String> {
+        return passes.map { pass ->
+            when (pass) {
+                is EffectChainPlanner.Pass.Single -> pass.effect
+                is EffectChainPlanner.Pass.Fused -> pass.effects.joinToString(",", "[", "]")
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.jiangdg.ausbc.render.effect.fusion
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * [EffectShaderGenerator] signature and generated GLSL
+ */
+class EffectShaderGeneratorTest {
+    private val mGray = ColorStage(
+        "gray",
+        "float ${ColorStage.PREFIX}y = dot(color.rgb, vec3(0.299, 0.587, 0.114));\ncolor.rgb = vec3(${ColorStage.PREFIX}y);"
+    )
+    private val mContrast = ColorStage(
+        "contrast",
+        "color.rgb = (color.rgb - 0.5) * ${ColorStage.PREFIX}contrast + 0.5;",
+        "uniform float ${ColorStage.PREFIX}contrast;"
+    )
+
+    @Test
+    fun signatureFollowsOrder() {
+        assertEquals(EffectShaderGenerator.getSignature(listOf(mGray, mContrast)),
+            EffectShaderGenerator.getSignature(listOf(mGray.copy(), mContrast.copy())))
+        assertNotEquals(EffectShaderGenerator.getSignature(listOf(mGray, mContrast)),
+            EffectShaderGenerator.getSignature(listOf(mContrast, mGray)))
+    }
+
+    @Test
+    fun stagesRunInOrder() {
+        val source = EffectShaderGenerator.generateFragment(listOf(mGray, mContrast))
+        val gray = source.indexOf("// gray")
+        val contrast = source.indexOf("    // contrast")
+        assertTrue(source.indexOf("vec4 color = texture2D") in 0 until gray)
+        assertTrue(gray < contrast)
+        assertTrue(contrast < source.indexOf("gl_FragColor = color;"))
+    }
+
+    @Test
+    fun namesArePrefixedByStage() {
+        val source = EffectShaderGenerator.generateFragment(listOf(mContrast, mGray, mContrast))
+        assertFalse(source.contains(ColorStage.PREFIX))
+        assertTrue(source.contains("uniform float s0_contrast;"))
+        assertTrue(source.contains("uniform float s2_contrast;"))
+        assertTrue(source.contains("float s1_y = "))
+        // uniforms before main, bodies in main
+        val main = source.indexOf("void main()")
+        assertTrue(source.indexOf("uniform float s2_contrast;") < main)
+        assertTrue(source.indexOf("* s2_contrast") > main)
+    }
+
+    @Test
+    fun stagesAreScoped() {
+        val source = EffectShaderGenerator.generateFragment(listOf(mGray, mGray))
+        // same local names in two stages do not clash
+        assertEquals(2, Regex("\\n    \\{\\n").findAll(source).count())
+        assertTrue(source.contains("float s0_y"))
+        assertTrue(source.contains("float s1_y"))
+    }
+}
@@ -0,0 +1,59 @@
+package com.jiangdg.ausbc.render.effect.fusion
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+/**
+ * [SignatureCache] hits, least recently used eviction and clearing
+ */
+class SignatureCacheTest {
+
+    @Test
+    fun hitDoesNotCreate() {
+        val cache = SignatureCache<StringBuilder>(2) {}
+        var created = 0
+        val first = cache.getOrPut("a") { created++; StringBuilder("a") }
+        val second = cache.getOrPut("a") { created++; StringBuilder("a") }
+        assertSame(first, second)
+        assertEquals(1, created)
+    }
+
+    @Test
+    fun evictsLeastRecentlyUsed() {
+        val evicted = arrayListOf<String>()
+        val cache = SignatureCache<String>(2) { evicted.add(it) }
+        cache.getOrPut("a") { "a" }
+        cache.getOrPut("b") { "b" }
+        // touch a, so b is the eldest
+        cache.getOrPut("a") { "a2" }
+        cache.getOrPut("c") { "c" }
+        assertEquals(listOf("b"), evicted)
+        assertEquals(2, cache.size())
+        var created = false
+        cache.getOrPut("a") { created = true; "a3" }
+        assertFalse(created)
+    }
+
+    @Test
+    fun clearEvictsAll() {
+        val evicted = arrayListOf<String>()
+        val cache = SignatureCache<String>(4) { evicted.add(it) }
+        cache.getOrPut("a") { "a" }
+        cache.getOrPut("b") { "b" }
+        cache.clear()
+        assertEquals(listOf("a", "b"), evicted)
+        assertEquals(0, cache.size())
+    }
+
+    @Test
+    fun forEachVisitsAll() {
+        val cache = SignatureCache<String>(4) {}
+        cache.getOrPut("a") { "a" }
+        cache.getOrPut("b") { "b" }
+        val visited = arrayListOf<String>()
+        cache.forEach { visited.add(it) }
+        assertEquals(setOf("a", "b"), visited.toSet())
+    }
+}
@@ -0,0 +1,95 @@
+package com.jiangdg.ausbc.render.internal
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * [ShaderSourceCache] loads a source once, failures are not cached
+ */
+class ShaderSourceCacheTest {
+
+    @Test
+    fun loadsOncePerId() {
+        val loads = IntArray(3)
+        val cache = ShaderSourceCache { id ->
+            loads[id]++
+            "source $id"
+        }
+        repeat(5) {
+            assertEquals("source 1", cache.getSource(1))
+            assertEquals("source 2", cache.getSource(2))
+        }
+        assertEquals(0, loads[0])
+        assertEquals(1, loads[1])
+        assertEquals(1, loads[2])
+        assertEquals(2, cache.size())
+    }
+
+    @Test
+    fun emptySourceIsNotCached() {
+        var loads = 0
+        var source = ""
+        val cache = ShaderSourceCache {
+            loads++
+            source
+        }
+        assertEquals("", cache.getSource(1))
+        assertEquals(0, cache.size())
+        // read again next time, such as the resource was not ready
+        source = "void main() {}"
+        assertEquals(source, cache.getSource(1))
+        assertEquals(source, cache.getSource(1))
+        assertEquals(2, loads)
+    }
+
+    @Test
+    fun clearLoadsAgain() {
+        var loads = 0
+        val cache = ShaderSourceCache {
+            loads++
+            "source"
+        }
+        cache.getSource(1)
+        cache.clear()
+        assertEquals(0, cache.size())
+        cache.getSource(1)
+        assertEquals(2, loads)
+    }
+
+    @Test
+    fun sharedByThreads() {
+        val loads = AtomicInteger(0)
+        val cache = ShaderSourceCache { id ->
+            loads.incrementAndGet()
+            "source $id"
+        }
+        val threads = 8
+        val pool = Executors.newFixedThreadPool(threads)
+        val start = CountDownLatch(1)
+        val done = CountDownLatch(threads)
+        val errors = AtomicInteger(0)
+        repeat(threads) {
+            pool.execute {
+                start.await()
+                for (id in 0 until 100) {
+                    if (cache.getSource(id) != "source $id") {
+                        errors.incrementAndGet()
+                    }
+                }
+                done.countDown()
+            }
+        }
+        start.countDown()
+        done.await(10, TimeUnit.SECONDS)
+        pool.shutdown()
+        assertEquals(0, errors.get())
+        assertEquals(100, cache.size())
+        // a racing miss may load twice, but never more than once per thread
+        assertTrue(loads.get() in 100..100 * threads)
+    }
+}
@@ -0,0 +1,57 @@
+package com.jiangdg.ausbc.render.readback
+
+/** Reader without gpu, pixels come from [source]
+ *
+ * Used to drive [FrameReadback] off device, an async one behaves like
+ *  [PboFrameReader], a slot can not be fetched until it has been issued.
+ *
+ * @property source fill pixels of a frame buffer into a slot
+ * @property async see [IFrameReader.isAsync]
+ */
+class CpuFrameReader(
+    private val source: (frameBufferId: Int, width: Int, height: Int, dst: ByteArray) -> Unit,
+    private val async: Boolean = true
+) : IFrameReader {
+    private var mSlots: Array<ByteArray> = emptyArray()
+    private var mIssued = BooleanArray(0)
+
+    /**
+     * Times of [issue]
+     */
+    var issueCount: Int = 0
+        private set
+
+    /**
+     * Times of [fetch] succeed
+     */
+    var fetchCount: Int = 0
+        private set
+
+    override fun isAsync(): Boolean = async
+
+    override fun setup(slotCount: Int, size: Int) {
+        mSlots = Array(slotCount) { ByteArray(size) }
+        mIssued = BooleanArray(slotCount)
+    }
+
+    override fun issue(slot: Int, frameBufferId: Int, width: Int, height: Int) {
+        source(frameBufferId, width, height, mSlots[slot])
+        mIssued[slot] = true
+        issueCount++
+    }
+
+    override fun fetch(slot: Int, dst: ByteArray, size: Int): Boolean {
+        if (slot !in mSlots.indices || ! mIssued[slot]) {
+            return false
+        }
+        System.arraycopy(mSlots[slot], 0, dst, 0, size)
+        mIssued[slot] = false
+        fetchCount++
+        return true
+    }
+
+    override fun release() {
+        mSlots = emptyArray()
+        mIssued = BooleanArray(0)
+    }
+}
@@ -0,0 +1,92 @@
+package com.jiangdg.ausbc.render.readback
+
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack.DataFormat
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * [FrameReadback] slot scheduling, driven by [CpuFrameReader]
+ */
+class FrameReadbackTest {
+
+    @Test
+    fun asyncReaderDeliversOneFrameLate() {
+        val reader = CpuFrameReader(::fillFrameId)
+        val readback = FrameReadback(reader)
+        val delivered = ArrayList<Long>()
+        val listener = FrameReadback.OnFrameListener { data, width, height, format, timestampNs ->
+            assertEquals(WIDTH, width)
+            assertEquals(HEIGHT, height)
+            assertEquals(DataFormat.RGBA, format)
+            // pixels and timestamp belong to the same frame
+            assertEquals(timestampNs, data[0].toLong())
+            delivered.add(timestampNs)
+        }
+        assertFalse(readback.readFrame(1, WIDTH, HEIGHT, listener, 1L))
+        for (frame in 2..10) {
+            assertTrue(readback.readFrame(frame, WIDTH, HEIGHT, listener, frame.toLong()))
+        }
+        assertEquals((1L..9L).toList(), delivered)
+        assertEquals(10L, readback.readCount)
+        assertEquals(9L, readback.deliverCount)
+        assertEquals(10, reader.issueCount)
+        assertEquals(9, reader.fetchCount)
+    }
+
+    @Test
+    fun syncReaderDeliversTheSameFrame() {
+        val reader = CpuFrameReader(::fillFrameId, false)
+        val readback = FrameReadback(reader)
+        val delivered = ArrayList<Long>()
+        val listener = FrameReadback.OnFrameListener { data, _, _, _, timestampNs ->
+            assertEquals(timestampNs, data[0].toLong())
+            delivered.add(timestampNs)
+        }
+        for (frame in 1..5) {
+            assertTrue(readback.readFrame(frame, WIDTH, HEIGHT, listener, frame.toLong()))
+        }
+        assertEquals((1L..5L).toList(), delivered)
+    }
+
+    @Test
+    fun sizeChangeDropsThePendingFrame() {
+        val reader = CpuFrameReader(::fillFrameId)
+        val readback = FrameReadback(reader)
+        val delivered = ArrayList<String>()
+        val listener = FrameReadback.OnFrameListener { _, width, height, format, timestampNs ->
+            delivered.add("$timestampNs:${width}x$height:$format")
+        }
+        readback.readFrame(1, WIDTH, HEIGHT, listener, 1L)
+        readback.readFrame(2, WIDTH, HEIGHT, listener, 2L)
+        // a yuv frame packed in a quarter sized rgba frame buffer
+        assertFalse(readback.readFrame(3, WIDTH / 4, HEIGHT, WIDTH, HEIGHT, DataFormat.NV12, listener, 3L))
+        assertTrue(readback.readFrame(4, WIDTH / 4, HEIGHT, WIDTH, HEIGHT, DataFormat.NV12, listener, 4L))
+        assertEquals(listOf("1:${WIDTH}x$HEIGHT:RGBA", "3:${WIDTH}x$HEIGHT:NV12"), delivered)
+    }
+
+    @Test
+    fun resetDropsThePendingFrame() {
+        val reader = CpuFrameReader(::fillFrameId)
+        val readback = FrameReadback(reader)
+        val delivered = ArrayList<Long>()
+        val listener = FrameReadback.OnFrameListener { _, _, _, _, timestampNs ->
+            delivered.add(timestampNs)
+        }
+        readback.readFrame(1, WIDTH, HEIGHT, listener, 1L)
+        readback.reset()
+        assertFalse(readback.readFrame(2, WIDTH, HEIGHT, listener, 2L))
+        assertTrue(readback.readFrame(3, WIDTH, HEIGHT, listener, 3L))
+        assertEquals(listOf(2L), delivered)
+    }
+
+    private fun fillFrameId(frameBufferId: Int, width: Int, height: Int, dst: ByteArray) {
+        dst.fill(frameBufferId.toByte(), 0, width * height * 4)
+    }
+
+    companion object {
+        private const val WIDTH = 8
+        private const val HEIGHT = 4
+    }
+}
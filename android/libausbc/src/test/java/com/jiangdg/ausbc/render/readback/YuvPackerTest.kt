@@ -0,0 +1,121 @@
+package com.jiangdg.ausbc.render.readback
+
+import com.jiangdg.ausbc.callback.IPreviewDataCallBack.DataFormat
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * [YuvPacker] texel mapping, as the shader packs, against the plane by plane cpu reference
+ */
+class YuvPackerTest {
+
+    @Test
+    fun nv12MatchesReference() {
+        assertPackedMatchesReference(DataFormat.NV12)
+    }
+
+    @Test
+    fun i420MatchesReference() {
+        assertPackedMatchesReference(DataFormat.I420)
+    }
+
+    @Test
+    fun nv12Layout() {
+        val packer = YuvPacker(8, 4, DataFormat.NV12)
+        val dst = ByteArray(packer.frameSize)
+        packer.convert(solid(8, 4, 255, 0, 0), dst)
+        // full red, bt601 video range
+        assertPlane(dst, 0, 32, Y_RED)
+        for (i in 0 until 8) {
+            assertEquals(if (i % 2 == 0) U_RED else V_RED, dst[32 + i].toInt() and 0xFF)
+        }
+    }
+
+    @Test
+    fun i420Layout() {
+        val packer = YuvPacker(8, 4, DataFormat.I420)
+        val dst = ByteArray(packer.frameSize)
+        packer.convert(solid(8, 4, 255, 0, 0), dst)
+        assertPlane(dst, 0, 32, Y_RED)
+        assertPlane(dst, 32, 8, U_RED)
+        assertPlane(dst, 40, 8, V_RED)
+    }
+
+    @Test
+    fun chromaIsTheBlockAverage() {
+        val width = 8
+        val height = 4
+        val rgba = ByteArray(width * height * 4)
+        // left half black, right half white, blocks never cross the edge
+        for (y in 0 until height) {
+            for (x in width / 2 until width) {
+                rgba.fill(0xFF.toByte(), (y * width + x) * 4, (y * width + x) * 4 + 4)
+            }
+        }
+        val packer = YuvPacker(width, height, DataFormat.I420)
+        val dst = ByteArray(packer.frameSize)
+        packer.convert(rgba, dst)
+        assertEquals(16, dst[0].toInt() and 0xFF)
+        assertEquals(235, dst[width - 1].toInt() and 0xFF)
+        // gray has no chroma
+        assertPlane(dst, width * height, width * height / 2, 128)
+    }
+
+    @Test
+    fun packedSize() {
+        val packer = YuvPacker(640, 480, DataFormat.NV12)
+        assertEquals(160, packer.packedWidth)
+        assertEquals(720, packer.packedHeight)
+        assertEquals(packer.packedWidth * packer.packedHeight * 4, packer.frameSize)
+    }
+
+    @Test
+    fun unsupportedSizes() {
+        assertTrue(YuvPacker.isSupported(640, 480, DataFormat.I420))
+        assertFalse(YuvPacker.isSupported(642, 480, DataFormat.NV12))
+        assertFalse(YuvPacker.isSupported(640, 482, DataFormat.NV12))
+        assertFalse(YuvPacker.isSupported(640, 480, DataFormat.RGBA))
+    }
+
+    private fun assertPackedMatchesReference(format: DataFormat) {
+        val random = Random(format.ordinal.toLong())
+        for ((width, height) in listOf(8 to 4, 16 to 8, 24 to 12, 640 to 480)) {
+            val rgba = ByteArray(width * height * 4).also {
+                random.nextBytes(it)
+            }
+            val packer = YuvPacker(width, height, format)
+            val packed = ByteArray(packer.frameSize)
+            val expected = ByteArray(packer.frameSize)
+            packer.packByTexel(rgba, packed)
+            packer.convert(rgba, expected)
+            assertArrayEquals("${width}x$height $format", expected, packed)
+        }
+    }
+
+    private fun solid(width: Int, height: Int, r: Int, g: Int, b: Int): ByteArray {
+        val rgba = ByteArray(width * height * 4)
+        for (i in 0 until width * height) {
+            rgba[i * 4] = r.toByte()
+            rgba[i * 4 + 1] = g.toByte()
+            rgba[i * 4 + 2] = b.toByte()
+            rgba[i * 4 + 3] = 0xFF.toByte()
+        }
+        return rgba
+    }
+
+    private fun assertPlane(data: ByteArray, offset: Int, size: Int, expected: Int) {
+        for (i in offset until offset + size) {
+            assertEquals("at $i", expected, data[i].toInt() and 0xFF)
+        }
+    }
+
+    companion object {
+        private const val Y_RED = 82
+        private const val U_RED = 90
+        private const val V_RED = 240
+    }
+}
@@ -0,0 +1,43 @@
+package com.jiangdg.uac;
+
+import androidx.annotation.NonNull;
+
+/** UAC pcm format, discovered once per device
+ */
+public final class UACAudioFormat {
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final int mBitResolution;
+
+    public UACAudioFormat(int sampleRate, int channelCount, int bitResolution) {
+        this.mSampleRate = sampleRate;
+        this.mChannelCount = channelCount;
+        this.mBitResolution = bitResolution;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getBitResolution() {
+        return mBitResolution;
+    }
+
+    public boolean isValid() {
+        return mSampleRate > 0 && mChannelCount > 0 && mBitResolution > 0;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "UACAudioFormat{" +
+                "sampleRate=" + mSampleRate +
+                ", channelCount=" + mChannelCount +
+                ", bitResolution=" + mBitResolution +
+                '}';
+    }
+}
@@ -9,8 +9,13 @@ import com.jiangdg.usb.USBMonitor;
 
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /** UAC thread handler
  *
@@ -22,6 +27,10 @@ public class UACAudioHandler extends Handler {
     private static final int MSG_START = 0x01;
     private static final int MSG_STOP= 0x02;
     private static final int MSG_RELEASE = 0x03;
+    /**
+     * format of each device, key is USBMonitor.getDeviceKeyName
+     */
+    private static final Map<String, UACAudioFormat> sFormatCache = new ConcurrentHashMap<>();
     private volatile boolean mIsReleased;
     private final WeakReference<AudioThread> mThreadWf;
 
@@ -72,27 +81,59 @@ public class UACAudioHandler extends Handler {
     }
 
     public int getSampleRate() {
-        final AudioThread thread = mThreadWf.get();
-        if (isReleased()) {
-            return -1;
-        }
-        return thread.getSampleRate();
+        final UACAudioFormat format = getAudioFormat(AudioThread.TIMES_OUT_MS);
+        return format != null ? format.getSampleRate() : -1;
     }
 
     public int getBitResolution() {
+        final UACAudioFormat format = getAudioFormat(AudioThread.TIMES_OUT_MS);
+        return format != null ? format.getBitResolution() : -1;
+    }
+
+    public int getChannelCount() {
+        final UACAudioFormat format = getAudioFormat(AudioThread.TIMES_OUT_MS);
+        return format != null ? format.getChannelCount() : -1;
+    }
+
+    /**
+     * Get pcm format, completed at once when the device was opened before,
+     *  otherwise completed after initAudioRecord
+     *
+     * @return future of the format, null means init failed
+     */
+    public Future<UACAudioFormat> getAudioFormatFuture() {
         final AudioThread thread = mThreadWf.get();
-        if (isReleased()) {
-            return -1;
+        if (thread == null || isReleased()) {
+            return CompletableFuture.completedFuture(null);
         }
-        return thread.getBitResolution();
+        return thread.mFormatFuture;
     }
 
-    public int getChannelCount() {
+    /**
+     * Get pcm format, waiting for the discovery at most timeoutMs
+     *
+     * @param timeoutMs max waiting time
+     * @return null means timeout or init failed
+     */
+    public UACAudioFormat getAudioFormat(long timeoutMs) {
         final AudioThread thread = mThreadWf.get();
-        if (isReleased()) {
-            return -1;
+        if (thread == null || isReleased()) {
+            return null;
         }
-        return thread.getChannelCount();
+        return thread.getAudioFormat(timeoutMs);
+    }
+
+    /**
+     * Clear the cached format of a device, such as firmware changed
+     *
+     * @param deviceKeyName see USBMonitor.getDeviceKeyName, null means all
+     */
+    public static void clearFormatCache(String deviceKeyName) {
+        if (deviceKeyName == null) {
+            sFormatCache.clear();
+            return;
+        }
+        sFormatCache.remove(deviceKeyName);
     }
 
     public void addDataCallBack(UACAudioCallBack callBack) {
@@ -161,6 +202,8 @@ public class UACAudioHandler extends Handler {
         private final Object mSync = new Object();
         private final USBMonitor.UsbControlBlock mCtrlBlock;
         private final Class<UACAudioHandler> mHandlerClass;
+        private final CompletableFuture<UACAudioFormat> mFormatFuture = new CompletableFuture<>();
+        private final String mDeviceKey;
         private UACAudioHandler mUACHandler;
         private UACAudio mUACAudio;
 
@@ -169,11 +212,19 @@ public class UACAudioHandler extends Handler {
         public AudioThread(Class<UACAudioHandler> handlerClass, USBMonitor.UsbControlBlock ctrlBlock) {
             this.mCtrlBlock = ctrlBlock;
             this.mHandlerClass = handlerClass;
+            this.mDeviceKey = getDeviceKey(ctrlBlock);
+            // opened before, skip discovery
+            final UACAudioFormat format = mDeviceKey != null ? sFormatCache.get(mDeviceKey) : null;
+            if (format != null) {
+                mFormatFuture.complete(format);
+                Log.i(TAG, "use cached format, " + format);
+            }
         }
 
         public void handleInitAudioRecord() {
             synchronized (mSync) {
-                if (isRecording()) {
+                // not isRecording(), it waits for mUACAudio which is created below
+                if (mUACAudio != null && mUACAudio.isRecording()) {
                     return;
                 }
                 mUACAudio = new UACAudio();
@@ -181,9 +232,49 @@ public class UACAudioHandler extends Handler {
                 mUACAudio.addAudioCallBack(this::callOnDataCallBack);
                 mSync.notifyAll();
             }
+            discoverFormat();
             Log.i(TAG, "handleInitAudioRecord");
         }
 
+        private void discoverFormat() {
+            if (mFormatFuture.isDone()) {
+                return;
+            }
+            if (mUACAudio.getAudioStatus() == UACAudio.AudioStatus.ERROR) {
+                mFormatFuture.complete(null);
+                Log.e(TAG, "discoverFormat failed, init audio error");
+                return;
+            }
+            final UACAudioFormat format = new UACAudioFormat(mUACAudio.getSampleRate(),
+                    mUACAudio.getChannelCount(), mUACAudio.getBitResolution());
+            if (format.isValid() && mDeviceKey != null) {
+                sFormatCache.put(mDeviceKey, format);
+            }
+            mFormatFuture.complete(format.isValid() ? format : null);
+            Log.i(TAG, "discoverFormat: " + format);
+        }
+
+        private UACAudioFormat getAudioFormat(long timeoutMs) {
+            if (timeoutMs <= 0) {
+                return mFormatFuture.getNow(null);
+            }
+            try {
+                return mFormatFuture.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                Log.w(TAG, "getAudioFormat failed, " + e);
+                return null;
+            }
+        }
+
+        private static String getDeviceKey(USBMonitor.UsbControlBlock ctrlBlock) {
+            try {
+                return ctrlBlock.getDeviceKeyName();
+            } catch (Exception e) {
+                Log.w(TAG, "getDeviceKey failed, " + e.getMessage());
+                return null;
+            }
+        }
+
         public void handleStartRecording() {
             if (mUACAudio == null) {
                 Log.e(TAG, "handleStartRecording failed, you should call initAudioRecord first");
@@ -209,6 +300,8 @@ public class UACAudioHandler extends Handler {
                 mUACAudio = null;
             }
             mCallBackList.clear();
+            // never initialized, release the waiting callers
+            mFormatFuture.complete(null);
             if (mUACHandler != null) {
                 mUACHandler.mIsReleased = true;
             }
@@ -219,48 +312,6 @@ public class UACAudioHandler extends Handler {
             Log.i(TAG, "handleReleaseAudioRecord");
         }
 
-        public int getSampleRate() {
-            synchronized (mSync) {
-                if (mUACAudio == null) {
-                    try {
-                        mSync.wait(TIMES_OUT_MS);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    return mUACAudio != null ? mUACAudio.getSampleRate() : -1;
-                }
-                return mUACAudio.getSampleRate();
-            }
-        }
-
-        public int getChannelCount() {
-            synchronized (mSync) {
-                if (mUACAudio == null) {
-                    try {
-                        mSync.wait();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    return mUACAudio != null ? mUACAudio.getChannelCount() : -1;
-                }
-                return mUACAudio.getChannelCount();
-            }
-        }
-
-        public int getBitResolution() {
-            synchronized (mSync) {
-                if (mUACAudio == null) {
-                    try {
-                        mSync.wait();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    return mUACAudio != null ? mUACAudio.getBitResolution() : -1;
-                }
-                return mUACAudio.getBitResolution();
-            }
-        }
-
         public UACAudio.AudioStatus getAudioStatus() {
             synchronized (mSync) {
                 if (mUACAudio == null) {
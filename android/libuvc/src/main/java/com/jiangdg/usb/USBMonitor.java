@@ -174,14 +174,27 @@ public final class USBMonitor {
 						", VendorId=" + device.getVendorId() + 
 						", ProductId=" + device.getProductId());
 
-					// Check if the device matches our filters
-					if (hasPermission(device)) {
-						XLogWrapper.i(TAG, "onReceive: Already have permission for attached device, processing connection");
-						processConnect(device);
-					} else {
-						XLogWrapper.i(TAG, "onReceive: Processing device attachment");
-						processAttach(device);
-					}
+					isAttachBroadcastSeen = true;
+					stopPollingIfBroadcastReliable();
+					// on the same thread as polling, so a queued check does not report it again
+					mAsyncHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (destroyed) return;
+							if (!updateSnapshot(device, true)) {
+								XLogWrapper.i(TAG, "onReceive: attached device already reported by polling");
+								return;
+							}
+							// Check if the device matches our filters
+							if (hasPermission(device)) {
+								XLogWrapper.i(TAG, "onReceive: Already have permission for attached device, processing connection");
+								processConnect(device);
+							} else {
+								XLogWrapper.i(TAG, "onReceive: Processing device attachment");
+								processAttach(device);
+							}
+						}
+					});
 				} else {
 					XLogWrapper.e(TAG, "onReceive: USB_DEVICE_ATTACHED with null device");
 				}
@@ -193,25 +206,19 @@ public final class USBMonitor {
 						", VendorId=" + device.getVendorId() + 
 						", ProductId=" + device.getProductId());
 
-					// Clean up device resources
-					UsbControlBlock ctrlBlock = mCtrlBlocks.remove(device);
-					if (ctrlBlock != null) {
-						XLogWrapper.i(TAG, "onReceive: Closing control block for detached device");
-						ctrlBlock.close();
-					}
-
-					// Remove from permission cache
-					synchronized (mHasPermissions) {
-						final int deviceKey = getDeviceKey(device, true);
-						if (mHasPermissions.get(deviceKey) != null) {
-							XLogWrapper.i(TAG, "onReceive: Removing detached device from permission cache");
-							mHasPermissions.remove(deviceKey);
+					isDetachBroadcastSeen = true;
+					stopPollingIfBroadcastReliable();
+					mAsyncHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (destroyed) return;
+							if (!updateSnapshot(device, false)) {
+								XLogWrapper.i(TAG, "onReceive: detached device already reported by polling");
+								return;
+							}
+							processRemoved(device);
 						}
-					}
-
-					// Process detachment
-					XLogWrapper.i(TAG, "onReceive: Processing device detachment");
-					processDettach(device);
+					});
 				} else {
 					XLogWrapper.e(TAG, "onReceive: USB_DEVICE_DETACHED with null device");
 				}
@@ -386,8 +393,10 @@ public final class USBMonitor {
 			return;
 		}
 		
-		// Start connection check
-		mDeviceCounts = 0;
+		// Notify devices already connected, then rely on attach/detach broadcasts,
+		// polling is only a fallback until both kinds of broadcast prove to work
+		mAsyncHandler.removeCallbacks(mDeviceCheckRunnable);
+		mAsyncHandler.post(mDeviceResetRunnable);
 		mAsyncHandler.postDelayed(mDeviceCheckRunnable, 100);
 		XLogWrapper.i(TAG, "register: USB monitor initialization complete, device check scheduled");
 	}
@@ -399,11 +408,14 @@ public final class USBMonitor {
 		XLogWrapper.i(TAG, "unregister: cleaning up USB monitor resources");
 		
 		// Stop device check runnable
-		mDeviceCounts = 0;
 		if (!destroyed) {
 			XLogWrapper.i(TAG, "unregister: removing device check callbacks");
 			mAsyncHandler.removeCallbacks(mDeviceCheckRunnable);
+			mAsyncHandler.post(mDeviceResetRunnable);
 		}
+		// broadcasts are proven again after registered next time
+		isAttachBroadcastSeen = false;
+		isDetachBroadcastSeen = false;
 		
 		// Unregister broadcast receiver
 		if (mPermissionIntent != null) {
@@ -527,15 +539,8 @@ public final class USBMonitor {
 				result.addAll(deviceList.values());
 			} else {
 				for (final UsbDevice device: deviceList.values() ) {
-					// match devices
-					for (final DeviceFilter filter: filters) {
-						if ((filter != null) && filter.matches(device) || (filter != null && filter.mSubclass == device.getDeviceSubclass())) {
-							// when filter matches
-							if (!filter.isExclude) {
-								result.add(device);
-							}
-							break;
-						}
+					if (matchDevice(device, filters)) {
+						result.add(device);
 					}
 				}
 			}
@@ -543,6 +548,25 @@ public final class USBMonitor {
 		return result;
 	}
 
+	/**
+	 * whether the device matches the filters, empty filters match all
+	 * @param device
+	 * @param filters
+	 * @return
+	 */
+	private static boolean matchDevice(final UsbDevice device, final List<DeviceFilter> filters) {
+		if ((filters == null) || filters.isEmpty()) {
+			return true;
+		}
+		for (final DeviceFilter filter: filters) {
+			if ((filter != null) && filter.matches(device) || (filter != null && filter.mSubclass == device.getDeviceSubclass())) {
+				// when filter matches
+				return !filter.isExclude;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * return device list, return empty list if no device matched
 	 * @param filter
@@ -945,67 +969,142 @@ public final class USBMonitor {
         }
     }
 
-	/** number of connected & detected devices */
-	private volatile int mDeviceCounts = 0;
+	/**
+	 * snapshot of connected devices matched the filters, keyed by device name,
+	 * only accessed on mAsyncHandler
+	 */
+	private HashMap<String, UsbDevice> mDeviceSnapshot = new HashMap<String, UsbDevice>();
+	/** attach broadcast has been received, it never comes on some devices */
+	private volatile boolean isAttachBroadcastSeen = false;
+	/** detach broadcast has been received, it never comes on some devices */
+	private volatile boolean isDetachBroadcastSeen = false;
+	private long mDeviceCheckInterval = DEVICE_CHECK_MIN_INTERVAL_MS;
+
+	private static final long DEVICE_CHECK_MIN_INTERVAL_MS = 1000;
+	private static final long DEVICE_CHECK_MAX_INTERVAL_MS = 60000;
 
 	/**
-	 * periodically check connected devices and if it changed, call onAttach
+	 * clear the device snapshot, devices will be attached again on next check
+	 */
+	private final Runnable mDeviceResetRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mDeviceSnapshot.clear();
+			mDeviceCheckInterval = DEVICE_CHECK_MIN_INTERVAL_MS;
+		}
+	};
+
+	/**
+	 * diff connected devices with the snapshot, call onAttach/onDetach for the changes.
+	 * It is a fallback until both attach and detach broadcasts are received, the interval is doubled
+	 * each time nothing changed and reset when broadcasts missed a device.
 	 */
 	private final Runnable mDeviceCheckRunnable = new Runnable() {
 		@Override
 		public void run() {
 			if (destroyed) return;
-			final List<UsbDevice> devices = getDeviceList();
-			final int n = devices.size();
-			final int hasPermissionCounts;
-			final int m;
-			
-			// Only check permissions if device count changed or it's been a while
-			boolean needsPermissionCheck = false;
-			synchronized (mHasPermissions) {
-				hasPermissionCounts = mHasPermissions.size();
-				
-				// Check if device count changed
-				if (n != mDeviceCounts) {
-					needsPermissionCheck = true;
-					if (DEBUG) XLogWrapper.i(TAG, "Device count changed from " + mDeviceCounts + " to " + n + ", checking permissions");
-				}
-				
-				// Only clear cache and recheck if needed
-				if (needsPermissionCheck) {
-					mHasPermissions.clear();
-					for (final UsbDevice device: devices) {
-						hasPermission(device);
-					}
-				} else {
-					// Just verify existing permissions without clearing cache
-					for (final UsbDevice device: devices) {
-						hasPermission(device); // This will use cache optimization
-					}
-				}
-				m = mHasPermissions.size();
+			final boolean changed = checkDevices();
+			if (isBroadcastReliable()) {
+				if (DEBUG) XLogWrapper.i(TAG, "device check: broadcasts are reliable, stop polling");
+				return;
 			}
-			if ((n > mDeviceCounts) || (m > hasPermissionCounts)) {
-				mDeviceCounts = n;
-				if (mOnDeviceConnectListener != null) {
-					for (int i = 0; i < n; i++) {
-						final UsbDevice device = devices.get(i);
-						mAsyncHandler.post(new Runnable() {
-							@Override
-							public void run() {
-								mOnDeviceConnectListener.onAttach(device);
-							}
-						});
-					}
-				}
+			if (changed) {
+				mDeviceCheckInterval = DEVICE_CHECK_MIN_INTERVAL_MS;
+			} else {
+				mDeviceCheckInterval = Math.min(mDeviceCheckInterval * 2, DEVICE_CHECK_MAX_INTERVAL_MS);
 			}
-			
-			// Use longer interval when devices are stable to reduce overhead
-			long nextCheckDelay = needsPermissionCheck ? 2000 : 5000;
-			mAsyncHandler.postDelayed(this, nextCheckDelay);
+			mAsyncHandler.postDelayed(this, mDeviceCheckInterval);
 		}
 	};
 
+	/**
+	 * diff connected devices with the snapshot in O(n), must run on mAsyncHandler
+	 * @return true if any device attached or detached
+	 */
+	private boolean checkDevices() {
+		final List<UsbDevice> devices = getDeviceList();
+		final HashMap<String, UsbDevice> current = new HashMap<String, UsbDevice>(devices.size() * 2);
+		final List<UsbDevice> attached = new ArrayList<UsbDevice>();
+		for (final UsbDevice device: devices) {
+			final String name = device.getDeviceName();
+			current.put(name, device);
+			if (mDeviceSnapshot.remove(name) == null) {
+				attached.add(device);
+			}
+		}
+		// devices left in the old snapshot are gone
+		final List<UsbDevice> detached = new ArrayList<UsbDevice>(mDeviceSnapshot.values());
+		mDeviceSnapshot = current;
+		if (DEBUG && (!attached.isEmpty() || !detached.isEmpty())) {
+			XLogWrapper.i(TAG, "checkDevices: attached=" + attached.size() + ", detached=" + detached.size() + ", total=" + current.size());
+		}
+		for (final UsbDevice device: detached) {
+			processRemoved(device);
+		}
+		for (final UsbDevice device: attached) {
+			// only new devices need a permission check
+			hasPermission(device);
+			processAttach(device);
+		}
+		return !attached.isEmpty() || !detached.isEmpty();
+	}
+
+	private boolean isBroadcastReliable() {
+		return isAttachBroadcastSeen && isDetachBroadcastSeen;
+	}
+
+	private void stopPollingIfBroadcastReliable() {
+		if (isBroadcastReliable() && !destroyed) {
+			XLogWrapper.i(TAG, "onReceive: attach and detach broadcasts received, stop polling devices");
+			mAsyncHandler.removeCallbacks(mDeviceCheckRunnable);
+		}
+	}
+
+	/**
+	 * update the snapshot for a broadcast, so polling will not report it again,
+	 * must run on mAsyncHandler
+	 * @param device
+	 * @param isAttached
+	 * @return false if polling has already reported the change
+	 */
+	private boolean updateSnapshot(final UsbDevice device, final boolean isAttached) {
+		if (!matchDevice(device, mDeviceFilters)) {
+			// not tracked by polling
+			return true;
+		}
+		final String name = device.getDeviceName();
+		if (isAttached) {
+			return mDeviceSnapshot.put(name, device) == null;
+		}
+		return mDeviceSnapshot.remove(name) != null;
+	}
+
+	/**
+	 * release resources of a removed device and call onDetach
+	 * @param device
+	 */
+	private void processRemoved(final UsbDevice device) {
+		// Clean up device resources
+		final UsbControlBlock ctrlBlock = mCtrlBlocks.remove(device);
+		if (ctrlBlock != null) {
+			XLogWrapper.i(TAG, "processRemoved: Closing control block for detached device");
+			ctrlBlock.close();
+		}
+
+		// Remove from permission cache
+		synchronized (mHasPermissions) {
+			final int deviceKey = getDeviceKey(device, true);
+			if (mHasPermissions.get(deviceKey) != null) {
+				XLogWrapper.i(TAG, "processRemoved: Removing detached device from permission cache");
+				mHasPermissions.remove(deviceKey);
+			}
+		}
+
+		// Process detachment
+		XLogWrapper.i(TAG, "processRemoved: Processing device detachment");
+		processDettach(device);
+	}
+
 	/**
 	 * open specific USB device
 	 * @param device UsbDevice
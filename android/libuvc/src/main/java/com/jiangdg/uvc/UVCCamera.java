@@ -760,6 +760,17 @@ public class UVCCamera {
     	}
     }
 
+//================================================================================
+    /**
+     * @return absolute exposure time [100us], -1 if camera is not opened
+     */
+	public synchronized int getExposure() {
+		if (mNativePtr != 0) {
+			return nativeGetExposure(mNativePtr);
+		}
+		return -1;
+	}
+
 //================================================================================
     /**
      * @param gamma [%]
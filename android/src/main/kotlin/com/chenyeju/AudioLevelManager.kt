@@ -0,0 +1,195 @@
+package com.chenyeju
+
+import android.media.AudioFormat
+import com.jiangdg.ausbc.encode.audio.IAudioStrategy
+import com.jiangdg.ausbc.utils.Logger
+import kotlin.math.log10
+import kotlin.math.sqrt
+
+/**
+ * Audio level meter and voice activity detector
+ *
+ * The prebuilt libausbc.jar has no pcm hook, so the meter runs its own [IAudioStrategy]
+ *  on a worker thread. Pcm is measured in 10ms blocks, rmsDb, peakDb and isVoice are
+ *  sent as AUDIO_LEVEL state every [PUBLISH_BLOCKS] blocks.
+ */
+class AudioLevelManager(private val videoStreamHandler: VideoStreamHandler) {
+    private var mThread: Thread? = null
+    @Volatile
+    private var isRunning = false
+    // only touched on the meter thread
+    private var mBytesPerSample = 2
+    private var mBlockSamples = 0
+    private var mBlockSumSquares = 0L
+    private var mBlockPeak = 0
+    private var mBlockCount = 0
+    private var mIntervalSumSquares = 0L
+    private var mIntervalSamples = 0L
+    private var mIntervalPeak = 0
+    private var mIntervalBlocks = 0
+    private var mNoiseFloorDb = INIT_NOISE_FLOOR_DB
+    private var mActiveBlocks = 0
+    private var mHangoverBlocks = 0
+    private var isVoice = false
+
+    /**
+     * Start metering, a running meter is stopped first
+     *
+     * @param strategy audio source, released when the meter stops
+     */
+    fun start(strategy: IAudioStrategy) {
+        stop()
+        isRunning = true
+        mThread = Thread({ runMeter(strategy) }, TAG).apply {
+            start()
+        }
+    }
+
+    /**
+     * Stop metering and wait for the audio source to be released
+     */
+    fun stop() {
+        val thread = mThread ?: return
+        mThread = null
+        isRunning = false
+        try {
+            thread.join(STOP_TIMES_OUT_MS)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    fun isMetering() = mThread != null
+
+    private fun runMeter(strategy: IAudioStrategy) {
+        try {
+            strategy.initAudioRecord()
+            strategy.startRecording()
+            reset(strategy)
+            while (isRunning) {
+                val rawData = strategy.read()
+                if (rawData == null || rawData.size <= 0) {
+                    // uac read does not block
+                    Thread.sleep(READ_INTERVAL_MS)
+                    continue
+                }
+                process(rawData.data, rawData.size)
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        } catch (e: Exception) {
+            Logger.e(TAG, "audio level failed, err = ${e.localizedMessage}", e)
+        } finally {
+            strategy.stopRecording()
+            strategy.releaseAudioRecord()
+        }
+    }
+
+    private fun reset(strategy: IAudioStrategy) {
+        mBytesPerSample = if (strategy.getAudioFormat() == AudioFormat.ENCODING_PCM_8BIT) 1 else 2
+        mBlockSamples = maxOf(1, strategy.getSampleRate() / BLOCKS_PER_SECOND) * strategy.getChannelCount()
+        mBlockSumSquares = 0L
+        mBlockPeak = 0
+        mBlockCount = 0
+        mIntervalSumSquares = 0L
+        mIntervalSamples = 0L
+        mIntervalPeak = 0
+        mIntervalBlocks = 0
+        mNoiseFloorDb = INIT_NOISE_FLOOR_DB
+        mActiveBlocks = 0
+        mHangoverBlocks = 0
+        isVoice = false
+    }
+
+    private fun process(pcm: ByteArray, size: Int) {
+        var i = 0
+        while (i + mBytesPerSample <= size) {
+            val sample = if (mBytesPerSample == 1) {
+                // 8 bit pcm is unsigned
+                ((pcm[i].toInt() and 0xFF) - 128) shl 8
+            } else {
+                (pcm[i].toInt() and 0xFF) or (pcm[i + 1].toInt() shl 8)
+            }
+            i += mBytesPerSample
+            mBlockSumSquares += sample.toLong() * sample
+            val abs = if (sample < 0) -sample else sample
+            if (abs > mBlockPeak) {
+                mBlockPeak = abs
+            }
+            if (++mBlockCount == mBlockSamples) {
+                finishBlock()
+            }
+        }
+    }
+
+    private fun finishBlock() {
+        detectVoice(toDb(sqrt(mBlockSumSquares.toDouble() / mBlockCount)))
+        mIntervalSumSquares += mBlockSumSquares
+        mIntervalSamples += mBlockCount
+        if (mBlockPeak > mIntervalPeak) {
+            mIntervalPeak = mBlockPeak
+        }
+        mBlockSumSquares = 0L
+        mBlockPeak = 0
+        mBlockCount = 0
+        if (++mIntervalBlocks < PUBLISH_BLOCKS) {
+            return
+        }
+        val data = HashMap<String, Any>()
+        data["rmsDb"] = toDb(sqrt(mIntervalSumSquares.toDouble() / mIntervalSamples))
+        data["peakDb"] = toDb(mIntervalPeak.toDouble())
+        data["isVoice"] = isVoice
+        videoStreamHandler.sendState("AUDIO_LEVEL", data)
+        mIntervalSumSquares = 0L
+        mIntervalSamples = 0L
+        mIntervalPeak = 0
+        mIntervalBlocks = 0
+    }
+
+    /**
+     * Energy vad, noise floor follows quiet blocks fast and loud blocks slowly,
+     *  voice starts after a few active blocks and holds for a while.
+     */
+    private fun detectVoice(rmsDb: Double) {
+        val factor = if (rmsDb < mNoiseFloorDb) NOISE_FALL_FACTOR else NOISE_RISE_FACTOR
+        mNoiseFloorDb += (rmsDb - mNoiseFloorDb) * factor
+        if (rmsDb > maxOf(mNoiseFloorDb + VAD_MARGIN_DB, VAD_MIN_DB)) {
+            if (++mActiveBlocks >= VAD_ATTACK_BLOCKS) {
+                isVoice = true
+                mHangoverBlocks = VAD_HANGOVER_BLOCKS
+            }
+            return
+        }
+        mActiveBlocks = 0
+        if (mHangoverBlocks > 0) {
+            mHangoverBlocks--
+        } else {
+            isVoice = false
+        }
+    }
+
+    private fun toDb(amplitude: Double): Double {
+        if (amplitude <= 0.0) {
+            return MIN_DB
+        }
+        return maxOf(MIN_DB, 20.0 * log10(amplitude / FULL_SCALE))
+    }
+
+    companion object {
+        private const val TAG = "AudioLevelManager"
+        private const val BLOCKS_PER_SECOND = 100
+        private const val PUBLISH_BLOCKS = 10
+        private const val READ_INTERVAL_MS = 5L
+        private const val STOP_TIMES_OUT_MS = 1000L
+        private const val FULL_SCALE = 32768.0
+        private const val MIN_DB = -96.0
+        private const val INIT_NOISE_FLOOR_DB = -60.0
+        private const val NOISE_FALL_FACTOR = 0.2
+        // about 5s to follow a louder background
+        private const val NOISE_RISE_FACTOR = 0.002
+        private const val VAD_MARGIN_DB = 10.0
+        private const val VAD_MIN_DB = -55.0
+        private const val VAD_ATTACK_BLOCKS = 3
+        private const val VAD_HANGOVER_BLOCKS = 30
+    }
+}
@@ -150,6 +150,16 @@ class FlutterUVCCameraPlugin : FlutterPlugin, MethodCallHandler, ActivityAware {
                 mUVCCameraViewFactory.captureStreamStop()
                 result.success(null)
             }
+
+            "startAudioLevel" -> {
+                mUVCCameraViewFactory.startAudioLevel()
+                result.success(null)
+            }
+
+            "stopAudioLevel" -> {
+                mUVCCameraViewFactory.stopAudioLevel()
+                result.success(null)
+            }
             
             // Stream control
             "setVideoFrameRateLimit" -> {
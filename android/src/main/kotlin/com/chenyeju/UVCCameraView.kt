@@ -31,6 +31,8 @@ import com.jiangdg.ausbc.callback.ICaptureCallBack
 import com.jiangdg.ausbc.callback.IDeviceConnectCallBack
 import com.jiangdg.ausbc.callback.IEncodeDataCallBack
 import com.jiangdg.ausbc.camera.bean.CameraRequest
+import com.jiangdg.ausbc.encode.audio.AudioStrategySystem
+import com.jiangdg.ausbc.encode.audio.AudioStrategyUAC
 import com.jiangdg.ausbc.render.env.RotateType
 import com.jiangdg.ausbc.utils.Logger
 import com.jiangdg.ausbc.utils.SettableFuture
@@ -60,6 +62,7 @@ internal class UVCCameraView(
     private val mCameraMap = hashMapOf<Int, MultiCameraClient.ICamera>()
     private var mCurrentCamera: SettableFuture<MultiCameraClient.ICamera>? = null
     private var isCapturingVideoOrAudio: Boolean = false
+    private var mCtrlBlock: USBMonitor.UsbControlBlock? = null
     private val mRequestPermission: AtomicBoolean by lazy {
         AtomicBoolean(false)
     }
@@ -68,6 +71,8 @@ internal class UVCCameraView(
     private val stateManager = CameraStateManager(mChannel)
     private val configManager = CameraConfigManager()
     private val featuresManager = CameraFeaturesManager(mChannel)
+    private val audioLevelManager = AudioLevelManager(videoStreamHandler)
+    private var isAudioLevelRequested = false
     
     // Track streaming state
     private var isStreaming = false
@@ -146,6 +151,7 @@ internal class UVCCameraView(
     }
 
     override fun dispose() {
+        stopAudioLevel()
         unRegisterMultiCamera()
         mViewBinding.fragmentContainer.removeAllViews()
         stateManager.updateState(CameraStateManager.CameraState.CLOSED)
@@ -218,6 +224,7 @@ internal class UVCCameraView(
                 device ?: return
                 ctrlBlock ?: return
                 view.context ?: return
+                mCtrlBlock = ctrlBlock
                 mCameraMap[device.deviceId]?.apply {
                     setUsbControlBlock(ctrlBlock)
                 }?.also { camera ->
@@ -235,6 +242,8 @@ internal class UVCCameraView(
             }
 
             override fun onDisConnectDec(device: UsbDevice?, ctrlBlock: USBMonitor.UsbControlBlock?) {
+                audioLevelManager.stop()
+                mCtrlBlock = null
                 closeCamera()
                 mRequestPermission.set(false)
             }
@@ -560,6 +569,8 @@ internal class UVCCameraView(
             callFlutter("Camera not available")
             return
         }
+        // the encoder needs the mic
+        audioLevelManager.stop()
         camera.captureStreamStart()
         Logger.i(TAG, "Camera stream started")
         isStreaming = true
@@ -578,6 +589,44 @@ internal class UVCCameraView(
         
         // Stop FPS monitoring
         fpsReportHandler.removeCallbacks(fpsReportRunnable)
+        resumeAudioLevel()
+    }
+
+    /**
+     * Start audio level metering, published as AUDIO_LEVEL state
+     *
+     * The meter can not share the mic with the encoder, it pauses while
+     *  recording or streaming and resumes after.
+     */
+    fun startAudioLevel() {
+        isAudioLevelRequested = true
+        resumeAudioLevel()
+        Logger.i(TAG, "Audio level started")
+    }
+
+    fun stopAudioLevel() {
+        isAudioLevelRequested = false
+        audioLevelManager.stop()
+        Logger.i(TAG, "Audio level stopped")
+    }
+
+    private fun resumeAudioLevel() {
+        if (!isAudioLevelRequested || isCapturingVideoOrAudio || isStreaming || audioLevelManager.isMetering()) {
+            return
+        }
+        val camera = getCurrentCamera() as? CameraUVC
+        if (camera == null) {
+            Logger.e(TAG, "Cannot start audio level - camera is null")
+            return
+        }
+        // same mic choice as the recorder
+        val ctrlBlock = mCtrlBlock
+        val strategy = if (camera.isMicSupported() && ctrlBlock != null) {
+            AudioStrategyUAC(ctrlBlock)
+        } else {
+            AudioStrategySystem()
+        }
+        audioLevelManager.start(strategy)
     }
 
     private fun setEncodeDataCallBack() {
@@ -642,6 +691,8 @@ internal class UVCCameraView(
             return
         }
 
+        // the encoder needs the mic
+        audioLevelManager.stop()
         captureVideoStart(object : ICaptureCallBack {
             override fun onBegin() {
                 isCapturingVideoOrAudio = true
@@ -652,6 +703,7 @@ internal class UVCCameraView(
             override fun onError(error: String?) {
                 isCapturingVideoOrAudio = false
                 recordingTimerManager.stopRecording()
+                resumeAudioLevel()
                 callback.onError(error ?: "Video capture error")
             }
 
@@ -668,6 +720,7 @@ internal class UVCCameraView(
                     recordingTimerManager.stopRecording()
                     callback.onError("Failed to save video")
                 }
+                resumeAudioLevel()
             }
         })
     }
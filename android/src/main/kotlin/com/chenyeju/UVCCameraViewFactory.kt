@@ -46,6 +46,14 @@ class UVCCameraViewFactory(
         cameraView.captureStreamStop()
     }
 
+    fun startAudioLevel() {
+        cameraView.startAudioLevel()
+    }
+
+    fun stopAudioLevel() {
+        cameraView.stopAudioLevel()
+    }
+
     fun getAllPreviewSizes() = cameraView.getAllPreviewSizes()
     
     fun getCurrentCameraRequestParameters() = cameraView.getCurrentCameraRequestParameters()
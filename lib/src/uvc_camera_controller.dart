@@ -238,6 +238,17 @@ class UVCCameraController {
     _methodChannel?.invokeMethod('captureStreamStop');
   }
 
+  /// Start audio level metering, results arrive as 'AUDIO_LEVEL' state events
+  /// with rmsDb, peakDb and isVoice, about 10 times per second
+  Future<void> startAudioLevel() async {
+    await _methodChannel?.invokeMethod('startAudioLevel');
+  }
+
+  /// Stop audio level metering
+  Future<void> stopAudioLevel() async {
+    await _methodChannel?.invokeMethod('stopAudioLevel');
+  }
+
   /// Start camera preview
   Future<void> startCamera() async {
     await _methodChannel?.invokeMethod('startCamera');